@@ -2,6 +2,7 @@ package io.warp10;
 
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.Tokens;
+import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.store.Constants;
 import io.warp10.script.WarpScriptJarRepository;
 import io.warp10.script.WarpScriptMacroRepository;
@@ -68,6 +69,12 @@ public class WarpConfig {
     //
     
     WarpScriptJarRepository.init(properties);
+    
+    //
+    // Enable XOR encoding of double values if requested
+    //
+    
+    GTSEncoder.setDoubleXOR("true".equals(properties.getProperty(Configuration.GTS_ENCODER_DOUBLE_XOR)));
   }
   
   private static Properties readConfig(InputStream file, Properties properties) throws IOException {
@@ -36,6 +36,13 @@ public class Configuration {
 
   public static final String WARP_IDENT = "warp.ident";
   
+  /**
+   * Set to 'true' to let GTSEncoder store double values as their XOR with the previous double value.
+   * Readers predating this encoding cannot decode such data, so it is disabled by default and should
+   * only be enabled once all readers have been upgraded.
+   */
+  public static final String GTS_ENCODER_DOUBLE_XOR = "gts.encoder.double.xor";
+  
   /**
    * Comma separated list of additional languages to support within WarpScript
    * This MUST be set as a system property
@@ -54,6 +61,7 @@ public class Configuration {
   public static final String WARPSCRIPT_MAX_PIXELS = "warpscript.maxpixels";
   public static final String WARPSCRIPT_URLFETCH_LIMIT = "warpscript.urlfetch.limit";
   public static final String WARPSCRIPT_URLFETCH_MAXSIZE = "warpscript.urlfetch.maxsize";
+  public static final String WARPSCRIPT_MAX_PARALLELISM = "warpscript.maxparallelism";
 
   // Hard limits for the above limits which can be changed via a function call
   public static final String WARPSCRIPT_MAX_OPS_HARD = "warpscript.maxops.hard";
@@ -67,6 +75,25 @@ public class Configuration {
   public static final String WARPSCRIPT_MAX_PIXELS_HARD = "warpscript.maxpixels.hard";
   public static final String WARPSCRIPT_URLFETCH_LIMIT_HARD = "warpscript.urlfetch.limit.hard";
   public static final String WARPSCRIPT_URLFETCH_MAXSIZE_HARD = "warpscript.urlfetch.maxsize.hard";
+  public static final String WARPSCRIPT_MAX_PARALLELISM_HARD = "warpscript.maxparallelism.hard";
+
+  /**
+   * Number of threads of the pool shared by all WarpScript executions to run REDUCE, APPLY and MAP
+   * in parallel. Parallel execution is disabled if this is 0 (the default).
+   * The number of threads a given execution can use is set by warpscript.maxparallelism
+   */
+  public static final String WARPSCRIPT_PARALLELISM_POOL = "warpscript.parallelism.pool";
+
+  /**
+   * Maximum number of bytes (estimated) retained by the pre-parsed scripts kept by the /exec endpoint,
+   * caching is disabled if this is 0
+   */
+  public static final String WARPSCRIPT_CACHE_SIZE = "warpscript.cache.size";
+  
+  /**
+   * Maximum size (in characters) of scripts kept in the cache of the /exec endpoint
+   */
+  public static final String WARPSCRIPT_CACHE_MAXLENGTH = "warpscript.cache.maxlength";
 
   public static final String WEBCALL_USER_AGENT = "webcall.user.agent";
 
@@ -346,6 +373,23 @@ public class Configuration {
    * Maximum size of Jetty ThreadPool queue size (unbounded by default)
    */
   public static final String DIRECTORY_STREAMING_MAXQUEUESIZE = "directory.streaming.maxqueuesize";
+  
+  /**
+   * Number of Metadata the streaming directory endpoint outputs between two flushes of the response
+   */
+  public static final String DIRECTORY_STREAMING_BATCHSIZE = "directory.streaming.batchsize";
+  
+  /**
+   * Maximum number of Metadata read from the streaming directory endpoints and buffered by a client
+   * ahead of the consumer
+   */
+  public static final String DIRECTORY_STREAMING_INFLIGHT = "directory.streaming.inflight";
+  
+  /**
+   * Maximum time (in ms) a client reading the streaming directory endpoints waits for the consumer
+   * to catch up before giving up
+   */
+  public static final String DIRECTORY_STREAMING_OFFER_TIMEOUT = "directory.streaming.offer.timeout";
 
   /**
    * Address on which the DirectoryService will listen
@@ -372,6 +416,23 @@ public class Configuration {
    */
   public static final String DIRECTORY_INIT = "directory.init";
 
+  /**
+   * Path of the local snapshot of the Directory metadata. If set, Directory initializes from this
+   * snapshot and only reads from HBase the metadata modified since the snapshot was taken.
+   */
+  public static final String DIRECTORY_SNAPSHOT = "directory.snapshot";
+  
+  /**
+   * Period (in ms) between two snapshots of the Directory metadata, defaults to 1 hour
+   */
+  public static final String DIRECTORY_SNAPSHOT_PERIOD = "directory.snapshot.period";
+  
+  /**
+   * Maximum age (in ms) of a snapshot for it to be used at startup, defaults to 1 day. Snapshots older than
+   * this are ignored as the HBase delete markers needed to replay deletions may have been purged by compactions.
+   */
+  public static final String DIRECTORY_SNAPSHOT_MAXAGE = "directory.snapshot.maxage";
+
   /**
    * Boolean indicating whether or not we should store in HBase metadata we get from Kafka
    */
@@ -823,6 +884,16 @@ public class Configuration {
    */
   public static final String PLASMA_FRONTEND_WEBSOCKET_MAXMESSAGESIZE = "plasma.frontend.websocket.maxmessagesize";
   
+  /**
+   * Delay (in ms) between the flushes of the frames of the Plasma sessions
+   */
+  public static final String PLASMA_FRONTEND_FLUSH_INTERVAL = "plasma.frontend.flush.interval";
+  
+  /**
+   * Maximum number of frames waiting to be sent per Plasma session, further frames are dropped
+   */
+  public static final String PLASMA_FRONTEND_SESSION_MAXFRAMES = "plasma.frontend.session.maxframes";
+  
   /**
    * Idle timeout
    */
@@ -974,6 +1045,26 @@ public class Configuration {
    */
   public static final String RUNNER_MINPERIOD = "runner.minperiod";
   
+  /**
+   * Maximum delay (in ms) randomly added to the first run of each script, so scripts with the same period are spread
+   */
+  public static final String RUNNER_JITTER = "runner.jitter";
+  
+  /**
+   * Duration (in ms) during which the result of a fetch is shared with identical fetches from other scripts, 0 to disable
+   */
+  public static final String RUNNER_FETCH_CACHE_TTL = "runner.fetch.cache.ttl";
+  
+  /**
+   * Maximum total size (in bytes) of the shared fetch results
+   */
+  public static final String RUNNER_FETCH_CACHE_MAXSIZE = "runner.fetch.cache.maxsize";
+  
+  /**
+   * Maximum time (in ms) a fetch waits for the result of an identical fetch in progress
+   */
+  public static final String RUNNER_FETCH_CACHE_TIMEOUT = "runner.fetch.cache.timeout";
+  
   /**
    * ZooKeeper connect string for the Kafka cluster
    */
@@ -1064,6 +1155,28 @@ public class Configuration {
    * Compression type to use for leveldb (SNAPPY/NONE)
    */
   public static final String LEVELDB_COMPRESSION_TYPE = "leveldb.compression.type";
+
+  /**
+   * Span (in time units) of the per GTS data blocks in leveldb. When set, individually stored datapoints
+   * are periodically merged into blocks covering this span. When unset, datapoints are only stored individually.
+   */
+  public static final String LEVELDB_BLOCK_SPAN = "leveldb.block.span";
+  
+  /**
+   * Period (in ms) at which individually stored datapoints are merged into blocks
+   */
+  public static final String LEVELDB_BLOCK_MERGE_PERIOD = "leveldb.block.merge.period";
+  
+  /**
+   * Whitespace separated selectors of the GTS for which rollups (min, max, sum, count, first and last per bucket)
+   * are maintained at ingest time in leveldb.
+   */
+  public static final String LEVELDB_ROLLUP_SELECTORS = "leveldb.rollup.selectors";
+  
+  /**
+   * Comma separated spans (in time units) of the rollup buckets
+   */
+  public static final String LEVELDB_ROLLUP_RESOLUTIONS = "leveldb.rollup.resolutions";
   
   /**
    * IP to bind to for listening to incoming connections. Use 0.0.0.0 to listen to all interfaces
@@ -1104,6 +1217,22 @@ public class Configuration {
    * Path to a file to use for signaling that compactions are suspended
    */
   public static final String STANDALONE_SNAPSHOT_SIGNAL = "standalone.snapshot.signal";
+
+  /**
+   * Set to 'false' to disable the inverted label index of the standalone directory, 'find' will then scan all the GTS of the matching classes
+   */
+  public static final String STANDALONE_DIRECTORY_LABELINDEX = "standalone.directory.labelindex";
+  
+  /**
+   * Path of the local snapshot of the standalone directory metadata. If set, the directory initializes from
+   * this snapshot and replays the changes journaled in leveldb since the snapshot was taken.
+   */
+  public static final String STANDALONE_DIRECTORY_SNAPSHOT = "standalone.directory.snapshot";
+  
+  /**
+   * Period (in ms) between two snapshots of the standalone directory metadata, defaults to 1 hour
+   */
+  public static final String STANDALONE_DIRECTORY_SNAPSHOT_PERIOD = "standalone.directory.snapshot.period";
   
   /**
    * Set to 'true' to indicate the instance will use memory only for storage. This type of instance is non persistent.
@@ -1130,6 +1259,22 @@ public class Configuration {
    * If set to true, then only the last recorded value of a GTS is kept
    */
   public static final String IN_MEMORY_EPHEMERAL = "in.memory.ephemeral";
+  
+  /**
+   * Number of lock stripes of the in-memory series table
+   */
+  public static final String IN_MEMORY_STRIPES = "in.memory.stripes";
+  
+  /**
+   * Size in bytes of the off heap slabs the in-memory data is stored in
+   */
+  public static final String IN_MEMORY_SLABSIZE = "in.memory.slabsize";
+  
+  /**
+   * Width (in time units) of the time slots in-memory datapoints are grouped in. Expired data is
+   * discarded one slot at a time. Defaults to 1/16th of the depth.
+   */
+  public static final String IN_MEMORY_SLOTSPAN = "in.memory.slotspan";
 
   /**
    * Set to 'true' to only forward data to Plasma. Not data storage will take place.
@@ -1236,6 +1381,21 @@ public class Configuration {
    */
   public static final String EGRESS_HBASE_FILTER = "egress.hbase.filter";
   
+  /**
+   * Maximum number of GTS scanned concurrently by a single fetch. Defaults to 1, i.e. GTS are scanned sequentially.
+   */
+  public static final String EGRESS_HBASE_FETCH_SCANNERS = "egress.hbase.fetch.scanners";
+  
+  /**
+   * Number of threads shared by the scanners of all parallel fetches, defaults to 4 times the number of scanners per fetch
+   */
+  public static final String EGRESS_HBASE_FETCH_POOLSIZE = "egress.hbase.fetch.poolsize";
+  
+  /**
+   * Number of bytes of data a parallel fetch may read ahead of its consumer, defaults to 16 MB
+   */
+  public static final String EGRESS_HBASE_FETCH_INFLIGHT = "egress.hbase.fetch.inflight";
+  
   //
   // T H R O T T L I N G    M A N A G E R
   //
@@ -1442,6 +1602,11 @@ public class Configuration {
    */  
   public static final String HTTP_HEADER_ELAPSEDX = "http.header.elapsed";
 
+  /**
+   * HTTP Header requesting the profile of function calls of Einstein scripts
+   */
+  public static final String HTTP_HEADER_PROFILEX = "http.header.profile";
+
   /**
    * Script line where an error was encountered
    */
@@ -0,0 +1,253 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum;
+
+import io.warp10.script.HyperLogLogPlus;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Estimator of the number of distinct GTS (MADS) of a producer or an application, shared by the ingestion threads.
+ * 
+ * Lookups read the registers of the underlying HyperLogLogPlus without locking. Each thread buffers the hashes
+ * it adds in its own shard, the shards are merged into the HyperLogLogPlus lazily, when they are full, older than
+ * MAX_SHARD_AGE ms, or when the cardinality is needed. A thread checking a limit therefore ignores at most
+ * SHARD_SIZE hashes per other ingestion thread.
+ * 
+ * The shards of threads which have terminated are removed once drained. An estimator replaced by another one
+ * is retired (see retire), hashes added to it afterwards are forwarded to its successor.
+ */
+public class MADSEstimator {
+  
+  /**
+   * Maximum number of hashes buffered per thread
+   */
+  public static final int SHARD_SIZE = 64;
+  
+  /**
+   * Maximum age (in ms) of the oldest hash buffered in a shard
+   */
+  private static final long MAX_SHARD_AGE = 1000L;
+  
+  private static final class Shard {
+    private final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+    private final long[] hashes = new long[SHARD_SIZE];
+    private int size = 0;
+    private long since = 0L;
+    
+    synchronized boolean contains(long hash) {
+      for (int i = 0; i < this.size; i++) {
+        if (hash == this.hashes[i]) {
+          return true;
+        }
+      }
+      return false;
+    }
+    
+    synchronized int size() {
+      return this.size;
+    }
+    
+    /**
+     * Buffer a hash
+     * 
+     * @return true if the shard should be merged
+     */
+    synchronized boolean add(long hash) {
+      if (0 == this.size) {
+        this.since = System.currentTimeMillis();
+      }
+      
+      this.hashes[this.size++] = hash;
+      
+      return SHARD_SIZE == this.size || System.currentTimeMillis() - this.since > MAX_SHARD_AGE;
+    }
+    
+    synchronized void drain(HyperLogLogPlus hllp) throws IOException {
+      for (int i = 0; i < this.size; i++) {
+        hllp.aggregate(this.hashes[i]);
+      }
+      this.size = 0;
+    }
+    
+    boolean isOrphan() {
+      Thread thread = this.owner.get();
+      return null == thread || !thread.isAlive();
+    }
+  }
+  
+  private final HyperLogLogPlus hllp;
+  
+  /**
+   * Cardinality of 'hllp' as of the last merge
+   */
+  private volatile long cardinality;
+  
+  private final List<Shard> shards = new CopyOnWriteArrayList<Shard>();
+  
+  /**
+   * Estimator which replaced this one, if any
+   */
+  private volatile MADSEstimator successor = null;
+  
+  private final ThreadLocal<Shard> shard = new ThreadLocal<Shard>() {
+    @Override
+    protected Shard initialValue() {
+      Shard shard = new Shard();
+      shards.add(shard);
+      return shard;
+    }
+  };
+  
+  /**
+   * @param hllp Estimator in NORMAL mode
+   */
+  public MADSEstimator(HyperLogLogPlus hllp) throws IOException {
+    this.hllp = hllp;
+    this.cardinality = hllp.cardinality();
+  }
+  
+  public long getInitTime() {
+    return this.hllp.getInitTime();
+  }
+  
+  public boolean hasExpired() {
+    return this.hllp.hasExpired();
+  }
+  
+  /**
+   * Check if 'hash' would modify the estimated cardinality, hashes buffered by other threads are ignored
+   */
+  public boolean isNew(long hash) {
+    return this.hllp.isNew(hash) && !this.shard.get().contains(hash);
+  }
+  
+  /**
+   * Check if the cardinality exceeds 'limit'. The shard of the calling thread is only merged
+   * when it could make the cardinality exceed the limit.
+   */
+  public boolean exceeds(long limit) throws IOException {
+    if (this.cardinality + this.shard.get().size() <= limit) {
+      return false;
+    }
+    
+    merge();
+    
+    return this.cardinality > limit;
+  }
+  
+  /**
+   * Add a hash to the shard of the calling thread
+   */
+  public void add(long hash) throws IOException {
+    boolean full = this.shard.get().add(hash);
+    
+    //
+    // The successor is checked after the hash was buffered, so either the hash is drained by 'retire'
+    // or we see the successor and fuse into it. Fusing is idempotent so hashes already drained are harmless.
+    //
+    
+    MADSEstimator next = this.successor;
+    
+    if (null != next) {
+      while (null != next.successor) {
+        next = next.successor;
+      }
+      next.fuse(this);
+    } else if (full) {
+      merge();
+    }
+  }
+  
+  /**
+   * Return the cardinality as of the last merge
+   */
+  public long getEstimate() {
+    return this.cardinality;
+  }
+  
+  /**
+   * Merge all shards and return the cardinality
+   */
+  public long cardinality() throws IOException {
+    merge();
+    return this.cardinality;
+  }
+  
+  /**
+   * Merge the hashes buffered by all threads into the estimator
+   */
+  public synchronized void merge() throws IOException {
+    for (Shard shard: this.shards) {
+      shard.drain(this.hllp);
+      
+      if (shard.isOrphan()) {
+        this.shards.remove(shard);
+      }
+    }
+    
+    this.cardinality = this.hllp.cardinality();
+  }
+  
+  /**
+   * Merge another estimator into this one
+   */
+  public synchronized void fuse(HyperLogLogPlus other) throws IOException {
+    this.hllp.fuse(other);
+    merge();
+  }
+  
+  /**
+   * Merge another estimator, including the hashes buffered by all its threads, into this one
+   */
+  public synchronized void fuse(MADSEstimator other) throws IOException {
+    other.fuseInto(this.hllp);
+    merge();
+  }
+  
+  /**
+   * Retire this estimator once 'successor' has replaced it. Hashes added so far are merged into
+   * 'successor' and those added later are forwarded to it by 'add'.
+   */
+  public void retire(MADSEstimator successor) throws IOException {
+    this.successor = successor;
+    successor.fuse(this);
+  }
+  
+  /**
+   * Return the number of threads with a shard
+   */
+  int getShardCount() {
+    return this.shards.size();
+  }
+  
+  /**
+   * Merge this estimator, including the hashes buffered by all threads, into 'other'
+   */
+  public synchronized void fuseInto(HyperLogLogPlus other) throws IOException {
+    merge();
+    other.fuse(this.hllp);
+  }
+  
+  public synchronized byte[] toBytes() throws IOException {
+    merge();
+    return this.hllp.toBytes();
+  }
+}
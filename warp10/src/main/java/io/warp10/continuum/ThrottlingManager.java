@@ -34,12 +34,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -47,12 +48,14 @@ import org.apache.thrift.TSerializer;
 import org.apache.thrift.protocol.TCompactProtocol;
 
 import com.google.common.base.Charsets;
-import com.google.common.util.concurrent.RateLimiter;
 
 /**
  * This class manages the throttling of data ingestion.
  * It controls both DDP (Daily Data Points) and MADS (Monthly Active Device Streams).
  * 
+ * Checks do not take any global lock. DDP limits are enforced by lock free token buckets (see TokenBucket).
+ * MADS estimators buffer the GTS added by each thread (see MADSEstimator), so on top of the error of the
+ * estimator a MADS limit can be exceeded by at most MADSEstimator.SHARD_SIZE GTS per ingestion thread.
  */
 public class ThrottlingManager {
 
@@ -65,7 +68,7 @@ public class ThrottlingManager {
   public static final String LIMITS_APPLICATION_MADS_CURRENT = "application.mads.current";
 
   /**
-   * Minimal limit (1 per hour) because 0 is not acceptable by RateLimiter.
+   * Minimal limit (1 per hour) because 0 is not acceptable by TokenBucket.
    */
   public static double MINIMUM_RATE_LIMIT = 1.0D/3600.0D;
   
@@ -90,7 +93,7 @@ public class ThrottlingManager {
   private static final String THROTTLING_MANAGER_SUFFIX = ".throttle";
   
   /**
-   * Maximum number of HyperLogLogPlus estimators we retain in memory
+   * Maximum number of HyperLogLogPlus estimators we retain in memory, an arbitrary one is evicted when it is exceeded
    */
   private static final int ESTIMATOR_CACHE_SIZE = 10000;
   
@@ -100,7 +103,7 @@ public class ThrottlingManager {
   private static final long[] SIP_KEYS = { 0x01L, 0x02L };
 
   /**
-   * Maximum number of milliseconds to wait for RateLimiter permits
+   * Maximum number of milliseconds to wait for TokenBucket permits
    */
   private static long MAXWAIT_PER_DATAPOINT;
   
@@ -129,52 +132,22 @@ public class ThrottlingManager {
   /**
    * Rate limiters to control the rate of datapoints ingestion per producer
    */
-  private static Map<String,RateLimiter> producerRateLimiters = new HashMap<String, RateLimiter>();
+  private static ConcurrentHashMap<String,TokenBucket> producerRateLimiters = new ConcurrentHashMap<String, TokenBucket>();
 
   /**
    * Rate limiters to control the rate of datapoints ingestion per application
    */
-  private static Map<String,RateLimiter> applicationRateLimiters = new HashMap<String, RateLimiter>();
+  private static ConcurrentHashMap<String,TokenBucket> applicationRateLimiters = new ConcurrentHashMap<String, TokenBucket>();
 
   /**
    * Map of estimators for producers
    */
-  private static Map<String,HyperLogLogPlus> producerHLLPEstimators = new LinkedHashMap<String, HyperLogLogPlus>() {
-    @Override
-    protected boolean removeEldestEntry(java.util.Map.Entry<String, HyperLogLogPlus> eldest) {
-      //
-      // Update estimator cache size
-      //
-
-      boolean overflow = this.size() > ESTIMATOR_CACHE_SIZE;
-      
-      if (!overflow) {
-        Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_ESTIMATORS_CACHED, Sensision.EMPTY_LABELS, this.size());
-      }
-      
-      return overflow;
-    }
-  };
+  private static ConcurrentHashMap<String,MADSEstimator> producerHLLPEstimators = new ConcurrentHashMap<String, MADSEstimator>();
 
   /**
    * Map of estimators for applications
    */
-  private static Map<String,HyperLogLogPlus> applicationHLLPEstimators = new LinkedHashMap<String, HyperLogLogPlus>() {
-    @Override
-    protected boolean removeEldestEntry(java.util.Map.Entry<String, HyperLogLogPlus> eldest) {
-      //
-      // Update estimator cache size
-      //
-
-      boolean overflow = this.size() > ESTIMATOR_CACHE_SIZE;
-      
-      if (!overflow) {
-        Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_ESTIMATORS_CACHED_PER_APP, Sensision.EMPTY_LABELS, this.size());
-      }
-      
-      return overflow;
-    }
-  };
+  private static ConcurrentHashMap<String,MADSEstimator> applicationHLLPEstimators = new ConcurrentHashMap<String, MADSEstimator>();
 
   private static AtomicBoolean initialized = new AtomicBoolean(false);
 
@@ -189,12 +162,12 @@ public class ThrottlingManager {
   /**
    * Map of per producer MADS (Monthly Active Data Streams) limits
    */
-  private static Map<String,Long> producerMADSLimits = new HashMap<String, Long>();
+  private static Map<String,Long> producerMADSLimits = new ConcurrentHashMap<String, Long>();
 
   /**
    * Map of per application MADS (Monthly Active Data Streams) limits
    */
-  private static Map<String,Long> applicationMADSLimits = new HashMap<String, Long>();
+  private static Map<String,Long> applicationMADSLimits = new ConcurrentHashMap<String, Long>();
 
   /**
    * Check compatibility of a GTS with the current MADS limit
@@ -223,7 +196,7 @@ public class ThrottlingManager {
     // Extract per application limit
     //
     
-    Long oApplicationLimit = applicationMADSLimits.get(application);
+    Long oApplicationLimit = null == application ? null : applicationMADSLimits.get(application);
 
     // If there is no per producer limit, check the default one
     
@@ -259,21 +232,7 @@ public class ThrottlingManager {
     // was created in the previous 30 days period, allocate a new one
     //
     
-    HyperLogLogPlus producerHLLP;
-    
-    synchronized(producerHLLPEstimators) {
-      producerHLLP = producerHLLPEstimators.get(producer);
-      // If the HyperLogLogPlus is older than 30 days or not yet created, generate a new one
-      if (null == producerHLLP || producerHLLP.hasExpired()) {
-        producerHLLP = new HyperLogLogPlus(DEFAULT_P, DEFAULT_PPRIME);
-        try {
-          producerHLLP.toNormal();
-        } catch (IOException ioe) {
-          throw new WarpException(ioe);
-        }
-        producerHLLPEstimators.put(producer, producerHLLP);
-      }
-    }
+    MADSEstimator producerHLLP = getEstimator(producerHLLPEstimators, producer, SensisionConstants.SENSISION_CLASS_CONTINUUM_ESTIMATORS_CACHED);
     
     //
     // Compute hash
@@ -291,26 +250,14 @@ public class ThrottlingManager {
       return;
     }
     
-    HyperLogLogPlus applicationHLLP = null;
+    MADSEstimator applicationHLLP = null;
     
     long applicationLimit = Long.MIN_VALUE;
     
     if (null != oApplicationLimit) {
       applicationLimit = oApplicationLimit;
       
-      synchronized(applicationHLLPEstimators) {
-        applicationHLLP = applicationHLLPEstimators.get(application);
-        // If the HyperLogLogPlus is older than 30 days or not yet created, generate a new one
-        if (null == applicationHLLP || applicationHLLP.hasExpired()) {
-          applicationHLLP = new HyperLogLogPlus(DEFAULT_P, DEFAULT_PPRIME);
-          try {
-            applicationHLLP.toNormal();
-          } catch (IOException ioe) {
-            throw new WarpException(ioe);
-          }
-          applicationHLLPEstimators.put(application, applicationHLLP);
-        }
-      }
+      applicationHLLP = getEstimator(applicationHLLPEstimators, application, SensisionConstants.SENSISION_CLASS_CONTINUUM_ESTIMATORS_CACHED_PER_APP);
     }
     
     //
@@ -324,12 +271,10 @@ public class ThrottlingManager {
       }
       
       try {
-        long cardinality = applicationHLLP.cardinality();
-        
         Map<String,String> labels = new HashMap<String, String>();
         labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, application);
         
-        if (cardinality > applicationLimit) {
+        if (applicationHLLP.exceeds(applicationLimit)) {
           StringBuilder sb = new StringBuilder();
           sb.append("Geo Time Series ");
           GTSHelper.metadataToString(sb, metadata.getName(), metadata.getLabels());
@@ -341,9 +286,9 @@ public class ThrottlingManager {
           throw new WarpException(sb.toString());          
         }
         
-        applicationHLLP.aggregate(hash);
+        applicationHLLP.add(hash);
         
-        Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT_PER_APP, labels, applicationHLLP.cardinality());
+        Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT_PER_APP, labels, applicationHLLP.getEstimate());
       } catch (IOException ioe){
         // Ignore for now...
       }
@@ -355,12 +300,10 @@ public class ThrottlingManager {
         
     try {
       
-      long cardinality = producerHLLP.cardinality();
-
       Map<String,String> labels = new HashMap<String, String>();
       labels.put(SensisionConstants.SENSISION_LABEL_PRODUCER, producer);
 
-      if (cardinality > producerLimit) {
+      if (producerHLLP.exceeds(producerLimit)) {
         StringBuilder sb = new StringBuilder();
         sb.append("Geo Time Series ");
         GTSHelper.metadataToString(sb, metadata.getName(), metadata.getLabels());
@@ -372,14 +315,98 @@ public class ThrottlingManager {
         throw new WarpException(sb.toString());
       }
 
-      producerHLLP.aggregate(hash);
+      producerHLLP.add(hash);
       
-      Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT, labels, producerHLLP.cardinality());
+      Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT, labels, producerHLLP.getEstimate());
     } catch (IOException ioe) {
       // Ignore for now...
     }
   }
   
+  /**
+   * Merge an estimator read from a throttling file with the current one of a producer or application,
+   * keeping the most recent estimator as the base. When the read estimator is the most recent it
+   * atomically replaces the current one, which is then retired so the hashes added to it concurrently
+   * are not lost.
+   */
+  private static void reload(ConcurrentHashMap<String,MADSEstimator> estimators, String key, HyperLogLogPlus hllp) throws IOException {
+    
+    MADSEstimator fresh = null;
+    
+    while (true) {
+      MADSEstimator old = estimators.get(key);
+      
+      if (null != old && hllp.getInitTime() <= old.getInitTime()) {
+        old.fuse(hllp);
+        return;
+      }
+      
+      if (null == fresh) {
+        fresh = new MADSEstimator(hllp);
+      }
+      
+      if (null == old) {
+        if (null == estimators.putIfAbsent(key, fresh)) {
+          return;
+        }
+      } else if (estimators.replace(key, old, fresh)) {
+        old.retire(fresh);
+        return;
+      }
+    }
+  }
+  
+  /**
+   * Retrieve the estimator of a producer or application, allocating a new one if there is
+   * none or if the current one has expired.
+   * 
+   * @param metric Sensision class of the number of cached estimators
+   */
+  private static MADSEstimator getEstimator(ConcurrentHashMap<String,MADSEstimator> estimators, String key, String metric) throws WarpException {
+    
+    MADSEstimator estimator = estimators.get(key);
+    
+    if (null != estimator && !estimator.hasExpired()) {
+      return estimator;
+    }
+    
+    MADSEstimator fresh;
+    
+    try {
+      HyperLogLogPlus hllp = new HyperLogLogPlus(DEFAULT_P, DEFAULT_PPRIME);
+      hllp.toNormal();
+      fresh = new MADSEstimator(hllp);
+    } catch (IOException ioe) {
+      throw new WarpException(ioe);
+    }
+    
+    if (null == estimator ? null == estimators.putIfAbsent(key, fresh) : estimators.replace(key, estimator, fresh)) {
+      //
+      // Evict an estimator if there are too many of them
+      //
+      
+      if (estimators.size() > ESTIMATOR_CACHE_SIZE) {
+        Iterator<String> iter = estimators.keySet().iterator();
+        
+        if (iter.hasNext() && !key.equals(iter.next())) {
+          iter.remove();
+        }
+      }
+      
+      Sensision.set(metric, Sensision.EMPTY_LABELS, estimators.size());
+      
+      return fresh;
+    }
+    
+    //
+    // Another thread installed an estimator concurrently
+    //
+    
+    estimator = estimators.get(key);
+    
+    return null != estimator ? estimator : fresh;
+  }
+  
   /**
    * Validate the ingestion of datapoints against the DDP limit
    * 
@@ -397,11 +424,11 @@ public class ThrottlingManager {
     }
     
     //
-    // Extract RateLimiter
+    // Extract TokenBucket
     //
     
-    RateLimiter producerLimiter = producerRateLimiters.get(producer);
-    RateLimiter applicationLimiter = applicationRateLimiters.get(application);
+    TokenBucket producerLimiter = producerRateLimiters.get(producer);
+    TokenBucket applicationLimiter = null == application ? null : applicationRateLimiters.get(application);
     
     //
     // TODO(hbs): store per producer/per app maxwait values? Extract them from the throttling file?
@@ -415,52 +442,51 @@ public class ThrottlingManager {
       return;
     } else if (null == producerLimiter) {
       // Create a rate limiter with the default rate      
-      producerLimiter = RateLimiter.create(Math.max(MINIMUM_RATE_LIMIT,DEFAULT_RATE_PRODUCER));
-      producerRateLimiters.put(producer, producerLimiter);
+      TokenBucket limiter = new TokenBucket(Math.max(MINIMUM_RATE_LIMIT,DEFAULT_RATE_PRODUCER));
+      producerLimiter = producerRateLimiters.putIfAbsent(producer, limiter);
+      if (null == producerLimiter) {
+        producerLimiter = limiter;
+      }
     }
      
     // Check per application limiter
     if (null != applicationLimiter) {
-      synchronized(applicationLimiter) {
-        if (!applicationLimiter.tryAcquire(count, appMaxWait * count, TimeUnit.MILLISECONDS)) {
-          StringBuilder sb = new StringBuilder();
-          sb.append("Storing data for ");
-          if (null != metadata) {
-            GTSHelper.metadataToString(sb, metadata.getName(), metadata.getLabels());
-          }
-          sb.append(" would incur a wait greater than ");
-          sb.append(appMaxWait);
-          sb.append(" ms per datapoint due to your Daily Data Points limit being already exceeded for application '" + application + "'. Current max rate is " + applicationLimiter.getRate() + " datapoints/s.");
-
-          Map<String,String> labels = new HashMap<String, String>();
-          labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, application);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_THROTTLING_RATE_PER_APP, labels, 1);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_THROTTLING_RATE_PER_APP_GLOBAL, Sensision.EMPTY_LABELS, 1);
-          
-          throw new WarpException(sb.toString());      
-        }
-      }      
-    }
-    
-    synchronized(producerLimiter) {
-      if (!producerLimiter.tryAcquire(count, producerMaxWait * count, TimeUnit.MILLISECONDS)) {
+      if (!applicationLimiter.tryAcquire(count, appMaxWait * count, TimeUnit.MILLISECONDS)) {
         StringBuilder sb = new StringBuilder();
         sb.append("Storing data for ");
         if (null != metadata) {
           GTSHelper.metadataToString(sb, metadata.getName(), metadata.getLabels());
         }
         sb.append(" would incur a wait greater than ");
-        sb.append(producerMaxWait);
-        sb.append(" ms per datapoint due to your Daily Data Points limit being already exceeded. Current maximum rate is " + producerLimiter.getRate() + " datapoints/s.");
+        sb.append(appMaxWait);
+        sb.append(" ms per datapoint due to your Daily Data Points limit being already exceeded for application '" + application + "'. Current max rate is " + applicationLimiter.getRate() + " datapoints/s.");
 
         Map<String,String> labels = new HashMap<String, String>();
-        labels.put(SensisionConstants.SENSISION_LABEL_PRODUCER, producer);
-        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_THROTTLING_RATE, labels, 1);
-        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_THROTTLING_RATE_GLOBAL, Sensision.EMPTY_LABELS, 1);
+        labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, application);
+        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_THROTTLING_RATE_PER_APP, labels, 1);
+        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_THROTTLING_RATE_PER_APP_GLOBAL, Sensision.EMPTY_LABELS, 1);
         
         throw new WarpException(sb.toString());      
       }
     }
+    
+    if (!producerLimiter.tryAcquire(count, producerMaxWait * count, TimeUnit.MILLISECONDS)) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Storing data for ");
+      if (null != metadata) {
+        GTSHelper.metadataToString(sb, metadata.getName(), metadata.getLabels());
+      }
+      sb.append(" would incur a wait greater than ");
+      sb.append(producerMaxWait);
+      sb.append(" ms per datapoint due to your Daily Data Points limit being already exceeded. Current maximum rate is " + producerLimiter.getRate() + " datapoints/s.");
+
+      Map<String,String> labels = new HashMap<String, String>();
+      labels.put(SensisionConstants.SENSISION_LABEL_PRODUCER, producer);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_THROTTLING_RATE, labels, 1);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_THROTTLING_RATE_GLOBAL, Sensision.EMPTY_LABELS, 1);
+      
+      throw new WarpException(sb.toString());      
+    }
   }
 
   public static void checkDDP(Metadata metadata, String producer, String owner, String application, int count) throws WarpException {
@@ -470,17 +496,17 @@ public class ThrottlingManager {
   public static Map<String,Object> getLimits(String producer, String app) {
     Map<String,Object> limits = new HashMap<String, Object>();
     
-    RateLimiter producerLimiter = producerRateLimiters.get(producer);
-    RateLimiter applicationLimiter = applicationRateLimiters.get(app);
+    TokenBucket producerLimiter = producerRateLimiters.get(producer);
+    TokenBucket applicationLimiter = null == app ? null : applicationRateLimiters.get(app);
 
     Long oProducerLimit = producerMADSLimits.get(producer);
-    Long oApplicationLimit = applicationMADSLimits.get(app);
+    Long oApplicationLimit = null == app ? null : applicationMADSLimits.get(app);
 
     long producerLimit = Long.MAX_VALUE;
     long applicationLimit = Long.MAX_VALUE;
     
-    HyperLogLogPlus prodHLLP = producerHLLPEstimators.get(producer);
-    HyperLogLogPlus appHLLP = applicationHLLPEstimators.get(app);
+    MADSEstimator prodHLLP = producerHLLPEstimators.get(producer);
+    MADSEstimator appHLLP = null == app ? null : applicationHLLPEstimators.get(app);
     
     if (null != producerLimiter) {
       limits.put(LIMITS_PRODUCER_RATE_CURRENT, producerLimiter.getRate());
@@ -681,21 +707,17 @@ public class ThrottlingManager {
                   //
                   
                   if (isProducer) {
-                    synchronized(producerHLLPEstimators) {
-                      producerHLLPEstimators.remove(entity);
-                      Map<String,String> labels = new HashMap<String, String>();
-                      labels.put(SensisionConstants.SENSISION_LABEL_PRODUCER, entity);
-                      Sensision.clear(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT, labels);
-                      Sensision.event(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT, labels, 0);
-                    }
+                    producerHLLPEstimators.remove(entity);
+                    Map<String,String> labels = new HashMap<String, String>();
+                    labels.put(SensisionConstants.SENSISION_LABEL_PRODUCER, entity);
+                    Sensision.clear(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT, labels);
+                    Sensision.event(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT, labels, 0);
                   } else {
-                    synchronized(applicationHLLPEstimators) {
-                      applicationHLLPEstimators.remove(entity);
-                      Map<String,String> labels = new HashMap<String, String>();
-                      labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, entity);
-                      Sensision.clear(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT, labels);
-                      Sensision.event(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT, labels, 0);              
-                    }
+                    applicationHLLPEstimators.remove(entity);
+                    Map<String,String> labels = new HashMap<String, String>();
+                    labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, entity);
+                    Sensision.clear(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT, labels);
+                    Sensision.event(SensisionConstants.SENSISION_CLASS_CONTINUUM_GTS_DISTINCT, labels, 0);              
                   }
                 } else if (!"".equals(estimator)) {                  
                   byte[] ser = OrderPreservingBase64.decode(estimator.getBytes(Charsets.US_ASCII));
@@ -717,39 +739,9 @@ public class ThrottlingManager {
                   // Retrieve current estimator
                   
                   if (isProducer) {
-                
-                    isProducer = true;
-                    
-                    HyperLogLogPlus old = producerHLLPEstimators.get(entity);
-
-                    // Merge estimators and replace with the result, keeping the most recent estimator as the base
-                    if (null == old || hllp.getInitTime() > old.getInitTime()) {
-                      if (null != old){
-                        hllp.fuse(old);
-                      }
-                      
-                      synchronized(producerHLLPEstimators) {
-                        producerHLLPEstimators.put(entity, hllp);                      
-                      }
-                    } else {
-                      old.fuse(hllp);
-                    }                    
+                    reload(producerHLLPEstimators, entity, hllp);
                   } else {
-                    HyperLogLogPlus old = applicationHLLPEstimators.get(entity);
-
-                    // Merge estimators and replace with the result, keeping the most recent estimator as the base
-                    if (null == old || hllp.getInitTime() > old.getInitTime()) {
-                      if (null != old) {
-                        hllp.fuse(old);
-                      }
-                      
-                      synchronized(applicationHLLPEstimators) {
-                        applicationHLLPEstimators.put(entity, hllp);                      
-                      }
-                    } else {
-                      old.fuse(hllp);
-                    }
-
+                    reload(applicationHLLPEstimators, entity, hllp);
                   }
                 }
                 
@@ -777,11 +769,11 @@ public class ThrottlingManager {
                   double rlimit = Double.parseDouble(rate);
                   
                   if (isProducer) {
-                    producerRateLimiters.put(entity, RateLimiter.create(Math.max(MINIMUM_RATE_LIMIT, rlimit)));
+                    producerRateLimiters.put(entity, new TokenBucket(Math.max(MINIMUM_RATE_LIMIT, rlimit)));
                     labels.put(SensisionConstants.SENSISION_LABEL_PRODUCER, entity);
                     Sensision.event(SensisionConstants.SENSISION_CLASS_CONTINUUM_THROTTLING_RATE_LIMIT, labels, rlimit);
                   } else {
-                    applicationRateLimiters.put(entity, RateLimiter.create(Math.max(MINIMUM_RATE_LIMIT, rlimit)));
+                    applicationRateLimiters.put(entity, new TokenBucket(Math.max(MINIMUM_RATE_LIMIT, rlimit)));
                     labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, entity);
                     Sensision.event(SensisionConstants.SENSISION_CLASS_CONTINUUM_THROTTLING_RATE_LIMIT_PER_APP, labels, rlimit);
                   }
@@ -822,7 +814,7 @@ public class ThrottlingManager {
             keys.addAll(producerHLLPEstimators.keySet());
 
             for (String key: keys) {
-              HyperLogLogPlus hllp = producerHLLPEstimators.get(key);
+              MADSEstimator hllp = producerHLLPEstimators.get(key);
               
               if (null == hllp) {
                 continue;
@@ -845,7 +837,7 @@ public class ThrottlingManager {
             keys.addAll(applicationHLLPEstimators.keySet());
             
             for (String key: keys) {
-              HyperLogLogPlus hllp = applicationHLLPEstimators.get(key);
+              MADSEstimator hllp = applicationHLLPEstimators.get(key);
               
               if (null == hllp) {
                 continue;
@@ -0,0 +1,103 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock free token bucket refilled at a constant rate and able to store up to one second of tokens.
+ * 
+ * It follows the semantics of Guava's bursty RateLimiter: a request is granted if the tokens granted
+ * before it are produced within the timeout, the caller then waits until they are, the tokens of the
+ * request itself being paid for by the next requests. The state is a single timestamp updated by CAS.
+ */
+public class TokenBucket {
+  
+  /**
+   * Number of nanoseconds of tokens which can be stored
+   */
+  private static final long BURST = 1000000000L;
+  
+  private final double rate;
+  
+  /**
+   * Number of nanoseconds needed to produce a token
+   */
+  private final double interval;
+  
+  /**
+   * Instant (in System.nanoTime units) at which all the granted tokens will have been produced
+   */
+  private final AtomicLong next;
+  
+  /**
+   * @param rate Number of tokens produced per second
+   */
+  public TokenBucket(double rate) {
+    if (!(rate > 0.0D)) {
+      throw new IllegalArgumentException("Rate MUST be positive.");
+    }
+    
+    this.rate = rate;
+    this.interval = 1000000000.0D / rate;
+    this.next = new AtomicLong(System.nanoTime());
+  }
+  
+  public double getRate() {
+    return this.rate;
+  }
+  
+  /**
+   * Acquire 'permits' tokens if they can be granted within 'timeout', waiting if needed
+   * 
+   * @return true if the tokens were acquired, false otherwise
+   */
+  public boolean tryAcquire(int permits, long timeout, TimeUnit unit) {
+    long timeoutNanos = unit.toNanos(timeout);
+    long cost = (long) Math.min(Long.MAX_VALUE >>> 2, permits * this.interval);
+    
+    while (true) {
+      long now = System.nanoTime();
+      long current = this.next.get();
+      
+      long wait = current - now;
+      
+      if (wait > timeoutNanos) {
+        return false;
+      }
+      
+      //
+      // Tokens produced while the bucket was idle are only kept up to BURST
+      //
+      
+      long base = wait < -BURST ? now - BURST : current;
+      
+      if (this.next.compareAndSet(current, base + cost)) {
+        long remaining = wait;
+        
+        while (remaining > 0) {
+          LockSupport.parkNanos(remaining);
+          remaining = current - System.nanoTime();
+        }
+        
+        return true;
+      }
+    }
+  }
+}
@@ -27,9 +27,12 @@ import io.warp10.continuum.store.DirectoryClient;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.thrift.data.LoggingEvent;
 import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.SipHashInline;
 import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptCompiledScript;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
+import io.warp10.script.WarpScriptProfiler;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStopException;
 import io.warp10.script.MemoryWarpScriptStack;
@@ -43,10 +46,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.PushbackReader;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.security.SecureRandom;
 import java.util.EmptyStackException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -62,6 +69,7 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
 import com.google.inject.Singleton;
 
 @Singleton
@@ -77,6 +85,34 @@ public class EgressExecHandler extends AbstractHandler {
 
   private final BootstrapManager bootstrapManager;
   
+  private static final long DEFAULT_CACHE_SIZE = 64L * 1024L * 1024L;
+  private static final int DEFAULT_CACHE_MAXLENGTH = 65536;
+  
+  /**
+   * LRU cache of pre-parsed scripts, keyed by the SipHash of the script, null if caching is disabled
+   */
+  private final Map<Long,WarpScriptCompiledScript> cache;
+  
+  /**
+   * Maximum number of bytes retained by the cached scripts
+   */
+  private final long cacheSize;
+  
+  /**
+   * Number of bytes currently retained by the cached scripts, guarded by the cache
+   */
+  private long cacheRetained = 0L;
+  
+  /**
+   * Maximum length of the scripts to cache
+   */
+  private final int cacheMaxLength;
+  
+  /**
+   * SipHash key used to compute the script hashes, random so collisions cannot be crafted
+   */
+  private final long[] cacheKey = new long[2];
+  
   public EgressExecHandler(KeyStore keyStore, Properties properties, DirectoryClient directoryClient, GeoDirectoryClient geoDirectoryClient, StoreClient storeClient) {
     this.keyStore = keyStore;
     this.storeClient = storeClient;
@@ -96,6 +132,24 @@ public class EgressExecHandler extends AbstractHandler {
     } else {
       this.bootstrapManager = new BootstrapManager();
     }
+    
+    //
+    // Initialize the cache of pre-parsed scripts
+    //
+    
+    this.cacheSize = Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_CACHE_SIZE, Long.toString(DEFAULT_CACHE_SIZE)));
+    this.cacheMaxLength = Integer.parseInt(properties.getProperty(Configuration.WARPSCRIPT_CACHE_MAXLENGTH, Integer.toString(DEFAULT_CACHE_MAXLENGTH)));
+    
+    if (this.cacheSize > 0) {
+      // Access ordered so iteration starts with the least recently used script
+      this.cache = new LinkedHashMap<Long,WarpScriptCompiledScript>(16, 0.75F, true);
+      
+      SecureRandom sr = new SecureRandom();
+      this.cacheKey[0] = sr.nextLong();
+      this.cacheKey[1] = sr.nextLong();
+    } else {
+      this.cache = null;
+    }
   }
   
   
@@ -140,7 +194,7 @@ public class EgressExecHandler extends AbstractHandler {
     // Create the stack to use
     //
     
-    WarpScriptStack stack = new MemoryWarpScriptStack(this.storeClient, this.directoryClient, this.geoDirectoryClient);
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(this.storeClient, this.directoryClient, this.geoDirectoryClient);
 
     Throwable t = null;
 
@@ -154,6 +208,8 @@ public class EgressExecHandler extends AbstractHandler {
 
     long now = System.nanoTime();
     
+    WarpScriptProfiler profiler = null;
+    
     try {
       //
       // Replace the context with the bootstrap one
@@ -172,6 +228,15 @@ public class EgressExecHandler extends AbstractHandler {
 
       stack.exec(WarpScriptLib.BOOTSTRAP);
       
+      //
+      // Enable profiling if requested, after the bootstrap code so it is not part of the profile
+      //
+      
+      if ("true".equals(req.getHeader(Constants.getHeader(Configuration.HTTP_HEADER_PROFILEX)))) {
+        profiler = new WarpScriptProfiler();
+        stack.setAttribute(WarpScriptStack.ATTRIBUTE_PROFILER, profiler);
+      }
+      
       //
       // Extract parameters from the path info and set their value as symbols
       //
@@ -205,6 +270,41 @@ public class EgressExecHandler extends AbstractHandler {
       //
       
       BufferedReader br = req.getReader();
+      
+      //
+      // Retrieve the pre-parsed script if the cache is enabled and the script is short enough
+      //
+      
+      WarpScriptCompiledScript compiled = null;
+      
+      if (null != this.cache) {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[1024];
+        boolean eof = false;
+        
+        while (sb.length() <= this.cacheMaxLength) {
+          int len = br.read(buf);
+          
+          if (len < 0) {
+            eof = true;
+            break;
+          }
+          
+          sb.append(buf, 0, len);
+        }
+        
+        if (eof) {
+          compiled = getCompiledScript(sb.toString());
+        } else {
+          //
+          // The script is too long to be cached, push back what was read
+          //
+          
+          PushbackReader pr = new PushbackReader(br, sb.length());
+          pr.unread(sb.toString().toCharArray());
+          br = new BufferedReader(pr);
+        }
+      }
                   
       labels.put(SensisionConstants.SENSISION_LABEL_THREAD, Long.toHexString(Thread.currentThread().getId()));
       
@@ -215,10 +315,19 @@ public class EgressExecHandler extends AbstractHandler {
       boolean terminate = false;
       
       while(!terminate) {
-        String line = br.readLine();
+        String line;
         
-        if (null == line) {
-          break;
+        if (null != compiled) {
+          if (lineno >= compiled.size()) {
+            break;
+          }
+          line = compiled.getLine(lineno);
+        } else {
+          line = br.readLine();
+          
+          if (null == line) {
+            break;
+          }
         }
 
         lineno++;
@@ -230,7 +339,11 @@ public class EgressExecHandler extends AbstractHandler {
         
         Sensision.set(SensisionConstants.SENSISION_CLASS_EINSTEIN_CURRENTEXEC_TIMESTAMP, labels, System.currentTimeMillis());
         try {
-          stack.exec(line);
+          if (null != compiled) {
+            stack.exec(compiled, lineno - 1);
+          } else {
+            stack.exec(line);
+          }
         } catch (WarpScriptStopException ese) {
           // Do nothing, this is simply an early termination which should not generate errors
           terminate = true;
@@ -278,6 +391,14 @@ public class EgressExecHandler extends AbstractHandler {
         stack.push(exports);
       }
       
+      //
+      // Output the profile if it was requested
+      //
+      
+      if (null != profiler) {
+        stack.push(profiler.getProfile());
+      }
+      
       StackUtils.toJSON(resp.getWriter(), stack);
     } catch (Exception e) {
       t = e;      
@@ -311,6 +432,10 @@ public class EgressExecHandler extends AbstractHandler {
         try { stack.push(exports); if (debugDepth < Integer.MAX_VALUE) { debugDepth++; } } catch (WarpScriptException wse) {}
       }
 
+      if (null != profiler) {
+        try { stack.push(profiler.getProfile()); if (debugDepth < Integer.MAX_VALUE) { debugDepth++; } } catch (WarpScriptException wse) {}
+      }
+
       if(debugDepth > 0) {        
         resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         PrintWriter pw = resp.getWriter();
@@ -323,6 +448,12 @@ public class EgressExecHandler extends AbstractHandler {
         throw new IOException("ERROR line #" + lineno + ": " + t.getMessage() + (null != t.getCause() ? " (" + t.getCause().getMessage() + ")" : ""));
       }
     } finally {
+      //
+      // Unset the profiler (either requested via the header or enabled by PROFILE) so it stops measuring allocations
+      //
+      
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_PROFILER, null);
+      
       // Clear this metric in case there was an exception
       Sensision.clear(SensisionConstants.SENSISION_CLASS_EINSTEIN_CURRENTEXEC_TIMESTAMP, labels);
       Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_REQUESTS, Sensision.EMPTY_LABELS, 1);
@@ -350,4 +481,60 @@ public class EgressExecHandler extends AbstractHandler {
       EVENTLOG.info(LogUtil.serializeLoggingEvent(this.keyStore, event));
     }
   }
+  
+  /**
+   * Return the pre-parsed form of a script, from the cache if possible
+   */
+  private WarpScriptCompiledScript getCompiledScript(String script) {
+    byte[] data = script.getBytes(Charsets.UTF_8);
+    
+    long hash = SipHashInline.hash24(this.cacheKey[0], this.cacheKey[1], data, 0, data.length);
+    
+    WarpScriptCompiledScript compiled;
+    
+    synchronized (this.cache) {
+      compiled = this.cache.get(hash);
+    }
+    
+    if (null != compiled && compiled.getScript().equals(script)) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_CACHE_HITS, Sensision.EMPTY_LABELS, 1);
+      return compiled;
+    }
+    
+    Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_CACHE_MISSES, Sensision.EMPTY_LABELS, 1);
+    
+    compiled = WarpScriptCompiledScript.compile(script);
+    
+    long retained = compiled.getRetainedSize();
+    
+    // Scripts which would evict the whole cache are not kept
+    if (retained > this.cacheSize) {
+      return compiled;
+    }
+    
+    synchronized (this.cache) {
+      WarpScriptCompiledScript previous = this.cache.put(hash, compiled);
+      
+      if (null != previous) {
+        this.cacheRetained -= previous.getRetainedSize();
+      }
+      
+      this.cacheRetained += retained;
+      
+      //
+      // Evict the least recently used scripts until the retained size fits the limit again
+      //
+      
+      Iterator<WarpScriptCompiledScript> iter = this.cache.values().iterator();
+      
+      while (this.cacheRetained > this.cacheSize && iter.hasNext()) {
+        this.cacheRetained -= iter.next().getRetainedSize();
+        iter.remove();
+      }
+      
+      Sensision.set(SensisionConstants.SENSISION_CLASS_EINSTEIN_CACHE_SIZE, Sensision.EMPTY_LABELS, this.cache.size());
+    }
+    
+    return compiled;
+  }
 }
@@ -26,6 +26,7 @@ import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.FetchRequest;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.MetadataIterator;
 import io.warp10.continuum.store.StoreClient;
@@ -212,6 +213,41 @@ public class EgressFetchHandler extends AbstractHandler {
       resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing now/timespan or start/stop parameters.");
       return;
     }
+    
+    //
+    // Build the fetch request. 'count' further limits a time range to its most recent values,
+    // 'skip' and 'sample' apply to both time and count based requests
+    //
+    
+    FetchRequest request = FetchRequest.fromTimespan(now, timespan);
+    request.setFromArchive(fromArchive);
+    request.setWriteTimestamp(writeTimestamp);
+    
+    try {
+      String countParam = req.getParameter(Constants.HTTP_PARAM_COUNT);
+      String skipParam = req.getParameter(Constants.HTTP_PARAM_SKIP);
+      String sampleParam = req.getParameter(Constants.HTTP_PARAM_SAMPLE);
+      
+      if (null != countParam && timespan >= 0) {
+        request.setCount(Long.parseLong(countParam));
+      }
+      
+      if (null != skipParam) {
+        request.setSkip(Long.parseLong(skipParam));
+      }
+      
+      if (null != sampleParam) {
+        request.setSample(Double.parseDouble(sampleParam));
+      }
+    } catch (NumberFormatException nfe) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid count, skip or sample parameter.");
+      return;
+    }
+    
+    if (request.getCount() < 0 || request.getSkip() < 0 || !(request.getSample() > 0.0D && request.getSample() <= 1.0D)) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameters count and skip must be positive, sample must be in ]0,1].");
+      return;
+    }
       
     String selector = splitFetch ? null : req.getParameter(Constants.HTTP_PARAM_SELECTOR);
  
@@ -624,7 +660,7 @@ public class EgressFetchHandler extends AbstractHandler {
         //
         
         if (metas.size() > FETCH_BATCHSIZE || !itermeta.hasNext()) {
-          try(GTSDecoderIterator iter = storeClient.fetch(rtoken, metas, now, timespan, fromArchive, writeTimestamp)) {
+          try(GTSDecoderIterator iter = storeClient.fetch(rtoken, metas, request)) {
             if("text".equals(format)) {
               textDump(resp, iter, now, timespan, false, dedup, signed, showAttr);
             } else if ("fulltext".equals(format)) {
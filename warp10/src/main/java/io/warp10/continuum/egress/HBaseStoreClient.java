@@ -22,7 +22,10 @@ import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.MetadataIdComparator;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.FetchRequest;
 import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.ParallelGTSDecoderIterator;
+import io.warp10.continuum.store.RollupGTSDecoderIterator;
 import io.warp10.continuum.store.SlicedRowFilterGTSDecoderIterator;
 import io.warp10.continuum.store.Store;
 import io.warp10.continuum.store.StoreClient;
@@ -42,6 +45,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.Cell;
@@ -59,6 +66,11 @@ import com.google.common.base.Charsets;
 
 public class HBaseStoreClient implements StoreClient {
   
+  /**
+   * Default number of bytes of prefetched data per parallel fetch
+   */
+  private static final long DEFAULT_FETCH_INFLIGHT = 16 * 1024 * 1024L;
+  
   /**
    * Connection to HBase
    */
@@ -76,6 +88,21 @@ public class HBaseStoreClient implements StoreClient {
   
   private final long blockcacheThreshold;
   
+  /**
+   * Executor running the scans of parallel fetches, null if fetches are sequential
+   */
+  private final ExecutorService executor;
+  
+  /**
+   * Maximum number of GTS scanned concurrently by a single fetch
+   */
+  private final int scanners;
+  
+  /**
+   * Number of bytes of prefetched data above which the scanners of a fetch wait for the consumer
+   */
+  private final long maxInflight;
+  
   public HBaseStoreClient(KeyStore keystore, Properties properties) throws IOException {
     
     this.keystore = keystore;
@@ -90,6 +117,27 @@ public class HBaseStoreClient implements StoreClient {
     
     this.useHBaseFilter = "true".equals(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_FILTER));
     
+    this.scanners = Integer.parseInt(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_FETCH_SCANNERS, "1"));
+    this.maxInflight = Long.parseLong(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_FETCH_INFLIGHT, Long.toString(DEFAULT_FETCH_INFLIGHT)));
+    
+    if (this.scanners > 1) {
+      int poolsize = Integer.parseInt(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_FETCH_POOLSIZE, Integer.toString(this.scanners * 4)));
+      
+      this.executor = Executors.newFixedThreadPool(poolsize, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+        
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r);
+          t.setDaemon(true);
+          t.setName("[HBaseStoreClient Scanner #" + count.getAndIncrement() + "]");
+          return t;
+        }
+      });
+    } else {
+      this.executor = null;
+    }
+    
     Configuration conf = new Configuration();
     conf.set("hbase.zookeeper.quorum", properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_DATA_ZKCONNECT));
     if (!"".equals(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_DATA_ZNODE))) {
@@ -110,12 +158,23 @@ public class HBaseStoreClient implements StoreClient {
   }
   
   @Override
-  public GTSDecoderIterator fetch(final ReadToken token, final List<Metadata> metadatas, final long now, final long timespan, final boolean fromArchive, final boolean writeTimestamp) throws IOException {
+  public GTSDecoderIterator fetch(final ReadToken token, final List<Metadata> metadatas, final FetchRequest request) throws IOException {
 
-    if (fromArchive) {
+    if (request.isFromArchive()) {
       throw new RuntimeException("ARCHIVE MODE NOT IMPLEMENTED.");
     }
     
+    //
+    // Rollups are computed from the datapoints read for each GTS
+    //
+    
+    if (request.hasRollup()) {
+      FetchRequest raw = new FetchRequest();
+      raw.setStart(request.getStart());
+      raw.setEnd(request.getEnd());
+      return new RollupGTSDecoderIterator(fetch(token, metadatas, raw), request);
+    }
+    
     //
     // Determine the execution plan given the metadatas of the GTS we will be retrieving.
     // Some hints to choose the best plan:
@@ -136,26 +195,73 @@ public class HBaseStoreClient implements StoreClient {
     // applied in order and the results returned by calls to 'next'.
 
     //
-    // DON'T use SlicedRowFilterGTSDecoterIterator when using a value count based approach with a value of 'now'
-    // which is not congruent to 0 modulo DEFAULT_MODULUS, because we may then have datapoints after 'now' and would then
+    // DON'T use SlicedRowFilterGTSDecoterIterator when using a value count based approach with an 'end'
+    // which is not congruent to 0 modulo DEFAULT_MODULUS, because we may then have datapoints after 'end' and would then
     // need to do a full scan of every classId/labelsId in metadatas as the SlicedRowFilter does not interpret the read data
     // and is thus unable to read the timestamp
     //
-    // Only use SlicedRowFilter when not having a value count approach or when 'now' is congruent to 0 modulo DEFAULT_MODULUS
+    // Only use SlicedRowFilter when not having a value count approach or when 'end' is congruent to 0 modulo DEFAULT_MODULUS
     // or equal to Long.MAX_VALUE (EPOCHEND)
     //
     
+    long end = request.getEnd();
+    
     if (useHBaseFilter && metadatas.size() > 16
-        && (timespan >= 0
-            || (timespan < 0
-                && ((0 == (now % Constants.DEFAULT_MODULUS))
-                    || Long.MAX_VALUE == now)
-               )
-            )
+        && (!request.hasLimit()
+            || (0 == (end % Constants.DEFAULT_MODULUS))
+            || Long.MAX_VALUE == end)
         ) {
-      return new SlicedRowFilterGTSDecoderIterator(now, timespan, metadatas, this.conn, this.tableName, this.colfam, this.keystore, metadatas.size() <= blockcacheThreshold);
+      return new SlicedRowFilterGTSDecoderIterator(request, metadatas, this.conn, this.tableName, this.colfam, this.keystore, metadatas.size() <= blockcacheThreshold);
+    }
+    
+    final boolean cacheBlocks = metadatas.size() <= blockcacheThreshold;
+    
+    //
+    // When reading several GTS, scan them concurrently ahead of the consumer, each GTS
+    // being read by the sequential iterator below.
+    //
+    
+    if (null != this.executor && metadatas.size() > 1) {
+      ParallelGTSDecoderIterator.SeriesReader reader = new ParallelGTSDecoderIterator.SeriesReader() {
+        @Override
+        public void read(Metadata metadata, ParallelGTSDecoderIterator.Sink sink) throws IOException {
+          GTSDecoderIterator iter = scan(token, Collections.singletonList(metadata), request, cacheBlocks);
+          
+          try {
+            while (iter.hasNext()) {
+              sink.add(iter.next());
+            }
+          } finally {
+            try {
+              iter.close();
+            } catch (Exception e) {
+              throw new IOException(e);
+            }
+          }
+        }
+      };
+      
+      return new ParallelGTSDecoderIterator(metadatas, reader, this.executor, this.scanners, this.maxInflight);
     }
     
+    return scan(token, metadatas, request, cacheBlocks);
+  }
+  
+  /**
+   * Return an iterator which reads the given GTS one after the other
+   */
+  private GTSDecoderIterator scan(final ReadToken token, final List<Metadata> metadatas, final FetchRequest request, final boolean cacheBlocks) throws IOException {
+    
+    final long now = request.getEnd();
+    final boolean fromArchive = request.isFromArchive();
+    final boolean writeTimestamp = request.isWriteTimestamp();
+    
+    //
+    // Maximum number of datapoints to read per GTS
+    //
+    
+    final long limit = request.getLimit();
+    
     //
     // Loop over the retrieved metadatas
     //
@@ -167,7 +273,7 @@ public class HBaseStoreClient implements StoreClient {
       
       int idx = 0;
 
-      long nvalues = Long.MAX_VALUE;
+      FetchRequest.Selection selection = request.selection();
       
       private Table htable = conn.getTable(tableName);
       
@@ -192,19 +298,19 @@ public class HBaseStoreClient implements StoreClient {
        * 
        * Fewer scans but with filters.
        * AsyncHBase
-       * Managing a queue of metadatas handled by an executor service which would produce GTS in parallel
-       * in the background and push them on a result queue. This strategy will need to throttle itself so
-       * as to not overconsume memory.
+       * 
+       * When 'egress.hbase.fetch.scanners' is greater than 1, 'fetch' reads the GTS in parallel through
+       * a ParallelGTSDecoderIterator, each GTS being read by an instance of this iterator.
        */
       @Override
       public boolean hasNext() {
         
         //
-        // If scanner has not been nullified, it means there are more results, except if nvalues is 0
-        // in which case it means we've read enough data
+        // If scanner has not been nullified, it means there are more results, except if the selection
+        // is done in which case it means we've read enough data
         //
         
-        boolean scanHasMore = ((null == scaniter) || nvalues <= 0) ? false : scaniter.hasNext();
+        boolean scanHasMore = ((null == scaniter) || selection.isDone()) ? false : scaniter.hasNext();
         
         if (scanHasMore) {
           return true;
@@ -266,8 +372,8 @@ public class HBaseStoreClient implements StoreClient {
         // We need to stop on the modulus boundary that precedes the last valid boundary
         //
         
-        if (timespan >= 0) {
-          modulus = (now - timespan);
+        if (request.hasStart()) {
+          modulus = request.getStart() - 1;
           modulus = (modulus - (modulus % Constants.DEFAULT_MODULUS)) - Constants.DEFAULT_MODULUS;
         
           bb.putLong(Long.MAX_VALUE - modulus);
@@ -276,12 +382,10 @@ public class HBaseStoreClient implements StoreClient {
         }
         
         //
-        // Reset number of values retrieved since we just skipped to a new GTS.
-        // If 'timespan' is negative this is the opposite of the number of values to retrieve
-        // otherwise use Long.MAX_VALUE
+        // Reset the selection since we just skipped to a new GTS.
         //
         
-        nvalues = timespan < 0 ? -timespan : Long.MAX_VALUE;
+        selection = request.selection();
 
         Scan scan = new Scan();
         // Retrieve the whole column family
@@ -294,21 +398,17 @@ public class HBaseStoreClient implements StoreClient {
         //
         // FIXME(hbs): when using the HBase >= 0.96, use setMaxResultSize instead, and use setPrefetching
         
-        if (timespan > 0) {
+        if (request.hasStart()) {
           scan.setMaxResultSize(1000000L);
         }
         // Setting 'batch' too high when DEFAULT_MODULUS is != 1 will decrease performance when no filter is in use as extraneous cells may be fetched per row
-        // Setting it too low will increase the number of roundtrips. A good heuristic is to set it to -timespan if timespan is < 0
-        scan.setBatch((int) (timespan < 0 ? Math.min(-timespan, 100000) : 100000));
+        // Setting it too low will increase the number of roundtrips. A good heuristic is to set it to the number of values to read if it is bounded
+        scan.setBatch((int) Math.max(1L, Math.min(limit, 100000)));
         
         // Number of rows to cache can be set arbitrarly high as the end row will stop the scanner caching anyway
-        scan.setCaching((int) (timespan < 0 ? Math.min(-timespan, 100000) : 100000));
+        scan.setCaching((int) Math.max(1L, Math.min(limit, 100000)));
         
-        if (metadatas.size() <= blockcacheThreshold) {
-          scan.setCacheBlocks(true);
-        } else {
-          scan.setCacheBlocks(false);
-        }
+        scan.setCacheBlocks(cacheBlocks);
         
         try {
           this.scanner = htable.getScanner(scan);
@@ -355,7 +455,7 @@ public class HBaseStoreClient implements StoreClient {
 
         int MAX_ENCODER_SIZE = 100000;
         
-        while(encoder.size() < MAX_ENCODER_SIZE && nvalues > 0 && scaniter.hasNext()) {
+        while(encoder.size() < MAX_ENCODER_SIZE && !selection.isDone() && scaniter.hasNext()) {
           
           //
           // Extract next result from scaniter
@@ -368,7 +468,7 @@ public class HBaseStoreClient implements StoreClient {
           CellScanner cscanner = result.cellScanner();
           
           try {
-            while(nvalues > 0 && cscanner.advance()) {
+            while(!selection.isDone() && cscanner.advance()) {
               Cell cell = cscanner.current();
           
               cellCount++;
@@ -415,9 +515,9 @@ public class HBaseStoreClient implements StoreClient {
 
               GTSDecoder decoder = new GTSDecoder(basets, hbaseKey, bb);
                         
-              while(nvalues > 0 && decoder.next()) {
+              while(!selection.isDone() && decoder.next()) {
                 long timestamp = decoder.getTimestamp();
-                if (timestamp <= now && (timespan < 0 || (timestamp > (now - timespan)))) {
+                if (request.contains(timestamp) && selection.retain()) {
                   try {
                     if (writeTimestamp) {
                       encoder.addValue(timestamp, decoder.getLocation(), decoder.getElevation(), cell.getTimestamp() * Constants.TIME_UNITS_PER_MS);
@@ -432,8 +532,6 @@ public class HBaseStoreClient implements StoreClient {
                     valueBytes += valueLength;
                     keyBytes += cell.getRowLength() + cell.getFamilyLength() + cell.getQualifierLength();
                     datapoints++;
-
-                    nvalues--;
                   } catch (IOException ioe) {
                     // FIXME(hbs): LOG?
                   }
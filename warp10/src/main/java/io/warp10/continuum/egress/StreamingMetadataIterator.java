@@ -25,183 +25,415 @@ import io.warp10.crypto.OrderPreservingBase64;
 import io.warp10.crypto.SipHashInline;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.thrift.TDeserializer;
 import org.apache.thrift.protocol.TCompactProtocol;
 
 import com.google.common.base.Charsets;
 
+/**
+ * MetadataIterator which reads the streaming endpoints of the directories concurrently.
+ * 
+ * Each (selector, directory) pair is a stream. Up to one task per directory is submitted to
+ * the executor, each task repeatedly claims the next stream and passes the Metadata it reads
+ * to the consumer in batches, as soon as a batch is full or the directory has no more data
+ * readily available. The consumer therefore gets the first Metadata as soon as any directory
+ * produced them, in no particular order across streams.
+ * 
+ * Memory is bounded by the number of Metadata read but not yet consumed. When this number
+ * exceeds 'maxInflight', the tasks block until the consumer catches up, for at most 'offerTimeout'
+ * ms, so a consumer which stops iterating without closing the iterator does not hold the tasks
+ * and the directory connections forever.
+ * 
+ * If a stream cannot be read, the error is rethrown to the consumer by 'hasNext' instead of
+ * silently returning partial results.
+ */
 public class StreamingMetadataIterator extends MetadataIterator {
   
   /**
-   * Index on classSelectors
+   * Maximum number of Metadata passed at once to the consumer
    */
-  int idx = 0;
+  private static final int BATCHSIZE = 1000;
+  
+  private final long[] SIPHASH_PSK;
+  
+  private final List<String> classSelectors;
+  
+  private final List<Map<String,String>> labelsSelectors;
+  
+  private final List<URL> urls;
+
+  private final boolean noProxy;
+  
+  private final ExecutorService executor;
+  
+  private final long maxInflight;
+  
+  private final long offerTimeout;
+  
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
   
   /**
-   * Index in URL list
+   * Batches of Metadata read but not yet consumed, guarded by 'lock'
    */
-  int urlidx = 0;
+  private final ArrayDeque<List<Metadata>> batches = new ArrayDeque<List<Metadata>>();
   
-  InputStream stream = null;
+  /**
+   * Batch the consumer is currently reading, only accessed by the consumer
+   */
+  private List<Metadata> current = null;
+  private int currentidx = 0;
   
-  HttpURLConnection conn = null;
+  /**
+   * Number of Metadata queued, guarded by 'lock'
+   */
+  private long inflight = 0L;
   
-  BufferedReader reader = null;
+  /**
+   * Number of streams fully read, guarded by 'lock'
+   */
+  private int done = 0;
   
-  Metadata metadata = null;
+  /**
+   * First error encountered while reading a stream, guarded by 'lock'
+   */
+  private Throwable error = null;
   
-  private final long[] SIPHASH_PSK;
+  /**
+   * Streams currently being read, closed when the iterator is closed, guarded by 'lock'
+   */
+  private final Set<InputStream> streams = new HashSet<InputStream>();
   
-  private final List<String> classSelectors;
+  private boolean closed = false;
   
-  private final List<Map<String,String>> labelsSelectors;
+  /**
+   * Index of the next stream to read
+   */
+  private final AtomicInteger next = new AtomicInteger(0);
   
-  private final List<URL> urls;
-
-  private final boolean noProxy;
+  private final List<Future<?>> futures = new ArrayList<Future<?>>();
   
-  public StreamingMetadataIterator(long[] SIPHASH_PSK, List<String> classSelectors, List<Map<String,String>> labelsSelectors, List<URL> urls, boolean noProxy) {
+  /**
+   * @param SIPHASH_PSK Key used to sign the requests
+   * @param classSelectors Class selectors, one per selector
+   * @param labelsSelectors Labels selectors, one per selector
+   * @param urls Streaming endpoints of the directories, one per remainder
+   * @param noProxy Should the proxy settings be ignored
+   * @param executor Executor the reading tasks are submitted to
+   * @param maxInflight Number of Metadata above which the reading tasks wait for the consumer
+   * @param offerTimeout Maximum time (in ms) the reading tasks wait for the consumer before giving up
+   */
+  public StreamingMetadataIterator(long[] SIPHASH_PSK, List<String> classSelectors, List<Map<String,String>> labelsSelectors, List<URL> urls, boolean noProxy, ExecutorService executor, long maxInflight, long offerTimeout) {
     this.SIPHASH_PSK = SIPHASH_PSK;
     this.classSelectors = classSelectors;
     this.labelsSelectors = labelsSelectors;
     this.urls = urls;
     this.noProxy = noProxy;
-  }
-    
-  @Override
-  public boolean hasNext() {
-    try {
-      return hasNextInternal();
-    } catch (Exception e) {
-      return false;
-    }
-  }
-    
-  private synchronized boolean hasNextInternal() throws Exception {
+    this.executor = executor;
+    this.maxInflight = Math.max(1L, maxInflight);
+    this.offerTimeout = offerTimeout;
     
     //
-    // If there is a pending Metadata, return true
+    // Submit the reading tasks
     //
     
-    if (null != metadata) {
-      return true;
+    int streams = this.classSelectors.size() * this.urls.size();
+    int tasks = Math.min(this.urls.size(), streams);
+    
+    for (int i = 0; i < tasks; i++) {
+      this.futures.add(this.executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          scan();
+        }
+      }));
     }
+  }
+  
+  /**
+   * Body of the reading tasks
+   */
+  private void scan() {
     
-    //
-    // If we ran out of selectors, return false
-    //
+    int streams = this.classSelectors.size() * this.urls.size();
     
-    // TODO(hbs): swap idx and urlidx. Add support for multiple selectors in query string
+    // Deserializer reused for all the streams read by this task
+    TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
     
-    if (idx >= classSelectors.size()) {
-      return false;
-    }
-            
-    if (null == reader) {
-      if (urlidx >= urls.size()) {
-        urlidx = 0;
-        idx++;
-        // Call us recursively
-        return hasNext();
-      }
-      
-      // Compute request signature
+    while (true) {
+      int idx = this.next.getAndIncrement();
       
-      long now = System.currentTimeMillis();
-      
-      // Rebuild selector
-      
-      StringBuilder selector = new StringBuilder();
-      selector.append(URLEncoder.encode(classSelectors.get(idx), "UTF-8"));
-      selector.append("{");
-      
-      boolean first = true;
+      if (idx >= streams) {
+        return;
+      }
       
-      for (Entry<String,String> entry: labelsSelectors.get(idx).entrySet()) {
-        if (!first) {
-          selector.append(","); // ','
+      try {
+        // Consecutive streams are for the same selector, so all directories are queried concurrently
+        read(idx / this.urls.size(), this.urls.get(idx % this.urls.size()), deserializer);
+      } catch (Throwable t) {
+        lock.lock();
+        try {
+          if (null == this.error && !this.closed) {
+            this.error = t;
+          }
+        } finally {
+          lock.unlock();
         }
-        selector.append(entry.getKey());
-        if (entry.getValue().startsWith("=")) {
-          selector.append("=");
-          selector.append(URLEncoder.encode(entry.getValue().substring(1), "UTF-8"));          
-        } else if (entry.getValue().startsWith("~")) {
-          selector.append("~");
-          selector.append(URLEncoder.encode(entry.getValue().substring(1), "UTF-8"));
-        } else {
-          selector.append("=");
-          selector.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+      } finally {
+        lock.lock();
+        try {
+          this.done++;
+          this.changed.signalAll();
+        } finally {
+          lock.unlock();
         }
-        first = false;
       }
       
-      selector.append("}");
-
-      String tssel = now + ":" + selector.toString();
-
-      byte[] data = tssel.getBytes(Charsets.UTF_8);
-      long hash = SipHashInline.hash24(SIPHASH_PSK[0], SIPHASH_PSK[1], data, 0, data.length);
-      
-      String signature = Long.toHexString(now) + ":" + Long.toHexString(hash);
-      
-      // Open connection
-      
-      String qs = Constants.HTTP_PARAM_SELECTOR + "=" + new String(OrderPreservingBase64.encode(selector.toString().getBytes(Charsets.UTF_8)), Charsets.US_ASCII);
-
-      URL url = new URL(urls.get(urlidx) + "?" + qs);
+      if (isClosed()) {
+        return;
+      }
+    }
+  }
+  
+  /**
+   * Read the Metadata matching a selector from a directory
+   */
+  private void read(int selidx, URL url, TDeserializer deserializer) throws Exception {
+    
+    InputStream stream = open(selidx, url);
+    
+    lock.lock();
+    try {
+      if (this.closed) {
+        stream.close();
+        return;
+      }
+      this.streams.add(stream);
+    } finally {
+      lock.unlock();
+    }
+    
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, Charsets.US_ASCII))) {
       
-      conn = (HttpURLConnection) (this.noProxy ? url.openConnection(Proxy.NO_PROXY) : url.openConnection());
+      List<Metadata> batch = new ArrayList<Metadata>();
       
-      conn.setChunkedStreamingMode(8192);
-      conn.setRequestProperty(Constants.getHeader(Configuration.HTTP_HEADER_DIRECTORY_SIGNATURE), signature);
-      conn.setDoInput(true);
-      conn.setDoOutput(true);
+      while (true) {
+        String line = reader.readLine();
+        
+        if (null == line) {
+          break;
+        }
+        
+        //
+        // Decode Metadata
+        //
+        
+        byte[] bytes = OrderPreservingBase64.decode(line.getBytes(Charsets.US_ASCII));
+        
+        Metadata meta = new Metadata();
+        
+        deserializer.deserialize(meta, bytes);
+        
+        batch.add(meta);
+        
+        //
+        // Hand over the batch when it is full or when reading further would block
+        //
+        
+        if (batch.size() >= BATCHSIZE || !reader.ready()) {
+          offer(batch);
+          batch = new ArrayList<Metadata>();
+        }
+      }
       
-      reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));          
+      if (!batch.isEmpty()) {
+        offer(batch);
+      }
+    } finally {
+      lock.lock();
+      try {
+        this.streams.remove(stream);
+      } finally {
+        lock.unlock();
+      }
     }
+  }
+  
+  /**
+   * Open the stream of Metadata matching a selector, as served by a directory
+   * 
+   * @param selidx Index of the selector
+   * @param url Streaming endpoint of the directory
+   */
+  protected InputStream open(int selidx, URL url) throws IOException {
     
-    //
-    // Attempt to read the next line
-    //
+    // Compute request signature
+    
+    long now = System.currentTimeMillis();
+    
+    // Rebuild selector
+    
+    StringBuilder selector = new StringBuilder();
+    selector.append(URLEncoder.encode(classSelectors.get(selidx), "UTF-8"));
+    selector.append("{");
     
-    String line = reader.readLine();
+    boolean first = true;
     
-    if (null == line) {
-      reader.close();
-      conn.disconnect();
-      reader = null;
-      metadata = null;
-      urlidx++;
-      return hasNext();
+    for (Entry<String,String> entry: labelsSelectors.get(selidx).entrySet()) {
+      if (!first) {
+        selector.append(","); // ','
+      }
+      selector.append(entry.getKey());
+      if (entry.getValue().startsWith("=")) {
+        selector.append("=");
+        selector.append(URLEncoder.encode(entry.getValue().substring(1), "UTF-8"));          
+      } else if (entry.getValue().startsWith("~")) {
+        selector.append("~");
+        selector.append(URLEncoder.encode(entry.getValue().substring(1), "UTF-8"));
+      } else {
+        selector.append("=");
+        selector.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+      }
+      first = false;
     }
     
-    //
-    // Decode Metadata
-    //
+    selector.append("}");
+
+    String tssel = now + ":" + selector.toString();
+
+    byte[] data = tssel.getBytes(Charsets.UTF_8);
+    long hash = SipHashInline.hash24(SIPHASH_PSK[0], SIPHASH_PSK[1], data, 0, data.length);
     
-    byte[] bytes = OrderPreservingBase64.decode(line.getBytes(Charsets.US_ASCII));
+    String signature = Long.toHexString(now) + ":" + Long.toHexString(hash);
     
-    TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
+    // Open connection
+    
+    String qs = Constants.HTTP_PARAM_SELECTOR + "=" + new String(OrderPreservingBase64.encode(selector.toString().getBytes(Charsets.UTF_8)), Charsets.US_ASCII);
+
+    URL requrl = new URL(url + "?" + qs);
     
-    Metadata meta = new Metadata();
+    final HttpURLConnection conn = (HttpURLConnection) (this.noProxy ? requrl.openConnection(Proxy.NO_PROXY) : requrl.openConnection());
     
-    deserializer.deserialize(meta, bytes);
+    conn.setChunkedStreamingMode(8192);
+    conn.setRequestProperty(Constants.getHeader(Configuration.HTTP_HEADER_DIRECTORY_SIGNATURE), signature);
+    conn.setDoInput(true);
+    conn.setDoOutput(true);
+    
+    return new FilterInputStream(conn.getInputStream()) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          conn.disconnect();
+        }
+      }
+    };
+  }
+  
+  private void offer(List<Metadata> batch) throws IOException {
+    lock.lock();
+    try {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(this.offerTimeout);
+      
+      while (!this.closed && this.inflight >= this.maxInflight) {
+        if (nanos <= 0L) {
+          throw new IOException("Timed out waiting for the consumer.");
+        }
+        
+        try {
+          nanos = this.changed.awaitNanos(nanos);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new IOException(ie);
+        }
+      }
+      
+      if (this.closed) {
+        throw new IOException("Iterator was closed.");
+      }
+      
+      this.batches.add(batch);
+      this.inflight += batch.size();
+      this.changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  private boolean isClosed() {
+    lock.lock();
+    try {
+      return this.closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  @Override
+  public boolean hasNext() {
+    if (null != this.current && this.currentidx < this.current.size()) {
+      return true;
+    }
     
-    metadata = meta;
+    this.current = null;
     
-    return true;
+    lock.lock();
+    try {
+      while (true) {
+        if (this.closed) {
+          return false;
+        }
+        
+        if (null != this.error) {
+          throw new RuntimeException("Error while reading from directory.", this.error);
+        }
+        
+        if (!this.batches.isEmpty()) {
+          this.current = this.batches.poll();
+          this.currentidx = 0;
+          this.inflight -= this.current.size();
+          this.changed.signalAll();
+          return true;
+        }
+        
+        if (this.done >= this.classSelectors.size() * this.urls.size()) {
+          return false;
+        }
+        
+        try {
+          this.changed.await();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(ie);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
   }
     
   @Override
@@ -210,28 +442,46 @@ public class StreamingMetadataIterator extends MetadataIterator {
       throw new NoSuchElementException();
     }
 
-    synchronized(this) {
-      Metadata meta = metadata;
-      metadata = null;
-      GTSHelper.internalizeStrings(meta);
-      return meta;
-    }
+    Metadata meta = this.current.get(this.currentidx);
+    // Release the reference so consumed Metadata can be collected
+    this.current.set(this.currentidx++, null);
+    GTSHelper.internalizeStrings(meta);
+    return meta;
+  }
+  
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
   }
   
   @Override
   public void close() throws Exception {
-    if (null != this.reader) {
-      try { this.reader.close(); } catch (Exception e) {}
-      this.reader = null;
+    List<InputStream> opened;
+    
+    lock.lock();
+    try {
+      this.closed = true;
+      this.batches.clear();
+      this.inflight = 0L;
+      this.changed.signalAll();
+      opened = new ArrayList<InputStream>(this.streams);
+    } finally {
+      lock.unlock();
     }
-    if (null != this.stream) {
-      try { this.stream.close(); } catch (Exception e) {}
-      this.stream = null;
+    
+    this.current = null;
+    
+    //
+    // Close the streams being read so the tasks blocked reading them return, then
+    // cancel the tasks which did not start yet
+    //
+    
+    for (InputStream stream: opened) {
+      try { stream.close(); } catch (Exception e) {}
     }
-    if (null != this.conn) {
-      try { this.conn.disconnect(); } catch (Exception e) {}
-      this.conn = null;
+    
+    for (Future<?> future: this.futures) {
+      future.cancel(true);
     }
   }
 }
-
@@ -115,6 +115,20 @@ public class ThriftDirectoryClient implements ServiceCacheListener, DirectoryCli
 
   private final boolean noProxy;
   
+  /**
+   * Maximum number of Metadata buffered by the streaming iterators
+   */
+  private final long streamingInflight;
+  
+  private static final long STREAMING_INFLIGHT_DEFAULT = 100000L;
+  
+  /**
+   * Maximum time (in ms) the streaming iterators wait for their consumer
+   */
+  private final long streamingOfferTimeout;
+  
+  private static final long STREAMING_OFFER_TIMEOUT_DEFAULT = 600000L;
+  
   public ThriftDirectoryClient(KeyStore keystore, Properties props) throws Exception {
   
     // Extract Directory PSK
@@ -134,6 +148,9 @@ public class ThriftDirectoryClient implements ServiceCacheListener, DirectoryCli
       this.noProxy = false;
     }
     
+    this.streamingInflight = Long.parseLong(props.getProperty(Configuration.DIRECTORY_STREAMING_INFLIGHT, Long.toString(STREAMING_INFLIGHT_DEFAULT)));
+    this.streamingOfferTimeout = Long.parseLong(props.getProperty(Configuration.DIRECTORY_STREAMING_OFFER_TIMEOUT, Long.toString(STREAMING_OFFER_TIMEOUT_DEFAULT)));
+    
     ServiceDiscovery<Map> discovery = ServiceDiscoveryBuilder.builder(Map.class)
         .basePath(props.getProperty(Configuration.DIRECTORY_ZK_ZNODE))
         .client(curatorFramework)
@@ -785,6 +802,20 @@ public class ThriftDirectoryClient implements ServiceCacheListener, DirectoryCli
       called.add(remainder.get(entry.getKey()));
     }
     
-    return new StreamingMetadataIterator(SIPHASH_PSK, classSelectors, labelsSelectors, urls, this.noProxy);    
+    //
+    // Bail out if some remainders have no streaming endpoint, results would be partial
+    //
+    
+    if (urls.isEmpty() || called.size() != selectedmodulus) {
+      throw new IOException("No complete set of streaming directories available.");
+    }
+    
+    ExecutorService executor;
+    
+    synchronized(executorMutex) {
+      executor = this.executor;
+    }
+    
+    return new StreamingMetadataIterator(SIPHASH_PSK, classSelectors, labelsSelectors, urls, this.noProxy, executor, this.streamingInflight, this.streamingOfferTimeout);    
   }
 }
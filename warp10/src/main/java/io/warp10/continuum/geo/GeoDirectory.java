@@ -64,7 +64,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -1265,10 +1264,14 @@ public class GeoDirectory extends AbstractHandler implements Runnable, GeoDirect
         classSel.add(classSelector);
         labelsSel.add(labelSelectors);
         
-        Iterator<Metadata> iter = null;
-
-        try {
-          iter = directoryClient.iterator(classSel, labelsSel);
+        //
+        // The iterator is closed even if an error occurs so the directories are not read further.
+        // The ids of a selector are only kept if all of them could be read.
+        //
+        
+        Set<String> selectorIds = new HashSet<String>();
+        
+        try (MetadataIterator iter = directoryClient.iterator(classSel, labelsSel)) {
           
           //
           // Compute the GTS Id for each GTS
@@ -1285,16 +1288,18 @@ public class GeoDirectory extends AbstractHandler implements Runnable, GeoDirect
             
             String gtsid = GTSHelper.gtsIdToString(metadata.getClassId(), metadata.getLabelsId());
             
-            ids.add(gtsid);
+            selectorIds.add(gtsid);
           }
-        } catch (IOException ioe) {
-          // Ignore error
+        } catch (Exception e) {
+          // Streaming iterators report the errors of the directories from 'hasNext'
+          LOG.error("Error while retrieving the GTS of selector '" + selector + "' from the directory.", e);
+          Map<String,String> labels = new HashMap<String,String>();
+          labels.put(SensisionConstants.SENSISION_LABEL_GEODIR, this.name);
+          Sensision.update(SensisionConstants.SENSISION_CLASS_GEODIR_DIRECTORY_ERRORS, labels, 1);
           continue;
-        } finally {
-          if (null != iter && iter instanceof MetadataIterator) {
-            try { ((MetadataIterator) iter).close(); } catch (Exception e) {}
-          }
         }
+        
+        ids.addAll(selectorIds);
       }
       
       //
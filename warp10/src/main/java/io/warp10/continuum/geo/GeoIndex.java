@@ -28,19 +28,33 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.geoxp.GeoXPLib;
 import com.geoxp.GeoXPLib.GeoXPShape;
-import com.geoxp.geo.GeoBloomFilter;
 import com.google.common.base.Charsets;
 import com.google.common.primitives.Longs;
 
+/**
+ * Geo index of GTS.
+ * 
+ * For each time chunk (or for the last known position if depth is 0), the index maps every
+ * cell containing a location, up to the configured resolution, to the set of GTS with a
+ * location in this cell. GTS ids are replaced by ordinals so those sets are sorted arrays of ints.
+ * A lookup is therefore the union of the sets of the cells of the queried shape, its cost
+ * depends on the area queried and not on the number of GTS in the index.
+ * 
+ * The ordinals of the GTS whose locations all lie in expired chunks are reclaimed when those chunks are removed.
+ */
 public class GeoIndex {
   /**
    * Depth of index chunks in ms
@@ -63,33 +77,209 @@ public class GeoIndex {
   long previousLowerTimestamp = Long.MIN_VALUE;
   
   /**
-   * Index resolution (1 -> 15)
+   * Index resolution (in HHCode levels, even from 2 to 30)
    */
   int resolution;
   
   /**
-   * Actual index data. Outside key is the time chunk, inside key is the GTS id, value is a GeoBloomFilter as provided by GeoXPLib
+   * Level (1 -> 15) of the finest GeoXP cells indexed, i.e. resolution / 2
    */
-  private final Map<Long,Map<String, GeoBloomFilter>> index;
+  private final int level;
   
-  //Map<String, GeoBloomFilter> current = null;
-  
-  //Map<String, GeoBloomFilter> previous = null;
+  /**
+   * Actual index data. Outside key is the time chunk, inside key is a cell, value is the set of ordinals of the GTS with a location in the cell
+   */
+  private final Map<Long,ConcurrentHashMap<Long,Postings>> index;
   
+  /**
+   * Cells of the last known position of each GTS, used for the exact check of the cells finer than 'resolution'
+   */
   private final Map<String, long[]> lkpIndex;
   
+  /**
+   * Cells of the last known position mapped to the ordinals of the GTS
+   */
+  private final ConcurrentHashMap<Long,Postings> lkpPostings;
+  
+  /**
+   * Ordinals of the GTS ids and GTS ids by ordinal, null for reclaimed ordinals
+   */
+  private final Map<String,Integer> ordinals = new HashMap<String, Integer>();
+  private final List<String> ids = new ArrayList<String>();
+  
+  /**
+   * Most recent chunk in which each ordinal was indexed
+   */
+  private long[] lastChunks = new long[16];
+  
+  /**
+   * Reclaimed ordinals available for reuse
+   */
+  private final BitSet free = new BitSet();
+  
+  /**
+   * Sorted set of GTS ordinals
+   */
+  private static final class Postings {
+    private int[] ordinals = new int[2];
+    private int size = 0;
+    
+    synchronized void add(int ordinal) {
+      int idx = Arrays.binarySearch(this.ordinals, 0, this.size, ordinal);
+      
+      if (idx >= 0) {
+        return;
+      }
+      
+      idx = -idx - 1;
+      
+      if (this.size == this.ordinals.length) {
+        this.ordinals = Arrays.copyOf(this.ordinals, this.size + (this.size >> 1) + 1);
+      }
+      
+      System.arraycopy(this.ordinals, idx, this.ordinals, idx + 1, this.size - idx);
+      this.ordinals[idx] = ordinal;
+      this.size++;
+    }
+    
+    synchronized void remove(int ordinal) {
+      int idx = Arrays.binarySearch(this.ordinals, 0, this.size, ordinal);
+      
+      if (idx < 0) {
+        return;
+      }
+      
+      System.arraycopy(this.ordinals, idx + 1, this.ordinals, idx, this.size - idx - 1);
+      this.size--;
+    }
+    
+    synchronized void addTo(BitSet bits) {
+      for (int i = 0; i < this.size; i++) {
+        bits.set(this.ordinals[i]);
+      }
+    }
+    
+    synchronized int size() {
+      return this.size;
+    }
+  }
+  
   public GeoIndex(int resolution, int chunks, long depth) {
     
     this.resolution = resolution;
+    this.level = resolution / 2;
     this.depth = depth;
     this.chunks = chunks;
     
     if (0 == this.depth) {
-      this.lkpIndex = new HashMap<String, long[]>();
+      this.lkpIndex = new ConcurrentHashMap<String, long[]>();
+      this.lkpPostings = new ConcurrentHashMap<Long, Postings>();
       this.index = null;
     } else {
       this.lkpIndex = null;
-      this.index = new HashMap<Long, Map<String,GeoBloomFilter>>();
+      this.lkpPostings = null;
+      this.index = new ConcurrentHashMap<Long, ConcurrentHashMap<Long,Postings>>();
+    }
+  }
+  
+  /**
+   * Return the resolution (1 -> 15) of a cell, GeoXP cells store it in their 4 high bits
+   */
+  private static int level(long cell) {
+    return (int) (cell >>> 60);
+  }
+  
+  /**
+   * Return the ordinal of a GTS, allocating one if needed
+   * 
+   * @param chunk Chunk in which the GTS is indexed
+   */
+  private synchronized int ordinal(String id, long chunk) {
+    Integer ordinal = this.ordinals.get(id);
+    
+    if (null == ordinal) {
+      ordinal = this.free.nextSetBit(0);
+      
+      if (ordinal < 0) {
+        ordinal = this.ids.size();
+        this.ids.add(id);
+      } else {
+        this.free.clear(ordinal);
+        this.ids.set(ordinal, id);
+      }
+      
+      this.ordinals.put(id, ordinal);
+      
+      if (ordinal >= this.lastChunks.length) {
+        this.lastChunks = Arrays.copyOf(this.lastChunks, this.lastChunks.length << 1);
+      }
+      
+      this.lastChunks[ordinal] = chunk;
+    } else if (chunk > this.lastChunks[ordinal]) {
+      this.lastChunks[ordinal] = chunk;
+    }
+    
+    return ordinal;
+  }
+  
+  /**
+   * Reclaim the ordinals of the GTS last indexed in a chunk before 'firstchunk'
+   */
+  private synchronized void reclaim(long firstchunk) {
+    for (int i = 0; i < this.ids.size(); i++) {
+      String id = this.ids.get(i);
+      
+      if (null != id && this.lastChunks[i] < firstchunk) {
+        this.ordinals.remove(id);
+        this.ids.set(i, null);
+        this.free.set(i);
+      }
+    }
+  }
+  
+  private synchronized String id(int ordinal) {
+    return this.ids.get(ordinal);
+  }
+  
+  private static void post(ConcurrentHashMap<Long,Postings> postings, long cell, int ordinal) {
+    Postings list = postings.get(cell);
+    
+    if (null == list) {
+      list = new Postings();
+      Postings existing = postings.putIfAbsent(cell, list);
+      if (null != existing) {
+        list = existing;
+      }
+    }
+    
+    list.add(ordinal);
+  }
+  
+  /**
+   * Replace the last known position of a GTS
+   */
+  private void updateLKP(String gtsId, long[] cells) {
+    int ordinal = ordinal(gtsId, Long.MAX_VALUE);
+    
+    synchronized(lkpIndex) {
+      long[] old = lkpIndex.put(gtsId, cells);
+      
+      if (null != old) {
+        for (long cell: old) {
+          if (level(cell) <= this.level && Arrays.binarySearch(cells, cell) < 0) {
+            Postings list = this.lkpPostings.get(cell);
+            if (null != list) {
+              list.remove(ordinal);
+            }
+          }
+        }
+      }
+      
+      for (long cell: cells) {
+        if (level(cell) <= this.level) {
+          post(this.lkpPostings, cell, ordinal);
+        }
+      }      
     }
   }
   
@@ -112,9 +302,7 @@ public class GeoIndex {
       long[] cells = GeoXPLib.indexable(location);
       Arrays.sort(cells);
       String gtsId = GTSHelper.gtsIdToString(encoder.getClassId(), encoder.getLabelsId(), false);
-      synchronized(lkpIndex) {
-        lkpIndex.put(gtsId, cells);
-      }
+      updateLKP(gtsId, cells);
     }
     
     return 1;
@@ -159,17 +347,19 @@ public class GeoIndex {
             this.index.remove(chunk);
           }
         }
+        
+        reclaim(firstchunk);
       }
     }
     
     GTSDecoder decoder = encoder.getDecoder(true);
-    GeoBloomFilter filter = null;
-    Map<String,GeoBloomFilter> lastindex = null;
-    Map<String, GeoBloomFilter> chunkIndex = null;
+    ConcurrentHashMap<Long,Postings> chunkIndex = null;
     long previousChunk = Long.MIN_VALUE;
+    long previousCell = 0L;
     
     String gtsId = GTSHelper.gtsIdToString(encoder.getClassId(), encoder.getLabelsId(), false);
-
+    int ordinal = -1;
+    
     long indexed = 0L;
     
     while(decoder.next()) {
@@ -192,60 +382,138 @@ public class GeoIndex {
         continue;
       }
       
-      
-      synchronized(this) {
-        if (chunk != previousChunk) {
+      if (chunk != previousChunk) {
+        synchronized(this) {
           chunkIndex = this.index.get(chunk);
           
           if (null == chunkIndex) {
-            this.index.put(chunk, new HashMap<String, GeoBloomFilter>());
+            chunkIndex = new ConcurrentHashMap<Long, Postings>();
+            this.index.put(chunk, chunkIndex);
           }
-        
-          chunkIndex = this.index.get(chunk);
-          previousChunk = chunk;
+          
+          // Retrieve the ordinal with the index lock held so it cannot be reclaimed before it is posted
+          ordinal = ordinal(gtsId, chunk);
         }
+        
+        previousChunk = chunk;
+        previousCell = 0L;
       }
       
       //
-      // Do the actual indexing
+      // Do the actual indexing, consecutive locations in the same cell are only posted once
       //
       
-      synchronized(this) {
-        if (chunkIndex != lastindex) {
-          filter = chunkIndex.get(gtsId);
-          if (null == filter) {
-            filter = new GeoBloomFilter(this.resolution, null, null, 6, true);
-            chunkIndex.put(gtsId, filter);
-          }          
+      long[] cells = GeoXPLib.indexable(location);
+      
+      long finest = 0L;
+      
+      for (long cell: cells) {
+        if (level(cell) == this.level) {
+          finest = cell;
+          break;
         }
-        lastindex = chunkIndex;
       }
-        
-      filter.add(location);
+      
+      if (0L == finest || finest != previousCell) {
+        for (long cell: cells) {
+          if (level(cell) <= this.level) {
+            post(chunkIndex, cell, ordinal);
+          }
+        }
+        previousCell = finest;
+      }
+      
       indexed++;
     }      
     
     return indexed;
   }
   
+  /**
+   * Add the ordinals of the GTS with a location in one of 'areaCells' to 'bits', or to 'candidates'
+   * when the cell is finer than the index resolution and the match therefore needs to be checked.
+   * 
+   * @return true if some ordinals were added to 'candidates'
+   */
+  private boolean lookup(Map<Long,Postings> postings, long[] areaCells, BitSet bits, BitSet candidates) {
+    boolean approximate = false;
+    
+    for (long cell: areaCells) {
+      boolean finer = false;
+      
+      //
+      // Cells finer than the index resolution are replaced by their parent at the index resolution,
+      // the matching GTS are only candidates
+      //
+      
+      while (level(cell) > this.level) {
+        cell = GeoXPLib.parentCell(cell);
+        finer = true;
+      }
+      
+      Postings list = postings.get(cell);
+      
+      if (null == list) {
+        continue;
+      }
+      
+      if (finer) {
+        list.addTo(candidates);
+        approximate = true;
+      } else {
+        list.addTo(bits);
+      }
+    }
+    
+    return approximate;
+  }
+  
   private Set<String> findLKP(Collection<String> unfilteredGTS, GeoXPShape area, boolean inside) {
     Set<String> gts = new HashSet<String>();
     
     long[] areaCells = GeoXPLib.getCells(area);
-        
-    for (String id: unfilteredGTS) {      
-      long[] cells = lkpIndex.get(id);
-      
-      if (null == cells) {
-        continue;
+    
+    BitSet bits = new BitSet();
+    BitSet candidates = new BitSet();
+    
+    boolean approximate = lookup(this.lkpPostings, areaCells, bits, candidates);
+    
+    Set<String> unfiltered = unfilteredGTS instanceof Set ? (Set<String>) unfilteredGTS : new HashSet<String>(unfilteredGTS);
+    
+    for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+      String id = id(i);
+      if (unfiltered.contains(id)) {
+        gts.add(id);
       }
+    }
     
-      for (long cell: areaCells) {
-        if (Arrays.binarySearch(cells, cell) >= 0) {
-          gts.add(id);
-          break;
+    //
+    // Check the candidates against their actual cells
+    //
+    
+    if (approximate) {
+      candidates.andNot(bits);
+      
+      for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+        String id = id(i);
+        
+        if (!unfiltered.contains(id)) {
+          continue;
         }
-      }      
+        
+        long[] cells = lkpIndex.get(id);
+        
+        if (null == cells) {
+          continue;
+        }
+        
+        for (long cell: areaCells) {
+          if (Arrays.binarySearch(cells, cell) >= 0) {
+            gts.add(id);
+            break;
+          }
+        }
+      }
     }
     
     if (!inside) {
@@ -259,7 +527,10 @@ public class GeoIndex {
   }
   
   /**
-   * Find GTS which had values (or not) in a given area in a given time range
+   * Find GTS which had values (or not) in a given area in a given time range.
+   * 
+   * Cells of 'area' finer than the index resolution are matched at the index resolution.
+   * 
    * @param unfilteredGTS
    * @param area
    * @param inside
@@ -288,57 +559,29 @@ public class GeoIndex {
     long startChunk = startTS / this.depth;
     long endChunk = endTS / this.depth;
 
-    for (String id: unfilteredGTS) {
-      boolean found = false;
-      for (long chunk = firstchunk; chunk <= lastchunk; chunk++) {
-        
-        if (chunk < startChunk || chunk > endChunk) {
-          continue;
-        }
-
-        Map<String, GeoBloomFilter> chunkIndex = this.index.get(chunk);
-
-        if (null == chunkIndex) {
-          continue;
-        }
-
-        GeoBloomFilter filter = chunkIndex.get(id);
-        
-        if (null == filter) {
-          continue;
-        }
-
-        for (long cell: cells) {
-                                   
-          if (!filter.contains(cell)) {
-            continue;
-          }
-
-          //
-          // Since the Bloom filter has a non zero probability of false positive, we
-          // mitigate this probability by checking all cells containing 'cell'. If they
-          // are also contained by the Bloom filter, then we assume the containment is real
-          //
-          
-          do {
-            cell = GeoXPLib.parentCell(cell);
-          } while (0L != cell && filter.contains(cell));
-            
-          if (0 == cell) {
-            gts.add(id);
-            found = true;
-            break;
-          }
-        }
+    //
+    // Compute the union of the postings of the cells in all the selected chunks
+    //
+    
+    BitSet bits = new BitSet();
+    
+    for (long chunk = Math.max(firstchunk, startChunk); chunk <= Math.min(lastchunk, endChunk); chunk++) {
+      ConcurrentHashMap<Long,Postings> chunkIndex = this.index.get(chunk);
 
-        //
-        // If a cell was found, stop checking the others
-        //
-        
-        if (found) {
-          break;
-        }
-      }      
+      if (null == chunkIndex) {
+        continue;
+      }
+      
+      lookup(chunkIndex, cells, bits, bits);
+    }
+    
+    Set<String> unfiltered = unfilteredGTS instanceof Set ? (Set<String>) unfilteredGTS : new HashSet<String>(unfilteredGTS);
+    
+    for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+      String id = id(i);
+      if (unfiltered.contains(id)) {
+        gts.add(id);
+      }
     }
    
     //
@@ -362,26 +605,41 @@ public class GeoIndex {
   public long size() {
     long total = 0L;
     
+    // GTS ids (16 chars), ordinals and last chunks + overhead
+    total += this.ids.size() * (32 + 4 + 8 + 48);
+    
     if (0 == this.depth) {
       // Key strings (8 chars) + overhead (24 bytes)
       total += this.lkpIndex.size() * (16 + 24);
       // Actual locations (15 longs) + overhead (24 bytes)
-      total += this.lkpIndex.size() * (8 * 15 + 24); 
+      total += this.lkpIndex.size() * (8 * 15 + 24);
+      total += size(this.lkpPostings);
     } else {
-      //
-      // We only account for the GeoBloomFilter actual bits, not for any
-      // overhead
-      //
-      for (Map<String,GeoBloomFilter> chunkIndex: this.index.values()) {
-        total += chunkIndex.size() * (16 + 24);
-        for (GeoBloomFilter filter: chunkIndex.values()) {
-          total += filter.size();
-        }        
+      for (Map<Long,Postings> chunkIndex: this.index.values()) {
+        total += size(chunkIndex);
       }
     }
     
     return total;
   }
+  
+  /**
+   * Return the number of GTS holding an ordinal
+   */
+  synchronized int getOrdinalCount() {
+    return this.ordinals.size();
+  }
+  
+  private static long size(Map<Long,Postings> postings) {
+    // Cell and Postings + overhead
+    long total = postings.size() * (8 + 16 + 48);
+    
+    for (Postings list: postings.values()) {
+      total += list.size() * 4;
+    }
+    
+    return total;
+  }
 
   /**
    * Store the LKP index into a file
@@ -477,9 +735,7 @@ public class GeoIndex {
           cells[i] = Longs.fromBytes(buf[offset], buf[offset + 1], buf[offset + 2], buf[offset + 3], buf[offset + 4], buf[offset + 5], buf[offset + 6], buf[offset + 7]);        
         }
         
-        synchronized(this.lkpIndex) {
-          this.lkpIndex.put(key, cells);
-        }
+        updateLKP(key, cells);
       }
     } finally {
       in.close();
@@ -411,6 +411,27 @@ public class GTSDecoder {
             previousLastBDValue = lastBDValue;
             lastBDValue = null;
             buffer.order(order);          
+          } else if (GTSEncoder.FLAGS_DOUBLE_XOR == (tsTypeFlag & GTSEncoder.FLAGS_DOUBLE_XOR)) {
+            int header = buffer.get() & 0xff;
+            int leading = header >>> 4;
+            int len = header & 0x0f;
+            
+            if (0 == len || leading + len > 8) {
+              throw new RuntimeException("Invalid XOR encoded double.");
+            }
+            
+            long xor = 0L;
+            
+            for (int i = 0; i < len; i++) {
+              xor = (xor << 8) | (buffer.get() & 0xffL);
+            }
+            
+            xor <<= (8 - leading - len) << 3;
+            
+            previousLastDoubleValue = lastDoubleValue;
+            lastDoubleValue = Double.longBitsToDouble(Double.doubleToRawLongBits(lastDoubleValue) ^ xor);
+            previousLastBDValue = lastBDValue;
+            lastBDValue = null;
           } else {
             int scale = buffer.get();
             long unscaled = Varint.decodeSignedLong(buffer);
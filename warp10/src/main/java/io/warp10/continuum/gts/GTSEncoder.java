@@ -118,6 +118,14 @@ public class GTSEncoder {
 
   static final byte FLAGS_DOUBLE_IEEE754 = 0x04;
 
+  //
+  // Double XORed with the previous double value, only the bytes between the leading and
+  // trailing zero bytes of the XOR are stored, preceded by a byte containing the number of
+  // leading zero bytes (high nibble) and the number of stored bytes (low nibble)
+  //
+  
+  static final byte FLAGS_DOUBLE_XOR = 0x02;
+
   static final byte FLAGS_VALUE_IDENTICAL = 0x01;
 
   static final byte FLAGS_LOCATION = 0x40;
@@ -203,6 +211,18 @@ public class GTSEncoder {
   
   private boolean noDeltaValue = false;
   
+  /**
+   * Disable the XOR encoding (and the identical flag) of double values until
+   * a double value has been stored as IEEE754
+   */
+  private boolean noDeltaDoubleValue = false;
+  
+  /**
+   * Flag indicating whether or not double values may be XOR encoded, disabled by default
+   * since readers predating FLAGS_DOUBLE_XOR cannot decode such values.
+   */
+  private static boolean doubleXOR = false;
+  
   public GTSEncoder() {
     this.stream = new ByteArrayOutputStream();
     this.wrappingKey = null;
@@ -254,6 +274,14 @@ public class GTSEncoder {
     this.wrappingKey = null == key ? null : Arrays.copyOf(key, key.length);
   }
 
+  /**
+   * Enable or disable the XOR encoding of double values by all encoders.
+   * Only enable it once all readers of the produced data can decode FLAGS_DOUBLE_XOR.
+   */
+  public static void setDoubleXOR(boolean xor) {
+    doubleXOR = xor;
+  }
+
   /**
    * Encode an additional value in the GTS.
    * 
@@ -366,9 +394,16 @@ public class GTSEncoder {
       }
     } else if (value instanceof Double || value instanceof Float) {
       tsTypeFlag |= FLAGS_TYPE_DOUBLE;
+      double doubleValue = ((Number) value).doubleValue();
       // Only compare to the previous double value if the last floating point value was NOT encoded as a BigDecimal
-      if (null == lastBDValue && lastDoubleValue == ((Number) value).doubleValue()) {
+      if (!noDeltaDoubleValue && null == lastBDValue && lastDoubleValue == doubleValue) {
         tsTypeFlag |= FLAGS_VALUE_IDENTICAL;
+      } else if (doubleXOR && !noDeltaDoubleValue && null == lastBDValue && !Double.isNaN(lastDoubleValue)
+          && xorLength(Double.doubleToRawLongBits(doubleValue) ^ Double.doubleToRawLongBits(lastDoubleValue)) < 7) {
+        //
+        // XOR encoding needs 1 + length bytes, only use it if this is less than IEEE754
+        //
+        tsTypeFlag |= FLAGS_DOUBLE_XOR;
       } else {
         tsTypeFlag |= FLAGS_DOUBLE_IEEE754;
       }
@@ -668,6 +703,24 @@ public class GTSEncoder {
             this.stream.write(buf);
             // Clear the last BDValue otherwise we might incorrectly encode the next value specified as a BigDecimal
             lastBDValue = null;
+            noDeltaDoubleValue = false;
+          } else if (FLAGS_DOUBLE_XOR == (tsTypeFlag & FLAGS_DOUBLE_XOR)) {
+            double dvalue = ((Number) value).doubleValue();
+            long xor = Double.doubleToRawLongBits(dvalue) ^ Double.doubleToRawLongBits(lastDoubleValue);
+
+            int leading = Long.numberOfLeadingZeros(xor) >>> 3;
+            int trailing = Long.numberOfTrailingZeros(xor) >>> 3;
+            int len = 8 - leading - trailing;
+
+            this.stream.write((leading << 4) | len);
+
+            for (int i = len - 1; i >= 0; i--) {
+              this.stream.write((int) ((xor >>> ((trailing + i) << 3)) & 0xffL));
+            }
+
+            // Keep track of last value
+            lastDoubleValue = dvalue;
+            lastBDValue = null;
           } else {
             BigDecimal dvalue = (BigDecimal) value;
             dvalue = dvalue.stripTrailingZeros();
@@ -697,6 +750,14 @@ public class GTSEncoder {
     return this.stream.size();
   }
   
+  /**
+   * Return the number of bytes needed to store a non zero XOR of two doubles,
+   * i.e. the number of bytes between its leading and trailing zero bytes.
+   */
+  private static int xorLength(long xor) {
+    return 8 - (Long.numberOfLeadingZeros(xor) >>> 3) - (Long.numberOfTrailingZeros(xor) >>> 3);
+  }
+  
   public void setWrappingKey(byte[] key) {
     this.wrappingKey = null == key ? null : Arrays.copyOf(key, key.length);
   }
@@ -858,6 +919,7 @@ public class GTSEncoder {
     this.noDeltaMetaLocation = encoder.noDeltaMetaLocation;
     this.noDeltaMetaElevation = encoder.noDeltaMetaElevation;
     this.noDeltaValue = encoder.noDeltaValue;
+    this.noDeltaDoubleValue = encoder.noDeltaDoubleValue;
     
     this.stream.reset();
     this.stream.write(encoder.stream.toByteArray());
@@ -888,6 +950,7 @@ public class GTSEncoder {
     noDeltaMetaLocation = false;
     noDeltaMetaElevation = false;
     noDeltaValue = false;
+    noDeltaDoubleValue = false;
     
     stream.reset();
   }
@@ -927,6 +990,8 @@ public class GTSEncoder {
         || this.lastElevation != encoder.initialElevation
         || this.lastLongValue != encoder.initialLongValue
         || this.lastDoubleValue != encoder.initialDoubleValue
+        // XOR encoded doubles need the exact bits of the previous value (0.0 == -0.0)
+        || Double.doubleToRawLongBits(this.lastDoubleValue) != Double.doubleToRawLongBits(encoder.initialDoubleValue)
         || this.lastBDValue != encoder.initialBDValue
         || this.lastStringValue != encoder.initialStringValue) {
       GTSDecoder decoder = encoder.getDecoder(true);
@@ -950,6 +1015,7 @@ public class GTSEncoder {
       this.lastBDValue = encoder.lastBDValue;
       this.lastDoubleValue = encoder.lastDoubleValue;
       this.lastStringValue = encoder.lastStringValue;
+      this.noDeltaDoubleValue = this.noDeltaDoubleValue || encoder.noDeltaDoubleValue;
       this.count += encoder.getCount();
     }
   }
@@ -1039,6 +1105,7 @@ public class GTSEncoder {
     this.noDeltaMetaElevation = true;
     
     this.noDeltaValue = true;
+    this.noDeltaDoubleValue = true;
   }
   
   public void setCount(long count) {
@@ -31,7 +31,10 @@ import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptFilterFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptParallel;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStack.Macro;
 
@@ -62,6 +65,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -1220,6 +1224,48 @@ public class GTSHelper {
   public static final GeoTimeSerie subSerie(GeoTimeSerie gts, long starttimestamp, long stoptimestamp, boolean overwrite) {
     return subSerie(gts, starttimestamp, stoptimestamp, overwrite, true, null);
   }
+
+  /**
+   * Return the index of the first tick in ticks[from, to) which is >= 'timestamp', or 'to' if there is none.
+   * Ticks MUST be sorted in ascending order.
+   *
+   * Unlike Arrays.binarySearch, the returned index is deterministic when ticks contain duplicates.
+   */
+  private static final int lowerBound(long[] ticks, int from, int to, long timestamp) {
+    int lo = from;
+    int hi = to;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ticks[mid] < timestamp) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    
+    return lo;
+  }
+  
+  /**
+   * Return the index of the first tick in ticks[from, to) which is > 'timestamp', or 'to' if there is none.
+   * Ticks MUST be sorted in ascending order.
+   */
+  private static final int upperBound(long[] ticks, int from, int to, long timestamp) {
+    int lo = from;
+    int hi = to;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ticks[mid] <= timestamp) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    
+    return lo;
+  }
   
   /**
    * Return a new GeoTimeSerie instance containing only the values of 'gts'
@@ -1411,6 +1457,17 @@ public class GTSHelper {
     // empty sub serie
     //
       
+    //
+    // If the aggregator can work on primitive arrays, call it directly on the
+    // slices of 'gts' which fall in each bucket, this avoids copying and boxing the values.
+    //
+    
+    if (gts.values > 0 && aggregator instanceof WarpScriptPrimitiveAggregatorFunction && ((WarpScriptPrimitiveAggregatorFunction) aggregator).supports(gts.type)) {
+      bucketize(gts, bucketized, bucketspan, bucketcount, lastbucket, (WarpScriptPrimitiveAggregatorFunction) aggregator);
+      GTSHelper.shrink(bucketized);
+      return bucketized;
+    }
+    
     // Allocate a stable GTS instance which we will reuse when calling subserie
     GeoTimeSerie subgts = null;
     
@@ -1490,6 +1547,42 @@ public class GTSHelper {
     return bucketized;
   }
 
+  /**
+   * Fill 'bucketized' by calling a primitive aggregator on the values of each bucket.
+   */
+  private static final void bucketize(GeoTimeSerie gts, GeoTimeSerie bucketized, long bucketspan, int bucketcount, long lastbucket, WarpScriptPrimitiveAggregatorFunction aggregator) throws WarpScriptException {
+    GTSHelper.sort(gts);
+    
+    long[] longValues = TYPE.LONG == gts.type ? gts.longValues : null;
+    double[] doubleValues = TYPE.DOUBLE == gts.type ? gts.doubleValues : null;
+    
+    WarpScriptPrimitiveAggregatorFunction.Result result = new WarpScriptPrimitiveAggregatorFunction.Result();
+    
+    //
+    // Buckets are scanned from the most recent one, so the end of a bucket is always
+    // before the start of the previously scanned one
+    //
+    
+    int hi = gts.values;
+    
+    for (int i = 0; i < bucketcount; i++) {
+      long bucketend = lastbucket - i * bucketspan;
+      
+      hi = upperBound(gts.ticks, 0, hi, bucketend);
+      int lo = lowerBound(gts.ticks, 0, hi, bucketend - bucketspan + 1);
+      
+      if (lo == hi) {
+        continue;
+      }
+      
+      aggregator.aggregate(bucketend, gts.ticks, gts.locations, gts.elevations, longValues, doubleValues, lo, hi - lo, result);
+      
+      if (TYPE.UNDEFINED != result.type) {
+        setValue(bucketized, bucketend, result.location, result.elevation, result.getValue(), false);
+      }
+    }
+  }
+  
   public static void unbucketize(GeoTimeSerie gts) {
     gts.bucketcount = 0;
     gts.bucketspan = 0L;
@@ -3637,6 +3730,38 @@ public class GTSHelper {
     
     boolean hasSingleResult = false;
     
+    //
+    // If the mapper can work on primitive arrays, windows are passed as slices of 'gts'
+    // instead of being extracted
+    //
+    
+    WarpScriptPrimitiveAggregatorFunction primitive = null;
+    WarpScriptPrimitiveAggregatorFunction.Result primitiveResult = null;
+    long[] longValues = null;
+    double[] doubleValues = null;
+    
+    //
+    // When ticks are scanned in increasing order, the window bounds only move forward so
+    // mappers which support it can update their result incrementally instead of
+    // aggregating the whole window for each tick.
+    //
+    
+    WarpScriptSlidingWindowFunction.Window window = null;
+    int windowLo = 0;
+    int windowHi = 0;
+    
+    if (gts.values > 0 && mapper instanceof WarpScriptPrimitiveAggregatorFunction && ((WarpScriptPrimitiveAggregatorFunction) mapper).supports(gts.type)) {
+      primitive = (WarpScriptPrimitiveAggregatorFunction) mapper;
+      primitiveResult = new WarpScriptPrimitiveAggregatorFunction.Result();
+      GTSHelper.sort(gts);
+      longValues = TYPE.LONG == gts.type ? gts.longValues : null;
+      doubleValues = TYPE.DOUBLE == gts.type ? gts.doubleValues : null;
+      
+      if (!reversed && mapper instanceof WarpScriptSlidingWindowFunction) {
+        window = ((WarpScriptSlidingWindowFunction) mapper).window(gts.type, gts.ticks, gts.locations, gts.elevations, longValues, doubleValues, gts.values);
+      }
+    }
+    
     while (idx < nticks) {
 
       if (hasOccurrences && 0 == occurrences) {
@@ -3686,6 +3811,38 @@ public class GTSHelper {
         }
       }
       
+      if (null != window) {
+        while (windowLo < gts.values && gts.ticks[windowLo] < start) {
+          windowLo++;
+        }
+        if (windowHi < windowLo) {
+          windowHi = windowLo;
+        }
+        while (windowHi < gts.values && gts.ticks[windowHi] <= stop) {
+          windowHi++;
+        }
+        
+        window.slide(windowLo, windowHi);
+        window.aggregate(tick, primitiveResult);
+      } else if (null != primitive) {
+        int lo = lowerBound(gts.ticks, 0, gts.values, start);
+        int hi = upperBound(gts.ticks, lo, gts.values, stop);
+        
+        primitive.aggregate(tick, gts.ticks, gts.locations, gts.elevations, longValues, doubleValues, lo, hi - lo, primitiveResult);
+      }
+      
+      if (null != primitive) {
+        hasSingleResult = true;
+        
+        if (TYPE.UNDEFINED != primitiveResult.type) {
+          GTSHelper.setValue(mapped, overrideTick ? primitiveResult.tick : tick, primitiveResult.location, primitiveResult.elevation, primitiveResult.getValue(), false);
+        }
+        
+        idx += step;
+        occurrences--;
+        continue;
+      }
+      
       //
       // Extract values 
       //
@@ -4547,6 +4704,33 @@ public class GTSHelper {
     
     Map<Map<String,String>, List<GeoTimeSerie>> results = new LinkedHashMap<Map<String,String>,List<GeoTimeSerie>>();
     
+    //
+    // N-ary functions can be applied on several partitions in parallel if there is no validator
+    // to execute on the stack
+    //
+    
+    int parallelism = 1;
+    
+    if (function instanceof WarpScriptNAryFunction && null == validator) {
+      parallelism = WarpScriptParallel.getParallelism(stack, function);
+    }
+    
+    List<Callable<GeoTimeSerie>> tasks = new ArrayList<Callable<GeoTimeSerie>>();
+    List<List<GeoTimeSerie>> taskResults = new ArrayList<List<GeoTimeSerie>>();
+    
+    if (parallelism > 1) {
+      //
+      // Sort all series beforehand, as series from singleton collections are shared by all partitions
+      // they would otherwise be sorted concurrently
+      //
+      
+      for (List<GeoTimeSerie> serie: series) {
+        for (GeoTimeSerie gts: serie) {
+          GTSHelper.sort(gts);
+        }
+      }
+    }
+    
     //
     // Loop on each partition
     //
@@ -4608,7 +4792,19 @@ public class GTSHelper {
           }
         }
         
-        if (proceed) {
+        if (proceed && parallelism > 1) {
+          final WarpScriptNAryFunction nary = (WarpScriptNAryFunction) function;
+          final Map<String,String> labels = commonlabels;
+          final List<GeoTimeSerie>[] args = subseries;
+          
+          tasks.add(new Callable<GeoTimeSerie>() {
+            @Override
+            public GeoTimeSerie call() throws Exception {
+              return GTSHelper.applyNAryFunction(nary, labels, args);
+            }
+          });
+          taskResults.add(result);
+        } else if (proceed) {
           result.add(GTSHelper.applyNAryFunction((WarpScriptNAryFunction) function, commonlabels, subseries));
         }
       } else {
@@ -4618,6 +4814,14 @@ public class GTSHelper {
       results.put(commonlabels, result);
     }
     
+    if (!tasks.isEmpty()) {
+      List<GeoTimeSerie> applied = WarpScriptParallel.invoke(parallelism, tasks);
+      
+      for (int i = 0; i < applied.size(); i++) {
+        taskResults.get(i).add(applied.get(i));
+      }
+    }
+    
     //
     // Check that all resulting GTS instances were in allgts
     //
@@ -5167,7 +5371,11 @@ public class GTSHelper {
   }
   
   public static List<GeoTimeSerie> reduce(WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels) throws WarpScriptException {
-    Map<Map<String,String>,List<GeoTimeSerie>> unflattened = reduceUnflattened(reducer, series, bylabels);
+    return reduce(reducer, series, bylabels, 1);
+  }
+  
+  public static List<GeoTimeSerie> reduce(WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels, int parallelism) throws WarpScriptException {
+    Map<Map<String,String>,List<GeoTimeSerie>> unflattened = reduceUnflattened(reducer, series, bylabels, parallelism);
     
     List<GeoTimeSerie> results = new ArrayList<GeoTimeSerie>();
     
@@ -5179,263 +5387,367 @@ public class GTSHelper {
   }
   
   public static Map<Map<String,String>,List<GeoTimeSerie>> reduceUnflattened(WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels) throws WarpScriptException {
+    return reduceUnflattened(reducer, series, bylabels, 1);
+  }
+  
+  /**
+   * Reduce GTS instances per equivalence class.
+   * 
+   * @param parallelism Maximum number of equivalence classes to reduce concurrently, 1 to reduce them sequentially
+   */
+  public static Map<Map<String,String>,List<GeoTimeSerie>> reduceUnflattened(final WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels, int parallelism) throws WarpScriptException {
     //
     // Partition the GTS instances using the given labels
     //
     
     Map<Map<String,String>, List<GeoTimeSerie>> partitions = partition(series, bylabels);
     
+    //
+    // Each partition is reduced independently, results are collected in the order of the partitions
+    //
+    
+    List<Callable<List<GeoTimeSerie>>> tasks = new ArrayList<Callable<List<GeoTimeSerie>>>(partitions.size());
+    
+    for (final Entry<Map<String,String>,List<GeoTimeSerie>> partition: partitions.entrySet()) {
+      tasks.add(new Callable<List<GeoTimeSerie>>() {
+        @Override
+        public List<GeoTimeSerie> call() throws Exception {
+          return reducePartition(reducer, partition.getKey(), partition.getValue());
+        }
+      });
+    }
+    
+    List<List<GeoTimeSerie>> reduced = WarpScriptParallel.invoke(parallelism, tasks);
+    
     Map<Map<String,String>,List<GeoTimeSerie>> results = new LinkedHashMap<Map<String,String>, List<GeoTimeSerie>>();
     
+    int idx = 0;
     
     for (Map<String,String> partitionLabels: partitions.keySet()) {
-      boolean singleGTSResult = false;
-
-      List<GeoTimeSerie> partitionSeries = partitions.get(partitionLabels);
-      
-      //
-      // Extract labels and common labels
-      //
-      
-      Map[] partlabels = new Map[partitionSeries.size() + 1];
-      
-      for (int i = 0; i < partitionSeries.size(); i++) {
-        partlabels[i] = partitionSeries.get(i).getLabels();
+      results.put(partitionLabels, reduced.get(idx++));
+    }
+    
+    return results;
+  }
+  
+  private static List<GeoTimeSerie> reducePartition(WarpScriptReducerFunction reducer, Map<String,String> partitionLabels, List<GeoTimeSerie> partitionSeries) throws WarpScriptException {
+    boolean singleGTSResult = false;
+    
+    //
+    // Extract labels and common labels
+    //
+    
+    Map[] partlabels = new Map[partitionSeries.size() + 1];
+    
+    for (int i = 0; i < partitionSeries.size(); i++) {
+      partlabels[i] = partitionSeries.get(i).getLabels();
+    }
+    
+    partlabels[partitionSeries.size()] = Collections.unmodifiableMap(partitionLabels);
+    
+    //
+    // Determine if result should be bucketized or not.
+    // Result will be bucketized if all GTS instances in the partition are
+    // bucketized, have the same bucketspan and have congruent lastbucket values
+    //
+    
+    long endbucket = Long.MIN_VALUE;
+    long startbucket = Long.MAX_VALUE;
+    long lastbucket = Long.MIN_VALUE;
+    long bucketspan = 0L;
+    
+    for (GeoTimeSerie gts: partitionSeries) {
+      // One GTS instance is not bucketized, result won't be either
+      if (!isBucketized(gts)) {
+        bucketspan = 0L;          
+        break;
       }
-      
-      partlabels[partitionSeries.size()] = Collections.unmodifiableMap(partitionLabels);
-      
-      //
-      // Determine if result should be bucketized or not.
-      // Result will be bucketized if all GTS instances in the partition are
-      // bucketized, have the same bucketspan and have congruent lastbucket values
-      //
-      
-      long endbucket = Long.MIN_VALUE;
-      long startbucket = Long.MAX_VALUE;
-      long lastbucket = Long.MIN_VALUE;
-      long bucketspan = 0L;
-      
-      for (GeoTimeSerie gts: partitionSeries) {
-        // One GTS instance is not bucketized, result won't be either
-        if (!isBucketized(gts)) {
-          bucketspan = 0L;          
-          break;
-        }
-        if (0L == bucketspan) {
-          bucketspan = gts.bucketspan;
-        } else if (bucketspan != gts.bucketspan) {
-          // GTS has a bucketspan which differs from the previous one,
-          // so result won't be bucketized.
-          bucketspan = 0L;
-          break;
-        }
-        if (Long.MIN_VALUE == lastbucket) {
-          lastbucket = gts.lastbucket;
-        }
-        if (lastbucket % bucketspan != gts.lastbucket % gts.bucketspan) {
-          // GTS has a lastbucket value which is not congruent to the other
-          // lastbucket values, so result GTS won't be bucketized.
-          bucketspan = 0L;
-          break;
-        }
-        //
-        // Update start/end bucket
-        //
-        
-        if (gts.lastbucket > endbucket) {
-          endbucket = gts.lastbucket;
-        }
-        if (gts.lastbucket - gts.bucketcount * gts.bucketspan < startbucket) {
-          startbucket = gts.lastbucket - gts.bucketcount * gts.bucketspan;
-        }
+      if (0L == bucketspan) {
+        bucketspan = gts.bucketspan;
+      } else if (bucketspan != gts.bucketspan) {
+        // GTS has a bucketspan which differs from the previous one,
+        // so result won't be bucketized.
+        bucketspan = 0L;
+        break;
       }
-      
-      //
-      // Determine bucketcount if result is to be bucketized
-      // startbucket is the end of the first bucket not considered
-      //
-      
-      int bucketcount = 0;
-      
-      if (0L != bucketspan) {
-        bucketcount = (int) ((endbucket - startbucket) / bucketspan);
+      if (Long.MIN_VALUE == lastbucket) {
+        lastbucket = gts.lastbucket;
+      }
+      if (lastbucket % bucketspan != gts.lastbucket % gts.bucketspan) {
+        // GTS has a lastbucket value which is not congruent to the other
+        // lastbucket values, so result GTS won't be bucketized.
+        bucketspan = 0L;
+        break;
       }
-      
       //
-      // Create target GTS
+      // Update start/end bucket
       //
       
-      GeoTimeSerie result;
-      
-      if (0L != bucketspan) {
-        result = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
-      } else {
-        result = new GeoTimeSerie();
+      if (gts.lastbucket > endbucket) {
+        endbucket = gts.lastbucket;
+      }
+      if (gts.lastbucket - gts.bucketcount * gts.bucketspan < startbucket) {
+        startbucket = gts.lastbucket - gts.bucketcount * gts.bucketspan;
       }
+    }
+    
+    //
+    // Determine bucketcount if result is to be bucketized
+    // startbucket is the end of the first bucket not considered
+    //
+    
+    int bucketcount = 0;
+    
+    if (0L != bucketspan) {
+      bucketcount = (int) ((endbucket - startbucket) / bucketspan);
+    }
+    
+    //
+    // Create target GTS
+    //
+    
+    GeoTimeSerie result;
+    
+    if (0L != bucketspan) {
+      result = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
+    } else {
+      result = new GeoTimeSerie();
+    }
 
-      result.setName("");
-      result.setLabels(partitionLabels);
+    result.setName("");
+    result.setLabels(partitionLabels);
+    
+    //
+    // Sort all series in the partition so we can scan their ticks in order
+    //
       
-      //
-      // Sort all series in the partition so we can scan their ticks in order
-      //
-        
-      for (GeoTimeSerie gts: partitionSeries) {
-        sort(gts, false);
+    for (GeoTimeSerie gts: partitionSeries) {
+      sort(gts, false);
+    }
+    
+    Map<String,GeoTimeSerie> multipleResults = new TreeMap<String,GeoTimeSerie>();
+    
+    //
+    // Initialize indices for each serie
+    //
+    
+    int[] idx = new int[partitionSeries.size()];
+
+    //
+    // Initialize names/labels/location/elevation/value arrays
+    //
+    
+    long[] ticks = new long[idx.length];
+    String[] names = new String[idx.length];
+    // Allocate 1 more slot for labels so we can store the common labels at the end of the array
+    Map<String,String>[] lbls = Arrays.copyOf(partlabels, partlabels.length);
+    
+    long[] locations = new long[idx.length];
+    long[] elevations = new long[idx.length];
+    Object[] values = new Object[idx.length];
+    
+    //
+    // If all the series of the partition have the same numeric type and the reducer
+    // can work on primitive arrays, values are not boxed. The primitive path is only
+    // taken for ticks at which all series have a value, the reducer is called with
+    // boxed values for the other ticks.
+    //
+    
+    WarpScriptPrimitiveAggregatorFunction primitive = null;
+    WarpScriptPrimitiveAggregatorFunction.Result primitiveResult = null;
+    TYPE primitiveType = partitionSeries.isEmpty() ? TYPE.UNDEFINED : partitionSeries.get(0).type;
+    long[] longValues = null;
+    double[] doubleValues = null;
+    boolean[] present = null;
+    
+    for (GeoTimeSerie gts: partitionSeries) {
+      if (gts.type != primitiveType) {
+        primitiveType = TYPE.UNDEFINED;
+        break;
       }
-      
-      Map<String,GeoTimeSerie> multipleResults = new TreeMap<String,GeoTimeSerie>();
-      
+    }
+    
+    if ((TYPE.LONG == primitiveType || TYPE.DOUBLE == primitiveType) && reducer instanceof WarpScriptPrimitiveAggregatorFunction && ((WarpScriptPrimitiveAggregatorFunction) reducer).supports(primitiveType)) {
+      primitive = (WarpScriptPrimitiveAggregatorFunction) reducer;
+      primitiveResult = new WarpScriptPrimitiveAggregatorFunction.Result();
+      present = new boolean[idx.length];
+      if (TYPE.LONG == primitiveType) {
+        longValues = new long[idx.length];
+      } else {
+        doubleValues = new double[idx.length];
+      }
+    }
+    
+    //
+    // Reducers have 7 parameters (similar to those of binary ops and mappers)
+    //
+    // tick for which value is computed
+    // array of ticks
+    // array of names
+    // array of labels
+    // array of locations
+    // array of elevations
+    // array of values
+    //
+    
+    Object[] params = new Object[7];
+    
+    while(true) {
       //
-      // Initialize indices for each serie
+      // Determine the tick span at the given indices
       //
+
+      long smallest = Long.MAX_VALUE;
       
-      int[] idx = new int[partitionSeries.size()];
+      for (int i = 0; i < idx.length; i++) {
+        GeoTimeSerie gts = partitionSeries.get(i); 
+        if (idx[i] < gts.values) {
+          if (gts.ticks[idx[i]] < smallest) {
+            smallest = gts.ticks[idx[i]];
+          }
+        }
+      }
 
       //
-      // Initialize names/labels/location/elevation/value arrays
+      // No smallest tick, this means we've exhausted all values
       //
       
-      long[] ticks = new long[idx.length];
-      String[] names = new String[idx.length];
-      // Allocate 1 more slot for labels so we can store the common labels at the end of the array
-      Map<String,String>[] lbls = Arrays.copyOf(partlabels, partlabels.length);
-      
-      long[] locations = new long[idx.length];
-      long[] elevations = new long[idx.length];
-      Object[] values = new Object[idx.length];
+      if (Long.MAX_VALUE == smallest) {
+        break;
+      }
       
       //
-      // Reducers have 7 parameters (similar to those of binary ops and mappers)
-      //
-      // tick for which value is computed
-      // array of ticks
-      // array of names
-      // array of labels
-      // array of locations
-      // array of elevations
-      // array of values
+      // Now fill the locations/elevations/values arrays for all GTS
+      // instances whose current tick is 'smallest'
       //
       
-      Object[] params = new Object[7];
-      
-      while(true) {
-        //
-        // Determine the tick span at the given indices
-        //
-
-        long smallest = Long.MAX_VALUE;
-        
-        for (int i = 0; i < idx.length; i++) {
-          GeoTimeSerie gts = partitionSeries.get(i); 
-          if (idx[i] < gts.values) {
-            if (gts.ticks[idx[i]] < smallest) {
-              smallest = gts.ticks[idx[i]];
+      int ndense = 0;
+      
+      for (int i = 0; i < idx.length; i++) {
+        GeoTimeSerie gts = partitionSeries.get(i); 
+        if (idx[i] < gts.values && smallest == gts.ticks[idx[i]]) {
+          ticks[i] = smallest;
+          names[i] = gts.getName();
+          //if (null == lbls[i]) {
+          //  lbls[i] = gts.getLabels();
+          //}
+          locations[i] = null != gts.locations ? gts.locations[idx[i]] : GeoTimeSerie.NO_LOCATION;
+          elevations[i] = null != gts.elevations ? gts.elevations[idx[i]] : GeoTimeSerie.NO_ELEVATION;
+          if (null != primitive) {
+            if (TYPE.LONG == primitiveType) {
+              longValues[i] = gts.longValues[idx[i]];
+            } else {
+              doubleValues[i] = gts.doubleValues[idx[i]];
             }
+            present[i] = true;
+            ndense++;
+          } else {
+            values[i] = GTSHelper.valueAtIndex(gts, idx[i]);
+          }
+          // Advance idx[i] since it was the smallest tick.
+          idx[i]++;
+        } else {
+          ticks[i] = Long.MIN_VALUE;
+          names[i] = gts.getName();
+          //if (null == lbls[i]) {
+          //  lbls[i] = gts.getLabels();
+          //}
+          locations[i] = GeoTimeSerie.NO_LOCATION;
+          elevations[i] = GeoTimeSerie.NO_ELEVATION;
+          values[i] = null;
+          if (null != primitive) {
+            present[i] = false;
           }
         }
-
-        //
-        // No smallest tick, this means we've exhausted all values
-        //
-        
-        if (Long.MAX_VALUE == smallest) {
-          break;
+      }
+      
+      if (null != primitive) {
+        if (idx.length == ndense) {
+          primitive.aggregate(smallest, ticks, locations, elevations, longValues, doubleValues, 0, idx.length, primitiveResult);
+          
+          singleGTSResult = true;
+          
+          if (TYPE.UNDEFINED != primitiveResult.type) {
+            GTSHelper.setValue(result, smallest, primitiveResult.location, primitiveResult.elevation, primitiveResult.getValue(), false);
+          }
+          
+          continue;
         }
         
         //
-        // Now fill the locations/elevations/values arrays for all GTS
-        // instances whose current tick is 'smallest'
+        // Some series have no value at this tick, box the values for the call to 'apply'
         //
         
         for (int i = 0; i < idx.length; i++) {
-          GeoTimeSerie gts = partitionSeries.get(i); 
-          if (idx[i] < gts.values && smallest == gts.ticks[idx[i]]) {
-            ticks[i] = smallest;
-            names[i] = gts.getName();
-            //if (null == lbls[i]) {
-            //  lbls[i] = gts.getLabels();
-            //}
-            locations[i] = null != gts.locations ? gts.locations[idx[i]] : GeoTimeSerie.NO_LOCATION;
-            elevations[i] = null != gts.elevations ? gts.elevations[idx[i]] : GeoTimeSerie.NO_ELEVATION;
-            values[i] = GTSHelper.valueAtIndex(gts, idx[i]);
-            // Advance idx[i] since it was the smallest tick.
-            idx[i]++;
-          } else {
-            ticks[i] = Long.MIN_VALUE;
-            names[i] = gts.getName();
-            //if (null == lbls[i]) {
-            //  lbls[i] = gts.getLabels();
-            //}
-            locations[i] = GeoTimeSerie.NO_LOCATION;
-            elevations[i] = GeoTimeSerie.NO_ELEVATION;
-            values[i] = null;
+          if (present[i]) {
+            if (TYPE.LONG == primitiveType) {
+              values[i] = longValues[i];
+            } else {
+              values[i] = doubleValues[i];
+            }
           }
         }
-        
-        //
-        // Call the reducer for the current tick
-        //
-        // Return value will be an array [tick, location, elevation, value]
-        //
-        
-        // TODO(hbs): extend reducers to use a window instead of a single value when reducing.
-        //            ticks/locations/elevations/values would be arrays of arrays and an 8th param
-        //            could contain the values.
-        
-        params[0] = smallest;
-        params[1] = names;
-        params[2] = lbls;
-        params[3] = ticks;
-        params[4] = locations;
-        params[5] = elevations;
-        params[6] = values;
-                
-        Object reducerResult = reducer.apply(params);
-        
-        if (reducerResult instanceof Map) {
-          for (Entry<Object,Object> entry: ((Map<Object,Object>) reducerResult).entrySet()) {
-            GeoTimeSerie gts = multipleResults.get(entry.getKey().toString());
-            if (null == gts) {
-              if (0L != bucketspan) {
-                gts = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
-              } else {
-                gts = new GeoTimeSerie();
-              }
-
-              gts.setName(entry.getKey().toString());
-              gts.setLabels(partitionLabels);
-              multipleResults.put(entry.getKey().toString(), gts);
-            }
-            
-            Object[] reduced = (Object[]) entry.getValue();
-            
-            if (null != reduced[3]) {
-              GTSHelper.setValue(gts, smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
+      }
+      
+      //
+      // Call the reducer for the current tick
+      //
+      // Return value will be an array [tick, location, elevation, value]
+      //
+      
+      // TODO(hbs): extend reducers to use a window instead of a single value when reducing.
+      //            ticks/locations/elevations/values would be arrays of arrays and an 8th param
+      //            could contain the values.
+      
+      params[0] = smallest;
+      params[1] = names;
+      params[2] = lbls;
+      params[3] = ticks;
+      params[4] = locations;
+      params[5] = elevations;
+      params[6] = values;
+              
+      Object reducerResult = reducer.apply(params);
+      
+      if (reducerResult instanceof Map) {
+        for (Entry<Object,Object> entry: ((Map<Object,Object>) reducerResult).entrySet()) {
+          GeoTimeSerie gts = multipleResults.get(entry.getKey().toString());
+          if (null == gts) {
+            if (0L != bucketspan) {
+              gts = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
+            } else {
+              gts = new GeoTimeSerie();
             }
+
+            gts.setName(entry.getKey().toString());
+            gts.setLabels(partitionLabels);
+            multipleResults.put(entry.getKey().toString(), gts);
           }
-        } else {
-          Object[] reduced = (Object[]) reducerResult;
-          singleGTSResult = true;
+          
+          Object[] reduced = (Object[]) entry.getValue();
+          
           if (null != reduced[3]) {
-            GTSHelper.setValue(result, smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
+            GTSHelper.setValue(gts, smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
           }
         }
-        
+      } else {
+        Object[] reduced = (Object[]) reducerResult;
+        singleGTSResult = true;
+        if (null != reduced[3]) {
+          GTSHelper.setValue(result, smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
+        }
       }
       
-      if (!results.containsKey(partitionLabels)) {
-        results.put(partitionLabels, new ArrayList<GeoTimeSerie>());
-      }
-
-      if (singleGTSResult) {
-        results.get(partitionLabels).add(result);
-      }
+    }
+    
+    List<GeoTimeSerie> results = new ArrayList<GeoTimeSerie>();
+    
+    if (singleGTSResult) {
+      results.add(result);
+    }
 
-      if (!multipleResults.isEmpty()) {
-        results.get(partitionLabels).addAll(multipleResults.values());
-      }            
+    if (!multipleResults.isEmpty()) {
+      results.addAll(multipleResults.values());
     }
     
     return results;
@@ -0,0 +1,687 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.TimeSource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.geoxp.GeoXPLib;
+import com.google.common.base.Charsets;
+
+/**
+ * Parser of the input format of the update endpoints which works on the raw bytes of the input
+ * instead of on a String per line.
+ *
+ * Lines are split directly in the read buffer and the common cases (numeric timestamps, elevations and
+ * values, booleans, unchanged class and labels) are parsed without allocating any String. The class and
+ * labels of the previous line are kept along with the bytes they were parsed from, so consecutive lines
+ * of the same GTS reuse them (and the encoder they were added to) without being parsed again.
+ *
+ * Any line the fast path does not handle (JSON, non ASCII content, string values, syntax errors, ...) is
+ * handed to GTSHelper.parse, the result is therefore always identical to that of GTSHelper.parse.
+ *
+ * Instances are not thread safe, one parser must be allocated per request.
+ */
+public class GTSParser {
+
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * Input stream when working on bytes, null when working on lines
+   */
+  private final InputStream in;
+
+  /**
+   * Reader used when the charset of the input is not compatible with the byte parser
+   */
+  private final BufferedReader reader;
+
+  private final Charset charset;
+
+  private final Map<String,String> extraLabels;
+
+  private final Long now;
+
+  private final long maxValueSize;
+
+  /**
+   * Should lines be trimmed and blank lines ignored
+   */
+  private final boolean trim;
+
+  private byte[] buf = new byte[BUFFER_SIZE];
+
+  /**
+   * Number of bytes read in 'buf'
+   */
+  private int limit = 0;
+
+  private boolean eof = false;
+
+  /**
+   * Bounds of the current line in 'buf'
+   */
+  private int start = 0;
+  private int end = 0;
+
+  /**
+   * Offset of the next line in 'buf'
+   */
+  private int next = 0;
+
+  /**
+   * String version of the current line, only built when needed
+   */
+  private String line = null;
+
+  /**
+   * Bytes of the 'class{labels}' part of the last line whose class and labels were parsed
+   */
+  private byte[] lastClassLabels = new byte[256];
+  private int lastClassLabelsLength = -1;
+
+  private String lastName = null;
+  private Map<String,String> lastLabels = null;
+
+  /**
+   * Last encoder to which a value for 'lastName'/'lastLabels' was added
+   */
+  private GTSEncoder lastEncoder = null;
+
+  /**
+   * Result of 'parseLong'
+   */
+  private long parsedLong;
+
+  public GTSParser(InputStream in, Charset charset, Map<String,String> extraLabels, Long now, long maxValueSize, boolean trim) {
+    this.charset = charset;
+    this.extraLabels = extraLabels;
+    this.now = now;
+    this.maxValueSize = maxValueSize;
+    this.trim = trim;
+
+    if (isAsciiCompatible(charset)) {
+      this.in = in;
+      this.reader = null;
+    } else {
+      this.in = null;
+      this.reader = new BufferedReader(new InputStreamReader(in, charset));
+    }
+  }
+
+  /**
+   * Return the charset with the given name, defaulting to ISO-8859-1 as a servlet request would.
+   */
+  public static Charset getCharset(String encoding) throws UnsupportedEncodingException {
+    if (null == encoding) {
+      return Charsets.ISO_8859_1;
+    }
+
+    try {
+      return Charset.forName(encoding);
+    } catch (IllegalArgumentException iae) {
+      throw new UnsupportedEncodingException(encoding);
+    }
+  }
+
+  /**
+   * Lines can only be split and parsed at the byte level if the characters we look for are single
+   * bytes which cannot appear in the encoding of other characters.
+   */
+  private static boolean isAsciiCompatible(Charset charset) {
+    return Charsets.UTF_8.equals(charset) || Charsets.ISO_8859_1.equals(charset) || Charsets.US_ASCII.equals(charset);
+  }
+
+  /**
+   * Advance to the next line of input.
+   *
+   * @return false if there are no more lines
+   */
+  public boolean next() throws IOException {
+    this.line = null;
+
+    if (null != this.reader) {
+      while (true) {
+        String l = this.reader.readLine();
+
+        if (null == l) {
+          return false;
+        }
+
+        if (this.trim) {
+          l = l.trim();
+
+          if (0 == l.length()) {
+            continue;
+          }
+        }
+
+        this.line = l;
+        return true;
+      }
+    }
+
+    while (true) {
+      if (!readLine()) {
+        return false;
+      }
+
+      if (this.trim) {
+        // Same as String.trim, bytes <= 0x20 are single byte characters in the supported charsets
+        while (this.start < this.end && (this.buf[this.start] & 0xff) <= ' ') {
+          this.start++;
+        }
+        while (this.end > this.start && (this.buf[this.end - 1] & 0xff) <= ' ') {
+          this.end--;
+        }
+
+        if (this.start == this.end) {
+          continue;
+        }
+      }
+
+      return true;
+    }
+  }
+
+  /**
+   * Return the current line as a String
+   */
+  public String getLine() {
+    if (null == this.line) {
+      this.line = new String(this.buf, this.start, this.end - this.start, this.charset);
+    }
+
+    return this.line;
+  }
+
+  public void close() throws IOException {
+    if (null != this.reader) {
+      this.reader.close();
+    } else {
+      this.in.close();
+    }
+  }
+
+  /**
+   * Parse the current line and add its value to 'encoder' or to a new encoder.
+   *
+   * @see GTSHelper#parse(GTSEncoder, String, Map, Long, long)
+   */
+  public GTSEncoder parse(GTSEncoder encoder) throws ParseException, IOException {
+    if (null == this.line) {
+      GTSEncoder parsed = parseBytes(encoder);
+
+      if (null != parsed) {
+        return parsed;
+      }
+    }
+
+    return GTSHelper.parse(encoder, getLine(), this.extraLabels, this.now, this.maxValueSize);
+  }
+
+  /**
+   * Split the next line, lines are terminated by '\n', '\r' or '\r\n' like for BufferedReader.readLine
+   */
+  private boolean readLine() throws IOException {
+    int idx = this.next;
+
+    while (true) {
+      while (idx < this.limit && '\n' != this.buf[idx] && '\r' != this.buf[idx]) {
+        idx++;
+      }
+
+      if (idx < this.limit) {
+        // We need to know the byte following a '\r'
+        if ('\r' == this.buf[idx] && idx + 1 == this.limit && !this.eof) {
+          idx = fill(idx);
+          continue;
+        }
+
+        this.start = this.next;
+        this.end = idx;
+        this.next = idx + 1;
+
+        if ('\r' == this.buf[idx] && this.next < this.limit && '\n' == this.buf[this.next]) {
+          this.next++;
+        }
+
+        return true;
+      }
+
+      if (this.eof) {
+        if (this.next == this.limit) {
+          return false;
+        }
+
+        this.start = this.next;
+        this.end = this.limit;
+        this.next = this.limit;
+
+        return true;
+      }
+
+      idx = fill(idx);
+    }
+  }
+
+  /**
+   * Move the pending bytes to the start of the buffer, growing it if needed, and read more input.
+   *
+   * @param idx Offset in the buffer which must be preserved
+   * @return The new value of 'idx'
+   */
+  private int fill(int idx) throws IOException {
+    if (this.next > 0) {
+      System.arraycopy(this.buf, this.next, this.buf, 0, this.limit - this.next);
+      this.limit -= this.next;
+      idx -= this.next;
+      this.next = 0;
+    }
+
+    if (this.limit == this.buf.length) {
+      this.buf = Arrays.copyOf(this.buf, this.buf.length << 1);
+    }
+
+    int len = this.in.read(this.buf, this.limit, this.buf.length - this.limit);
+
+    if (len < 0) {
+      this.eof = true;
+    } else {
+      this.limit += len;
+    }
+
+    return idx;
+  }
+
+  /**
+   * Parse the current line without converting it to a String.
+   *
+   * @return The encoder to which the value was added or null if the line must be parsed by GTSHelper.parse
+   */
+  private GTSEncoder parseBytes(GTSEncoder encoder) throws IOException {
+    byte[] buf = this.buf;
+    int end = this.end;
+    int idx = this.start;
+
+    if (idx == end || '{' == buf[idx]) {
+      return null;
+    }
+
+    for (int i = idx; i < end; i++) {
+      if (buf[i] < 0) {
+        return null;
+      }
+    }
+
+    boolean continuation = false;
+
+    if ('=' == buf[idx]) {
+      if (null == encoder) {
+        return null;
+      }
+      continuation = true;
+      idx++;
+    }
+
+    //
+    // Timestamp
+    //
+
+    int idx2 = indexOf(buf, idx, end, '/');
+
+    if (-1 == idx2) {
+      return null;
+    }
+
+    long timestamp;
+
+    if (idx == idx2) {
+      timestamp = null != this.now ? (long) this.now : TimeSource.getTime();
+    } else if ('T' == buf[idx]) {
+      if (!parseLong(buf, idx + 1, idx2)) {
+        return null;
+      }
+      timestamp = (null != this.now ? (long) this.now : TimeSource.getTime()) + this.parsedLong;
+    } else {
+      if (!parseLong(buf, idx, idx2)) {
+        return null;
+      }
+      timestamp = this.parsedLong;
+    }
+
+    idx = idx2 + 1;
+
+    //
+    // Location
+    //
+
+    idx2 = indexOf(buf, idx, end, '/');
+
+    if (-1 == idx2) {
+      return null;
+    }
+
+    long location = GeoTimeSerie.NO_LOCATION;
+
+    if (idx != idx2) {
+      int colon = indexOf(buf, idx, idx2, ':');
+
+      if (-1 == colon) {
+        return null;
+      }
+
+      try {
+        location = GeoXPLib.toGeoXPPoint(Double.parseDouble(ascii(buf, idx, colon)), Double.parseDouble(ascii(buf, colon + 1, idx2)));
+      } catch (NumberFormatException nfe) {
+        return null;
+      }
+    }
+
+    idx = idx2 + 1;
+
+    //
+    // Elevation
+    //
+
+    idx2 = indexOf(buf, idx, end, ' ');
+
+    if (-1 == idx2) {
+      return null;
+    }
+
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+
+    if (idx != idx2) {
+      if (!parseLong(buf, idx, idx2)) {
+        return null;
+      }
+      elevation = this.parsedLong;
+    }
+
+    idx = idx2 + 1;
+
+    while (idx < end && ' ' == buf[idx]) {
+      idx++;
+    }
+
+    //
+    // Class and labels
+    //
+
+    idx2 = continuation ? -1 : indexOf(buf, idx, end, '{');
+
+    boolean reuseLabels = false;
+
+    if (-1 == idx2) {
+      if (idx >= end || null == encoder) {
+        return null;
+      }
+      reuseLabels = true;
+    } else {
+      int closing = indexOf(buf, idx2 + 1, end, '}');
+
+      if (-1 == closing) {
+        return null;
+      }
+
+      if (!isLastClassLabels(buf, idx, closing + 1)) {
+        String name = ascii(buf, idx, idx2);
+
+        if (-1 != UnsafeString.indexOf(name, '%')) {
+          try {
+            name = URLDecoder.decode(name, "UTF-8");
+          } catch (IllegalArgumentException iae) {
+            return null;
+          }
+        }
+
+        Map<String,String> labels;
+
+        try {
+          labels = GTSHelper.parseLabels(null != this.extraLabels ? this.extraLabels.size() : 0, ascii(buf, idx2 + 1, closing));
+        } catch (ParseException pe) {
+          return null;
+        }
+
+        if (null != this.extraLabels) {
+          labels.putAll(this.extraLabels);
+
+          if (this.extraLabels.containsValue(null)) {
+            Set<Entry<String,String>> entries = this.extraLabels.entrySet();
+
+            while(labels.containsValue(null)) {
+              for (Entry<String,String> entry: entries) {
+                if (null == entry.getValue()) {
+                  labels.remove(entry.getKey());
+                }
+              }
+            }
+          }
+        }
+
+        //
+        // Remember the class and labels and the bytes they were parsed from
+        //
+
+        int len = closing + 1 - idx;
+
+        if (len > this.lastClassLabels.length) {
+          this.lastClassLabels = new byte[len];
+        }
+
+        System.arraycopy(buf, idx, this.lastClassLabels, 0, len);
+        this.lastClassLabelsLength = len;
+        this.lastName = name;
+        this.lastLabels = labels;
+        this.lastEncoder = null;
+      }
+
+      idx = closing + 1;
+
+      while (idx < end && ' ' == buf[idx]) {
+        idx++;
+      }
+
+      if (idx >= end) {
+        return null;
+      }
+    }
+
+    //
+    // Value
+    //
+
+    if (end - idx > this.maxValueSize) {
+      return null;
+    }
+
+    Object value = parseValue(buf, idx, end);
+
+    if (null == value) {
+      return null;
+    }
+
+    if (!reuseLabels && encoder != this.lastEncoder) {
+      if (null == encoder || !this.lastName.equals(encoder.getName()) || !this.lastLabels.equals(encoder.getMetadata().getLabels())) {
+        encoder = new GTSEncoder(0L);
+        encoder.setName(this.lastName);
+        encoder.getMetadata().setLabels(new HashMap<String,String>(this.lastLabels));
+      }
+
+      this.lastEncoder = encoder;
+    }
+
+    encoder.addValue(timestamp, location, elevation, value);
+
+    return encoder;
+  }
+
+  private boolean isLastClassLabels(byte[] buf, int from, int to) {
+    if (to - from != this.lastClassLabelsLength) {
+      return false;
+    }
+
+    for (int i = from; i < to; i++) {
+      if (buf[i] != this.lastClassLabels[i - from]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Parse a value like GTSHelper.parseValue does, handling longs, decimal numbers and booleans directly.
+   *
+   * @return The parsed value or null if the value could not be parsed
+   */
+  private static Object parseValue(byte[] buf, int from, int to) {
+    byte first = buf[from];
+
+    if ('\'' != first && '"' != first) {
+      int len = to - from;
+
+      if (1 == len && ('t' == (first | 0x20) || 'f' == (first | 0x20))) {
+        return 't' == (first | 0x20) ? Boolean.TRUE : Boolean.FALSE;
+      } else if (4 == len && equalsIgnoreCase(buf, from, "true")) {
+        return Boolean.TRUE;
+      } else if (5 == len && equalsIgnoreCase(buf, from, "false")) {
+        return Boolean.FALSE;
+      }
+
+      int i = from;
+      boolean negative = false;
+
+      if ('-' == first || '+' == first) {
+        negative = '-' == first;
+        i++;
+      }
+
+      //
+      // Values of the form [+-]digits or [+-]digits.[digits], the latter being BigDecimal
+      // instances if they are at most 15 characters long
+      //
+
+      if (i < to && buf[i] >= '0' && buf[i] <= '9') {
+        long unscaled = 0L;
+        int ndigits = 0;
+        int dot = -1;
+
+        while (i < to) {
+          if (buf[i] >= '0' && buf[i] <= '9') {
+            if (++ndigits > 18) {
+              break;
+            }
+            unscaled = unscaled * 10L + (buf[i] - '0');
+          } else if ('.' == buf[i] && -1 == dot) {
+            dot = i;
+          } else {
+            break;
+          }
+          i++;
+        }
+
+        if (i == to) {
+          if (-1 == dot) {
+            return negative ? -unscaled : unscaled;
+          } else if (len <= 15) {
+            return BigDecimal.valueOf(negative ? -unscaled : unscaled, to - dot - 1);
+          }
+        }
+      }
+    }
+
+    try {
+      return GTSHelper.parseValue(ascii(buf, from, to));
+    } catch (ParseException pe) {
+      return null;
+    }
+  }
+
+  private static boolean equalsIgnoreCase(byte[] buf, int from, String lowercase) {
+    for (int i = 0; i < lowercase.length(); i++) {
+      if ((buf[from + i] | 0x20) != lowercase.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Parse a long in the format accepted by Long.parseLong, with at most 18 digits so it cannot overflow.
+   * The result is stored in 'parsedLong'.
+   *
+   * @return true if the bytes could be parsed
+   */
+  private boolean parseLong(byte[] buf, int from, int to) {
+    int i = from;
+    boolean negative = false;
+
+    if (i < to && ('-' == buf[i] || '+' == buf[i])) {
+      negative = '-' == buf[i];
+      i++;
+    }
+
+    if (i == to || to - i > 18) {
+      return false;
+    }
+
+    long value = 0L;
+
+    while (i < to) {
+      if (buf[i] < '0' || buf[i] > '9') {
+        return false;
+      }
+      value = value * 10L + (buf[i] - '0');
+      i++;
+    }
+
+    this.parsedLong = negative ? -value : value;
+
+    return true;
+  }
+
+  private static int indexOf(byte[] buf, int from, int to, char ch) {
+    for (int i = from; i < to; i++) {
+      if (ch == buf[i]) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private static String ascii(byte[] buf, int from, int to) {
+    return new String(buf, from, to - from, Charsets.US_ASCII);
+  }
+}
@@ -30,6 +30,7 @@ import io.warp10.continuum.egress.EgressFetchHandler;
 import io.warp10.continuum.egress.ThriftDirectoryClient;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSParser;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
@@ -52,19 +53,14 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.math.BigInteger;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.ConcurrentModificationException;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
@@ -219,22 +215,14 @@ public class Ingress extends AbstractHandler implements Runnable {
   
   /**
    * Number of classId/labelsId to remember (to avoid pushing their metadata to Kafka)
-   * Memory footprint is that of a BigInteger whose byte representation is 16 bytes, so probably
-   * around 40 bytes
-   * FIXME(hbs): need to compute exactly
+   * Memory footprint is around 23 bytes per entry (see MetadataCache)
    */
   private static int METADATA_CACHE_SIZE = 10000000;
   
   /**
    * Cache used to determine if we should push metadata into Kafka or if it was previously seen.
-   * Key is a BigInteger constructed from a byte array of classId+labelsId (we cannot use byte[] as map key)
    */
-  final Map<BigInteger, Object> metadataCache = new LinkedHashMap<BigInteger, Object>(100, 0.75F, true) {
-    @Override
-    protected boolean removeEldestEntry(java.util.Map.Entry<BigInteger, Object> eldest) {
-      return this.size() > METADATA_CACHE_SIZE;
-    }
-  };
+  final MetadataCache metadataCache;
   
   final KeyStore keystore;
   final Properties properties;
@@ -291,6 +279,8 @@ public class Ingress extends AbstractHandler implements Runnable {
       this.METADATA_CACHE_SIZE = Integer.valueOf(props.getProperty(Configuration.INGRESS_METADATA_CACHE_SIZE));
     }
     
+    this.metadataCache = new MetadataCache(METADATA_CACHE_SIZE);
+    
     this.metaTopic = props.getProperty(Configuration.INGRESS_KAFKA_META_TOPIC);
     
     this.dataTopic = props.getProperty(Configuration.INGRESS_KAFKA_DATA_TOPIC);
@@ -608,13 +598,15 @@ public class Ingress extends AbstractHandler implements Runnable {
         gzipped = true;
       }
       
-      BufferedReader br = null;
+      InputStream is = null;
+      Charset charset = null;
           
       if (gzipped) {
-        GZIPInputStream is = new GZIPInputStream(request.getInputStream());
-        br = new BufferedReader(new InputStreamReader(is));
+        is = new GZIPInputStream(request.getInputStream());
+        charset = Charset.defaultCharset();
       } else {    
-        br = request.getReader();
+        is = request.getInputStream();
+        charset = GTSParser.getCharset(request.getCharacterEncoding());
       }
       
       Long now = TimeSource.getTime();
@@ -666,6 +658,8 @@ public class Ingress extends AbstractHandler implements Runnable {
       // Loop on all lines
       //
       
+      GTSParser parser = new GTSParser(is, charset, extraLabels, now, maxValueSize, false);
+      
       GTSEncoder lastencoder = null;
       GTSEncoder encoder = null;
       
@@ -676,18 +670,16 @@ public class Ingress extends AbstractHandler implements Runnable {
       AtomicLong dms = this.dataMessagesSize.get();
       
       do {
-        String line = br.readLine();
-        
-        if (null == line) {
+        if (!parser.next()) {
           break;
         }
       
         try {
-          encoder = GTSHelper.parse(lastencoder, line, extraLabels, now, maxValueSize);
+          encoder = parser.parse(lastencoder);
           count++;
         } catch (ParseException pe) {
           Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_UPDATE_PARSEERRORS, sensisionLabels, 1);
-          throw new IOException("Parse error at '" + line + "'", pe);
+          throw new IOException("Parse error at '" + parser.getLine() + "'", pe);
         }
                 
         if (encoder != lastencoder || dms.get() + 16 + lastencoder.size() > DATA_MESSAGES_THRESHOLD) {
@@ -695,13 +687,17 @@ public class Ingress extends AbstractHandler implements Runnable {
           // Determine if we should push the metadata or not
           //
           
-          encoder.setClassId(GTSHelper.classId(this.classKey, encoder.getMetadata().getName()));
-          encoder.setLabelsId(GTSHelper.labelsId(this.labelsKey, encoder.getMetadata().getLabels()));
+          //
+          // Ids are already known if the encoder continues the GTS of a pushed one
+          //
+          
+          if (!encoder.getMetadata().isSetClassId() || !encoder.getMetadata().isSetLabelsId()) {
+            encoder.setClassId(GTSHelper.classId(this.classKey, encoder.getMetadata().getName()));
+            encoder.setLabelsId(GTSHelper.labelsId(this.labelsKey, encoder.getMetadata().getLabels()));
+          }
 
           GTSHelper.fillGTSIds(bytes, 0, encoder.getClassId(), encoder.getLabelsId());
 
-          BigInteger metadataCacheKey = new BigInteger(bytes);
-
           //
           // Check throttling
           //
@@ -711,7 +707,7 @@ public class Ingress extends AbstractHandler implements Runnable {
             ThrottlingManager.checkDDP(lastencoder.getMetadata(), producer, owner, application, (int) lastencoder.getCount());
           }
           
-          if (!this.metadataCache.containsKey(metadataCacheKey)) {
+          if (!this.metadataCache.contains(encoder.getClassId(), encoder.getLabelsId())) {
             // Build metadata object to push
             Metadata metadata = new Metadata();
             // Set source to indicate we
@@ -727,9 +723,7 @@ public class Ingress extends AbstractHandler implements Runnable {
           }
           
           // Update metadataCache with the current key
-          synchronized(metadataCache) {
-            this.metadataCache.put(metadataCacheKey, null);
-          }
+          this.metadataCache.put(encoder.getClassId(), encoder.getLabelsId());
 
           if (null != lastencoder) {
             Map<String,String> labels = new HashMap<String, String>();
@@ -1125,13 +1119,8 @@ public class Ingress extends AbstractHandler implements Runnable {
               Metadata meta = new Metadata(metadata);
               meta.setSource(Configuration.INGRESS_METADATA_DELETE_SOURCE);
               pushMetadataMessage(meta);          
-              byte[] bytes = new byte[16];
               // We know class/labels Id were computed in pushMetadataMessage
-              GTSHelper.fillGTSIds(bytes, 0, meta.getClassId(), meta.getLabelsId());
-              BigInteger key = new BigInteger(bytes);
-              synchronized(this.metadataCache) {
-                this.metadataCache.remove(key);
-              }
+              this.metadataCache.remove(meta.getClassId(), meta.getLabelsId());
             }
           }
           
@@ -1294,9 +1283,7 @@ public class Ingress extends AbstractHandler implements Runnable {
         //
 
         for (KeyedMessage<byte[],byte[]> msg: msglist) {
-          synchronized(this.metadataCache) {
-            this.metadataCache.remove(new BigInteger(msg.key()));
-          }          
+          this.metadataCache.remove(msg.key(), 0);
         }
 
         throw t;
@@ -1508,49 +1495,11 @@ public class Ingress extends AbstractHandler implements Runnable {
     try {
       out = new GZIPOutputStream(new FileOutputStream(this.cacheDumpPath));
       
-      Set<BigInteger> bis = new HashSet<BigInteger>();
-
-      synchronized(this.metadataCache) {
-        bis.addAll(this.metadataCache.keySet());
-      }
-      
-      Iterator<BigInteger> iter = bis.iterator();
-      
       //
       // 128bits
       //
       
-      byte[] allzeroes = new byte[16];
-      Arrays.fill(allzeroes, (byte) 0); 
-      byte[] allones = new byte[16];
-      Arrays.fill(allones, (byte) 0xff);
-      
-      while (true) {
-        try {
-          if (!iter.hasNext()) {
-            break;
-          }
-          BigInteger bi = iter.next();
-          
-          byte[] raw = bi.toByteArray();
-
-          //
-          // 128bits
-          //
-          
-          if (raw.length != 16) {
-            if (bi.signum() < 0) {
-              out.write(allones, 0, 16 - raw.length);
-            } else {
-              out.write(allzeroes, 0, 16 - raw.length);              
-            }
-          }
-          
-          out.write(raw);
-          count++;
-        } catch (ConcurrentModificationException cme) {          
-        }
-      }          
+      count = this.metadataCache.dump(out);
     } catch (IOException ioe) {      
     } finally {
       if (null != out) {
@@ -1580,8 +1529,6 @@ public class Ingress extends AbstractHandler implements Runnable {
       
       int offset = 0;
       
-      byte[] raw = new byte[16];
-      
       while(true) {
         int len = in.read(buf, offset, buf.length - offset);
                 
@@ -1590,11 +1537,7 @@ public class Ingress extends AbstractHandler implements Runnable {
         int idx = 0;
         
         while(idx < offset && offset - idx >= 16) {
-          System.arraycopy(buf, idx, raw, 0, 16);
-          BigInteger id = new BigInteger(raw);
-          synchronized(this.metadataCache) {
-            this.metadataCache.put(id, null);
-          }
+          this.metadataCache.put(buf, idx);
           count++;
           idx += 16;
         }
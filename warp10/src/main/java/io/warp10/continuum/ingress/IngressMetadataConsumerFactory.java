@@ -29,7 +29,6 @@ import io.warp10.crypto.CryptoUtils;
 import io.warp10.quasar.token.thrift.data.ReadToken;
 import io.warp10.sensision.Sensision;
 
-import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -113,9 +112,6 @@ public class IngressMetadataConsumerFactory implements ConsumerFactory {
               // since it was wrapped/authenticated, we suppose it's ok.
               //
                           
-              byte[] clslblsBytes = Arrays.copyOf(data, 16);
-              BigInteger clslblsId = new BigInteger(clslblsBytes);
-              
               byte[] metadataBytes = Arrays.copyOfRange(data, 16, data.length);
 
               Metadata metadata = new Metadata();
@@ -134,9 +130,7 @@ public class IngressMetadataConsumerFactory implements ConsumerFactory {
                 // Remove entry from Metadata cache
                 //
                 
-                synchronized(ingress.metadataCache) {
-                  ingress.metadataCache.remove(clslblsId);
-                }
+                ingress.metadataCache.remove(data, 0);
                 continue;
               } else if (Configuration.INGRESS_METADATA_UPDATE_ENDPOINT.equals(metadata.getSource())) {
                 //
@@ -145,9 +139,7 @@ public class IngressMetadataConsumerFactory implements ConsumerFactory {
                 //
                 
                 //ingress.metadataCache.put(clslblsId, metadata);
-                synchronized(ingress.metadataCache) {
-                  ingress.metadataCache.remove(clslblsId);
-                }
+                ingress.metadataCache.remove(data, 0);
                 continue;
               } else {
                 continue;
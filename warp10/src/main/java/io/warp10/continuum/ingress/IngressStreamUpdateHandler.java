@@ -32,7 +32,6 @@ import io.warp10.standalone.StandaloneIngressHandler;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
-import java.math.BigInteger;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -196,17 +195,11 @@ public class IngressStreamUpdateHandler extends WebSocketHandler.Simple {
                   encoder.setClassId(GTSHelper.classId(this.handler.ingress.classKey, encoder.getMetadata().getName()));
                   encoder.setLabelsId(GTSHelper.labelsId(this.handler.ingress.labelsKey, encoder.getMetadata().getLabels()));
                   
-                  byte[] bytes = new byte[16];
-                  GTSHelper.fillGTSIds(bytes, 0, encoder.getClassId(), encoder.getLabelsId());
-                  BigInteger metadataCacheKey = new BigInteger(bytes);
-
-                  if (!this.handler.ingress.metadataCache.containsKey(metadataCacheKey)) {
+                  if (!this.handler.ingress.metadataCache.contains(encoder.getClassId(), encoder.getLabelsId())) {
                     Metadata metadata = new Metadata(encoder.getMetadata());
                     metadata.setSource(Configuration.INGRESS_METADATA_SOURCE);
                     this.handler.ingress.pushMetadataMessage(metadata);
-                    synchronized(this.handler.ingress.metadataCache) {
-                      this.handler.ingress.metadataCache.put(metadataCacheKey, null);
-                    }
+                    this.handler.ingress.metadataCache.put(encoder.getClassId(), encoder.getLabelsId());
                   }
                 }
 
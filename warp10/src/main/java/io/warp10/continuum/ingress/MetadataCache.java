@@ -0,0 +1,302 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.ingress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Set of the classId/labelsId pairs of the GTS whose Metadata were recently seen.
+ * 
+ * The set is split in segments, each guarded by its own lock and storing its ids in primitive
+ * arrays with open addressing (linear probing). When a segment is full, entries are evicted
+ * using the CLOCK algorithm, i.e. the hand sweeps the slots, sparing once those which were
+ * looked up since its last pass.
+ * 
+ * Each entry uses about 23 bytes (16 bytes of ids and a state byte at a load factor of 0.75).
+ */
+public class MetadataCache {
+  
+  private static final int SEGMENTS = 64;
+  
+  /**
+   * States of a slot
+   */
+  private static final byte EMPTY = 0;
+  private static final byte USED = 1;
+  private static final byte REFERENCED = 2;
+  
+  private static final class Segment {
+    
+    /**
+     * classId and labelsId of each slot, interleaved
+     */
+    private final long[] ids;
+    
+    private final byte[] states;
+    
+    private final int mask;
+    
+    /**
+     * Maximum number of entries of the segment
+     */
+    private final int capacity;
+    
+    private int size = 0;
+    
+    /**
+     * Position of the CLOCK hand
+     */
+    private int hand = 0;
+    
+    Segment(int capacity) {
+      this.capacity = capacity;
+      
+      int slots = Integer.highestOneBit(Math.max(2, (int) Math.min(1 << 30, (capacity * 4L) / 3L + 1L)) - 1) << 1;
+      
+      this.ids = new long[slots * 2];
+      this.states = new byte[slots];
+      this.mask = slots - 1;
+    }
+    
+    /**
+     * Return the slot holding the ids or the empty slot where they would be inserted
+     */
+    private int find(int hash, long classId, long labelsId) {
+      int slot = hash & this.mask;
+      
+      while (EMPTY != this.states[slot] && (this.ids[slot << 1] != classId || this.ids[(slot << 1) + 1] != labelsId)) {
+        slot = (slot + 1) & this.mask;
+      }
+      
+      return slot;
+    }
+    
+    synchronized boolean contains(int hash, long classId, long labelsId) {
+      int slot = find(hash, classId, labelsId);
+      
+      if (EMPTY == this.states[slot]) {
+        return false;
+      }
+      
+      this.states[slot] = REFERENCED;
+      
+      return true;
+    }
+    
+    synchronized void put(int hash, long classId, long labelsId) {
+      int slot = find(hash, classId, labelsId);
+      
+      if (EMPTY != this.states[slot]) {
+        this.states[slot] = REFERENCED;
+        return;
+      }
+      
+      if (this.size >= this.capacity) {
+        evict();
+        slot = find(hash, classId, labelsId);
+      }
+      
+      this.ids[slot << 1] = classId;
+      this.ids[(slot << 1) + 1] = labelsId;
+      this.states[slot] = USED;
+      this.size++;
+    }
+    
+    synchronized void remove(int hash, long classId, long labelsId) {
+      int slot = find(hash, classId, labelsId);
+      
+      if (EMPTY != this.states[slot]) {
+        delete(slot);
+      }
+    }
+    
+    /**
+     * Evict one entry, clearing the reference flag of the entries the hand passes over
+     */
+    private void evict() {
+      while (true) {
+        byte state = this.states[this.hand];
+        
+        if (REFERENCED == state) {
+          this.states[this.hand] = USED;
+        } else if (USED == state) {
+          delete(this.hand);
+          return;
+        }
+        
+        this.hand = (this.hand + 1) & this.mask;
+      }
+    }
+    
+    /**
+     * Empty a slot, shifting back the following entries of its cluster so lookups do not need tombstones
+     */
+    private void delete(int slot) {
+      int hole = slot;
+      int next = slot;
+      
+      while (true) {
+        next = (next + 1) & this.mask;
+        
+        if (EMPTY == this.states[next]) {
+          break;
+        }
+        
+        int home = hash(this.ids[next << 1], this.ids[(next << 1) + 1]) & this.mask;
+        
+        //
+        // The entry can move to the hole if its home slot is not cyclically within ]hole,next]
+        //
+        
+        if (((next - home) & this.mask) >= ((next - hole) & this.mask)) {
+          this.ids[hole << 1] = this.ids[next << 1];
+          this.ids[(hole << 1) + 1] = this.ids[(next << 1) + 1];
+          this.states[hole] = this.states[next];
+          hole = next;
+        }
+      }
+      
+      this.states[hole] = EMPTY;
+      this.size--;
+    }
+    
+    synchronized int size() {
+      return this.size;
+    }
+    
+    /**
+     * Copy the ids of the segment as 16 bytes classId/labelsId records
+     */
+    synchronized byte[] toBytes() {
+      byte[] bytes = new byte[this.size * 16];
+      int idx = 0;
+      
+      for (int slot = 0; slot < this.states.length; slot++) {
+        if (EMPTY == this.states[slot]) {
+          continue;
+        }
+        
+        idx = putLong(bytes, idx, this.ids[slot << 1]);
+        idx = putLong(bytes, idx, this.ids[(slot << 1) + 1]);
+      }
+      
+      return bytes;
+    }
+  }
+  
+  private final Segment[] segments = new Segment[SEGMENTS];
+  
+  /**
+   * @param capacity Maximum number of entries of the cache
+   */
+  public MetadataCache(int capacity) {
+    int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+    
+    for (int i = 0; i < SEGMENTS; i++) {
+      this.segments[i] = new Segment(perSegment);
+    }
+  }
+  
+  private static int hash(long classId, long labelsId) {
+    long h = classId * 0x9E3779B97F4A7C15L + labelsId;
+    h ^= h >>> 29;
+    h *= 0xBF58476D1CE4E5B9L;
+    h ^= h >>> 32;
+    return (int) h;
+  }
+  
+  private Segment segment(int hash) {
+    return this.segments[(hash >>> 26) & (SEGMENTS - 1)];
+  }
+  
+  /**
+   * Check if the ids were seen, marking them as recently used
+   */
+  public boolean contains(long classId, long labelsId) {
+    int hash = hash(classId, labelsId);
+    return segment(hash).contains(hash, classId, labelsId);
+  }
+  
+  public void put(long classId, long labelsId) {
+    int hash = hash(classId, labelsId);
+    segment(hash).put(hash, classId, labelsId);
+  }
+  
+  public void remove(long classId, long labelsId) {
+    int hash = hash(classId, labelsId);
+    segment(hash).remove(hash, classId, labelsId);
+  }
+  
+  /**
+   * Remove the ids stored as a 16 bytes classId/labelsId record at 'offset' of 'bytes'
+   */
+  public void remove(byte[] bytes, int offset) {
+    remove(getLong(bytes, offset), getLong(bytes, offset + 8));
+  }
+  
+  /**
+   * Add the ids stored as a 16 bytes classId/labelsId record at 'offset' of 'bytes'
+   */
+  public void put(byte[] bytes, int offset) {
+    put(getLong(bytes, offset), getLong(bytes, offset + 8));
+  }
+  
+  public long size() {
+    long size = 0L;
+    
+    for (Segment segment: this.segments) {
+      size += segment.size();
+    }
+    
+    return size;
+  }
+  
+  /**
+   * Write the ids of the cache as 16 bytes classId/labelsId records, one segment at a time
+   * 
+   * @return the number of records written
+   */
+  public long dump(OutputStream out) throws IOException {
+    long count = 0L;
+    
+    for (Segment segment: this.segments) {
+      byte[] bytes = segment.toBytes();
+      out.write(bytes);
+      count += bytes.length / 16;
+    }
+    
+    return count;
+  }
+  
+  private static int putLong(byte[] bytes, int idx, long value) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      bytes[idx++] = (byte) ((value >> shift) & 0xff);
+    }
+    return idx;
+  }
+  
+  private static long getLong(byte[] bytes, int idx) {
+    long value = 0L;
+    
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | (bytes[idx + i] & 0xffL);
+    }
+    
+    return value;
+  }
+}
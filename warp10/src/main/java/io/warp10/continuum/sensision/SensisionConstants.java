@@ -399,6 +399,26 @@ public class SensisionConstants {
    * Time spent with compactions disabled to enable snapshots
    */
   public static final String SENSISION_CLASS_WARP_STANDALONE_LEVELDB_SNAPSHOT_TIME_NS = "warp.standalone.leveldb.snapshot.time.ns";
+
+  /**
+   * Number of block merge cycles run by the standalone storage layer
+   */
+  public static final String SENSISION_CLASS_WARP_STANDALONE_LEVELDB_BLOCK_MERGE_RUNS = "warp.standalone.leveldb.block.merge.runs";
+
+  /**
+   * Time spent merging individual datapoints into blocks
+   */
+  public static final String SENSISION_CLASS_WARP_STANDALONE_LEVELDB_BLOCK_MERGE_TIME_NS = "warp.standalone.leveldb.block.merge.time.ns";
+
+  /**
+   * Number of individual datapoints merged into blocks
+   */
+  public static final String SENSISION_CLASS_WARP_STANDALONE_LEVELDB_BLOCK_MERGE_DATAPOINTS = "warp.standalone.leveldb.block.merge.datapoints";
+
+  /**
+   * Number of blocks written by the block merger
+   */
+  public static final String SENSISION_CLASS_WARP_STANDALONE_LEVELDB_BLOCK_MERGE_BLOCKS = "warp.standalone.leveldb.block.merge.blocks";
   
   /**
    * Number of 'update' requests received by the streaming version of continuum
@@ -715,11 +735,41 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_CONTINUUM_DIRECTORY_PLUGIN_FIND_RESULTS = "warp.directory.plugin.find.results";
 
+  /**
+   * Number of snapshots of the directory metadata taken
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_DIRECTORY_SNAPSHOTS = "warp.directory.snapshots";
+
+  /**
+   * Time spent taking snapshots of the directory metadata
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_DIRECTORY_SNAPSHOT_TIME_NANOS = "warp.directory.snapshot.time.nanos";
+
+  /**
+   * Number of GTS changes replayed after loading a directory snapshot at startup
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_DIRECTORY_SNAPSHOT_REPLAYED = "warp.directory.snapshot.replayed";
+
   /**
    * Number of times the Einstein bootstrap code was loaded
    */
   public static final String SENSISION_CLASS_EINSTEIN_BOOTSTRAP_LOADS = "warp.script.bootstrap.loads";
   
+  /**
+   * Number of Einstein requests whose script was found in the cache of pre-parsed scripts
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_CACHE_HITS = "warp.script.cache.hits";
+  
+  /**
+   * Number of Einstein requests whose script was not found in the cache of pre-parsed scripts
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_CACHE_MISSES = "warp.script.cache.misses";
+  
+  /**
+   * Number of scripts in the cache of pre-parsed scripts
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_CACHE_SIZE = "warp.script.cache.size";
+  
   /**
    * Number of Einstein requests
    */
@@ -795,6 +845,16 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_EINSTEIN_RUN_FAILURES = "warp.script.run.failures";
 
+  /**
+   * Number of runs of a script skipped because the previous one was not over
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_RUN_OVERRUNS = "warp.script.run.overruns";
+
+  /**
+   * Number of fetches served from the result of an identical fetch issued by another script
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_RUN_FETCH_SHARED = "warp.script.run.fetch.shared";
+
   /**
    * Number of points currently stored in the memory store
    */
@@ -805,6 +865,11 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_BYTES = "warp.standalone.inmemory.bytes";
 
+  /**
+   * Number of off heap bytes allocated by the memory store
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_OFFHEAP = "warp.standalone.inmemory.offheap";
+
   /**
    * Number of garbage collection cycles in the memory store
    */
@@ -820,6 +885,36 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_GC_DATAPOINTS = "warp.standalone.inmemory.gc.datapoints";
 
+  /**
+   * Number of GTS written by the last dump of the memory store
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_DUMP_GTS = "warp.standalone.inmemory.dump.gts";
+
+  /**
+   * Number of bytes written by the last dump of the memory store
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_DUMP_BYTES = "warp.standalone.inmemory.dump.bytes";
+
+  /**
+   * Duration in ns of the last dump of the memory store
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_DUMP_TIME_NS = "warp.standalone.inmemory.dump.time.ns";
+
+  /**
+   * Number of GTS read by the last load of the memory store
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_LOAD_GTS = "warp.standalone.inmemory.load.gts";
+
+  /**
+   * Number of bytes read by the last load of the memory store
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_LOAD_BYTES = "warp.standalone.inmemory.load.bytes";
+
+  /**
+   * Duration in ns of the last load of the memory store
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_LOAD_TIME_NS = "warp.standalone.inmemory.load.time.ns";
+
   /**
    * Number of cached estimators for GTS uniqueness estimation
    */
@@ -935,6 +1030,16 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_TIME_US = "warp.plasma.frontend.dispatch.time.ns";
   
+  /**
+   * Number of datapoints (or encoders for RAW/WRAPPER sessions) dropped because a session lagged behind
+   */
+  public static final String SENSISION_CLASS_PLASMA_FRONTEND_DROPPED = "warp.plasma.frontend.dropped";
+
+  /**
+   * Number of encoders dropped because the dispatching thread lagged behind
+   */
+  public static final String SENSISION_CLASS_PLASMA_FRONTEND_DROPPED_ENCODERS = "warp.plasma.frontend.dropped.encoders";
+  
   /**
    * Number of distinct GTS as estimated by HLL+
    */
@@ -1088,6 +1193,7 @@ public class SensisionConstants {
   public static final String SENSISION_CLASS_GEODIR_CELLS = "warp.geodir.cells";
   public static final String SENSISION_CLASS_GEODIR_TIME_US = "warp.geodir.time.us";
   public static final String SENSISION_CLASS_GEODIR_CLIENT_ERRORS = "warp.geodir.client.errors";
+  public static final String SENSISION_CLASS_GEODIR_DIRECTORY_ERRORS = "warp.geodir.directory.errors";
   public static final String SENSISION_CLASS_GEODIR_FETCH_INVALIDMACS = "warp.geodir.fetch.invalidmacs";
   public static final String SENSISION_CLASS_GEODIR_FETCH_INVALIDCIPHERS = "warp.geodir.fetch.invalidciphers";
   public static final String SENSISION_CLASS_GEODIR_FETCH_INVALIDBASE = "warp.geodir.fetch.invalidbase";
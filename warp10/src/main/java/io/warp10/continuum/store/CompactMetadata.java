@@ -0,0 +1,225 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Compact in-memory representation of the Metadata of a GTS held by the Directory.
+ * 
+ * The class name, label names/values and attribute names/values are replaced by their
+ * ids in a MetadataDictionary and packed in a single int array:
+ * 
+ * [class name id][number of labels][label name id][label value id]...[attribute name id][attribute value id]...
+ * 
+ * Labels and attributes are sorted by name id so they can be looked up by binary search.
+ * Metadata instances are only built when they are returned to callers. Instances are
+ * immutable, updating the attributes of a GTS means replacing its CompactMetadata.
+ */
+public final class CompactMetadata {
+  
+  private final long classId;
+  private final long labelsId;
+  
+  private final int[] ids;
+  
+  /**
+   * Build the compact representation of a Metadata, which MUST have its classId and labelsId set
+   */
+  public CompactMetadata(MetadataDictionary dictionary, Metadata metadata) {
+    this.classId = metadata.getClassId();
+    this.labelsId = metadata.getLabelsId();
+    
+    int nlabels = null == metadata.getLabels() ? 0 : metadata.getLabels().size();
+    int nattributes = null == metadata.getAttributes() ? 0 : metadata.getAttributes().size();
+    
+    this.ids = new int[2 + 2 * (nlabels + nattributes)];
+    this.ids[0] = dictionary.id(metadata.getName());
+    this.ids[1] = nlabels;
+    
+    pack(dictionary, metadata.getLabels(), this.ids, 2);
+    pack(dictionary, metadata.getAttributes(), this.ids, 2 + 2 * nlabels);
+  }
+  
+  /**
+   * Build an instance from its packed ids, used when reading snapshots
+   */
+  CompactMetadata(long classId, long labelsId, int[] ids) {
+    this.classId = classId;
+    this.labelsId = labelsId;
+    this.ids = ids;
+  }
+  
+  /**
+   * Return the packed ids, the array MUST NOT be modified
+   */
+  int[] ids() {
+    return this.ids;
+  }
+  
+  /**
+   * Store the name/value ids of a map at 'offset', sorted by name id
+   */
+  private static void pack(MetadataDictionary dictionary, Map<String,String> kv, int[] ids, int offset) {
+    if (null == kv || kv.isEmpty()) {
+      return;
+    }
+    
+    //
+    // Ids are positive, so sorting name id << 32 | value id sorts by name id
+    //
+    
+    long[] pairs = new long[kv.size()];
+    
+    int i = 0;
+    
+    for (Entry<String,String> entry: kv.entrySet()) {
+      pairs[i++] = (((long) dictionary.id(entry.getKey())) << 32) | (dictionary.id(entry.getValue()) & 0xFFFFFFFFL);
+    }
+    
+    Arrays.sort(pairs);
+    
+    for (long pair: pairs) {
+      ids[offset++] = (int) (pair >>> 32);
+      ids[offset++] = (int) pair;
+    }
+  }
+  
+  public long getClassId() {
+    return this.classId;
+  }
+  
+  public long getLabelsId() {
+    return this.labelsId;
+  }
+  
+  public int getNameId() {
+    return this.ids[0];
+  }
+  
+  public String getName(MetadataDictionary dictionary) {
+    return dictionary.get(this.ids[0]);
+  }
+  
+  public int getLabelsSize() {
+    return this.ids[1];
+  }
+  
+  /**
+   * Return the name id of the i-th label, labels are ordered by name id
+   */
+  public int getLabelName(int i) {
+    return this.ids[2 + 2 * i];
+  }
+  
+  public int getLabelValue(int i) {
+    return this.ids[3 + 2 * i];
+  }
+  
+  public int getAttributesSize() {
+    return (this.ids.length >>> 1) - 1 - this.ids[1];
+  }
+  
+  /**
+   * Return the name id of the i-th attribute, attributes are ordered by name id
+   */
+  public int getAttributeName(int i) {
+    return this.ids[2 + 2 * (this.ids[1] + i)];
+  }
+  
+  public int getAttributeValue(int i) {
+    return this.ids[3 + 2 * (this.ids[1] + i)];
+  }
+  
+  /**
+   * Return the value id of the label with the given name id, or -1 if there is no such label
+   */
+  public int getLabel(int nameId) {
+    return find(nameId, 2, 2 + 2 * this.ids[1]);
+  }
+  
+  /**
+   * Return the value id of the attribute with the given name id, or -1 if there is no such attribute
+   */
+  public int getAttribute(int nameId) {
+    return find(nameId, 2 + 2 * this.ids[1], this.ids.length);
+  }
+  
+  private int find(int nameId, int from, int to) {
+    int lo = 0;
+    int hi = ((to - from) >>> 1) - 1;
+    
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int id = this.ids[from + 2 * mid];
+      
+      if (id < nameId) {
+        lo = mid + 1;
+      } else if (id > nameId) {
+        hi = mid - 1;
+      } else {
+        return this.ids[from + 2 * mid + 1];
+      }
+    }
+    
+    return -1;
+  }
+  
+  public Map<String,String> getLabels(MetadataDictionary dictionary) {
+    return unpack(dictionary, 2, 2 + 2 * this.ids[1]);
+  }
+  
+  public Map<String,String> getAttributes(MetadataDictionary dictionary) {
+    return unpack(dictionary, 2 + 2 * this.ids[1], this.ids.length);
+  }
+  
+  private Map<String,String> unpack(MetadataDictionary dictionary, int from, int to) {
+    Map<String,String> kv = new HashMap<String,String>();
+    
+    for (int i = from; i < to; i += 2) {
+      kv.put(dictionary.get(this.ids[i]), dictionary.get(this.ids[i + 1]));
+    }
+    
+    return kv;
+  }
+  
+  /**
+   * Build a new Metadata instance from this compact representation
+   */
+  public Metadata toMetadata(MetadataDictionary dictionary) {
+    Metadata metadata = new Metadata();
+    metadata.setName(getName(dictionary));
+    metadata.setLabels(getLabels(dictionary));
+    metadata.setAttributes(getAttributes(dictionary));
+    metadata.setClassId(this.classId);
+    metadata.setLabelsId(this.labelsId);
+    return metadata;
+  }
+  
+  /**
+   * Return the approximate number of heap bytes used by this instance
+   */
+  public long heapSize() {
+    // Object header + 2 longs + reference, int array header + content
+    return 16 + 16 + 8 + 16 + 4L * this.ids.length;
+  }
+}
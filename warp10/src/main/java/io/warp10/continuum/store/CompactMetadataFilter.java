@@ -0,0 +1,133 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+
+/**
+ * Label selectors resolved against a MetadataDictionary, used to check whether
+ * CompactMetadata match without building their Metadata.
+ * 
+ * A GTS matches if, for each selector, it has a label or attribute with the selector's
+ * name and the values of those it has match. Exact selectors are compared by id, regular
+ * expressions are evaluated once per distinct value id.
+ * 
+ * Instances are not thread safe, they are meant to be used for a single request.
+ */
+public class CompactMetadataFilter {
+  
+  private final MetadataDictionary dictionary;
+  
+  /**
+   * Name id of each selector, -1 if the name is not in the dictionary
+   */
+  private final int[] names;
+  
+  /**
+   * Value id of exact selectors (-1 if unknown)
+   */
+  private final int[] values;
+  
+  /**
+   * Matchers of regular expression selectors, null for exact selectors
+   */
+  private final Matcher[] matchers;
+  
+  /**
+   * Per selector cache of the outcome of matchers for value ids
+   */
+  private final Map<Integer,Boolean>[] outcomes;
+  
+  /**
+   * @param selectors Map of label name to String (exact match) or Matcher (regular expression)
+   */
+  @SuppressWarnings("unchecked")
+  public CompactMetadataFilter(MetadataDictionary dictionary, Map<String,? extends Object> selectors) {
+    this.dictionary = dictionary;
+    
+    int n = selectors.size();
+    
+    this.names = new int[n];
+    this.values = new int[n];
+    this.matchers = new Matcher[n];
+    this.outcomes = new Map[n];
+    
+    int i = 0;
+    
+    for (Entry<String,? extends Object> entry: selectors.entrySet()) {
+      this.names[i] = dictionary.lookup(entry.getKey());
+      
+      if (entry.getValue() instanceof Matcher) {
+        this.matchers[i] = (Matcher) entry.getValue();
+        this.outcomes[i] = new HashMap<Integer,Boolean>();
+        this.values[i] = -1;
+      } else {
+        this.values[i] = dictionary.lookup(entry.getValue().toString());
+      }
+      
+      i++;
+    }
+  }
+  
+  public boolean matches(CompactMetadata metadata) {
+    for (int i = 0; i < this.names.length; i++) {
+      //
+      // Immediately exclude metadata which do not contain one of the
+      // labels for which we have patterns either in labels or in attributes
+      //
+      
+      if (this.names[i] < 0) {
+        return false;
+      }
+      
+      int label = metadata.getLabel(this.names[i]);
+      int attribute = metadata.getAttribute(this.names[i]);
+      
+      if (label < 0 && attribute < 0) {
+        return false;
+      }
+      
+      //
+      // Check if the label (resp. attribute) value matches, if not, exclude the GTS
+      //
+      
+      if ((label >= 0 && !matches(i, label)) || (attribute >= 0 && !matches(i, attribute))) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  private boolean matches(int selector, int value) {
+    if (null == this.matchers[selector]) {
+      return value == this.values[selector];
+    }
+    
+    Boolean outcome = this.outcomes[selector].get(value);
+    
+    if (null == outcome) {
+      outcome = this.matchers[selector].reset(this.dictionary.get(value)).matches();
+      this.outcomes[selector].put(value, outcome);
+    }
+    
+    return outcome;
+  }
+}
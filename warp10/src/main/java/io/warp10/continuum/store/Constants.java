@@ -96,6 +96,11 @@ public class Constants {
    */  
   public static final String HTTP_HEADER_ELAPSED_DEFAULT = "X-Warp10-Elapsed";
   
+  /**
+   * HTTP Header requesting the profile of function calls of Einstein scripts
+   */
+  public static final String HTTP_HEADER_PROFILE_DEFAULT = "X-Warp10-Profile";
+  
   /**
    * Script line where an error was encountered
    */
@@ -277,6 +282,9 @@ public class Constants {
   public static final String HTTP_PARAM_STOP = "stop";
   public static final String HTTP_PARAM_NOW = "now";
   public static final String HTTP_PARAM_TIMESPAN = "timespan";
+  public static final String HTTP_PARAM_COUNT = "count";
+  public static final String HTTP_PARAM_SKIP = "skip";
+  public static final String HTTP_PARAM_SAMPLE = "sample";
   public static final String HTTP_PARAM_DEDUP = "dedup";
   public static final String HTTP_PARAM_FORMAT = "format";
   public static final String HTTP_PARAM_END = "end";
@@ -326,6 +334,7 @@ public class Constants {
     
     HEADERS.put(Configuration.HTTP_HEADER_WEBCALL_UUIDX, props.getProperty(Configuration.HTTP_HEADER_WEBCALL_UUIDX, HTTP_HEADER_WEBCALL_UUID_DEFAULT));
     HEADERS.put(Configuration.HTTP_HEADER_ELAPSEDX, props.getProperty(Configuration.HTTP_HEADER_ELAPSEDX, HTTP_HEADER_ELAPSED_DEFAULT));
+    HEADERS.put(Configuration.HTTP_HEADER_PROFILEX, props.getProperty(Configuration.HTTP_HEADER_PROFILEX, HTTP_HEADER_PROFILE_DEFAULT));
     HEADERS.put(Configuration.HTTP_HEADER_ERROR_LINEX, props.getProperty(Configuration.HTTP_HEADER_ERROR_LINEX, HTTP_HEADER_ERROR_LINE_DEFAULT));
     HEADERS.put(Configuration.HTTP_HEADER_ERROR_MESSAGEX, props.getProperty(Configuration.HTTP_HEADER_ERROR_MESSAGEX, HTTP_HEADER_ERROR_MESSAGE_DEFAULT));
     HEADERS.put(Configuration.HTTP_HEADER_TOKENX, props.getProperty(Configuration.HTTP_HEADER_TOKENX, HTTP_HEADER_TOKEN_DEFAULT));
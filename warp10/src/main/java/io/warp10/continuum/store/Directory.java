@@ -41,7 +41,9 @@ import io.warp10.warp.sdk.DirectoryPlugin;
 import io.warp10.warp.sdk.DirectoryPlugin.GTS;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -85,6 +87,8 @@ import kafka.javaapi.consumer.ConsumerConnector;
 import kafka.message.MessageAndMetadata;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.ConnectionFactory;
@@ -214,6 +218,17 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
    */
   public static final byte[] HBASE_METADATA_KEY_PREFIX = "M".getBytes(Charsets.UTF_8);
   
+  private static final long DIRECTORY_SNAPSHOT_PERIOD_DEFAULT = 3600000L;
+  private static final long DIRECTORY_SNAPSHOT_MAXAGE_DEFAULT = 86400000L;
+  
+  private static final int DIRECTORY_STREAMING_BATCHSIZE_DEFAULT = 1000;
+  
+  /**
+   * Changes are replayed from HBase starting this many ms before the snapshot was taken,
+   * to account for clock differences between Directory and the RegionServers
+   */
+  private static final long SNAPSHOT_REPLAY_MARGIN = 300000L;
+  
   private final int modulus;
   private final int remainder;
   private String host;
@@ -221,6 +236,11 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
   private int streamingport;
   private int streamingselectors;
   private int streamingacceptors;
+  
+  /**
+   * Number of Metadata the streaming endpoint outputs between flushes
+   */
+  private final int streamingBatchSize;
     
   /**
    * Set of required parameters, those MUST be set
@@ -292,9 +312,15 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
   private final AtomicBoolean abort = new AtomicBoolean(false);
   
   /**
-   * Maps of class name to labelsId to metadata
+   * Dictionary of the names and values of the known metadata
+   */
+  private final MetadataDictionary dictionary = new MetadataDictionary();
+  
+  /**
+   * Maps of class name to labelsId to metadata. Metadata are kept in their compact form,
+   * Metadata instances are only built for the GTS returned by requests
    */
-  private final Map<String,Map<Long,Metadata>> metadatas = new MapMaker().concurrencyLevel(64).makeMap();
+  private final Map<String,Map<Long,CompactMetadata>> metadatas = new MapMaker().concurrencyLevel(64).makeMap();
   
   /**
    * Map of classId to class names
@@ -359,6 +385,15 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
    */
   private final DirectoryPlugin plugin;
   
+  /**
+   * Local snapshot of the metadata, null if snapshots are disabled
+   */
+  private final File snapshotFile;
+  
+  private final long snapshotPeriod;
+  
+  private final long snapshotMaxAge;
+  
   public Directory(KeyStore keystore, final Properties props) throws IOException {
     this.keystore = keystore;
 
@@ -470,6 +505,21 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
       this.plugin = null;
     }
     
+    //
+    // Snapshots are only taken when Directory retains the metadata itself
+    //
+    
+    if (null == this.plugin && null != properties.getProperty(io.warp10.continuum.Configuration.DIRECTORY_SNAPSHOT)) {
+      this.snapshotFile = new File(properties.getProperty(io.warp10.continuum.Configuration.DIRECTORY_SNAPSHOT));
+    } else {
+      this.snapshotFile = null;
+    }
+    
+    this.snapshotPeriod = Long.parseLong(properties.getProperty(io.warp10.continuum.Configuration.DIRECTORY_SNAPSHOT_PERIOD, Long.toString(DIRECTORY_SNAPSHOT_PERIOD_DEFAULT)));
+    this.snapshotMaxAge = Long.parseLong(properties.getProperty(io.warp10.continuum.Configuration.DIRECTORY_SNAPSHOT_MAXAGE, Long.toString(DIRECTORY_SNAPSHOT_MAXAGE_DEFAULT)));
+    
+    this.streamingBatchSize = Math.max(1, Integer.parseInt(properties.getProperty(io.warp10.continuum.Configuration.DIRECTORY_STREAMING_BATCHSIZE, Integer.toString(DIRECTORY_STREAMING_BATCHSIZE_DEFAULT))));
+    
     //
     // Create Curator framework and service discovery
     //
@@ -618,7 +668,7 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
                 synchronized(metadatas) {
                   if (!metadatas.containsKey(metadata.getName())) {
                     //metadatas.put(metadata.getName(), new ConcurrentHashMap<Long, Metadata>());
-                    metadatas.put(metadata.getName(), new ConcurrentSkipListMap<Long, Metadata>(ID_COMPARATOR));
+                    metadatas.put(metadata.getName(), new ConcurrentSkipListMap<Long, CompactMetadata>(ID_COMPARATOR));
                     classNames.put(classId, metadata.getName());
                   }                
                 }
@@ -645,10 +695,10 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
 
                 synchronized(metadatas.get(metadata.getName())) {
                   if (!metadatas.get(metadata.getName()).containsKey(labelsId)) {
-                    metadatas.get(metadata.getName()).put(labelsId, metadata);
+                    metadatas.get(metadata.getName()).put(labelsId, new CompactMetadata(dictionary, metadata));
                     continue;
-                  } else if (!metadatas.get(metadata.getName()).get(labelsId).getLabels().equals(metadata.getLabels())) {
-                    LOG.warn("LabelsId collision under class '" + metadata.getName() + "' " + metadata.getLabels() + " and " + metadatas.get(metadata.getName()).get(labelsId).getLabels());
+                  } else if (!metadatas.get(metadata.getName()).get(labelsId).getLabels(dictionary).equals(metadata.getLabels())) {
+                    LOG.warn("LabelsId collision under class '" + metadata.getName() + "' " + metadata.getLabels() + " and " + metadatas.get(metadata.getName()).get(labelsId).getLabels(dictionary));
                     Sensision.update(SensisionConstants.CLASS_WARP_DIRECTORY_LABELS_COLLISIONS, Sensision.EMPTY_LABELS, 1);                    
                   }
                 }
@@ -674,6 +724,19 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
         @Override
         public void run() {
           
+          //
+          // Attempt to initialize from the local snapshot first
+          //
+          
+          if (self.restore()) {
+            for (int i = 0; i < initNThreads; i++) {
+              stopMarkers[i].set(true);
+            }
+            
+            self.cachePopulated.set(true);
+            return;
+          }
+          
           long nano = System.nanoTime();
           
           Table htable = null;
@@ -787,6 +850,31 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
       this.cachePopulated.set(true);
     }
     
+    if (null != this.snapshotFile) {
+      Thread snapshotter = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          while (true) {
+            LockSupport.parkNanos(self.snapshotPeriod * 1000000L);
+            
+            if (!self.cachePopulated.get()) {
+              continue;
+            }
+            
+            try {
+              self.snapshot();
+            } catch (Throwable t) {
+              LOG.error("Error while taking Directory snapshot.", t);
+            }
+          }
+        }
+      });
+      
+      snapshotter.setName("Warp Directory Snapshot");
+      snapshotter.setDaemon(true);
+      snapshotter.start();
+    }
+    
     this.commitPeriod = Long.valueOf(properties.getProperty(io.warp10.continuum.Configuration.DIRECTORY_KAFKA_METADATA_COMMITPERIOD));
     
     this.maxPendingPutsSize = Long.parseLong(properties.getProperty(io.warp10.continuum.Configuration.DIRECTORY_HBASE_METADATA_MAXPENDINGPUTSSIZE));
@@ -962,6 +1050,224 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
     }
   }
   
+  /**
+   * Tag of the snapshots, snapshots taken for another partition are not loaded
+   */
+  private long snapshotTag() {
+    return (((long) this.modulus) << 32) | (this.remainder & 0xFFFFFFFFL);
+  }
+  
+  /**
+   * Write a snapshot of the metadata. The snapshot marker is the time at which the snapshot was started.
+   */
+  private void snapshot() throws IOException {
+    long nano = System.nanoTime();
+    long marker = System.currentTimeMillis();
+    
+    List<CompactMetadata> metadatas = new ArrayList<CompactMetadata>();
+    
+    for (Map<Long,CompactMetadata> classMetadatas: this.metadatas.values()) {
+      metadatas.addAll(classMetadatas.values());
+    }
+    
+    DirectorySnapshot.write(this.snapshotFile, snapshotTag(), marker, this.dictionary, metadatas, this.keystore.getKey(KeyStore.AES_HBASE_METADATA));
+    
+    nano = System.nanoTime() - nano;
+    
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_SNAPSHOTS, Sensision.EMPTY_LABELS, 1);
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_SNAPSHOT_TIME_NANOS, Sensision.EMPTY_LABELS, nano);
+    
+    LOG.info("Wrote snapshot of " + metadatas.size() + " GTS in " + (nano / 1000000.0D) + " ms");
+  }
+  
+  /**
+   * Populate the metadata from the local snapshot then replay the changes made in HBase
+   * since the snapshot was taken.
+   * 
+   * @return true if the metadata were restored, false if they must be read from HBase
+   */
+  private boolean restore() {
+    if (null == this.snapshotFile || !this.snapshotFile.exists()) {
+      return false;
+    }
+    
+    long nano = System.nanoTime();
+    
+    try {
+      long marker = DirectorySnapshot.marker(this.snapshotFile, snapshotTag());
+      
+      if (System.currentTimeMillis() - marker > this.snapshotMaxAge) {
+        LOG.warn("Ignoring snapshot taken more than " + this.snapshotMaxAge + " ms ago.");
+        return false;
+      }
+      
+      DirectorySnapshot.read(this.snapshotFile, snapshotTag(), this.dictionary, this.keystore.getKey(KeyStore.AES_HBASE_METADATA), new DirectorySnapshot.Sink() {
+        @Override
+        public void add(CompactMetadata metadata) {
+          cache(metadata);
+        }
+      });
+      
+      long replayed = replay(marker - SNAPSHOT_REPLAY_MARGIN);
+      
+      long count = 0L;
+      
+      for (Map<Long,CompactMetadata> classMetadatas: this.metadatas.values()) {
+        count += classMetadatas.size();
+      }
+      
+      nano = System.nanoTime() - nano;
+      
+      Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS, Sensision.EMPTY_LABELS, count);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_SNAPSHOT_REPLAYED, Sensision.EMPTY_LABELS, replayed);
+      
+      LOG.info("Loaded " + count + " GTS from snapshot, replayed " + replayed + " changes, in " + (nano / 1000000.0D) + " ms");
+      
+      return true;
+    } catch (IOException ioe) {
+      LOG.error("Unable to restore snapshot, reading metadata from HBase.", ioe);
+      this.metadatas.clear();
+      this.classNames.clear();
+      this.classesPerProducer.clear();
+      return false;
+    }
+  }
+  
+  /**
+   * Apply the changes made in HBase since 'since'. The scan is raw so delete markers are
+   * returned, a GTS is removed if its most recent delete marker is not older than its most
+   * recent value.
+   * 
+   * @return The number of GTS changes applied
+   */
+  private long replay(long since) throws IOException {
+    Table htable = this.conn.getTable(this.hbaseTable);
+    
+    byte[] aesKey = this.keystore.getKey(KeyStore.AES_HBASE_METADATA);
+    TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
+    
+    long count = 0L;
+    
+    try {
+      Scan scan = new Scan();
+      scan.setStartRow(HBASE_METADATA_KEY_PREFIX);
+      scan.setStopRow("N".getBytes(Charsets.UTF_8));
+      scan.addFamily(this.colfam);
+      scan.setTimeRange(Math.max(0L, since), Long.MAX_VALUE);
+      scan.setRaw(true);
+      scan.setMaxVersions();
+      scan.setCaching(10000);
+      
+      ResultScanner scanner = htable.getScanner(scan);
+      
+      try {
+        for (Result result: scanner) {
+          byte[] row = result.getRow();
+          
+          int r = (((int) row[HBASE_METADATA_KEY_PREFIX.length + 8]) & 0xff) % this.modulus;
+          
+          if (this.remainder != r) {
+            continue;
+          }
+          
+          ByteBuffer bb = ByteBuffer.wrap(row).order(ByteOrder.BIG_ENDIAN);
+          bb.position(HBASE_METADATA_KEY_PREFIX.length);
+          long classId = bb.getLong();
+          long labelsId = bb.getLong();
+          
+          Cell put = null;
+          long deleted = Long.MIN_VALUE;
+          
+          for (Cell cell: result.rawCells()) {
+            if (CellUtil.isDelete(cell)) {
+              deleted = Math.max(deleted, cell.getTimestamp());
+            } else if (null == put || cell.getTimestamp() > put.getTimestamp()) {
+              put = cell;
+            }
+          }
+          
+          count++;
+          
+          if (null == put || put.getTimestamp() <= deleted) {
+            String name = this.classNames.get(classId);
+            
+            if (null != name && this.metadatas.containsKey(name)) {
+              this.metadatas.get(name).remove(labelsId);
+            }
+            
+            continue;
+          }
+          
+          byte[] value = CryptoUtils.unwrap(aesKey, CellUtil.cloneValue(put));
+          
+          if (null == value) {
+            LOG.warn("Unable to decrypt metadata for row " + Hex.toHexString(row));
+            continue;
+          }
+          
+          Metadata metadata = new Metadata();
+          deserializer.deserialize(metadata, value);
+          
+          if (classId != GTSHelper.classId(this.SIPHASH_CLASS_LONGS, metadata.getName()) || labelsId != GTSHelper.labelsId(this.SIPHASH_LABELS_LONGS, metadata.getLabels())) {
+            LOG.warn("Incoherent class/labels Id for " + metadata);
+            continue;
+          }
+          
+          metadata.setClassId(classId);
+          metadata.setLabelsId(labelsId);
+          
+          if (!metadata.isSetAttributes()) {
+            metadata.setAttributes(new HashMap<String,String>());
+          }
+          
+          cache(new CompactMetadata(this.dictionary, metadata));
+        }
+      } finally {
+        scanner.close();
+      }
+    } catch (TException te) {
+      throw new IOException(te);
+    } finally {
+      htable.close();
+    }
+    
+    return count;
+  }
+  
+  /**
+   * Add or replace a GTS in the metadata cache, updating the per class and per producer maps
+   */
+  private void cache(CompactMetadata metadata) {
+    String name = metadata.getName(this.dictionary);
+    
+    synchronized(this.metadatas) {
+      if (!this.metadatas.containsKey(name)) {
+        this.metadatas.put(name, new ConcurrentSkipListMap<Long,CompactMetadata>(ID_COMPARATOR));
+        this.classNames.put(metadata.getClassId(), name);
+      }
+    }
+    
+    this.metadatas.get(name).put(metadata.getLabelsId(), metadata);
+    
+    int producerId = this.dictionary.lookup(Constants.PRODUCER_LABEL);
+    int producer = producerId < 0 ? -1 : metadata.getLabel(producerId);
+    
+    if (producer < 0) {
+      return;
+    }
+    
+    synchronized(this.classesPerProducer) {
+      Set<String> classes = this.classesPerProducer.get(this.dictionary.get(producer));
+      
+      if (null == classes) {
+        classes = new HashSet<String>();
+        this.classesPerProducer.put(this.dictionary.get(producer), classes);
+      }
+      
+      classes.add(name);
+    }
+  }
+  
   @Override
   public void run() {
     
@@ -1556,7 +1862,7 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
               
               if (!directory.metadatas.containsKey(metadata.getName())) {
                 //directory.metadatas.put(metadata.getName(), new ConcurrentHashMap<Long,Metadata>());
-                directory.metadatas.put(metadata.getName(), new ConcurrentSkipListMap<Long,Metadata>(ID_COMPARATOR));
+                directory.metadatas.put(metadata.getName(), new ConcurrentSkipListMap<Long,CompactMetadata>(ID_COMPARATOR));
                 directory.classNames.put(classId, metadata.getName());
                 Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_CLASSES, Sensision.EMPTY_LABELS, directory.classNames.size());
               }
@@ -1587,7 +1893,7 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
               metadata.setClassId(classId);
               metadata.setLabelsId(labelsId);
               
-              directory.metadatas.get(metadata.getName()).put(labelsId, metadata);
+              directory.metadatas.get(metadata.getName()).put(labelsId, new CompactMetadata(directory.dictionary, metadata));
               Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS, Sensision.EMPTY_LABELS, 1);
            
             } finally {
@@ -1772,6 +2078,13 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
           }
         }
 
+        //
+        // Label selectors are resolved against the dictionary once, regular
+        // expressions are then evaluated once per distinct value
+        //
+        
+        CompactMetadataFilter filter = new CompactMetadataFilter(this.dictionary, labelPatterns);
+        
         for (String className: classNames) {
           
           //
@@ -1779,32 +2092,8 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
           //
           
           if (classPattern.reset(className).matches()) {
-            for (Metadata metadata: this.metadatas.get(className).values()) {
-              boolean exclude = false;
-              
-              for (String labelName: labelPatterns.keySet()) {
-                //
-                // Immediately exclude metadata which do not contain one of the
-                // labels for which we have patterns either in labels or in attributes
-                //
-
-                if (!metadata.getLabels().containsKey(labelName) && !metadata.getAttributes().containsKey(labelName)) {
-                  exclude = true;
-                  break;
-                }
-                
-                //
-                // Check if the label value matches, if not, exclude the GTS
-                //
-                
-                if ((metadata.getLabels().containsKey(labelName) && !labelPatterns.get(labelName).reset(metadata.getLabels().get(labelName)).matches())
-                    || (metadata.getAttributes().containsKey(labelName) && !labelPatterns.get(labelName).reset(metadata.getAttributes().get(labelName)).matches())) {
-                  exclude = true;
-                  break;
-                }
-              }
-              
-              if (exclude) {
+            for (CompactMetadata metadata: this.metadatas.get(className).values()) {
+              if (!filter.matches(metadata)) {
                 continue;
               }
 
@@ -1818,16 +2107,7 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
                 return response;
               }
 
-              Metadata meta = new Metadata();
-              meta.setName(className);
-              //meta.setLabels(ImmutableMap.copyOf(metadata.getLabels()));
-              meta.setLabels(new HashMap<String, String>(metadata.getLabels()));
-              //meta.setAttributes(ImmutableMap.copyOf(metadata.getAttributes()));
-              meta.setAttributes(new HashMap<String,String>(metadata.getAttributes()));
-              meta.setClassId(GTSHelper.classId(SIPHASH_CLASS_LONGS, meta.getName()));
-              meta.setLabelsId(GTSHelper.labelsId(SIPHASH_LABELS_LONGS, meta.getLabels()));
-              
-              metas.add(meta);
+              metas.add(metadata.toMetadata(this.dictionary));
               
               count++;
             }
@@ -1910,6 +2190,7 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
       
       TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
 
+    OutputStream out = response.getOutputStream();
       byte[] serialized = serializer.serialize(response);
         
       ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -1946,9 +2227,9 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
     String name = this.classNames.get(request.getClassId());
     
     if (null != name) {
-      Metadata metadata = this.metadatas.get(name).get(request.getLabelsId()); 
+      CompactMetadata metadata = this.metadatas.get(name).get(request.getLabelsId()); 
       if (null != metadata) {
-        response.setMetadata(metadata);
+        response.setMetadata(metadata.toMetadata(this.dictionary));
       }
     }
     
@@ -2074,6 +2355,8 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
           }          
         }
         
+        CompactMetadataFilter filter = new CompactMetadataFilter(this.dictionary, labelPatterns);
+        
         for (String className: classNames) {
           
           //
@@ -2081,46 +2364,8 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
           //
           
           if (classPattern.reset(className).matches()) {
-            for (Metadata metadata: this.metadatas.get(className).values()) {
-              boolean exclude = false;
-              
-              for (String labelName: labelPatterns.keySet()) {
-                //
-                // Immediately exclude metadata which do not contain one of the
-                // labels for which we have patterns either in labels or in attributes
-                //
-
-                if (!metadata.getLabels().containsKey(labelName) && !metadata.getAttributes().containsKey(labelName)) {
-                  exclude = true;
-                  break;
-                }
-                
-                //
-                // Check if the label value matches, if not, exclude the GTS
-                //
-                
-                Object m = labelPatterns.get(labelName);
-                
-                //
-                // Check if the label value matches, if not, exclude the GTS
-                //
-
-                if (m instanceof Matcher) {
-                  if ((metadata.getLabels().containsKey(labelName) && !((Matcher) m).reset(metadata.getLabels().get(labelName)).matches())
-                      || (metadata.getAttributes().containsKey(labelName) && !((Matcher) m).reset(metadata.getAttributes().get(labelName)).matches())) {
-                    exclude = true;
-                    break;
-                  }                          
-                } else if (m instanceof String) {
-                  if ((metadata.getLabels().containsKey(labelName) && !((String) m).equals(metadata.getLabels().get(labelName)))
-                      || (metadata.getAttributes().containsKey(labelName) && !((String) m).equals(metadata.getAttributes().get(labelName)))) {
-                    exclude = true;
-                    break;
-                  }                                        
-                }
-              }
-              
-              if (exclude) {
+            for (CompactMetadata compact: this.metadatas.get(className).values()) {
+              if (!filter.matches(compact)) {
                 continue;
               }
 
@@ -2128,9 +2373,10 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
               // We have a match, update estimators
               //
 
-              // Compute classId/labelsId
-              long classId = GTSHelper.classId(SIPHASH_CLASS_LONGS, metadata.getName());
-              long labelsId = GTSHelper.labelsId(SIPHASH_LABELS_LONGS, metadata.getLabels());
+              Metadata metadata = compact.toMetadata(this.dictionary);
+              
+              long classId = metadata.getClassId();
+              long labelsId = metadata.getLabelsId();
               
               // Compute gtsId, we use the GTS Id String from which we extract the 16 bytes
               byte[] data = GTSHelper.gtsIdToString(classId, labelsId).getBytes(Charsets.UTF_16BE);
@@ -2385,10 +2631,13 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
           metadata.setLabelsId(labelsId);
           
           try {
-            response.getOutputStream().write(OrderPreservingBase64.encode(serializer.serialize(metadata)));
-            response.getOutputStream().write('\r');
-            response.getOutputStream().write('\n');
+            out.write(OrderPreservingBase64.encode(serializer.serialize(metadata)));
+            out.write('\r');
+            out.write('\n');
             count++;
+            if (0 == count % this.streamingBatchSize) {
+              response.flushBuffer();
+            }
           } catch (TException te) {
           }        
           nanofind = System.nanoTime();
@@ -2457,6 +2706,8 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
         }      
       }
             
+      CompactMetadataFilter filter = new CompactMetadataFilter(this.dictionary, labelPatterns);
+      
       for (String className: classNames) {
         
         //
@@ -2464,43 +2715,27 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
         //
         
         if (classPattern.reset(className).matches()) {
-          for (Metadata metadata: this.metadatas.get(className).values()) {
-            boolean exclude = false;
-            
-            for (String labelName: labelPatterns.keySet()) {
-              //
-              // Immediately exclude metadata which do not contain one of the
-              // labels for which we have patterns either in labels or in attributes
-              //
-
-              if (!metadata.getLabels().containsKey(labelName) && !metadata.getAttributes().containsKey(labelName)) {
-                exclude = true;
-                break;
-              }
-              
-              //
-              // Check if the label value matches, if not, exclude the GTS
-              //
-              
-              if ((metadata.getLabels().containsKey(labelName) && !labelPatterns.get(labelName).reset(metadata.getLabels().get(labelName)).matches())
-                  || (metadata.getAttributes().containsKey(labelName) && !labelPatterns.get(labelName).reset(metadata.getAttributes().get(labelName)).matches())) {
-                exclude = true;
-                break;
-              }
-            }
-            
-            if (exclude) {
+          for (CompactMetadata metadata: this.metadatas.get(className).values()) {
+            if (!filter.matches(metadata)) {
               continue;
             }
 
             try {
-              response.getOutputStream().write(OrderPreservingBase64.encode(serializer.serialize(metadata)));
-              response.getOutputStream().write('\r');
-              response.getOutputStream().write('\n');
+              out.write(OrderPreservingBase64.encode(serializer.serialize(metadata.toMetadata(this.dictionary))));
+              out.write('\r');
+              out.write('\n');
               count++;
             } catch (TException te) {
               continue;
             }
+            
+            //
+            // Flush every batch so the client can process the Metadata while we scan
+            //
+            
+            if (0 == count % this.streamingBatchSize) {
+              response.flushBuffer();
+            }
           }
         }
       }           
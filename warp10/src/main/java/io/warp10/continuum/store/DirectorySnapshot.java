@@ -0,0 +1,335 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.crypto.CryptoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Local snapshot of the metadata known to a directory, used to speed up restarts.
+ * 
+ * A snapshot contains the Strings referenced by the CompactMetadata of the directory
+ * followed by the packed ids of each GTS, so it can be loaded without deserializing
+ * Thrift structures or recomputing class and labels ids. Strings are written in blocks
+ * which are encrypted when an AES key is provided.
+ * 
+ * File layout:
+ * 
+ * MAGIC, tag (long), marker (long), number of Strings (int),
+ * blocks of [number of Strings (int)][length (int)][[String length (int)][UTF-8 bytes]...],
+ * number of GTS (int), [classId (long)][labelsId (long)][number of ids (int)][ids (int)...]...,
+ * CRC32 of everything before (long)
+ * 
+ * The tag identifies what the snapshot was taken from, a snapshot is only loaded if its
+ * tag is the expected one. The marker is the position from which the directory must
+ * replay the changes which happened after the snapshot was taken.
+ */
+public class DirectorySnapshot {
+  
+  private static final byte[] MAGIC = "W10DIR01".getBytes(Charsets.US_ASCII);
+  
+  private static final int BUFFER_SIZE = 1024 * 1024;
+  
+  /**
+   * Size above which a block of Strings is flushed
+   */
+  private static final int BLOCK_SIZE = 64 * 1024;
+  
+  /**
+   * Callback for the GTS read from a snapshot
+   */
+  public static interface Sink {
+    public void add(CompactMetadata metadata) throws IOException;
+  }
+  
+  /**
+   * Write a snapshot of the given metadata. The snapshot is first written to a temporary
+   * file which then replaces 'file'.
+   * 
+   * @param dictionary Dictionary the metadata refer to
+   * @param metadatas Metadata to write, MUST NOT be modified concurrently
+   * @param aesKey Key used to encrypt the Strings or null
+   */
+  public static void write(File file, long tag, long marker, MetadataDictionary dictionary, Collection<CompactMetadata> metadatas, byte[] aesKey) throws IOException {
+    //
+    // Assign snapshot ids to the Strings actually referenced, the dictionary
+    // may contain Strings of GTS which were removed
+    //
+    
+    int[] local = new int[dictionary.size()];
+    Arrays.fill(local, -1);
+    int[] strings = new int[1024];
+    int nstrings = 0;
+    
+    for (CompactMetadata metadata: metadatas) {
+      int[] ids = metadata.ids();
+      for (int i = 0; i < ids.length; i++) {
+        // Skip the number of labels
+        if (1 == i) {
+          continue;
+        }
+        if (-1 == local[ids[i]]) {
+          if (nstrings == strings.length) {
+            strings = Arrays.copyOf(strings, strings.length << 1);
+          }
+          strings[nstrings] = ids[i];
+          local[ids[i]] = nstrings++;
+        }
+      }
+    }
+    
+    File tmp = new File(file.getAbsolutePath() + ".tmp");
+    
+    FileOutputStream fos = new FileOutputStream(tmp);
+    
+    try {
+      CheckedOutputStream cos = new CheckedOutputStream(fos, new CRC32());
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(cos, BUFFER_SIZE));
+      
+      out.write(MAGIC);
+      out.writeLong(tag);
+      out.writeLong(marker);
+      
+      out.writeInt(nstrings);
+      
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+      DataOutputStream block = new DataOutputStream(baos);
+      int count = 0;
+      
+      for (int i = 0; i < nstrings; i++) {
+        byte[] bytes = dictionary.get(strings[i]).getBytes(Charsets.UTF_8);
+        block.writeInt(bytes.length);
+        block.write(bytes);
+        count++;
+        
+        if (baos.size() >= BLOCK_SIZE || i == nstrings - 1) {
+          byte[] data = baos.toByteArray();
+          if (null != aesKey) {
+            data = CryptoUtils.wrap(aesKey, data);
+          }
+          out.writeInt(count);
+          out.writeInt(data.length);
+          out.write(data);
+          baos.reset();
+          count = 0;
+        }
+      }
+      
+      out.writeInt(metadatas.size());
+      
+      for (CompactMetadata metadata: metadatas) {
+        int[] ids = metadata.ids();
+        out.writeLong(metadata.getClassId());
+        out.writeLong(metadata.getLabelsId());
+        out.writeInt(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+          out.writeInt(1 == i ? ids[i] : local[ids[i]]);
+        }
+      }
+      
+      out.flush();
+      
+      fos.write(ByteBuffer.allocate(8).putLong(cos.getChecksum().getValue()).array());
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  /**
+   * Return the marker of a snapshot.
+   * 
+   * @throws IOException if the file is not a snapshot or if its tag is not the expected one
+   */
+  public static long marker(File file, long tag) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    
+    try {
+      return header(in, tag);
+    } finally {
+      in.close();
+    }
+  }
+  
+  /**
+   * Read a snapshot, adding the Strings it contains to 'dictionary' and passing each
+   * GTS to 'sink'. The checksum of the snapshot is verified before any GTS is read.
+   * 
+   * @return The marker of the snapshot
+   * @throws IOException if the snapshot is invalid, in which case some GTS may already have been passed to 'sink'
+   */
+  public static long read(File file, long tag, MetadataDictionary dictionary, byte[] aesKey, Sink sink) throws IOException {
+    verify(file);
+    
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+    
+    try {
+      long marker = header(in, tag);
+      
+      //
+      // Read the Strings and map their snapshot ids to dictionary ids
+      //
+      
+      int nstrings = in.readInt();
+      
+      if (nstrings < 0) {
+        throw new IOException("Invalid number of Strings " + nstrings);
+      }
+      
+      int[] global = new int[nstrings];
+      int idx = 0;
+      
+      while (idx < nstrings) {
+        int count = in.readInt();
+        int len = in.readInt();
+        
+        if (count <= 0 || idx + count > nstrings || len < 0) {
+          throw new IOException("Invalid String block.");
+        }
+        
+        byte[] data = new byte[len];
+        in.readFully(data);
+        
+        if (null != aesKey) {
+          data = CryptoUtils.unwrap(aesKey, data);
+          if (null == data) {
+            throw new IOException("Unable to decrypt String block.");
+          }
+        }
+        
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        
+        for (int i = 0; i < count; i++) {
+          int slen = bb.getInt();
+          global[idx++] = dictionary.id(new String(data, bb.position(), slen, Charsets.UTF_8));
+          bb.position(bb.position() + slen);
+        }
+      }
+      
+      //
+      // Read the GTS
+      //
+      
+      int nmetadatas = in.readInt();
+      
+      for (int i = 0; i < nmetadatas; i++) {
+        long classId = in.readLong();
+        long labelsId = in.readLong();
+        int[] ids = new int[in.readInt()];
+        
+        if (ids.length < 2 || 0 != (ids.length & 1)) {
+          throw new IOException("Invalid GTS record.");
+        }
+        
+        for (int j = 0; j < ids.length; j++) {
+          int id = in.readInt();
+          ids[j] = 1 == j ? id : global[id];
+        }
+        
+        sink.add(new CompactMetadata(classId, labelsId, ids));
+      }
+      
+      return marker;
+    } catch (EOFException eofe) {
+      throw new IOException("Truncated snapshot.", eofe);
+    } catch (RuntimeException re) {
+      throw new IOException("Invalid snapshot.", re);
+    } finally {
+      in.close();
+    }
+  }
+  
+  private static long header(DataInputStream in, long tag) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+    
+    if (!Arrays.equals(MAGIC, magic)) {
+      throw new IOException("Not a directory snapshot.");
+    }
+    
+    if (tag != in.readLong()) {
+      throw new IOException("Snapshot tag mismatch.");
+    }
+    
+    return in.readLong();
+  }
+  
+  /**
+   * Check the CRC32 at the end of a snapshot
+   */
+  private static void verify(File file) throws IOException {
+    long length = file.length();
+    
+    if (length < MAGIC.length + 8 + 8 + 4 + 4 + 8) {
+      throw new IOException("Truncated snapshot.");
+    }
+    
+    CRC32 crc = new CRC32();
+    
+    InputStream in = new FileInputStream(file);
+    
+    try {
+      byte[] buf = new byte[BUFFER_SIZE];
+      long remaining = length - 8;
+      
+      while (remaining > 0) {
+        int len = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+        if (len < 0) {
+          throw new IOException("Truncated snapshot.");
+        }
+        crc.update(buf, 0, len);
+        remaining -= len;
+      }
+    } finally {
+      in.close();
+    }
+    
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    
+    try {
+      raf.seek(length - 8);
+      if (crc.getValue() != raf.readLong()) {
+        throw new IOException("Snapshot checksum mismatch.");
+      }
+    } finally {
+      raf.close();
+    }
+  }
+}
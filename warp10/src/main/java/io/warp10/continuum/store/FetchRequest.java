@@ -0,0 +1,363 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Description of the datapoints to retrieve for each GTS when fetching from a StoreClient.
+ * 
+ * The datapoints considered are those whose timestamp lies in [start,end]. Among those, considered
+ * from the most recent to the oldest, the first 'skip' ones are ignored and the following 'count'
+ * ones are selected. Each selected datapoint is then retained with a probability of 'sample'.
+ * 
+ * Stores use those bounds to restrict their key ranges and stop reading a GTS as soon as
+ * 'skip' + 'count' datapoints were read.
+ * 
+ * When a rollup span is set, stores return for each GTS an aggregate of the datapoints in [start,end]
+ * per bucket of a span which divides the rollup span (see Rollup). Rollups cannot be combined with
+ * 'count', 'skip' or 'sample'.
+ */
+public class FetchRequest {
+  
+  /**
+   * Most recent timestamp to consider, included
+   */
+  private long end = Long.MAX_VALUE;
+  
+  /**
+   * Oldest timestamp to consider, included
+   */
+  private long start = Long.MIN_VALUE;
+  
+  /**
+   * Maximum number of datapoints to select per GTS
+   */
+  private long count = Long.MAX_VALUE;
+  
+  /**
+   * Number of most recent datapoints to ignore per GTS
+   */
+  private long skip = 0L;
+  
+  /**
+   * Probability of retaining a selected datapoint
+   */
+  private double sample = 1.0D;
+  
+  /**
+   * Span of the buckets to aggregate the datapoints into, 0 to fetch the datapoints themselves
+   */
+  private long rollup = 0L;
+  
+  private Rollup.Aggregate aggregate = null;
+  
+  private boolean fromArchive = false;
+  
+  private boolean writeTimestamp = false;
+  
+  public FetchRequest() {
+  }
+  
+  /**
+   * Create a request from the legacy 'now' and 'timespan' parameters. A positive timespan selects
+   * the datapoints in ]now - timespan,now], a negative one selects the -timespan most recent
+   * datapoints at or before now.
+   */
+  public static FetchRequest fromTimespan(long now, long timespan) {
+    FetchRequest request = new FetchRequest();
+    
+    request.setEnd(now);
+    
+    if (timespan >= 0) {
+      request.setStart(now - timespan + 1);
+    } else {
+      request.setCount(-timespan);
+    }
+    
+    return request;
+  }
+  
+  public long getEnd() {
+    return this.end;
+  }
+  
+  public FetchRequest setEnd(long end) {
+    this.end = end;
+    return this;
+  }
+  
+  public long getStart() {
+    return this.start;
+  }
+  
+  public FetchRequest setStart(long start) {
+    this.start = start;
+    return this;
+  }
+  
+  public long getCount() {
+    return this.count;
+  }
+  
+  public FetchRequest setCount(long count) {
+    this.count = count;
+    return this;
+  }
+  
+  public long getSkip() {
+    return this.skip;
+  }
+  
+  public FetchRequest setSkip(long skip) {
+    this.skip = skip;
+    return this;
+  }
+  
+  public double getSample() {
+    return this.sample;
+  }
+  
+  public FetchRequest setSample(double sample) {
+    this.sample = sample;
+    return this;
+  }
+  
+  public long getRollup() {
+    return this.rollup;
+  }
+  
+  public Rollup.Aggregate getAggregate() {
+    return this.aggregate;
+  }
+  
+  public FetchRequest setRollup(long span, Rollup.Aggregate aggregate) {
+    if (span < 0 || (span > 0 && null == aggregate)) {
+      throw new IllegalArgumentException("Invalid rollup.");
+    }
+    this.rollup = span;
+    this.aggregate = aggregate;
+    return this;
+  }
+  
+  /**
+   * Return true if aggregates per bucket are requested instead of the datapoints
+   */
+  public boolean hasRollup() {
+    return this.rollup > 0;
+  }
+  
+  public boolean isFromArchive() {
+    return this.fromArchive;
+  }
+  
+  public FetchRequest setFromArchive(boolean fromArchive) {
+    this.fromArchive = fromArchive;
+    return this;
+  }
+  
+  public boolean isWriteTimestamp() {
+    return this.writeTimestamp;
+  }
+  
+  public FetchRequest setWriteTimestamp(boolean writeTimestamp) {
+    this.writeTimestamp = writeTimestamp;
+    return this;
+  }
+  
+  /**
+   * Return true if the start of the time range is bounded
+   */
+  public boolean hasStart() {
+    return Long.MIN_VALUE != this.start;
+  }
+  
+  /**
+   * Return true if only some of the most recent datapoints are selected
+   */
+  public boolean hasLimit() {
+    return Long.MAX_VALUE != this.count || 0L != this.skip;
+  }
+  
+  /**
+   * Maximum number of datapoints in the time range a store needs to read for a GTS,
+   * Long.MAX_VALUE if it needs to read them all
+   */
+  public long getLimit() {
+    if (Long.MAX_VALUE == this.count || this.count > Long.MAX_VALUE - this.skip) {
+      return Long.MAX_VALUE;
+    }
+    return this.skip + this.count;
+  }
+  
+  /**
+   * Return true if 'timestamp' lies in the time range
+   */
+  public boolean contains(long timestamp) {
+    return timestamp >= this.start && timestamp <= this.end;
+  }
+  
+  /**
+   * Return a new Selection, to be used for each GTS whose datapoints are read from the most recent
+   */
+  public Selection selection() {
+    return new Selection(this);
+  }
+  
+  /**
+   * Selection of the datapoints of a single GTS, fed with the datapoints in the time range from
+   * the most recent to the oldest.
+   */
+  public static class Selection {
+    private long skip;
+    private long count;
+    private final double sample;
+    
+    private Selection(FetchRequest request) {
+      this.skip = request.skip;
+      this.count = request.count;
+      this.sample = request.sample;
+    }
+    
+    /**
+     * Return true if the next datapoint should be retained
+     */
+    public boolean retain() {
+      if (this.skip > 0) {
+        this.skip--;
+        return false;
+      }
+      
+      if (this.count <= 0) {
+        return false;
+      }
+      
+      this.count--;
+      
+      return this.sample >= 1.0D || ThreadLocalRandom.current().nextDouble() < this.sample;
+    }
+    
+    /**
+     * Return true if no further datapoint can be retained
+     */
+    public boolean isDone() {
+      return this.count <= 0;
+    }
+  }
+  
+  /**
+   * Apply the selection to the datapoints of an encoder, regardless of their order. The
+   * encoder is expected to only contain datapoints in the time range.
+   * 
+   * @return the encoder itself if all its datapoints are retained, a new encoder otherwise
+   */
+  public GTSEncoder select(GTSEncoder encoder) throws IOException {
+    
+    long n = encoder.getCount();
+    
+    if (0 == n || (0L == this.skip && this.count >= n && this.sample >= 1.0D)) {
+      return encoder;
+    }
+    
+    GTSDecoder decoder = encoder.getDecoder(true);
+    
+    GTSEncoder selected = decoder.getCompatibleEncoder(0L);
+    
+    if (this.skip >= n || this.count <= 0) {
+      return selected;
+    }
+    
+    //
+    // Determine the timestamps of the most recent and oldest selected datapoints,
+    // the ranks in decreasing order of the selected ones are [skip,skip+count[
+    //
+    
+    long[] ticks = new long[(int) n];
+    
+    int i = 0;
+    
+    while (decoder.next()) {
+      ticks[i++] = decoder.getTimestamp();
+    }
+    
+    Arrays.sort(ticks);
+    
+    int hi = ticks.length - 1 - (int) this.skip;
+    int lo = this.count >= hi + 1 ? 0 : hi + 1 - (int) this.count;
+    
+    long upper = ticks[hi];
+    long lower = ticks[lo];
+    
+    //
+    // Number of datapoints at 'upper' to skip and number of datapoints at 'lower' to retain
+    //
+    
+    int last = hi;
+    
+    while (last + 1 < ticks.length && ticks[last + 1] == upper) {
+      last++;
+    }
+    
+    long ignored = last - hi;
+    long retained;
+    
+    if (upper == lower) {
+      retained = hi - lo + 1;
+    } else {
+      int lastlower = lo;
+      while (ticks[lastlower + 1] == lower) {
+        lastlower++;
+      }
+      retained = lastlower - lo + 1;
+    }
+    
+    decoder = encoder.getDecoder(true);
+    
+    while (decoder.next()) {
+      long ts = decoder.getTimestamp();
+      
+      if (ts > upper || ts < lower) {
+        continue;
+      }
+      
+      if (ts == upper && ignored > 0) {
+        ignored--;
+        continue;
+      }
+      
+      if (ts == lower) {
+        if (retained <= 0) {
+          continue;
+        }
+        retained--;
+      }
+      
+      if (this.sample < 1.0D && ThreadLocalRandom.current().nextDouble() >= this.sample) {
+        continue;
+      }
+      
+      selected.addValue(ts, decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+    }
+    
+    return selected;
+  }
+}
@@ -0,0 +1,98 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of the Strings (class names, label/attribute names and values) used by
+ * CompactMetadata instances. Each distinct String is given a dense int id, ids are
+ * never reused.
+ * 
+ * Lookups are lock free, adding a new String synchronizes on the dictionary.
+ */
+public class MetadataDictionary {
+  
+  private final Map<String,Integer> ids = new ConcurrentHashMap<String,Integer>();
+  
+  /**
+   * Strings indexed by id. Entries are written before the id is published in 'ids', so
+   * readers which obtained an id (directly or through a CompactMetadata) see the String.
+   */
+  private volatile String[] strings = new String[1024];
+  
+  /**
+   * Number of Strings in the dictionary, guarded by 'this'
+   */
+  private int size = 0;
+  
+  /**
+   * Return the id of a String, adding it to the dictionary if needed
+   */
+  public int id(String s) {
+    Integer id = this.ids.get(s);
+    
+    if (null != id) {
+      return id;
+    }
+    
+    synchronized (this) {
+      id = this.ids.get(s);
+      
+      if (null != id) {
+        return id;
+      }
+      
+      String[] strings = this.strings;
+      
+      if (this.size == strings.length) {
+        strings = Arrays.copyOf(strings, strings.length << 1);
+      }
+      
+      strings[this.size] = s;
+      this.strings = strings;
+      this.ids.put(s, this.size);
+      
+      return this.size++;
+    }
+  }
+  
+  /**
+   * Return the id of a String or -1 if the String is not in the dictionary
+   */
+  public int lookup(String s) {
+    Integer id = this.ids.get(s);
+    
+    return null == id ? -1 : id;
+  }
+  
+  /**
+   * Return the String with the given id
+   */
+  public String get(int id) {
+    return this.strings[id];
+  }
+  
+  /**
+   * Return the number of Strings in the dictionary
+   */
+  public int size() {
+    return this.ids.size();
+  }
+}
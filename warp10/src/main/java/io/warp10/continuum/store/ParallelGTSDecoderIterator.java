@@ -0,0 +1,293 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * GTSDecoderIterator which reads several series concurrently ahead of the consumer.
+ * 
+ * Up to 'scanners' tasks are submitted to an executor, each task repeatedly claims the next
+ * series to read and passes the decoders it produces to a per series queue. The consumer
+ * returns the decoders series after series, in the order of 'metadatas', and for each series
+ * in the order they were produced.
+ * 
+ * Memory is bounded by the number of bytes of the decoders queued but not yet consumed. When
+ * this number exceeds 'maxInflight', the tasks block until the consumer catches up, except the
+ * task reading the series the consumer is waiting for, so the iterator cannot deadlock.
+ * 
+ * If a series cannot be read, the error is rethrown by 'hasNext' once the consumer has
+ * returned the decoders produced for that series before the error.
+ */
+public class ParallelGTSDecoderIterator extends GTSDecoderIterator {
+  
+  /**
+   * Reader of the data of a single series
+   */
+  public static interface SeriesReader {
+    /**
+     * Read the data of a series, passing it to 'sink' as decoders
+     */
+    public void read(Metadata metadata, Sink sink) throws IOException;
+  }
+  
+  /**
+   * Receiver of the decoders produced by a SeriesReader
+   */
+  public static interface Sink {
+    /**
+     * Queue a decoder, blocking while too many bytes are in flight.
+     * 
+     * @throws IOException if the iterator was closed
+     */
+    public void add(GTSDecoder decoder) throws IOException;
+  }
+  
+  private final List<Metadata> metadatas;
+  
+  private final SeriesReader reader;
+  
+  private final long maxInflight;
+  
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  
+  /**
+   * Decoders produced for each series, null once the series was consumed, guarded by 'lock'
+   */
+  private final ArrayDeque<GTSDecoder>[] queues;
+  
+  /**
+   * Flags indicating the reading of each series is over, guarded by 'lock'
+   */
+  private final boolean[] done;
+  
+  /**
+   * Errors raised while reading each series, guarded by 'lock'
+   */
+  private final Throwable[] errors;
+  
+  /**
+   * Index of the series the consumer is reading, guarded by 'lock'
+   */
+  private int head = 0;
+  
+  /**
+   * Number of bytes queued, guarded by 'lock'
+   */
+  private long inflight = 0L;
+  
+  private boolean closed = false;
+  
+  /**
+   * Index of the next series to read
+   */
+  private final AtomicInteger next = new AtomicInteger(0);
+  
+  private final List<Future<?>> futures = new ArrayList<Future<?>>();
+  
+  /**
+   * @param metadatas Series to read, in the order their decoders should be returned
+   * @param reader Reader of a single series, called concurrently by several threads
+   * @param executor Executor the reading tasks are submitted to
+   * @param scanners Maximum number of series read concurrently
+   * @param maxInflight Number of bytes above which the reading tasks wait for the consumer
+   */
+  @SuppressWarnings("unchecked")
+  public ParallelGTSDecoderIterator(List<Metadata> metadatas, SeriesReader reader, ExecutorService executor, int scanners, long maxInflight) {
+    this.metadatas = metadatas;
+    this.reader = reader;
+    this.maxInflight = maxInflight;
+    this.queues = new ArrayDeque[metadatas.size()];
+    this.done = new boolean[metadatas.size()];
+    this.errors = new Throwable[metadatas.size()];
+    
+    int tasks = Math.max(1, Math.min(scanners, metadatas.size()));
+    
+    for (int i = 0; i < tasks; i++) {
+      this.futures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          scan();
+        }
+      }));
+    }
+  }
+  
+  /**
+   * Body of the reading tasks
+   */
+  private void scan() {
+    while (true) {
+      final int idx = this.next.getAndIncrement();
+      
+      if (idx >= this.metadatas.size()) {
+        return;
+      }
+      
+      try {
+        this.reader.read(this.metadatas.get(idx), new Sink() {
+          @Override
+          public void add(GTSDecoder decoder) throws IOException {
+            offer(idx, decoder);
+          }
+        });
+      } catch (Throwable t) {
+        //
+        // The error is surfaced to the consumer when it reaches the series
+        //
+        
+        lock.lock();
+        try {
+          this.errors[idx] = t;
+        } finally {
+          lock.unlock();
+        }
+      } finally {
+        lock.lock();
+        try {
+          this.done[idx] = true;
+          this.changed.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+      
+      if (isClosed()) {
+        return;
+      }
+    }
+  }
+  
+  private void offer(int idx, GTSDecoder decoder) throws IOException {
+    lock.lock();
+    try {
+      while (!this.closed && idx != this.head && this.inflight >= this.maxInflight) {
+        this.changed.awaitUninterruptibly();
+      }
+      
+      if (this.closed) {
+        throw new IOException("Iterator was closed.");
+      }
+      
+      if (null == this.queues[idx]) {
+        this.queues[idx] = new ArrayDeque<GTSDecoder>();
+      }
+      
+      this.queues[idx].add(decoder);
+      this.inflight += decoder.getRemainingSize();
+      this.changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  private boolean isClosed() {
+    lock.lock();
+    try {
+      return this.closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  @Override
+  public boolean hasNext() {
+    lock.lock();
+    try {
+      while (true) {
+        if (this.closed || this.head >= this.metadatas.size()) {
+          return false;
+        }
+        
+        if (null != this.queues[this.head] && !this.queues[this.head].isEmpty()) {
+          return true;
+        }
+        
+        if (this.done[this.head]) {
+          if (null != this.errors[this.head]) {
+            throw new RuntimeException("Error while reading series " + this.metadatas.get(this.head).getName() + this.metadatas.get(this.head).getLabels() + ".", this.errors[this.head]);
+          }
+          
+          // The current series is exhausted, move on to the next one
+          this.queues[this.head] = null;
+          this.head++;
+          this.changed.signalAll();
+          continue;
+        }
+        
+        try {
+          this.changed.await();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(ie);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  @Override
+  public GTSDecoder next() {
+    lock.lock();
+    try {
+      if (!hasNext()) {
+        return null;
+      }
+      
+      GTSDecoder decoder = this.queues[this.head].poll();
+      this.inflight -= decoder.getRemainingSize();
+      this.changed.signalAll();
+      
+      return decoder;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  @Override
+  public void remove() {
+  }
+  
+  @Override
+  public void close() throws Exception {
+    lock.lock();
+    try {
+      this.closed = true;
+      this.changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    
+    // Interrupt the tasks which are still scanning
+    for (Future<?> future: this.futures) {
+      future.cancel(true);
+    }
+  }
+}
@@ -0,0 +1,376 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Summary (min, max, sum, count, first and last) of the numeric datapoints of a GTS in a time bucket.
+ * 
+ * A rollup of span 'r' covers the buckets ]k*r - r,k*r], each bucket being identified by its end k*r.
+ * Rollups can be merged, so the rollups at a resolution which divides a bucketspan can be combined
+ * into the buckets of that bucketspan. Non numeric values are ignored, locations and elevations are
+ * only kept for the first and last values.
+ */
+public class Rollup {
+  
+  public static enum Aggregate {
+    MIN,
+    MAX,
+    SUM,
+    COUNT,
+    FIRST,
+    LAST,
+  }
+  
+  private long count = 0L;
+  
+  /**
+   * Flag indicating that min, max and sum are tracked as doubles
+   */
+  private boolean isDouble = false;
+  
+  private long lmin = Long.MAX_VALUE;
+  private long lmax = Long.MIN_VALUE;
+  private long lsum = 0L;
+  
+  private double dmin;
+  private double dmax;
+  private double dsum;
+  
+  private long firstTick = Long.MAX_VALUE;
+  private long firstLocation = GeoTimeSerie.NO_LOCATION;
+  private long firstElevation = GeoTimeSerie.NO_ELEVATION;
+  private Object first = null;
+  
+  private long lastTick = Long.MIN_VALUE;
+  private long lastLocation = GeoTimeSerie.NO_LOCATION;
+  private long lastElevation = GeoTimeSerie.NO_ELEVATION;
+  private Object last = null;
+  
+  /**
+   * Add a datapoint to the rollup, non numeric values are ignored
+   */
+  public void add(long tick, long location, long elevation, Object value) {
+    if (!(value instanceof Number)) {
+      return;
+    }
+    
+    if (value instanceof Long) {
+      long v = ((Long) value).longValue();
+      
+      if (this.isDouble) {
+        add((double) v);
+      } else {
+        this.lmin = Math.min(this.lmin, v);
+        this.lmax = Math.max(this.lmax, v);
+        this.lsum += v;
+      }
+    } else {
+      value = ((Number) value).doubleValue();
+      
+      if (!this.isDouble) {
+        toDouble();
+      }
+      
+      add(((Double) value).doubleValue());
+    }
+    
+    this.count++;
+    
+    if (tick < this.firstTick) {
+      this.firstTick = tick;
+      this.firstLocation = location;
+      this.firstElevation = elevation;
+      this.first = value;
+    }
+    
+    if (tick >= this.lastTick) {
+      this.lastTick = tick;
+      this.lastLocation = location;
+      this.lastElevation = elevation;
+      this.last = value;
+    }
+  }
+  
+  private void add(double v) {
+    this.dmin = Math.min(this.dmin, v);
+    this.dmax = Math.max(this.dmax, v);
+    this.dsum += v;
+  }
+  
+  /**
+   * Switch min, max and sum to doubles
+   */
+  private void toDouble() {
+    this.dmin = 0 == this.count ? Double.POSITIVE_INFINITY : this.lmin;
+    this.dmax = 0 == this.count ? Double.NEGATIVE_INFINITY : this.lmax;
+    this.dsum = this.lsum;
+    this.isDouble = true;
+  }
+  
+  /**
+   * Merge another rollup into this one
+   */
+  public void merge(Rollup other) {
+    if (0 == other.count) {
+      return;
+    }
+    
+    if (other.isDouble && !this.isDouble) {
+      toDouble();
+    }
+    
+    if (this.isDouble) {
+      this.dmin = Math.min(this.dmin, other.isDouble ? other.dmin : other.lmin);
+      this.dmax = Math.max(this.dmax, other.isDouble ? other.dmax : other.lmax);
+      this.dsum += other.isDouble ? other.dsum : other.lsum;
+    } else {
+      this.lmin = Math.min(this.lmin, other.lmin);
+      this.lmax = Math.max(this.lmax, other.lmax);
+      this.lsum += other.lsum;
+    }
+    
+    this.count += other.count;
+    
+    if (other.firstTick < this.firstTick) {
+      this.firstTick = other.firstTick;
+      this.firstLocation = other.firstLocation;
+      this.firstElevation = other.firstElevation;
+      this.first = other.first;
+    }
+    
+    if (other.lastTick >= this.lastTick) {
+      this.lastTick = other.lastTick;
+      this.lastLocation = other.lastLocation;
+      this.lastElevation = other.lastElevation;
+      this.last = other.last;
+    }
+  }
+  
+  public long getCount() {
+    return this.count;
+  }
+  
+  /**
+   * Return the value of the given aggregate
+   */
+  public Object getValue(Aggregate aggregate) {
+    switch (aggregate) {
+      case MIN:
+        return this.isDouble ? (Object) this.dmin : (Object) this.lmin;
+      case MAX:
+        return this.isDouble ? (Object) this.dmax : (Object) this.lmax;
+      case SUM:
+        return this.isDouble ? (Object) this.dsum : (Object) this.lsum;
+      case COUNT:
+        return this.count;
+      case FIRST:
+        return this.first;
+      case LAST:
+        return this.last;
+      default:
+        throw new IllegalArgumentException();
+    }
+  }
+  
+  /**
+   * Return the tick of the given aggregate for the bucket ending at 'bucketEnd'. The first
+   * and last values keep their own tick so rollups read in several parts can be combined.
+   */
+  public long getTick(Aggregate aggregate, long bucketEnd) {
+    if (Aggregate.FIRST == aggregate) {
+      return this.firstTick;
+    } else if (Aggregate.LAST == aggregate) {
+      return this.lastTick;
+    } else {
+      return bucketEnd;
+    }
+  }
+  
+  public long getLocation(Aggregate aggregate) {
+    if (Aggregate.FIRST == aggregate) {
+      return this.firstLocation;
+    } else if (Aggregate.LAST == aggregate) {
+      return this.lastLocation;
+    } else {
+      return GeoTimeSerie.NO_LOCATION;
+    }
+  }
+  
+  public long getElevation(Aggregate aggregate) {
+    if (Aggregate.FIRST == aggregate) {
+      return this.firstElevation;
+    } else if (Aggregate.LAST == aggregate) {
+      return this.lastElevation;
+    } else {
+      return GeoTimeSerie.NO_ELEVATION;
+    }
+  }
+  
+  /**
+   * Serialize the rollup of the bucket ending at 'bucketEnd' as an encoder holding the first and last
+   * datapoints followed by min, max, sum and count at 'bucketEnd'.
+   * 
+   * @param key AES key used to wrap the encoder, may be null
+   */
+  public byte[] toBytes(long bucketEnd, byte[] key) throws IOException {
+    GTSEncoder encoder = new GTSEncoder(bucketEnd, key);
+    
+    encoder.addValue(this.firstTick, this.firstLocation, this.firstElevation, this.first);
+    encoder.addValue(this.lastTick, this.lastLocation, this.lastElevation, this.last);
+    encoder.addValue(bucketEnd, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, getValue(Aggregate.MIN));
+    encoder.addValue(bucketEnd, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, getValue(Aggregate.MAX));
+    encoder.addValue(bucketEnd, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, getValue(Aggregate.SUM));
+    encoder.addValue(bucketEnd, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, this.count);
+    
+    return encoder.getBytes();
+  }
+  
+  /**
+   * Deserialize a rollup produced by 'toBytes'
+   */
+  public static Rollup fromBytes(long bucketEnd, byte[] key, byte[] bytes) throws IOException {
+    GTSDecoder decoder = new GTSDecoder(bucketEnd, key, ByteBuffer.wrap(bytes));
+    
+    Object[] values = new Object[6];
+    
+    Rollup rollup = new Rollup();
+    
+    for (int i = 0; i < values.length; i++) {
+      if (!decoder.next()) {
+        throw new IOException("Invalid rollup.");
+      }
+      
+      values[i] = decoder.getValue();
+      
+      if (0 == i) {
+        rollup.firstTick = decoder.getTimestamp();
+        rollup.firstLocation = decoder.getLocation();
+        rollup.firstElevation = decoder.getElevation();
+      } else if (1 == i) {
+        rollup.lastTick = decoder.getTimestamp();
+        rollup.lastLocation = decoder.getLocation();
+        rollup.lastElevation = decoder.getElevation();
+      }
+    }
+    
+    rollup.first = values[0] instanceof Long ? values[0] : (Object) ((Number) values[0]).doubleValue();
+    rollup.last = values[1] instanceof Long ? values[1] : (Object) ((Number) values[1]).doubleValue();
+    
+    if (values[2] instanceof Long) {
+      rollup.lmin = (Long) values[2];
+      rollup.lmax = (Long) values[3];
+      rollup.lsum = (Long) values[4];
+    } else {
+      rollup.isDouble = true;
+      rollup.dmin = ((Number) values[2]).doubleValue();
+      rollup.dmax = ((Number) values[3]).doubleValue();
+      rollup.dsum = ((Number) values[4]).doubleValue();
+    }
+    
+    rollup.count = ((Number) values[5]).longValue();
+    
+    return rollup;
+  }
+  
+  /**
+   * Compute the end of the bucket of span 'span' containing 'ts', i.e. the smallest multiple
+   * of 'span' greater than or equal to 'ts'. Timestamps past the last multiple before Long.MAX_VALUE
+   * all belong to the bucket ending at Long.MAX_VALUE.
+   */
+  public static long bucketEnd(long ts, long span) {
+    long mod = ts % span;
+    
+    if (0 == mod) {
+      return ts;
+    }
+    
+    if (mod < 0) {
+      mod += span;
+    }
+    
+    long base = ts - mod;
+    
+    if (base > Long.MAX_VALUE - span) {
+      return Long.MAX_VALUE;
+    }
+    
+    return base + span;
+  }
+  
+  /**
+   * Add the datapoints of a decoder to the rollups of span 'span' of 'buckets', keyed by bucket end
+   */
+  public static void aggregate(GTSDecoder decoder, long span, Map<Long,Rollup> buckets) {
+    while (decoder.next()) {
+      long end = bucketEnd(decoder.getTimestamp(), span);
+      
+      Rollup rollup = buckets.get(end);
+      
+      if (null == rollup) {
+        rollup = new Rollup();
+        buckets.put(end, rollup);
+      }
+      
+      rollup.add(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+    }
+  }
+  
+  /**
+   * Build an encoder with the given aggregate of each non empty rollup of 'buckets', keyed by bucket end
+   */
+  public static GTSEncoder encode(Map<Long,Rollup> buckets, Aggregate aggregate) throws IOException {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    
+    for (Entry<Long,Rollup> entry: buckets.entrySet()) {
+      Rollup rollup = entry.getValue();
+      
+      if (0 == rollup.count) {
+        continue;
+      }
+      
+      encoder.addValue(rollup.getTick(aggregate, entry.getKey()), rollup.getLocation(aggregate), rollup.getElevation(aggregate), rollup.getValue(aggregate));
+    }
+    
+    return encoder;
+  }
+  
+  /**
+   * Aggregate the datapoints of a decoder into buckets of span 'span'
+   * 
+   * @return a decoder with the same metadata and one value of the given aggregate per non empty bucket
+   */
+  public static GTSDecoder aggregate(GTSDecoder decoder, long span, Aggregate aggregate) throws IOException {
+    Map<Long,Rollup> buckets = new TreeMap<Long,Rollup>();
+    
+    aggregate(decoder, span, buckets);
+    
+    GTSEncoder encoder = encode(buckets, aggregate);
+    encoder.setMetadata(decoder.getMetadata());
+    
+    return encoder.getDecoder();
+  }
+}
@@ -0,0 +1,60 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.gts.GTSDecoder;
+
+import java.io.IOException;
+
+/**
+ * Iterator aggregating the decoders returned by another iterator into the buckets of a rollup
+ * request, for stores which do not maintain pre-aggregated data.
+ */
+public class RollupGTSDecoderIterator extends GTSDecoderIterator {
+  
+  private final GTSDecoderIterator iterator;
+  
+  private final FetchRequest request;
+  
+  public RollupGTSDecoderIterator(GTSDecoderIterator iterator, FetchRequest request) {
+    this.iterator = iterator;
+    this.request = request;
+  }
+  
+  @Override
+  public boolean hasNext() {
+    return this.iterator.hasNext();
+  }
+  
+  @Override
+  public GTSDecoder next() {
+    try {
+      return Rollup.aggregate(this.iterator.next(), this.request.getRollup(), this.request.getAggregate());
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+  
+  @Override
+  public void remove() {
+  }
+  
+  @Override
+  public void close() throws Exception {
+    this.iterator.close();
+  }
+}
@@ -59,17 +59,21 @@ public class SlicedRowFilterGTSDecoderIterator extends GTSDecoderIterator implem
   private ResultScanner scanner;
   private Iterator<Result> iter;
   
-  private final long now;
-  private final long timespan;
+  private final FetchRequest request;
 
   private final KeyStore keystore;
 
   private final byte[] hbaseAESKey;
 
   /**
-   * Number of values left to read
+   * Selection of the datapoints of the GTS being read
    */
-  private long nvalues = Long.MAX_VALUE;
+  private FetchRequest.Selection selection = null;
+  
+  /**
+   * Metadata of the GTS being read
+   */
+  private Metadata current = null;
   
   /**
    * Map of classId/labelsId to Metadata, used to retrieve name/labels.
@@ -84,21 +88,23 @@ public class SlicedRowFilterGTSDecoderIterator extends GTSDecoderIterator implem
   
   private static final byte[] ZERO_BYTES = Longs.toByteArray(0L);
   private static final byte[] ONES_BYTES = Longs.toByteArray(0xffffffffffffffffL);
-  public SlicedRowFilterGTSDecoderIterator(long now, long timespan, List<Metadata> metadatas, Connection conn, TableName tableName, byte[] colfam, KeyStore keystore, boolean useBlockCache) {
+  public SlicedRowFilterGTSDecoderIterator(FetchRequest request, List<Metadata> metadatas, Connection conn, TableName tableName, byte[] colfam, KeyStore keystore, boolean useBlockCache) {
       
     this.keystore = keystore;
-    this.now = now;
-    this.timespan = timespan;
+    this.request = request;
+    
+    long now = request.getEnd();
+    
     // FIXME(hbs): different key for archival
     this.hbaseAESKey = keystore.getKey(KeyStore.AES_HBASE_DATA);
 
     //
-    // Check that if 'timespan' is < 0 then 'now' is either Long.MAX_VALUE or congruent to 0 modulo DEFAULT_MODULUS
+    // Check that if the number of values is limited then 'now' is either Long.MAX_VALUE or congruent to 0 modulo DEFAULT_MODULUS
     //
     
-    if (timespan < 0) {
+    if (request.hasLimit()) {
       if (Long.MAX_VALUE != now && 0 != (now % Constants.DEFAULT_MODULUS)) {
-        throw new RuntimeException("Incompatible 'timespan' (" + timespan + ") and 'now' (" + now + ")");
+        throw new RuntimeException("Incompatible limit (" + request.getLimit() + ") and 'now' (" + now + ")");
       }
     }
     
@@ -149,12 +155,13 @@ public class SlicedRowFilterGTSDecoderIterator extends GTSDecoderIterator implem
         System.arraycopy(Longs.toByteArray(Long.MAX_VALUE - (now - (now % modulus))), 0, lower, prefix.length + 16, 8);        
       }
       
-      if (timespan < 0) {
+      if (!request.hasStart()) {
         System.arraycopy(ONES_BYTES, 0, upper, prefix.length + 16, 8);                
       } else {
         // Last timestamp does not need to be offset by modulus as it is the case when using a scanner, because
         // SlicedRowFilter upper bound is included, not excluded.
-        System.arraycopy(Longs.toByteArray(Long.MAX_VALUE - ((now - timespan) - ((now - timespan) % modulus))), 0, upper, prefix.length + 16, 8);        
+        long start = request.getStart() - 1;
+        System.arraycopy(Longs.toByteArray(Long.MAX_VALUE - (start - (start % modulus))), 0, upper, prefix.length + 16, 8);        
       }
       
       Pair<byte[],byte[]> range = new Pair<byte[],byte[]>(lower, upper);
@@ -162,7 +169,11 @@ public class SlicedRowFilterGTSDecoderIterator extends GTSDecoderIterator implem
       ranges.add(range);
     }
                 
-    SlicedRowFilter filter = new SlicedRowFilter(bounds, ranges, timespan < 0 ? -timespan : Long.MAX_VALUE);
+    //
+    // The filter stops returning the cells of a GTS once 'skip' + 'count' values were returned
+    //
+    
+    SlicedRowFilter filter = new SlicedRowFilter(bounds, ranges, request.getLimit());
 
     //
     // Create scanner. The start key is the lower bound of the first range
@@ -213,7 +224,7 @@ public class SlicedRowFilterGTSDecoderIterator extends GTSDecoderIterator implem
   
     GTSEncoder encoder = new GTSEncoder(0L);
 
-    while(encoder.size() < MAX_ENCODER_SIZE && (null != this.pendingresult || this.iter.hasNext()) && nvalues > 0) {
+    while(encoder.size() < MAX_ENCODER_SIZE && (null != this.pendingresult || this.iter.hasNext())) {
       
       //
       // Extract next result from scan iterator, unless there is a current pending Result
@@ -251,6 +262,15 @@ public class SlicedRowFilterGTSDecoderIterator extends GTSDecoderIterator implem
         encoder.setMetadata(metadata);
       }
       
+      //
+      // Start a new selection when reaching a new GTS
+      //
+      
+      if (metadata != this.current) {
+        this.current = metadata;
+        this.selection = this.request.selection();
+      }
+      
       CellScanner cscanner = result.cellScanner();
 
       try {
@@ -300,12 +320,11 @@ public class SlicedRowFilterGTSDecoderIterator extends GTSDecoderIterator implem
 
           GTSDecoder decoder = new GTSDecoder(basets, hbaseAESKey, bb);
                     
-          while(decoder.next() && nvalues > 0) {
+          while(!this.selection.isDone() && decoder.next()) {
             long timestamp = decoder.getTimestamp();
-            if (timestamp <= now && (timespan < 0 || (timestamp > (now - timespan)))) {
+            if (this.request.contains(timestamp) && this.selection.retain()) {
               try {
                 encoder.addValue(timestamp, decoder.getLocation(), decoder.getElevation(), decoder.getValue());
-                nvalues--;
               } catch (IOException ioe) {
                 LOG.error("", ioe);
                 // FIXME(hbs): LOG?
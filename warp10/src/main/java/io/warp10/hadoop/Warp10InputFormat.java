@@ -100,6 +100,21 @@ public class Warp10InputFormat extends InputFormat<Text, BytesWritable> {
    */
   public static final String PROPERTY_WARP10_FETCH_TIMESPAN = "warp10.fetch.timespan";
 
+  /**
+   * Maximum number of most recent values to fetch per GTS in the time range (optional)
+   */
+  public static final String PROPERTY_WARP10_FETCH_COUNT = "warp10.fetch.count";
+
+  /**
+   * Number of most recent values to skip per GTS (optional)
+   */
+  public static final String PROPERTY_WARP10_FETCH_SKIP = "warp10.fetch.skip";
+
+  /**
+   * Probability of retaining each fetched value, in ]0,1] (optional)
+   */
+  public static final String PROPERTY_WARP10_FETCH_SAMPLE = "warp10.fetch.sample";
+
   /**
    * Maximum number of splits to combined into a single split
    */
@@ -1,11 +1,13 @@
 package io.warp10.hadoop;
 
 import io.warp10.continuum.Configuration;
+import io.warp10.continuum.store.Constants;
 import io.warp10.crypto.OrderPreservingBase64;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLEncoder;
 
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
@@ -47,6 +49,27 @@ public class Warp10RecordReader extends RecordReader<Text, BytesWritable> implem
     long now = Long.valueOf(context.getConfiguration().get(Warp10InputFormat.PROPERTY_WARP10_FETCH_NOW));
     long timespan = Long.valueOf(context.getConfiguration().get(Warp10InputFormat.PROPERTY_WARP10_FETCH_TIMESPAN));
 
+    //
+    // Optional count, skip and sample parameters, passed in the query string
+    //
+
+    StringBuilder qs = new StringBuilder();
+
+    String[][] limits = new String[][] {
+      { Constants.HTTP_PARAM_COUNT, context.getConfiguration().get(Warp10InputFormat.PROPERTY_WARP10_FETCH_COUNT) },
+      { Constants.HTTP_PARAM_SKIP, context.getConfiguration().get(Warp10InputFormat.PROPERTY_WARP10_FETCH_SKIP) },
+      { Constants.HTTP_PARAM_SAMPLE, context.getConfiguration().get(Warp10InputFormat.PROPERTY_WARP10_FETCH_SAMPLE) },
+    };
+
+    for (String[] limit: limits) {
+      if (null != limit[1]) {
+        qs.append(0 == qs.length() ? "?" : "&");
+        qs.append(limit[0]);
+        qs.append("=");
+        qs.append(URLEncoder.encode(limit[1], "UTF-8"));
+      }
+    }
+
     int connectTimeout = Integer.valueOf(context.getConfiguration().get(Warp10InputFormat.PROPERTY_WARP10_HTTP_CONNECT_TIMEOUT, Warp10InputFormat.DEFAULT_WARP10_HTTP_CONNECT_TIMEOUT));
     int readTimeout = Integer.valueOf(context.getConfiguration().get(Warp10InputFormat.PROPERTY_WARP10_HTTP_READ_TIMEOUT, Warp10InputFormat.DEFAULT_WARP10_HTTP_READ_TIMEOUT));
 
@@ -75,6 +98,7 @@ public class Warp10RecordReader extends RecordReader<Text, BytesWritable> implem
         StringBuilder sb = new StringBuilder();
         sb.append(endpointSb.toString());
         sb.append(path);
+        sb.append(qs);
 
         URL url = new URL(sb.toString());
 
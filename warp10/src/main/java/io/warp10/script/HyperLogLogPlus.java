@@ -50,7 +50,7 @@ public class HyperLogLogPlus {
   /**
    * rawEstimateData from http://goo.gl/iU8Ig  
    */
-  double[][] rawEstimateData = {
+  private static final double[][] rawEstimateData = {
     // precision 4
     { 11, 11.717, 12.207, 12.7896, 13.2882, 13.8204, 14.3772, 14.9342, 15.5202, 16.161, 16.7722, 17.4636, 18.0396, 18.6766, 19.3566, 20.0454, 20.7936, 21.4856, 22.2666, 22.9946, 23.766, 24.4692, 25.3638, 26.0764, 26.7864, 27.7602, 28.4814, 29.433, 30.2926, 31.0664, 31.9996, 32.7956, 33.5366, 34.5894, 35.5738, 36.2698, 37.3682, 38.0544, 39.2342, 40.0108, 40.7966, 41.9298, 42.8704, 43.6358, 44.5194, 45.773, 46.6772, 47.6174, 48.4888, 49.3304, 50.2506, 51.4996, 52.3824, 53.3078, 54.3984, 55.5838, 56.6618, 57.2174, 58.3514, 59.0802, 60.1482, 61.0376, 62.3598, 62.8078, 63.9744, 64.914, 65.781, 67.1806, 68.0594, 68.8446, 69.7928, 70.8248, 71.8324, 72.8598, 73.6246, 74.7014, 75.393, 76.6708, 77.2394, },
     // precision 5
@@ -86,7 +86,7 @@ public class HyperLogLogPlus {
   /**
    * biasData from http://goo.gl/iU8Ig
    */
-  double[][] biasData = {
+  private static final double[][] biasData = {
     // precision 4
     { 10, 9.717, 9.207, 8.7896, 8.2882, 7.8204, 7.3772, 6.9342, 6.5202, 6.161, 5.7722, 5.4636, 5.0396, 4.6766, 4.3566, 4.0454, 3.7936, 3.4856, 3.2666, 2.9946, 2.766, 2.4692, 2.3638, 2.0764, 1.7864, 1.7602, 1.4814, 1.433, 1.2926, 1.0664, 0.999600000000001, 0.7956, 0.5366, 0.589399999999998, 0.573799999999999, 0.269799999999996, 0.368200000000002, 0.0544000000000011, 0.234200000000001, 0.0108000000000033, -0.203400000000002, -0.0701999999999998, -0.129600000000003, -0.364199999999997, -0.480600000000003, -0.226999999999997, -0.322800000000001, -0.382599999999996, -0.511200000000002, -0.669600000000003, -0.749400000000001, -0.500399999999999, -0.617600000000003, -0.6922, -0.601599999999998, -0.416200000000003, -0.338200000000001, -0.782600000000002, -0.648600000000002, -0.919800000000002, -0.851799999999997, -0.962400000000002, -0.6402, -1.1922, -1.0256, -1.086, -1.21899999999999, -0.819400000000002, -0.940600000000003, -1.1554, -1.2072, -1.1752, -1.16759999999999, -1.14019999999999, -1.3754, -1.29859999999999, -1.607, -1.3292, -1.7606, },
     // precision 5
@@ -190,9 +190,9 @@ public class HyperLogLogPlus {
   private int sparse_list_len = 0;
   
   /**
-   * Current format of the estimator
+   * Current format of the estimator, volatile so registers are visible to the unsynchronized reads of 'isNew'
    */
-  private Format format = Format.SPARSE;
+  private volatile Format format = Format.SPARSE;
 
   private int _64minusp;
   private int _64minuspprime;
@@ -278,26 +278,34 @@ public class HyperLogLogPlus {
   /**
    * Check if 'x' would modify the cardinality estimation
    * 
+   * In the NORMAL case the registers are read without locking, so concurrent calls do not
+   * serialize. A register being concurrently updated may then be transiently misread.
+   * 
    * @param x
    * @return
    */
-  public synchronized boolean isNew(long x) {
+  public boolean isNew(long x) {
+    
+    if (Format.NORMAL == format) {
+      int idx = (int) (x >>> _64minusp);
+      long w = x & pmask;
+      byte rho = rho(w, _64minusp);
+      byte prho = getRho(idx);
+      return prho < rho;
+    }
+    
+    synchronized(this) {
+      return isNewSparse(x);
+    }
+  }
+  
+  private boolean isNewSparse(long x) {
     
     switch(format) {
-      case NORMAL:
-        int idx = (int) (x >>> _64minusp);
-        long w = x & pmask;
-        byte rho = rho(w, _64minusp);
-        byte prho = getRho(idx);
-        if (prho < rho) {
-          return true;
-        }
-        return false;
-        
       case SPARSE:
         // Encode 'x'
         int k = encodeHash(x);
-        idx = decodeIndex(k, pprime);
+        int idx = decodeIndex(k, pprime);
 
         // Check if k has precedence above any value in tmp_set
 
@@ -923,6 +931,15 @@ public class HyperLogLogPlus {
       throw new IOException(te);
     }
     
+    //
+    // Check the parameters against the limits enforced by the constructor, the
+    // serialized form may come from an untrusted source
+    //
+    
+    if (params.getPprime() < 4 || params.getPprime() > 25 || params.getP() < 4 || params.getP() > params.getPprime() || params.getP() > 18) {
+      throw new IOException("Invalid HyperLogLog+ parameters p=" + params.getP() + " p'=" + params.getPprime() + ".");
+    }
+    
     HyperLogLogPlus hllp = new HyperLogLogPlus();
     
     hllp.setInitTime(params.getInitTime());
@@ -944,30 +961,57 @@ public class HyperLogLogPlus {
     hllp.format = params.isSparse() ? Format.SPARSE : Format.NORMAL;
     
     if (Format.SPARSE == hllp.format) {
+      if (params.getSparseListLen() < 0 || params.getSparseListLen() > hllp.mprime) {
+        throw new IOException("Invalid HyperLogLog+ sparse list length.");
+      }
       hllp.sparse_list_len = params.getSparseListLen();
-      hllp.sparse_list = params.getSparseList();
+      hllp.sparse_list = null != params.getSparseList() ? params.getSparseList() : new byte[0];
       // Allocate tmp_set
       hllp.tmp_set = new int[(int) Math.ceil((hllp.m * 6) / 8)];
       hllp.tmp_set_idx = 0;
     } else {
-      // Read the registers
+      // Read the registers, their number is determined by p
+      int size = (int) Math.ceil((hllp.m * 6) / 8);
+      
+      if (null == params.getRegisters()) {
+        throw new IOException("Missing HyperLogLog+ registers.");
+      }
+      
       if (params.isGzipped()) {
+        //
+        // Never inflate more than the expected size
+        //
+        
         ByteArrayInputStream bais = new ByteArrayInputStream(params.getRegisters());
         GZIPInputStream gzis = new GZIPInputStream(bais);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buf = new byte[1024];
-        while(true) {
-          int len = gzis.read(buf);
+        
+        byte[] registers = new byte[size];
+        int idx = 0;
+        
+        try {
+          while(idx < size) {
+            int len = gzis.read(registers, idx, size - idx);
+            
+            if (len < 0) {
+              break;
+            }
+            idx += len;
+          }
           
-          if (len < 0) {
-            break;
+          if (idx < size || gzis.read() >= 0) {
+            throw new IOException("Invalid HyperLogLog+ registers size.");
           }
-          baos.write(buf, 0, len);
+        } finally {
+          gzis.close();
         }
-        gzis.close();
-        hllp.M = baos.toByteArray();
+        
+        hllp.M = registers;
       } else {
         hllp.M = params.getRegisters();
+        
+        if (hllp.M.length != size) {
+          throw new IOException("Invalid HyperLogLog+ registers size.");
+        }
       }
     }
     
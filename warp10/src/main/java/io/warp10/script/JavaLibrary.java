@@ -21,6 +21,7 @@ import io.warp10.script.aggregator.Argmin;
 import io.warp10.script.aggregator.CircularMean;
 import io.warp10.script.aggregator.Count;
 import io.warp10.script.aggregator.Delta;
+import io.warp10.script.aggregator.HLLPSketch;
 import io.warp10.script.aggregator.First;
 import io.warp10.script.aggregator.HDist;
 import io.warp10.script.aggregator.HSpeed;
@@ -36,6 +37,7 @@ import io.warp10.script.aggregator.Percentile;
 import io.warp10.script.aggregator.Rate;
 import io.warp10.script.aggregator.ShannonEntropy;
 import io.warp10.script.aggregator.StandardDeviation;
+import io.warp10.script.aggregator.TDigestSketch;
 import io.warp10.script.aggregator.Sum;
 import io.warp10.script.aggregator.TrueCourse;
 import io.warp10.script.aggregator.VDist;
@@ -100,6 +102,8 @@ public class JavaLibrary {
     functions.put("bucketizer.count.nonnull", new Count("bucketizer.count.nonnull", true));
     functions.put("bucketizer.mean.circular", new CircularMean.Builder("bucketizer.mean.circular", true));
     functions.put("bucketizer.mean.circular.exclude-nulls", new CircularMean.Builder("bucketizer.mean.circular.exclude-nulls", false));
+    functions.put("bucketizer.hllp", new HLLPSketch.Builder("bucketizer.hllp"));
+    functions.put("bucketizer.tdigest", new TDigestSketch.Builder("bucketizer.tdigest"));
 
     //
     // Mappers
@@ -187,6 +191,8 @@ public class JavaLibrary {
     functions.put("reducer.percentile", new Percentile.Builder("reducer.percentile"));
     functions.put("reducer.mean.circular", new CircularMean.Builder("reducer.mean.circular", true));
     functions.put("reducer.mean.circular.exclude-nulls", new CircularMean.Builder("reducer.mean.circular.exclude-nulls", false));
+    functions.put("reducer.hllp", new HLLPSketch.Builder("reducer.hllp"));
+    functions.put("reducer.tdigest", new TDigestSketch.Builder("reducer.tdigest"));
     
     //
     // Filters
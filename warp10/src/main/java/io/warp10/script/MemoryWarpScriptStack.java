@@ -79,6 +79,11 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
    */
   private long currentops = 0L;
   
+  /**
+   * Profiler of function and macro calls, null if profiling is disabled
+   */
+  private WarpScriptProfiler profiler = null;
+  
   private final List<Object> list = new ArrayList<Object>(32);
 
   private final Map<String,Object> symbolTable = new HashMap<String,Object>();
@@ -178,6 +183,7 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     setAttribute(WarpScriptStack.ATTRIBUTE_URLFETCH_SIZE, new AtomicLong(0L));
     setAttribute(WarpScriptStack.ATTRIBUTE_URLFETCH_LIMIT, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_URLFETCH_LIMIT, Long.toString(WarpScriptStack.DEFAULT_URLFETCH_LIMIT))));
     setAttribute(WarpScriptStack.ATTRIBUTE_URLFETCH_MAXSIZE, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_URLFETCH_MAXSIZE, Long.toString(WarpScriptStack.DEFAULT_URLFETCH_MAXSIZE))));
+    setAttribute(WarpScriptStack.ATTRIBUTE_MAX_PARALLELISM, Integer.parseInt(properties.getProperty(Configuration.WARPSCRIPT_MAX_PARALLELISM, Integer.toString(WarpScriptStack.DEFAULT_MAX_PARALLELISM))));
 
     //
     // Set hard limits
@@ -194,6 +200,7 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     setAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT_HARD, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MAX_GTS_HARD, Long.toString(WarpScriptStack.DEFAULT_GTS_LIMIT))));
     setAttribute(WarpScriptStack.ATTRIBUTE_URLFETCH_LIMIT_HARD, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_URLFETCH_LIMIT_HARD, Long.toString(WarpScriptStack.DEFAULT_URLFETCH_LIMIT))));
     setAttribute(WarpScriptStack.ATTRIBUTE_URLFETCH_MAXSIZE_HARD, Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_URLFETCH_MAXSIZE_HARD, Long.toString(WarpScriptStack.DEFAULT_URLFETCH_MAXSIZE))));
+    setAttribute(WarpScriptStack.ATTRIBUTE_MAX_PARALLELISM_HARD, Integer.parseInt(properties.getProperty(Configuration.WARPSCRIPT_MAX_PARALLELISM_HARD, Integer.toString(WarpScriptStack.DEFAULT_MAX_PARALLELISM))));
 
     //
     // Initialize counters
@@ -505,286 +512,380 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       //
       
       for (String stmt: statements) {
+        if (!execStatement(stmt, statements.length)) {
+          return;
+        }
+      }
+      
+      return;      
+    } finally {
+      this.recursionLevel.addAndGet(-1);
+    }
+  }
+
+  /**
+   * Execute a single statement of a line
+   * 
+   * @param stmt Statement to execute
+   * @param nstatements Number of statements in the line
+   * @return false if the rest of the line should be ignored
+   */
+  private boolean execStatement(String stmt, int nstatements) throws WarpScriptException {
+
+    //
+    // Skip empty statements if we are not currently building a multiline
+    //
+    
+    if (0 == stmt.length() && !inMultiline.get()) {
+      return true;
+    }
+    
+    //
+    // Trim statement
+    //
+    
+    if (!inMultiline.get()) {
+      stmt = stmt.trim();
+    }
+
+    //
+    // End execution on encountering a comment
+    //
+            
+    if (!inMultiline.get() && stmt.length() > 0 && (stmt.charAt(0) == '#' || (stmt.charAt(0) == '/' && stmt.length() >= 2 && stmt.charAt(1) == '/'))) {
+      // Skip comments and blank lines
+      return false;
+    }
 
+    if (WarpScriptStack.MULTILINE_END.equals(stmt)) {
+      if (!inMultiline.get()) {
+        throw new WarpScriptException("Not inside a multiline.");
+      }
+      inMultiline.set(false);
+      
+      String mlcontent = multiline.toString();
+      
+      if (null != secureScript) {
+        secureScript.append(" ");
+        secureScript.append("'");
+        try {
+          secureScript.append(URLEncoder.encode(mlcontent, "UTF-8"));
+        } catch (UnsupportedEncodingException uee) {              
+        }
+        secureScript.append("'");
+      } else {
+        if (macros.isEmpty()) {
+          this.push(mlcontent);
+        } else {
+          macros.get(0).add(mlcontent);
+        }            
+      }
+      multiline.setLength(0);
+      return true;
+    } else if (inMultiline.get()) {
+      if (multiline.length() > 0) {
+        multiline.append("\n");            
+      }
+      multiline.append(stmt);
+      return true;
+    } else if (WarpScriptStack.COMMENT_END.equals(stmt)) {
+      if (!inComment.get()) {
+        throw new WarpScriptException("Not inside a comment.");
+      }
+      inComment.set(false);
+      return true;
+    } else if (inComment.get()) {
+      return true;
+    } else if (WarpScriptStack.COMMENT_START.equals(stmt)) {
+      inComment.set(true);
+      return true;
+    } else if (WarpScriptStack.MULTILINE_START.equals(stmt)) {
+      if (1 != nstatements) {
+        throw new WarpScriptException("Can only start multiline strings by using " + WarpScriptStack.MULTILINE_START + " on a line by itself.");
+      }
+      inMultiline.set(true);
+      multiline = new StringBuilder();
+      return true;
+    }
+    
+    incOps();
+
+    if (WarpScriptStack.SECURE_SCRIPT_END.equals(stmt)) {
+      if (null == secureScript) {
+        throw new WarpScriptException("Not inside a secure script definition.");
+      } else {
+        this.push(secureScript.toString());
+        new SECURE("SECURESCRIPT").apply(this);
+        secureScript = null;
+      }
+    } else if (WarpScriptStack.SECURE_SCRIPT_START.equals(stmt)) {
+      if (null == secureScript) {
+        secureScript = new StringBuilder();
+      } else {
+        throw new WarpScriptException("Already inside a secure script definition.");
+      }
+    } else if (null != secureScript) {
+      secureScript.append(" ");
+      secureScript.append(stmt);
+    } else if (WarpScriptStack.MACRO_END.equals(stmt)) {
+      if (macros.isEmpty()) {
+        throw new WarpScriptException("Not inside a macro definition.");
+      } else {
+        Macro lastmacro = macros.remove(0);
+        
+        if (macros.isEmpty()) {
+          this.push(lastmacro);
+        } else {
+          // Add the macro to the outer macro
+          macros.get(0).add(lastmacro);
+        }
+      }
+    } else if (WarpScriptStack.MACRO_START.equals(stmt)) {
+      //
+      // Create holder for current macro
+      //
+      
+      macros.add(0, new Macro());
+    } else if ((stmt.charAt(0) == '\'' && stmt.charAt(stmt.length() - 1) == '\'')
+        || (stmt.charAt(0) == '\"' && stmt.charAt(stmt.length() - 1) == '\"')) {
+      //
+      // Push Strings onto the stack
+      //
+      
+      try {
+        String str = URLDecoder.decode(stmt.substring(1, stmt.length() - 1), "UTF-8");
+        if (macros.isEmpty()) {
+          push(str);
+        } else {
+          macros.get(0).add(str);
+        }
+      } catch (UnsupportedEncodingException uee) {
+        // Cannot happen...
+        throw new WarpScriptException(uee);
+      }
+    } else if (stmt.length() > 2 && stmt.charAt(1) == 'x' && stmt.charAt(0) == '0') {
+      long hexl = Long.parseLong(stmt.substring(2), 16);
+      if (macros.isEmpty()) {
+        push(hexl);
+      } else {
+        macros.get(0).add(hexl);
+      }
+    } else if (stmt.length() > 2 && stmt.charAt(1) == 'b' && stmt.charAt(0) == '0') {
+      long binl = Long.parseLong(stmt.substring(2), 2);
+      if (macros.isEmpty()) {
+        push(binl);
+      } else {
+        macros.get(0).add(binl);
+      }
+    } else if (UnsafeString.isLong(stmt)) {
+      //
+      // Push longs onto the stack
+      //
+      
+      if (macros.isEmpty()) {
+        push(Long.valueOf(stmt));
+      } else {
+        macros.get(0).add(Long.valueOf(stmt));
+      }
+    } else if (UnsafeString.isDouble(stmt)) {
+      //
+      // Push doubles onto the stack
+      //
+      if (macros.isEmpty()) {
+        push(Double.valueOf(stmt));
+      } else {
+        macros.get(0).add(Double.valueOf(stmt));
+      }
+    } else if (stmt.equalsIgnoreCase("T")
+               || stmt.equalsIgnoreCase("F")
+               || stmt.equalsIgnoreCase("true")
+               || stmt.equalsIgnoreCase("false")) {
+      //
+      // Push booleans onto the stack
+      //
+      if (stmt.startsWith("T") || stmt.startsWith("t")) {
+        if (macros.isEmpty()) {
+          push(true);
+        } else {
+          macros.get(0).add(true);
+        }
+      } else {
+        if (macros.isEmpty()) {
+          push(false);
+        } else {
+          macros.get(0).add(false);
+        }
+      }
+    } else if (stmt.startsWith("$")) {
+      if (macros.isEmpty()) {
         //
-        // Skip empty statements if we are not currently building a multiline
+        // This is a deferred variable dereference
         //
+        Object o = load(stmt.substring(1));
         
-        if (0 == stmt.length() && !inMultiline.get()) {
-          continue;
+        if (null == o) {
+          throw new WarpScriptException("Unknown symbol '" + stmt.substring(1) + "'");
         }
         
+        push(o);
+      } else {
+        macros.get(0).add(stmt.substring(1));
+        macros.get(0).add(WarpScriptLib.getFunction(WarpScriptLib.LOAD));
+      }
+    } else if (stmt.startsWith("!$")) {
+      //
+      // This is an immediate variable dereference
+      //
+      Object o = load(stmt.substring(2));
+      
+      if (null == o) {
+        throw new WarpScriptException("Unknown symbol '" + stmt.substring(2) + "'");
+      }
+
+      if (macros.isEmpty()) {
+        push(o);
+      } else {
+        macros.get(0).add(o);
+      }
+    } else if (stmt.startsWith("@")) {          
+      if (macros.isEmpty()) {
         //
-        // Trim statement
+        // This is a macro dereference
         //
         
-        if (!inMultiline.get()) {
-          stmt = stmt.trim();
-        }
+        String symbol = stmt.substring(1);
+
+        run(symbol);
+      } else {
+        macros.get(0).add(stmt.substring(1));
+        macros.get(0).add(WarpScriptLib.getFunction(WarpScriptLib.RUN));
+      }          
+    } else {
+      //
+      // This is a function call
+      //
+
+      Object func = null;
+      
+      //
+      // Check Einstein functions
+      //
+
+      func = null != func ? func : defined.get(stmt);
+      func = null != func ? func : WarpScriptLib.getFunction(stmt);
+      func = null != func ? func : JavaLibrary.getFunction(stmt);
+
+      if (null == func) {
+        throw new WarpScriptException("Unknown function '" + stmt + "'");
+      }
 
+      call(stmt, func);
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Call a function resolved from a statement of a line
+   */
+  private void call(String stmt, Object func) throws WarpScriptException {
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put(SensisionConstants.SENSISION_LABEL_FUNCTION, stmt);
+    
+    long nano = System.nanoTime();
+    
+    try {
+      if (func instanceof WarpScriptStackFunction && macros.isEmpty()) {
         //
-        // End execution on encountering a comment
+        // Function is an EinsteinStackFunction, call it on this stack
         //
-                
-        if (!inMultiline.get() && stmt.length() > 0 && (stmt.charAt(0) == '#' || (stmt.charAt(0) == '/' && stmt.length() >= 2 && stmt.charAt(1) == '/'))) {
-          // Skip comments and blank lines
-          return;
-        }
+        
+        WarpScriptStackFunction esf = (WarpScriptStackFunction) func;
 
-        if (WarpScriptStack.MULTILINE_END.equals(stmt)) {
-          if (!inMultiline.get()) {
-            throw new WarpScriptException("Not inside a multiline.");
-          }
-          inMultiline.set(false);
-          
-          String mlcontent = multiline.toString();
-          
-          if (null != secureScript) {
-            secureScript.append(" ");
-            secureScript.append("'");
-            try {
-              secureScript.append(URLEncoder.encode(mlcontent, "UTF-8"));
-            } catch (UnsupportedEncodingException uee) {              
-            }
-            secureScript.append("'");
-          } else {
-            if (macros.isEmpty()) {
-              this.push(mlcontent);
-            } else {
-              macros.get(0).add(mlcontent);
-            }            
-          }
-          multiline.setLength(0);
-          continue;
-        } else if (inMultiline.get()) {
-          if (multiline.length() > 0) {
-            multiline.append("\n");            
-          }
-          multiline.append(stmt);
-          continue;
-        } else if (WarpScriptStack.COMMENT_END.equals(stmt)) {
-          if (!inComment.get()) {
-            throw new WarpScriptException("Not inside a comment.");
+        // Keep a reference to the profiler as the call may change it
+        WarpScriptProfiler profiler = this.profiler;
+        
+        if (null == profiler) {
+          esf.apply(this);
+        } else {
+          profiler.enter();
+          try {
+            esf.apply(this);
+          } finally {
+            profiler.exit(stmt);
           }
-          inComment.set(false);
-          continue;
-        } else if (inComment.get()) {
-          continue;
-        } else if (WarpScriptStack.COMMENT_START.equals(stmt)) {
-          inComment.set(true);
-          continue;
-        } else if (WarpScriptStack.MULTILINE_START.equals(stmt)) {
-          if (1 != statements.length) {
-            throw new WarpScriptException("Can only start multiline strings by using " + WarpScriptStack.MULTILINE_START + " on a line by itself.");
+        }
+      } else {
+        //
+        // Push any other type of function onto the stack
+        //
+        if (macros.isEmpty()) {
+          push(func);
+        } else {
+          macros.get(0).add(func);
+        }
+      }          
+    } finally {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_COUNT, labels, 1);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_TIME_US, labels, (System.nanoTime() - nano) / 1000L);
+    }
+  }
+  
+  /**
+   * Execute a line of a pre-parsed script
+   * 
+   * @param script Pre-parsed script
+   * @param lineno Index (0 based) of the line to execute
+   */
+  public void exec(WarpScriptCompiledScript script, int lineno) throws WarpScriptException {
+    WarpScriptCompiledScript.Line line = script.getCompiledLine(lineno);
+    
+    //
+    // Lines with delimiters, or any line while in a multiline string, a comment or a secure script,
+    // are executed the regular way
+    //
+    
+    if (null == line.statements || inMultiline.get() || inComment.get() || null != secureScript) {
+      exec(line.raw);
+      return;
+    }
+    
+    try {
+      if (this.recursionLevel.addAndGet(1) > this.maxrecurse) {
+        throw new WarpScriptException("Maximum recursion level reached (" + this.recursionLevel.get() + ")");
+      }
+
+      progress();
+      
+      for (int i = 0; i < line.statements.length; i++) {
+        String stmt = line.statements[i];
+        
+        //
+        // Functions called so far may have altered the state of the stack (via EVAL for example),
+        // fall back to the regular path in this case
+        //
+        
+        if (WarpScriptCompiledScript.RAW == line.kinds[i] || inMultiline.get() || inComment.get() || null != secureScript) {
+          if (!execStatement(stmt, line.statements.length)) {
+            return;
           }
-          inMultiline.set(true);
-          multiline = new StringBuilder();
           continue;
         }
         
         incOps();
-
-        if (WarpScriptStack.SECURE_SCRIPT_END.equals(stmt)) {
-          if (null == secureScript) {
-            throw new WarpScriptException("Not inside a secure script definition.");
-          } else {
-            this.push(secureScript.toString());
-            new SECURE("SECURESCRIPT").apply(this);
-            secureScript = null;
-          }
-        } else if (WarpScriptStack.SECURE_SCRIPT_START.equals(stmt)) {
-          if (null == secureScript) {
-            secureScript = new StringBuilder();
-          } else {
-            throw new WarpScriptException("Already inside a secure script definition.");
-          }
-        } else if (null != secureScript) {
-          secureScript.append(" ");
-          secureScript.append(stmt);
-        } else if (WarpScriptStack.MACRO_END.equals(stmt)) {
-          if (macros.isEmpty()) {
-            throw new WarpScriptException("Not inside a macro definition.");
-          } else {
-            Macro lastmacro = macros.remove(0);
-            
-            if (macros.isEmpty()) {
-              this.push(lastmacro);
-            } else {
-              // Add the macro to the outer macro
-              macros.get(0).add(lastmacro);
-            }
-          }
-        } else if (WarpScriptStack.MACRO_START.equals(stmt)) {
-          //
-          // Create holder for current macro
-          //
-          
-          macros.add(0, new Macro());
-        } else if ((stmt.charAt(0) == '\'' && stmt.charAt(stmt.length() - 1) == '\'')
-            || (stmt.charAt(0) == '\"' && stmt.charAt(stmt.length() - 1) == '\"')) {
-          //
-          // Push Strings onto the stack
-          //
-          
-          try {
-            String str = URLDecoder.decode(stmt.substring(1, stmt.length() - 1), "UTF-8");
-            if (macros.isEmpty()) {
-              push(str);
-            } else {
-              macros.get(0).add(str);
-            }
-          } catch (UnsupportedEncodingException uee) {
-            // Cannot happen...
-            throw new WarpScriptException(uee);
-          }
-        } else if (stmt.length() > 2 && stmt.charAt(1) == 'x' && stmt.charAt(0) == '0') {
-          long hexl = Long.parseLong(stmt.substring(2), 16);
-          if (macros.isEmpty()) {
-            push(hexl);
-          } else {
-            macros.get(0).add(hexl);
-          }
-        } else if (stmt.length() > 2 && stmt.charAt(1) == 'b' && stmt.charAt(0) == '0') {
-          long binl = Long.parseLong(stmt.substring(2), 2);
-          if (macros.isEmpty()) {
-            push(binl);
-          } else {
-            macros.get(0).add(binl);
-          }
-        } else if (UnsafeString.isLong(stmt)) {
-          //
-          // Push longs onto the stack
-          //
-          
-          if (macros.isEmpty()) {
-            push(Long.valueOf(stmt));
-          } else {
-            macros.get(0).add(Long.valueOf(stmt));
-          }
-        } else if (UnsafeString.isDouble(stmt)) {
-          //
-          // Push doubles onto the stack
-          //
-          if (macros.isEmpty()) {
-            push(Double.valueOf(stmt));
-          } else {
-            macros.get(0).add(Double.valueOf(stmt));
-          }
-        } else if (stmt.equalsIgnoreCase("T")
-                   || stmt.equalsIgnoreCase("F")
-                   || stmt.equalsIgnoreCase("true")
-                   || stmt.equalsIgnoreCase("false")) {
-          //
-          // Push booleans onto the stack
-          //
-          if (stmt.startsWith("T") || stmt.startsWith("t")) {
-            if (macros.isEmpty()) {
-              push(true);
-            } else {
-              macros.get(0).add(true);
-            }
-          } else {
-            if (macros.isEmpty()) {
-              push(false);
-            } else {
-              macros.get(0).add(false);
-            }
-          }
-        } else if (stmt.startsWith("$")) {
-          if (macros.isEmpty()) {
-            //
-            // This is a deferred variable dereference
-            //
-            Object o = load(stmt.substring(1));
-            
-            if (null == o) {
-              throw new WarpScriptException("Unknown symbol '" + stmt.substring(1) + "'");
-            }
-            
-            push(o);
-          } else {
-            macros.get(0).add(stmt.substring(1));
-            macros.get(0).add(WarpScriptLib.getFunction(WarpScriptLib.LOAD));
-          }
-        } else if (stmt.startsWith("!$")) {
-          //
-          // This is an immediate variable dereference
-          //
-          Object o = load(stmt.substring(2));
-          
-          if (null == o) {
-            throw new WarpScriptException("Unknown symbol '" + stmt.substring(2) + "'");
-          }
-
+        
+        if (WarpScriptCompiledScript.CONSTANT == line.kinds[i]) {
           if (macros.isEmpty()) {
-            push(o);
+            push(line.values[i]);
           } else {
-            macros.get(0).add(o);
+            macros.get(0).add(line.values[i]);
           }
-        } else if (stmt.startsWith("@")) {          
-          if (macros.isEmpty()) {
-            //
-            // This is a macro dereference
-            //
-            
-            String symbol = stmt.substring(1);
-
-            run(symbol);
-          } else {
-            macros.get(0).add(stmt.substring(1));
-            macros.get(0).add(WarpScriptLib.getFunction(WarpScriptLib.RUN));
-          }          
         } else {
-          //
-          // This is a function call
-          //
-
-          Object func = null;
-          
-          //
-          // Check Einstein functions
-          //
-
-          func = null != func ? func : defined.get(stmt);
-          func = null != func ? func : WarpScriptLib.getFunction(stmt);
-          func = null != func ? func : JavaLibrary.getFunction(stmt);
-
-          if (null == func) {
-            throw new WarpScriptException("Unknown function '" + stmt + "'");
-          }
-
-          Map<String,String> labels = new HashMap<String,String>();
-          labels.put(SensisionConstants.SENSISION_LABEL_FUNCTION, stmt);
-          
-          long nano = System.nanoTime();
-          
-          try {
-            if (func instanceof WarpScriptStackFunction && macros.isEmpty()) {
-              //
-              // Function is an EinsteinStackFunction, call it on this stack
-              //
-              
-              WarpScriptStackFunction esf = (WarpScriptStackFunction) func;
-
-              esf.apply(this);
-            } else {
-              //
-              // Push any other type of function onto the stack
-              //
-              if (macros.isEmpty()) {
-                push(func);
-              } else {
-                macros.get(0).add(func);
-              }
-            }          
-          } finally {
-            Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_COUNT, labels, 1);
-            Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_TIME_US, labels, (System.nanoTime() - nano) / 1000L);
-          }
+          // Functions defined via DEF take precedence
+          Object func = defined.get(stmt);
+          call(stmt, null != func ? func : line.values[i]);
         }
       }
-      
-      return;      
     } finally {
       this.recursionLevel.addAndGet(-1);
     }
@@ -824,7 +925,19 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
           
           //long nano = System.nanoTime();
 
-          esf.apply(this);
+          // Keep a reference to the profiler as the call may change it
+          WarpScriptProfiler profiler = this.profiler;
+          
+          if (null == profiler) {
+            esf.apply(this);
+          } else {
+            profiler.enter();
+            try {
+              esf.apply(this);
+            } finally {
+              profiler.exit(esf);
+            }
+          }
           
           //Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_COUNT, esf.getSensisionLabels(), 1);
           //Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_TIME_US, esf.getSensisionLabels(), (System.nanoTime() - nano) / 1000L);          
@@ -925,7 +1038,19 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     // Execute macro
     //
     
-    exec((Macro) macro);    
+    // Keep a reference to the profiler as the call may change it
+    WarpScriptProfiler profiler = this.profiler;
+    
+    if (null == profiler) {
+      exec((Macro) macro);
+    } else {
+      profiler.enter();
+      try {
+        exec((Macro) macro);
+      } finally {
+        profiler.exit("@" + symbol);
+      }
+    }
   }
   
   @Override
@@ -1019,6 +1144,13 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     
     if (null == value) {
       this.attributes.remove(key);
+      if (WarpScriptStack.ATTRIBUTE_PROFILER.equals(key)) {
+        // An unset profiler stops measuring allocations
+        if (null != this.profiler) {
+          this.profiler.close();
+        }
+        this.profiler = null;
+      }
       return currentValue;
     } else {
       this.attributes.put(key, value);
@@ -1034,6 +1166,12 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       this.maxsymbols = ((Number) value).intValue();
     } else if (WarpScriptStack.ATTRIBUTE_OPS.equals(key)) {
       this.currentops = ((Number) value).longValue();
+    } else if (WarpScriptStack.ATTRIBUTE_PROFILER.equals(key)) {
+      // A replaced profiler stops measuring allocations
+      if (null != this.profiler && value != this.profiler) {
+        this.profiler.close();
+      }
+      this.profiler = (WarpScriptProfiler) value;
     } else if (WarpScriptStack.ATTRIBUTE_HADOOP_PROGRESSABLE.equals(key)) {
       if (null != value) {
         this.progressable = (Progressable) value;
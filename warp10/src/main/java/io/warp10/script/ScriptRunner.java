@@ -38,14 +38,16 @@ import java.net.URL;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
@@ -72,6 +74,10 @@ import com.netflix.curator.retry.RetryNTimes;
 /**
  * Periodically submit WarpScript scripts residing in subdirectories of the given root.
  * Greatly inspired by Sensision's own ScriptRunner
+ * 
+ * Scripts are scheduled in a timing wheel. A script is not run again while its previous run is still
+ * pending or in progress, and a run which could not start before the next one is due is skipped.
+ * Those skipped runs are accounted as overruns.
  */
 public class ScriptRunner extends Thread {
   
@@ -89,6 +95,21 @@ public class ScriptRunner extends Thread {
   
   private long minperiod;
 
+  /**
+   * Maximum delay (in ms) added to the first run of a script so scripts with the same period do not all run at once
+   */
+  private long jitter;
+  
+  /**
+   * Granularity (in ms) of the scheduling
+   */
+  private static final long TICK = 10L;
+  
+  /**
+   * Scripts whose run is pending or in progress
+   */
+  private final Set<String> running = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
   private LeaderLatch leaderLatch;
 
   private KafkaProducerPool kafkaProducerPool;
@@ -209,6 +230,7 @@ public class ScriptRunner extends Thread {
       this.nthreads = Integer.parseInt(config.getProperty(Configuration.RUNNER_NTHREADS));
       this.scanperiod = Long.parseLong(config.getProperty(Configuration.RUNNER_SCANPERIOD));
       this.minperiod = Long.parseLong(config.getProperty(Configuration.RUNNER_MINPERIOD));
+      this.jitter = Long.parseLong(config.getProperty(Configuration.RUNNER_JITTER, "0"));
       this.endpoint = config.getProperty(Configuration.RUNNER_ENDPOINT);
       
       this.executor = new ThreadPoolExecutor(1, nthreads, 30000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(nthreads * 256));
@@ -257,6 +279,7 @@ public class ScriptRunner extends Thread {
       this.root = config.getProperty(Configuration.RUNNER_ROOT);
       this.scanperiod = Long.parseLong(config.getProperty(Configuration.RUNNER_SCANPERIOD));
       this.minperiod = Long.parseLong(config.getProperty(Configuration.RUNNER_MINPERIOD));
+      this.jitter = Long.parseLong(config.getProperty(Configuration.RUNNER_JITTER, "0"));
       this.topic = config.getProperty(Configuration.RUNNER_KAFKA_TOPIC);
       
       Properties props = new Properties();
@@ -317,84 +340,103 @@ public class ScriptRunner extends Thread {
     
     final Map<String,Long> nextrun = new HashMap<String,Long>();
     
-    PriorityQueue<String> runnables = new PriorityQueue<String>(1, new Comparator<String>() {
-      @Override
-      public int compare(String o1, String o2) {
-        long nextrun1 = null != nextrun.get(o1) ? nextrun.get(o1) : Long.MAX_VALUE;
-        long nextrun2 = null != nextrun.get(o2) ? nextrun.get(o2) : Long.MAX_VALUE;
-        if (nextrun1 < nextrun2) {
-          return -1;
-        } else if (nextrun1 > nextrun2) {
-          return 1;
-        } else {
-          return 0;
-        }
-      }
-    });
-        
+    TimingWheel<String> wheel = new TimingWheel<String>(TICK, 4096, System.currentTimeMillis());
+    
+    Random random = new Random();
+    
     while(true) {
       long now = System.currentTimeMillis();
       
-      
       if (now - lastscan > this.scanperiod) {
         Map<String,Long> newscripts = scanSuperRoot(this.root);
         
-        Set<String> currentScripts = scripts.keySet();
         scripts.clear();
         scripts.putAll(newscripts);
         
-        
         //
-        // Clear entries from 'nextrun' which are for scripts which no longer exist
+        // Schedule the new scripts, scripts which no longer exist are removed
+        // from 'nextrun' when they are due
         //
         
-        for (String prevscript: currentScripts) {
-          if (!scripts.containsKey(prevscript)) {
-            nextrun.remove(prevscript);
+        for (Entry<String,Long> entry: scripts.entrySet()) {
+          if (!nextrun.containsKey(entry.getKey())) {
+            long delay = this.jitter > 0 ? (long) (random.nextDouble() * Math.min(this.jitter, entry.getValue())) : 0L;
+            nextrun.put(entry.getKey(), now + delay);
+            wheel.schedule(entry.getKey(), now + delay);
           }
         }
 
         lastscan = now;
       }
-
-      //
-      // Build a queue of runnable scripts
-      //
-    
-      runnables.clear();
-      
-      for (String script: scripts.keySet()) {
-        //
-        // If script has no scheduled run yet or should run immediately, select it
-        //
-        
-        Long schedule = nextrun.remove(script);
-        
-        if (null == schedule || schedule <= now) {
-          runnables.add(script);
-        } else if (null != schedule) {
-          nextrun.put(script, schedule);
-        }
-      }
       
       boolean isLeader = isScheduler && leaderLatch.hasLeadership();
       
-      while (runnables.size() > 0) {
-        final String script = runnables.poll();
-        // Set next run now. This will be overwritten at the end of execution
-        // of the script (from inside the Runnable) for the standalone version
-        nextrun.put(script, System.currentTimeMillis() + scripts.get(script));
+      for (String script: wheel.advance(now)) {
+        Long periodicity = scripts.get(script);
+        
+        if (null == periodicity) {
+          nextrun.remove(script);
+          continue;
+        }
+        
+        // Set next run now. This will be overwritten if the script needs to be rescheduled immediately
+        nextrun.put(script, System.currentTimeMillis() + periodicity);
         if (isStandalone) {
-          schedule(nextrun, script, scripts.get(script));
+          schedule(nextrun, script, periodicity);
         } else if (isLeader) {
-          distributedSchedule(nextrun, script, scripts.get(script));
+          distributedSchedule(nextrun, script, periodicity);
         }
+        
+        wheel.schedule(script, nextrun.get(script));
       }
       
-      LockSupport.parkNanos(10000000L);
+      LockSupport.parkNanos(TICK * 1000000L);
     }
   }
   
+  /**
+   * Mark a run of 'script' as pending. If the previous run is not over, the run is skipped and accounted as an overrun.
+   * 
+   * @return true if the run can be submitted
+   */
+  protected boolean acquire(String script) {
+    if (this.running.add(script)) {
+      return true;
+    }
+    
+    overrun(script);
+    
+    return false;
+  }
+  
+  /**
+   * Mark the run of 'script' as over
+   */
+  protected void release(String script) {
+    this.running.remove(script);
+  }
+  
+  /**
+   * Check that a run of 'script' starts before its deadline, i.e. before the next run is due.
+   * If it does not, the run is released and accounted as an overrun.
+   */
+  protected boolean start(String script, long deadline) {
+    if (System.currentTimeMillis() <= deadline) {
+      return true;
+    }
+    
+    overrun(script);
+    release(script);
+    
+    return false;
+  }
+  
+  private void overrun(String script) {
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put(SensisionConstants.SENSISION_LABEL_PATH, new File(script).getAbsolutePath().substring(new File(this.root).getAbsolutePath().length() + 1));
+    Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_OVERRUNS, labels, 1);
+  }
+  
   protected void schedule(Map<String,Long> nextrun, final String script, final long periodicity) {
     
     if (!isStandalone) {
@@ -403,11 +445,21 @@ public class ScriptRunner extends Thread {
     
     final ScriptRunner self = this;
     
+    if (!acquire(script)) {
+      return;
+    }
+    
+    final long deadline = System.currentTimeMillis() + periodicity;
+    
     try {
       this.executor.submit(new Runnable() {            
         @Override
         public void run() {
           
+          if (!start(script, deadline)) {
+            return;
+          }
+          
           Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_CURRENT, Sensision.EMPTY_LABELS, 1);
           
           File f = new File(script);
@@ -465,10 +517,12 @@ public class ScriptRunner extends Thread {
             Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_TIME_US, labels, (long) (nano / 1000L));
             Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_CURRENT, Sensision.EMPTY_LABELS, -1);
             if (null != conn) { conn.disconnect(); }                                
+            release(script);
           }              
         }
       });                  
     } catch (RejectedExecutionException ree) {
+      release(script);
       // Reschedule script immediately
       nextrun.put(script, System.currentTimeMillis());
     }
@@ -0,0 +1,278 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.crypto.SipHashInline;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Helper methods for the sketches (HyperLogLogPlus and TDigest) manipulated by WarpScript.
+ * 
+ * When stored as GTS values, sketches are represented by the base64 encoding of their
+ * serialized form so they can be exported and merged across calls.
+ */
+public class SketchUtils {
+  
+  /**
+   * Prefixes of the serialized forms
+   */
+  private static final byte HLLP_PREFIX = 'H';
+  private static final byte TDIGEST_PREFIX = 'T';
+  
+  /**
+   * Value of p' for the HyperLogLogPlus estimators
+   */
+  public static final int HLLP_PPRIME = 25;
+  
+  /**
+   * Keys used to hash the values added to HyperLogLogPlus estimators. They MUST NOT change
+   * or estimators built by different versions could no longer be merged.
+   */
+  private static final long[] SIP_KEYS = { 0x2E5A2B1F3C7D9A41L, 0x6B0F8E3D5C1A7294L };
+  
+  /**
+   * Type markers used when hashing values so 1, 1.0 and '1' are distinct
+   */
+  private static final byte LONG_MARKER = 'L';
+  private static final byte DOUBLE_MARKER = 'D';
+  private static final byte BOOLEAN_MARKER = 'B';
+  private static final byte STRING_MARKER = 'S';
+  
+  public static HyperLogLogPlus newHLLP(int p) throws WarpScriptException {
+    try {
+      HyperLogLogPlus hllp = new HyperLogLogPlus(p, HLLP_PPRIME);
+      hllp.toNormal();
+      return hllp;
+    } catch (IOException ioe) {
+      throw new WarpScriptException(ioe);
+    } catch (RuntimeException re) {
+      throw new WarpScriptException(re.getMessage());
+    }
+  }
+  
+  public static TDigest newTDigest(double compression) throws WarpScriptException {
+    try {
+      return new TDigest(compression);
+    } catch (RuntimeException re) {
+      throw new WarpScriptException(re.getMessage());
+    }
+  }
+  
+  public static boolean isSketch(Object o) {
+    return o instanceof HyperLogLogPlus || o instanceof TDigest;
+  }
+  
+  /**
+   * Compute the 64 bits hash of a value for HyperLogLogPlus estimators
+   */
+  public static long hash(Object value) throws WarpScriptException {
+    byte[] data;
+    
+    if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      data = toBytes(LONG_MARKER, ((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      data = toBytes(DOUBLE_MARKER, Double.doubleToLongBits(((Number) value).doubleValue()));
+    } else if (value instanceof Boolean) {
+      data = toBytes(BOOLEAN_MARKER, Boolean.TRUE.equals(value) ? 1L : 0L);
+    } else if (value instanceof String) {
+      byte[] str = value.toString().getBytes(Charsets.UTF_8);
+      data = new byte[str.length + 1];
+      data[0] = STRING_MARKER;
+      System.arraycopy(str, 0, data, 1, str.length);
+    } else {
+      throw new WarpScriptException("Only LONG, DOUBLE, BOOLEAN and STRING values can be added to an HyperLogLogPlus estimator.");
+    }
+    
+    return SipHashInline.hash24(SIP_KEYS[0], SIP_KEYS[1], data, 0, data.length);
+  }
+  
+  private static byte[] toBytes(byte marker, long value) {
+    byte[] data = new byte[9];
+    data[0] = marker;
+    for (int i = 8; i > 0; i--) {
+      data[i] = (byte) (value & 0xFFL);
+      value >>>= 8;
+    }
+    return data;
+  }
+  
+  /**
+   * Add a value to a sketch, null values are ignored
+   */
+  public static void add(Object sketch, Object value) throws WarpScriptException {
+    if (null == value) {
+      return;
+    }
+    
+    if (sketch instanceof HyperLogLogPlus) {
+      try {
+        ((HyperLogLogPlus) sketch).aggregate(hash(value));
+      } catch (IOException ioe) {
+        throw new WarpScriptException(ioe);
+      }
+    } else if (sketch instanceof TDigest) {
+      if (!(value instanceof Number)) {
+        throw new WarpScriptException("Only numeric values can be added to a t-digest.");
+      }
+      ((TDigest) sketch).add(((Number) value).doubleValue());
+    } else {
+      throw new WarpScriptException("Invalid sketch.");
+    }
+  }
+  
+  /**
+   * Add all the values of a GTS to a sketch
+   */
+  public static void add(Object sketch, GeoTimeSerie gts) throws WarpScriptException {
+    int n = GTSHelper.nvalues(gts);
+    
+    for (int i = 0; i < n; i++) {
+      add(sketch, GTSHelper.valueAtIndex(gts, i));
+    }
+  }
+  
+  /**
+   * Merge sketches of the same kind into a new sketch, the merged sketches are not modified.
+   * The elements of 'sketches' can be sketches, their serialized form (as a byte array or
+   * base64 encoded) or GTS whose values are serialized sketches.
+   */
+  public static Object merge(List<Object> sketches) throws WarpScriptException {
+    Object merged = null;
+    
+    for (Object o: sketches) {
+      if (o instanceof GeoTimeSerie) {
+        GeoTimeSerie gts = (GeoTimeSerie) o;
+        int n = GTSHelper.nvalues(gts);
+        
+        for (int i = 0; i < n; i++) {
+          merged = fuse(merged, toSketch(GTSHelper.valueAtIndex(gts, i)));
+        }
+      } else {
+        merged = fuse(merged, toSketch(o));
+      }
+    }
+    
+    return merged;
+  }
+  
+  private static Object fuse(Object merged, Object sketch) throws WarpScriptException {
+    try {
+      if (sketch instanceof HyperLogLogPlus) {
+        if (null == merged) {
+          merged = newHLLP(((HyperLogLogPlus) sketch).getP());
+        } else if (!(merged instanceof HyperLogLogPlus)) {
+          throw new WarpScriptException("Cannot merge an HyperLogLogPlus estimator with a t-digest.");
+        }
+        ((HyperLogLogPlus) merged).fuse((HyperLogLogPlus) sketch);
+      } else {
+        if (null == merged) {
+          merged = newTDigest(((TDigest) sketch).getCompression());
+        } else if (!(merged instanceof TDigest)) {
+          throw new WarpScriptException("Cannot merge a t-digest with an HyperLogLogPlus estimator.");
+        }
+        ((TDigest) merged).fuse((TDigest) sketch);
+      }
+    } catch (IOException ioe) {
+      throw new WarpScriptException(ioe.getMessage());
+    }
+    
+    return merged;
+  }
+  
+  public static byte[] serialize(Object sketch) throws WarpScriptException {
+    byte[] bytes;
+    byte prefix;
+    
+    if (sketch instanceof HyperLogLogPlus) {
+      try {
+        bytes = ((HyperLogLogPlus) sketch).toBytes();
+      } catch (IOException ioe) {
+        throw new WarpScriptException(ioe);
+      }
+      prefix = HLLP_PREFIX;
+    } else if (sketch instanceof TDigest) {
+      bytes = ((TDigest) sketch).toBytes();
+      prefix = TDIGEST_PREFIX;
+    } else {
+      throw new WarpScriptException("Invalid sketch.");
+    }
+    
+    byte[] ser = new byte[bytes.length + 1];
+    ser[0] = prefix;
+    System.arraycopy(bytes, 0, ser, 1, bytes.length);
+    
+    return ser;
+  }
+  
+  public static Object deserialize(byte[] ser) throws WarpScriptException {
+    if (0 == ser.length) {
+      throw new WarpScriptException("Invalid serialized sketch.");
+    }
+    
+    byte[] bytes = Arrays.copyOfRange(ser, 1, ser.length);
+    
+    try {
+      if (HLLP_PREFIX == ser[0]) {
+        return HyperLogLogPlus.fromBytes(bytes);
+      } else if (TDIGEST_PREFIX == ser[0]) {
+        return TDigest.fromBytes(bytes);
+      } else {
+        throw new WarpScriptException("Invalid serialized sketch.");
+      }
+    } catch (IOException ioe) {
+      throw new WarpScriptException("Invalid serialized sketch.", ioe);
+    } catch (ClassNotFoundException cnfe) {
+      throw new WarpScriptException("Invalid serialized sketch.", cnfe);
+    } catch (RuntimeException re) {
+      throw new WarpScriptException("Invalid serialized sketch.", re);
+    }
+  }
+  
+  /**
+   * Return the base64 encoded serialized form of a sketch, as stored in GTS
+   */
+  public static String toValue(Object sketch) throws WarpScriptException {
+    return BaseEncoding.base64().encode(serialize(sketch));
+  }
+  
+  /**
+   * Convert a sketch, its serialized form or its base64 encoded serialized form into a sketch
+   */
+  public static Object toSketch(Object o) throws WarpScriptException {
+    if (isSketch(o)) {
+      return o;
+    } else if (o instanceof byte[]) {
+      return deserialize((byte[]) o);
+    } else if (o instanceof String) {
+      try {
+        return deserialize(BaseEncoding.base64().decode(o.toString()));
+      } catch (IllegalArgumentException iae) {
+        throw new WarpScriptException("Invalid serialized sketch.");
+      }
+    } else {
+      throw new WarpScriptException("Expected a sketch or a serialized sketch.");
+    }
+  }
+}
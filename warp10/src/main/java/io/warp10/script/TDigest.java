@@ -0,0 +1,421 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * This class implements a mergeable quantile estimator, the merging t-digest.
+ * 
+ * It implements the algorithm described by Ted Dunning and Otmar Ertl in
+ * https://github.com/tdunning/t-digest/blob/master/docs/t-digest-paper/histo.pdf
+ * 
+ * Values are buffered and periodically merged into a list of centroids sorted by mean.
+ * The weight of a centroid is bounded by 4 * n * q * (1 - q) / compression where q is
+ * the quantile of the centroid, so centroids stay small at the extreme quantiles and the
+ * number of centroids only grows with the logarithm of the number of values added.
+ */
+public class TDigest {
+  
+  /**
+   * Version of the serialized form
+   */
+  private static final byte VERSION = 1;
+  
+  private final double compression;
+  
+  /**
+   * Merged centroids, sorted by increasing mean
+   */
+  private double[] means;
+  private double[] weights;
+  private int centroids = 0;
+  
+  /**
+   * Values (or centroids of fused digests) not yet merged
+   */
+  private double[] bufferMeans;
+  private double[] bufferWeights;
+  private int buffered = 0;
+  
+  /**
+   * Total weight of the digest, including the buffered values
+   */
+  private double total = 0.0D;
+  
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+  
+  public TDigest(double compression) {
+    if (!(compression >= 10.0D && compression <= 10000.0D)) {
+      throw new RuntimeException("Compression MUST be in [10,10000].");
+    }
+    
+    this.compression = compression;
+    
+    int size = (int) Math.ceil(compression);
+    
+    this.means = new double[size];
+    this.weights = new double[size];
+    
+    this.bufferMeans = new double[size * 5];
+    this.bufferWeights = new double[size * 5];
+  }
+  
+  /**
+   * Add a value to the digest, NaN is ignored
+   */
+  public void add(double x) {
+    add(x, 1.0D);
+  }
+  
+  private void add(double x, double w) {
+    if (Double.isNaN(x)) {
+      return;
+    }
+    
+    if (this.buffered == this.bufferMeans.length) {
+      compress();
+    }
+    
+    this.bufferMeans[this.buffered] = x;
+    this.bufferWeights[this.buffered] = w;
+    this.buffered++;
+    
+    this.total += w;
+    
+    if (x < this.min) {
+      this.min = x;
+    }
+    if (x > this.max) {
+      this.max = x;
+    }
+  }
+  
+  /**
+   * Merge the centroids of another digest into this one
+   */
+  public void fuse(TDigest other) {
+    if (null == other) {
+      return;
+    }
+    
+    for (int i = 0; i < other.centroids; i++) {
+      add(other.means[i], other.weights[i]);
+    }
+    
+    for (int i = 0; i < other.buffered; i++) {
+      add(other.bufferMeans[i], other.bufferWeights[i]);
+    }
+    
+    //
+    // The extrema of 'other' may lie outside of its centroids
+    //
+    
+    if (other.min < this.min) {
+      this.min = other.min;
+    }
+    if (other.max > this.max) {
+      this.max = other.max;
+    }
+  }
+  
+  /**
+   * Merge the buffered values into the centroids
+   */
+  private void compress() {
+    if (0 == this.buffered) {
+      return;
+    }
+    
+    sort(this.bufferMeans, this.bufferWeights, 0, this.buffered - 1);
+    
+    //
+    // Merge the sorted buffer with the centroids
+    //
+    
+    int n = this.centroids + this.buffered;
+    
+    double[] m = new double[Math.max(n, this.means.length)];
+    double[] w = new double[m.length];
+    
+    int i = 0;
+    int j = 0;
+    
+    for (int k = 0; k < n; k++) {
+      if (j >= this.buffered || (i < this.centroids && this.means[i] <= this.bufferMeans[j])) {
+        m[k] = this.means[i];
+        w[k] = this.weights[i];
+        i++;
+      } else {
+        m[k] = this.bufferMeans[j];
+        w[k] = this.bufferWeights[j];
+        j++;
+      }
+    }
+    
+    //
+    // Collapse adjacent centroids as long as the size bound allows it, in place
+    //
+    
+    int out = 0;
+    double wSoFar = 0.0D;
+    
+    for (int k = 1; k < n; k++) {
+      double proposed = w[out] + w[k];
+      double q0 = wSoFar / this.total;
+      double q2 = (wSoFar + proposed) / this.total;
+      double limit = 4.0D * this.total * Math.min(q0 * (1.0D - q0), q2 * (1.0D - q2)) / this.compression;
+      
+      if (proposed <= limit) {
+        m[out] += (m[k] - m[out]) * w[k] / proposed;
+        w[out] = proposed;
+      } else {
+        wSoFar += w[out];
+        out++;
+        m[out] = m[k];
+        w[out] = w[k];
+      }
+    }
+    
+    this.means = m;
+    this.weights = w;
+    this.centroids = out + 1;
+    this.buffered = 0;
+  }
+  
+  /**
+   * Sort 'keys' and 'values' by increasing key, between indices 'lo' and 'hi' inclusive
+   */
+  private static void sort(double[] keys, double[] values, int lo, int hi) {
+    while (hi - lo > 16) {
+      double pivot = keys[(lo + hi) >>> 1];
+      
+      int i = lo;
+      int j = hi;
+      
+      while (i <= j) {
+        while (keys[i] < pivot) {
+          i++;
+        }
+        while (keys[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(keys, values, i, j);
+          i++;
+          j--;
+        }
+      }
+      
+      //
+      // Recurse on the smaller part so the depth of the recursion stays logarithmic
+      //
+      
+      if (j - lo < hi - i) {
+        sort(keys, values, lo, j);
+        lo = i;
+      } else {
+        sort(keys, values, i, hi);
+        hi = j;
+      }
+    }
+    
+    for (int i = lo + 1; i <= hi; i++) {
+      for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+        swap(keys, values, j - 1, j);
+      }
+    }
+  }
+  
+  private static void swap(double[] keys, double[] values, int i, int j) {
+    double tmp = keys[i];
+    keys[i] = keys[j];
+    keys[j] = tmp;
+    tmp = values[i];
+    values[i] = values[j];
+    values[j] = tmp;
+  }
+  
+  /**
+   * Compute the estimated value at quantile 'q'
+   * 
+   * @param q Quantile in [0,1]
+   * @return The estimated value or NaN if the digest is empty
+   */
+  public double quantile(double q) {
+    if (!(q >= 0.0D && q <= 1.0D)) {
+      throw new RuntimeException("Quantile MUST be in [0,1].");
+    }
+    
+    compress();
+    
+    if (0 == this.centroids) {
+      return Double.NaN;
+    }
+    
+    int n = this.centroids;
+    
+    if (1 == n) {
+      return this.means[0];
+    }
+    
+    double index = q * this.total;
+    
+    //
+    // There is exactly one value at min and one at max, interpolate with less weight
+    // between those and the first and last centroids
+    //
+    
+    if (index < 1.0D) {
+      return this.min;
+    }
+    
+    if (this.weights[0] > 1.0D && index < this.weights[0] / 2.0D) {
+      return this.min + (index - 1.0D) / (this.weights[0] / 2.0D - 1.0D) * (this.means[0] - this.min);
+    }
+    
+    if (index > this.total - 1.0D) {
+      return this.max;
+    }
+    
+    if (this.weights[n - 1] > 1.0D && this.total - index <= this.weights[n - 1] / 2.0D) {
+      return this.max - (this.total - index - 1.0D) / (this.weights[n - 1] / 2.0D - 1.0D) * (this.max - this.means[n - 1]);
+    }
+    
+    //
+    // Interpolate between the two centroids which bracket 'index'
+    //
+    
+    double wSoFar = this.weights[0] / 2.0D;
+    
+    for (int i = 0; i < n - 1; i++) {
+      double dw = (this.weights[i] + this.weights[i + 1]) / 2.0D;
+      
+      if (wSoFar + dw > index) {
+        double left = 0.0D;
+        
+        if (1.0D == this.weights[i]) {
+          if (index - wSoFar < 0.5D) {
+            return this.means[i];
+          }
+          left = 0.5D;
+        }
+        
+        double right = 0.0D;
+        
+        if (1.0D == this.weights[i + 1]) {
+          if (wSoFar + dw - index <= 0.5D) {
+            return this.means[i + 1];
+          }
+          right = 0.5D;
+        }
+        
+        double z1 = index - wSoFar - left;
+        double z2 = wSoFar + dw - index - right;
+        
+        return (this.means[i] * z2 + this.means[i + 1] * z1) / (z1 + z2);
+      }
+      
+      wSoFar += dw;
+    }
+    
+    return this.max;
+  }
+  
+  /**
+   * Return the number of values added to the digest
+   */
+  public long size() {
+    return (long) this.total;
+  }
+  
+  public double getCompression() {
+    return this.compression;
+  }
+  
+  public double getMin() {
+    return this.min;
+  }
+  
+  public double getMax() {
+    return this.max;
+  }
+  
+  public byte[] toBytes() {
+    compress();
+    
+    ByteBuffer bb = ByteBuffer.allocate(1 + 3 * 8 + 4 + this.centroids * 16).order(ByteOrder.BIG_ENDIAN);
+    
+    bb.put(VERSION);
+    bb.putDouble(this.compression);
+    bb.putDouble(this.min);
+    bb.putDouble(this.max);
+    bb.putInt(this.centroids);
+    
+    for (int i = 0; i < this.centroids; i++) {
+      bb.putDouble(this.means[i]);
+      bb.putDouble(this.weights[i]);
+    }
+    
+    return bb.array();
+  }
+  
+  public static TDigest fromBytes(byte[] bytes) throws IOException {
+    ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+    
+    try {
+      if (VERSION != bb.get()) {
+        throw new IOException("Unsupported t-digest version.");
+      }
+      
+      TDigest digest = new TDigest(bb.getDouble());
+      
+      digest.min = bb.getDouble();
+      digest.max = bb.getDouble();
+      
+      int n = bb.getInt();
+      
+      if (n < 0 || n > bb.remaining() / 16) {
+        throw new IOException("Invalid number of centroids.");
+      }
+      
+      if (n > digest.means.length) {
+        digest.means = Arrays.copyOf(digest.means, n);
+        digest.weights = Arrays.copyOf(digest.weights, n);
+      }
+      
+      for (int i = 0; i < n; i++) {
+        digest.means[i] = bb.getDouble();
+        digest.weights[i] = bb.getDouble();
+        digest.total += digest.weights[i];
+      }
+      
+      digest.centroids = n;
+      
+      return digest;
+    } catch (BufferUnderflowException bue) {
+      throw new IOException("Truncated t-digest.");
+    } catch (RuntimeException re) {
+      throw new IOException(re);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel. Items are scheduled at a time (in ms) and returned by 'advance' once that
+ * time is reached. Scheduling and advancing cost O(1) per item whatever the number of scheduled items.
+ * 
+ * This class is not thread safe.
+ */
+public class TimingWheel<T> {
+  
+  /**
+   * Duration (in ms) of a slot
+   */
+  private final long tick;
+  
+  private final List<Entry<T>>[] slots;
+  
+  /**
+   * Index of the next tick to process (i.e. time / tick)
+   */
+  private long current;
+  
+  private int size = 0;
+  
+  private static final class Entry<T> {
+    private final T item;
+    private final long tick;
+    
+    private Entry(T item, long tick) {
+      this.item = item;
+      this.tick = tick;
+    }
+  }
+  
+  /**
+   * @param tick Duration (in ms) of a slot
+   * @param nslots Number of slots
+   * @param now Current time (in ms)
+   */
+  @SuppressWarnings("unchecked")
+  public TimingWheel(long tick, int nslots, long now) {
+    if (tick <= 0 || nslots <= 0) {
+      throw new IllegalArgumentException("Tick and number of slots MUST be positive.");
+    }
+    
+    this.tick = tick;
+    this.slots = new List[nslots];
+    
+    for (int i = 0; i < nslots; i++) {
+      this.slots[i] = new ArrayList<Entry<T>>();
+    }
+    
+    this.current = now / tick;
+  }
+  
+  /**
+   * Schedule an item at a given time (in ms). Items scheduled in the past are returned by the next call to 'advance'.
+   */
+  public void schedule(T item, long time) {
+    long t = Math.max(time / this.tick, this.current);
+    this.slots[(int) (t % this.slots.length)].add(new Entry<T>(item, t));
+    this.size++;
+  }
+  
+  /**
+   * Remove and return the items whose scheduled time is before 'now' (in ms), with the granularity of a tick.
+   */
+  public List<T> advance(long now) {
+    List<T> due = new ArrayList<T>();
+    
+    long last = now / this.tick;
+    
+    //
+    // There is no need to check the same slot more than once
+    //
+    
+    long first = Math.max(this.current, last - this.slots.length + 1);
+    
+    for (long t = first; t <= last; t++) {
+      List<Entry<T>> slot = this.slots[(int) (t % this.slots.length)];
+      
+      if (slot.isEmpty()) {
+        continue;
+      }
+      
+      List<Entry<T>> remaining = new ArrayList<Entry<T>>(slot.size());
+      
+      for (Entry<T> entry: slot) {
+        if (entry.tick <= last) {
+          due.add(entry.item);
+        } else {
+          remaining.add(entry);
+        }
+      }
+      
+      if (remaining.size() != slot.size()) {
+        this.slots[(int) (t % this.slots.length)] = remaining;
+      }
+    }
+    
+    this.size -= due.size();
+    this.current = Math.max(this.current, last + 1);
+    
+    return due;
+  }
+  
+  /**
+   * Return the number of scheduled items
+   */
+  public int size() {
+    return this.size;
+  }
+}
@@ -0,0 +1,276 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.UnsafeString;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pre-parsed form of a WarpScript script, as executed line by line by MemoryWarpScriptStack.
+ *
+ * Each line is tokenized once, constants (strings, longs, doubles, booleans) are decoded and
+ * statements which are calls to functions of WarpScriptLib or JavaLibrary are resolved. Lines
+ * which contain comment, multiline, macro or secure script delimiters are kept as is and
+ * executed through the regular path.
+ *
+ * Instances hold no state related to a given execution and can be shared among threads.
+ */
+public class WarpScriptCompiledScript {
+  
+  /**
+   * Statement which must be executed through the regular path
+   */
+  static final byte RAW = 0;
+  
+  /**
+   * Statement which pushes a constant onto the stack (or adds it to the current macro)
+   */
+  static final byte CONSTANT = 1;
+  
+  /**
+   * Statement which calls a function of WarpScriptLib or JavaLibrary, unless redefined
+   */
+  static final byte FUNCTION = 2;
+  
+  /**
+   * Estimated size in bytes of an object header, reference and array slot
+   */
+  private static final long OBJECT_OVERHEAD = 48L;
+  
+  static final class Line {
+    /**
+     * Line as read from the script
+     */
+    final String raw;
+    
+    /**
+     * Non empty trimmed statements of the line, null if the line must be executed as is
+     */
+    final String[] statements;
+    
+    /**
+     * Kind of each statement
+     */
+    final byte[] kinds;
+    
+    /**
+     * Constant or function of each statement
+     */
+    final Object[] values;
+    
+    private Line(String raw, String[] statements, byte[] kinds, Object[] values) {
+      this.raw = raw;
+      this.statements = statements;
+      this.kinds = kinds;
+      this.values = values;
+    }
+  }
+  
+  private final String script;
+  
+  private final Line[] lines;
+  
+  /**
+   * Estimated number of bytes retained by this instance
+   */
+  private final long retained;
+  
+  private WarpScriptCompiledScript(String script, Line[] lines) {
+    this.script = script;
+    this.lines = lines;
+    
+    //
+    // Count 2 bytes per char of the script and of the lines and statements which copy it,
+    // plus a fixed overhead per object
+    //
+    
+    long chars = script.length();
+    long objects = 1 + lines.length;
+    
+    for (Line line: lines) {
+      chars += line.raw.length();
+      if (null != line.statements) {
+        objects += 2 * line.statements.length;
+        for (String stmt: line.statements) {
+          chars += stmt.length();
+        }
+      }
+    }
+    
+    this.retained = 2L * chars + OBJECT_OVERHEAD * objects;
+  }
+  
+  public static WarpScriptCompiledScript compile(String script) {
+    
+    List<Line> lines = new ArrayList<Line>();
+    
+    BufferedReader br = new BufferedReader(new StringReader(script));
+    
+    try {
+      while (true) {
+        String line = br.readLine();
+        
+        if (null == line) {
+          break;
+        }
+        
+        lines.add(compileLine(line));
+      }
+      
+      br.close();
+    } catch (IOException ioe) {
+      // Cannot happen with a StringReader
+      throw new RuntimeException(ioe);
+    }
+    
+    return new WarpScriptCompiledScript(script, lines.toArray(new Line[lines.size()]));
+  }
+  
+  /**
+   * Tokenize a line the way MemoryWarpScriptStack.exec(String) does when not in a multiline string
+   */
+  private static Line compileLine(String rawline) {
+    String line = UnsafeString.sanitizeStrings(rawline.trim());
+    
+    String[] tokens;
+    
+    if (-1 != UnsafeString.indexOf(line, ' ')) {
+      tokens = UnsafeString.split(line, ' ');
+    } else {
+      tokens = new String[] { line };
+    }
+    
+    List<String> statements = new ArrayList<String>(tokens.length);
+    
+    for (String token: tokens) {
+      String stmt = token.trim();
+      
+      if (0 == stmt.length()) {
+        continue;
+      }
+      
+      //
+      // Statements after a comment are ignored
+      //
+      
+      if (stmt.charAt(0) == '#' || (stmt.charAt(0) == '/' && stmt.length() >= 2 && stmt.charAt(1) == '/')) {
+        break;
+      }
+      
+      //
+      // Lines with delimiters alter the state of the stack, keep them as is
+      //
+      
+      if (WarpScriptStack.MULTILINE_START.equals(stmt) || WarpScriptStack.MULTILINE_END.equals(stmt)
+          || WarpScriptStack.COMMENT_START.equals(stmt) || WarpScriptStack.COMMENT_END.equals(stmt)
+          || WarpScriptStack.SECURE_SCRIPT_START.equals(stmt) || WarpScriptStack.SECURE_SCRIPT_END.equals(stmt)) {
+        return new Line(rawline, null, null, null);
+      }
+      
+      statements.add(stmt);
+    }
+    
+    byte[] kinds = new byte[statements.size()];
+    Object[] values = new Object[statements.size()];
+    
+    for (int i = 0; i < statements.size(); i++) {
+      String stmt = statements.get(i);
+      
+      Object value = null;
+      
+      try {
+        if (WarpScriptStack.MACRO_START.equals(stmt) || WarpScriptStack.MACRO_END.equals(stmt)) {
+          value = null;
+        } else if ((stmt.charAt(0) == '\'' && stmt.charAt(stmt.length() - 1) == '\'')
+            || (stmt.charAt(0) == '\"' && stmt.charAt(stmt.length() - 1) == '\"')) {
+          value = URLDecoder.decode(stmt.substring(1, stmt.length() - 1), "UTF-8");
+        } else if (stmt.length() > 2 && stmt.charAt(1) == 'x' && stmt.charAt(0) == '0') {
+          value = Long.parseLong(stmt.substring(2), 16);
+        } else if (stmt.length() > 2 && stmt.charAt(1) == 'b' && stmt.charAt(0) == '0') {
+          value = Long.parseLong(stmt.substring(2), 2);
+        } else if (UnsafeString.isLong(stmt)) {
+          value = Long.valueOf(stmt);
+        } else if (UnsafeString.isDouble(stmt)) {
+          value = Double.valueOf(stmt);
+        } else if (stmt.equalsIgnoreCase("T") || stmt.equalsIgnoreCase("true")) {
+          value = Boolean.TRUE;
+        } else if (stmt.equalsIgnoreCase("F") || stmt.equalsIgnoreCase("false")) {
+          value = Boolean.FALSE;
+        } else if (stmt.startsWith("$") || stmt.startsWith("!$") || stmt.startsWith("@")) {
+          value = null;
+        } else {
+          Object func = WarpScriptLib.getFunction(stmt);
+          func = null != func ? func : JavaLibrary.getFunction(stmt);
+          
+          if (null != func) {
+            kinds[i] = FUNCTION;
+            values[i] = func;
+          }
+          continue;
+        }
+      } catch (UnsupportedEncodingException uee) {
+        value = null;
+      } catch (RuntimeException re) {
+        // Invalid constant, the error will be raised when executing the statement
+        value = null;
+      }
+      
+      if (null != value) {
+        kinds[i] = CONSTANT;
+        values[i] = value;
+      }
+    }
+    
+    return new Line(rawline, statements.toArray(new String[statements.size()]), kinds, values);
+  }
+  
+  public String getScript() {
+    return this.script;
+  }
+  
+  /**
+   * Return the number of lines of the script
+   */
+  public int size() {
+    return this.lines.length;
+  }
+  
+  /**
+   * Return the given line (0 based) as read from the script
+   */
+  public String getLine(int lineno) {
+    return this.lines[lineno].raw;
+  }
+  
+  /**
+   * Return an estimate of the number of bytes retained by this pre-parsed script
+   */
+  public long getRetainedSize() {
+    return this.retained;
+  }
+  
+  Line getCompiledLine(int lineno) {
+    return this.lines[lineno];
+  }
+}
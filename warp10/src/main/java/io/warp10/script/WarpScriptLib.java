@@ -275,6 +275,9 @@ public class WarpScriptLib {
     functions.put("TIMINGS", new TIMINGS("TIMINGS")); // NOT TO BE DOCUMENTED (YET)
     functions.put("NOTIMINGS", new NOTIMINGS("NOTIMINGS")); // NOT TO BE DOCUMENTED (YET)
     functions.put("ELAPSED", new ELAPSED("ELAPSED")); // NOT TO BE DOCUMENTED (YET)
+    functions.put("PROFILE", new PROFILE("PROFILE"));
+    functions.put("NOPROFILE", new NOPROFILE("NOPROFILE"));
+    functions.put("PROFILED", new PROFILED("PROFILED"));
     functions.put("->LIST", new TOLIST("->LIST"));
     functions.put("LIST->", new LISTTO("LIST->"));
     functions.put("->SET", new TOSET("->SET"));
@@ -326,6 +329,7 @@ public class WarpScriptLib {
     functions.put("MAXLOOP", new MAXLOOP("MAXLOOP"));
     functions.put("MAXBUCKETS", new MAXBUCKETS("MAXBUCKETS"));
     functions.put("MAXPIXELS", new MAXPIXELS("MAXPIXELS"));
+    functions.put("MAXPARALLELISM", new MAXPARALLELISM("MAXPARALLELISM"));
     functions.put("OPS", new OPS("OPS"));
     functions.put("MAXSYMBOLS", new MAXSYMBOLS("MAXSYMBOLS"));
     functions.put(EVAL, new EVAL(EVAL));
@@ -581,6 +585,20 @@ public class WarpScriptLib {
     functions.put("CPROB", new CPROB("CPROB"));
     functions.put("RANDPDF", new RANDPDF.Builder("RANDPDF"));
     functions.put("HASH", new HASH("HASH"));
+    
+    //
+    // Sketches
+    //
+    
+    functions.put("HLLP", new HLLP("HLLP"));
+    functions.put("TDIGEST", new TDIGEST("TDIGEST"));
+    functions.put("SKETCHADD", new SKETCHADD("SKETCHADD"));
+    functions.put("SKETCHMERGE", new SKETCHMERGE("SKETCHMERGE"));
+    functions.put("ESTIMATE", new ESTIMATE("ESTIMATE"));
+    functions.put("QUANTILE", new QUANTILE("QUANTILE"));
+    functions.put("->SKETCH", new TOSKETCH("->SKETCH"));
+    functions.put("SKETCH->", new SKETCHTO("SKETCH->"));
+    
     functions.put("SINGLEEXPONENTIALSMOOTHING", new SINGLEEXPONENTIALSMOOTHING("SINGLEEXPONENTIALSMOOTHING"));
     functions.put("DOUBLEEXPONENTIALSMOOTHING", new DOUBLEEXPONENTIALSMOOTHING("DOUBLEEXPONENTIALSMOOTHING"));
     functions.put("LOWESS", new LOWESS("LOWESS"));
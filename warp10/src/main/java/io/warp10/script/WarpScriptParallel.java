@@ -0,0 +1,202 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.script.functions.STRICTREDUCER.StringentReducer;
+import io.warp10.script.mapper.STRICTMAPPER.StringentMapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Execution of independent units of work (partitions of REDUCE/APPLY, series of MAP)
+ * on a ForkJoinPool shared by all WarpScript executions.
+ *
+ * The number of tasks a single execution runs concurrently is bounded by the
+ * ATTRIBUTE_MAX_PARALLELISM attribute of its stack, so one script cannot monopolize the pool.
+ * Results are always returned in the order of the tasks.
+ */
+public class WarpScriptParallel {
+
+  /**
+   * Packages of the built-in functions which keep no state across calls. Functions from
+   * any other package (macros, extensions, jar repository, ...) are applied sequentially.
+   */
+  private static final Set<String> THREAD_SAFE_PACKAGES = new HashSet<String>(Arrays.asList(
+      "io.warp10.script.aggregator",
+      "io.warp10.script.mapper",
+      "io.warp10.script.op"
+  ));
+
+  private static ForkJoinPool pool = null;
+
+  private static boolean initialized = false;
+
+  private static synchronized ForkJoinPool getPool() {
+    if (!initialized) {
+      Properties properties = WarpConfig.getProperties();
+
+      int size = 0;
+
+      if (null != properties) {
+        size = Integer.parseInt(properties.getProperty(Configuration.WARPSCRIPT_PARALLELISM_POOL, "0"));
+      }
+
+      if (size > 0) {
+        pool = new ForkJoinPool(size);
+      }
+
+      initialized = true;
+    }
+
+    return pool;
+  }
+
+  /**
+   * Return the number of tasks which can be run concurrently when applying 'function'
+   * on behalf of 'stack'. A value of 1 means the work must be done sequentially.
+   */
+  public static int getParallelism(WarpScriptStack stack, Object function) {
+    if (null == stack) {
+      return 1;
+    }
+
+    Object parallelism = stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_PARALLELISM);
+
+    if (!(parallelism instanceof Number) || ((Number) parallelism).intValue() <= 1) {
+      return 1;
+    }
+
+    if (!isThreadSafe(function) || null == getPool()) {
+      return 1;
+    }
+
+    return ((Number) parallelism).intValue();
+  }
+
+  /**
+   * Only the functions of the allowed packages can be called concurrently, wrappers
+   * are as safe as the function they wrap.
+   */
+  static boolean isThreadSafe(Object function) {
+    if (function instanceof StringentMapper) {
+      return isThreadSafe(((StringentMapper) function).getMapper());
+    } else if (function instanceof StringentReducer) {
+      return isThreadSafe(((StringentReducer) function).getReducer());
+    } else if (null == function) {
+      return false;
+    }
+
+    String name = function.getClass().getName();
+    int dot = name.lastIndexOf('.');
+
+    return dot > 0 && THREAD_SAFE_PACKAGES.contains(name.substring(0, dot));
+  }
+
+  /**
+   * Run the given tasks with at most 'parallelism' of them running concurrently.
+   * Tasks are run sequentially in the calling thread if 'parallelism' is 1 or less, if the
+   * shared pool is not configured or if we are already running in the pool.
+   *
+   * @return The results of the tasks, in the order of 'tasks'
+   * @throws WarpScriptException if one of the tasks failed, the failure of the first task (in the order of 'tasks') which failed is reported.
+   */
+  public static <T> List<T> invoke(int parallelism, final List<? extends Callable<T>> tasks) throws WarpScriptException {
+    return invoke(getPool(), parallelism, tasks);
+  }
+
+  static <T> List<T> invoke(ForkJoinPool pool, int parallelism, final List<? extends Callable<T>> tasks) throws WarpScriptException {
+    final int n = tasks.size();
+    final Object[] results = new Object[n];
+
+    if (parallelism <= 1 || n < 2 || null == pool || ForkJoinTask.inForkJoinPool()) {
+      for (int i = 0; i < n; i++) {
+        try {
+          results[i] = tasks.get(i).call();
+        } catch (WarpScriptException wse) {
+          throw wse;
+        } catch (Exception e) {
+          throw new WarpScriptException(e);
+        }
+      }
+    } else {
+      final Throwable[] errors = new Throwable[n];
+      final AtomicInteger next = new AtomicInteger(0);
+      final AtomicBoolean failed = new AtomicBoolean(false);
+
+      //
+      // Each worker picks the next task to run, this bounds the concurrency
+      // to the number of workers regardless of the number of tasks
+      //
+
+      Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+          while(!failed.get()) {
+            int i = next.getAndIncrement();
+
+            if (i >= n) {
+              break;
+            }
+
+            try {
+              results[i] = tasks.get(i).call();
+            } catch (Throwable t) {
+              errors[i] = t;
+              failed.set(true);
+            }
+          }
+        }
+      };
+
+      int nworkers = Math.min(parallelism, n);
+
+      List<ForkJoinTask<?>> workers = new ArrayList<ForkJoinTask<?>>(nworkers);
+
+      for (int i = 0; i < nworkers; i++) {
+        workers.add(pool.submit(worker));
+      }
+
+      for (ForkJoinTask<?> task: workers) {
+        task.join();
+      }
+
+      if (failed.get()) {
+        for (Throwable t: errors) {
+          if (t instanceof WarpScriptException) {
+            throw (WarpScriptException) t;
+          } else if (null != t) {
+            throw new WarpScriptException(t);
+          }
+        }
+      }
+    }
+
+    return (List<T>) Arrays.asList(results);
+  }
+}
@@ -0,0 +1,86 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+
+//
+// Optional interface for aggregators (mappers, bucketizers and reducers) which can
+// work directly on the primitive arrays of a GTS.
+//
+// The values to aggregate are those at indices [offset, offset + length) of the arrays,
+// no copy of the window is made and no value is boxed. The arrays MUST NOT be modified.
+//
+// 'locations' (resp. 'elevations') is null when none of the values have a location (resp. elevation).
+// Only the array matching the type of the values is non null, both 'longValues' and 'doubleValues'
+// are null for types other than LONG or DOUBLE.
+//
+// The result is stored in 'result', which is reused across calls. Its type is TYPE.UNDEFINED
+// when the aggregator produces no value.
+//
+// Implementations MUST produce exactly the same result as their 'apply' method for the same input.
+//
+
+public interface WarpScriptPrimitiveAggregatorFunction {
+
+  public static final class Result {
+    public long tick;
+    public long location;
+    public long elevation;
+    public TYPE type;
+    public long longValue;
+    public double doubleValue;
+
+    public void reset() {
+      this.tick = Long.MAX_VALUE;
+      this.location = GeoTimeSerie.NO_LOCATION;
+      this.elevation = GeoTimeSerie.NO_ELEVATION;
+      this.type = TYPE.UNDEFINED;
+    }
+
+    public void setLong(long value) {
+      this.type = TYPE.LONG;
+      this.longValue = value;
+    }
+
+    public void setDouble(double value) {
+      this.type = TYPE.DOUBLE;
+      this.doubleValue = value;
+    }
+
+    /**
+     * Return the (boxed) value of the result or null if there is no value
+     */
+    public Object getValue() {
+      if (TYPE.LONG == this.type) {
+        return this.longValue;
+      } else if (TYPE.DOUBLE == this.type) {
+        return this.doubleValue;
+      } else {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Return true if the aggregator can handle values of the given type through 'aggregate'
+   */
+  public boolean supports(TYPE type);
+
+  public void aggregate(long tick, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int offset, int length, Result result) throws WarpScriptException;
+}
@@ -0,0 +1,245 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Per stack profiler of WarpScript functions and named macros.
+ *
+ * For each function (or macro called by name) the profiler records the number of calls, the
+ * total time spent in the calls, the self time (total time minus the time spent in the functions
+ * and macros called by the function, i.e. by the macros passed to MAP, FOREACH, ...) and the
+ * bytes allocated by the calling thread during the calls (total and self).
+ *
+ * Counters are kept in the profiler, nothing is published until 'getProfile' is called. Work
+ * done in other threads (parallel REDUCE/APPLY/MAP) is included in the times but not in the
+ * allocated bytes.
+ *
+ * Measurement of the allocated bytes is enabled in the JVM when the first profiler is created
+ * and restored to its previous setting once all profilers have been closed.
+ */
+public class WarpScriptProfiler {
+
+  public static final String KEY_NAME = "name";
+  public static final String KEY_COUNT = "count";
+  public static final String KEY_TIME = "time";
+  public static final String KEY_SELF_TIME = "self";
+  public static final String KEY_ALLOCATED = "alloc";
+  public static final String KEY_SELF_ALLOCATED = "selfalloc";
+
+  private static final int COUNT = 0;
+  private static final int TIME = 1;
+  private static final int SELF_TIME = 2;
+  private static final int ALLOCATED = 3;
+  private static final int SELF_ALLOCATED = 4;
+
+  private static final com.sun.management.ThreadMXBean threadMXBean;
+
+  static {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+    com.sun.management.ThreadMXBean allocBean = null;
+
+    try {
+      if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+        allocBean = (com.sun.management.ThreadMXBean) bean;
+      }
+    } catch (Throwable t) {
+      allocBean = null;
+    }
+
+    threadMXBean = allocBean;
+  }
+
+  /**
+   * Profilers which have not been closed yet. References are weak so a profiler
+   * which is never closed does not keep the measurement enabled forever.
+   */
+  private static final Set<WarpScriptProfiler> profilers = Collections.newSetFromMap(new WeakHashMap<WarpScriptProfiler,Boolean>());
+
+  /**
+   * Whether the measurement of allocated bytes was enabled by the profilers, in which
+   * case it is disabled again when the last profiler is closed
+   */
+  private static boolean enabled = false;
+
+  private boolean closed = false;
+
+  /**
+   * Counters per function/macro name
+   */
+  private final Map<String,long[]> counters = new HashMap<String,long[]>();
+
+  /**
+   * Frames of the calls in progress, 'depth' is the number of such calls
+   */
+  private long[] starts = new long[16];
+  private long[] childTimes = new long[16];
+  private long[] allocs = new long[16];
+  private long[] childAllocs = new long[16];
+  private int depth = 0;
+
+  private final long threadId = Thread.currentThread().getId();
+
+  public WarpScriptProfiler() {
+    register(this);
+  }
+
+  private static synchronized void register(WarpScriptProfiler profiler) {
+    if (null == threadMXBean) {
+      return;
+    }
+
+    try {
+      if (!enabled && !threadMXBean.isThreadAllocatedMemoryEnabled()) {
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        enabled = true;
+      }
+    } catch (Throwable t) {
+    }
+
+    profilers.add(profiler);
+  }
+
+  private static synchronized void unregister(WarpScriptProfiler profiler) {
+    profilers.remove(profiler);
+
+    if (enabled && profilers.isEmpty()) {
+      try {
+        threadMXBean.setThreadAllocatedMemoryEnabled(false);
+      } catch (Throwable t) {
+      }
+      enabled = false;
+    }
+  }
+
+  /**
+   * Stop measuring allocations, the counters recorded so far can still be retrieved
+   */
+  public void close() {
+    if (!this.closed) {
+      this.closed = true;
+      unregister(this);
+    }
+  }
+
+  /**
+   * Mark the start of a call
+   */
+  public void enter() {
+    if (this.depth == this.starts.length) {
+      int len = this.depth << 1;
+      this.starts = Arrays.copyOf(this.starts, len);
+      this.childTimes = Arrays.copyOf(this.childTimes, len);
+      this.allocs = Arrays.copyOf(this.allocs, len);
+      this.childAllocs = Arrays.copyOf(this.childAllocs, len);
+    }
+
+    this.childTimes[this.depth] = 0L;
+    this.childAllocs[this.depth] = 0L;
+    this.allocs[this.depth] = allocated();
+    this.starts[this.depth] = System.nanoTime();
+    this.depth++;
+  }
+
+  /**
+   * Mark the end of the call started by the last call to 'enter'.
+   *
+   * @param function Function or macro name the call is accounted to, its String representation is used
+   */
+  public void exit(Object function) {
+    long elapsed = System.nanoTime() - this.starts[this.depth - 1];
+    long allocated = Math.max(0L, allocated() - this.allocs[this.depth - 1]);
+
+    this.depth--;
+
+    String name = String.valueOf(function);
+
+    long[] counter = this.counters.get(name);
+
+    if (null == counter) {
+      counter = new long[5];
+      this.counters.put(name, counter);
+    }
+
+    counter[COUNT]++;
+    counter[TIME] += elapsed;
+    counter[SELF_TIME] += elapsed - this.childTimes[this.depth];
+    counter[ALLOCATED] += allocated;
+    counter[SELF_ALLOCATED] += allocated - this.childAllocs[this.depth];
+
+    if (this.depth > 0) {
+      this.childTimes[this.depth - 1] += elapsed;
+      this.childAllocs[this.depth - 1] += allocated;
+    }
+  }
+
+  private long allocated() {
+    if (null == threadMXBean || this.closed) {
+      return 0L;
+    }
+
+    // -1 if the measurement is disabled
+    return Math.max(0L, threadMXBean.getThreadAllocatedBytes(this.threadId));
+  }
+
+  /**
+   * Return the profile as a list of maps, one per function or macro, sorted by decreasing self time.
+   * Times are in nanoseconds, allocated bytes are 0 if the JVM cannot report them.
+   */
+  public List<Map<String,Object>> getProfile() {
+    List<Entry<String,long[]>> entries = new ArrayList<Entry<String,long[]>>(this.counters.entrySet());
+
+    Collections.sort(entries, new Comparator<Entry<String,long[]>>() {
+      @Override
+      public int compare(Entry<String, long[]> o1, Entry<String, long[]> o2) {
+        return Long.compare(o2.getValue()[SELF_TIME], o1.getValue()[SELF_TIME]);
+      }
+    });
+
+    List<Map<String,Object>> profile = new ArrayList<Map<String,Object>>(entries.size());
+
+    for (Entry<String,long[]> entry: entries) {
+      long[] counter = entry.getValue();
+
+      Map<String,Object> map = new LinkedHashMap<String,Object>();
+      map.put(KEY_NAME, entry.getKey());
+      map.put(KEY_COUNT, counter[COUNT]);
+      map.put(KEY_TIME, counter[TIME]);
+      map.put(KEY_SELF_TIME, counter[SELF_TIME]);
+      map.put(KEY_ALLOCATED, counter[ALLOCATED]);
+      map.put(KEY_SELF_ALLOCATED, counter[SELF_ALLOCATED]);
+
+      profile.add(map);
+    }
+
+    return profile;
+  }
+}
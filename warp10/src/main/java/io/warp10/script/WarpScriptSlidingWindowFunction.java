@@ -0,0 +1,202 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+
+//
+// Optional interface for primitive aggregators which can maintain their result incrementally
+// while a window slides over the sorted arrays of a GTS.
+//
+// The window covers indices [lo, hi) of the arrays, both bounds only ever increase. Each index
+// is therefore added and removed at most once, making the cost of a MAP independent of the
+// window size.
+//
+// Windows MUST produce exactly the same result as 'aggregate' on the same slice. Aggregators
+// for which this cannot be guaranteed for a given input (i.e. floating point sums whose value
+// depends on the order of the additions) return null from 'window' and are called through
+// 'aggregate'.
+//
+
+public interface WarpScriptSlidingWindowFunction extends WarpScriptPrimitiveAggregatorFunction {
+
+  public static abstract class Window {
+
+    protected final long[] ticks;
+    protected final long[] locations;
+    protected final long[] elevations;
+
+    /**
+     * Current bounds of the window
+     */
+    protected int lo = 0;
+    protected int hi = 0;
+
+    protected Window(long[] ticks, long[] locations, long[] elevations) {
+      this.ticks = ticks;
+      this.locations = locations;
+      this.elevations = elevations;
+    }
+
+    /**
+     * Move the window so it covers [lo, hi)
+     */
+    public final void slide(int lo, int hi) {
+      //
+      // If the new window does not overlap the current one or if
+      // one of the bounds moved backwards, restart from an empty window
+      //
+
+      if (lo >= this.hi || lo < this.lo || hi < this.hi) {
+        clear();
+        this.lo = lo;
+        this.hi = lo;
+      }
+
+      while (this.hi < hi) {
+        add(this.hi++);
+      }
+
+      while (this.lo < lo) {
+        remove(this.lo++);
+      }
+    }
+
+    public final int size() {
+      return this.hi - this.lo;
+    }
+
+    /**
+     * Return the index of the first occurrence of the most recent tick of the window.
+     * The window MUST NOT be empty.
+     */
+    protected final int latest() {
+      int idx = this.hi - 1;
+
+      while (idx > this.lo && this.ticks[idx - 1] == this.ticks[this.hi - 1]) {
+        idx--;
+      }
+
+      return idx;
+    }
+
+    protected final long location(int idx) {
+      return null != this.locations ? this.locations[idx] : GeoTimeSerie.NO_LOCATION;
+    }
+
+    protected final long elevation(int idx) {
+      return null != this.elevations ? this.elevations[idx] : GeoTimeSerie.NO_ELEVATION;
+    }
+
+    /**
+     * Add the value at index 'idx' to the window, indices are added in increasing order
+     */
+    protected abstract void add(int idx);
+
+    /**
+     * Remove the value at index 'idx' from the window, indices are removed in increasing order
+     */
+    protected abstract void remove(int idx);
+
+    /**
+     * Reset the window to an empty state
+     */
+    protected abstract void clear();
+
+    /**
+     * Store in 'result' the aggregation of the values currently in the window.
+     *
+     * @param tick Tick for which the aggregation is computed
+     */
+    public abstract void aggregate(long tick, Result result) throws WarpScriptException;
+  }
+
+  /**
+   * Monotonic deque of indices used to maintain the minimum or maximum of a window.
+   * Indices are stored in increasing order and their values are monotonic, so the
+   * front of the deque is the index of the extremum with the smallest index.
+   */
+  public static final class MonotonicDeque {
+
+    private final long[] longValues;
+    private final double[] doubleValues;
+
+    /**
+     * 1 to maintain the maximum, -1 to maintain the minimum
+     */
+    private final int sign;
+
+    private final int[] indices;
+    private int head = 0;
+    private int tail = 0;
+
+    public MonotonicDeque(long[] longValues, double[] doubleValues, int size, boolean max) {
+      this.longValues = longValues;
+      this.doubleValues = doubleValues;
+      this.sign = max ? 1 : -1;
+      // Each index is pushed at most once
+      this.indices = new int[size];
+    }
+
+    private int compare(int i, int j) {
+      if (null != this.longValues) {
+        return this.sign * Long.compare(this.longValues[i], this.longValues[j]);
+      } else {
+        return this.sign * Double.compare(this.doubleValues[i], this.doubleValues[j]);
+      }
+    }
+
+    public void add(int idx) {
+      //
+      // Drop the indices whose value is strictly dominated by the new one, those
+      // with an equal value are kept since they come first
+      //
+
+      while (this.tail > this.head && compare(this.indices[this.tail - 1], idx) < 0) {
+        this.tail--;
+      }
+
+      this.indices[this.tail++] = idx;
+    }
+
+    public void remove(int idx) {
+      if (this.tail > this.head && this.indices[this.head] == idx) {
+        this.head++;
+      }
+    }
+
+    public void clear() {
+      this.head = 0;
+      this.tail = 0;
+    }
+
+    public int first() {
+      return this.indices[this.head];
+    }
+  }
+
+  /**
+   * Return a new window over the given arrays or null if the result cannot be
+   * maintained incrementally for this input.
+   *
+   * The arrays follow the same conventions as those passed to 'aggregate'.
+   *
+   * @param size Number of values in the arrays
+   */
+  public Window window(TYPE type, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int size);
+}
@@ -54,6 +54,7 @@ public interface WarpScriptStack {
   public static final long DEFAULT_MAX_PIXELS = 1000000L;
   public static final long DEFAULT_URLFETCH_LIMIT = 64;
   public static final long DEFAULT_URLFETCH_MAXSIZE = 1000000L;
+  public static final int DEFAULT_MAX_PARALLELISM = 1;
   
   public static final String MACRO_START = "<%";
   public static final String MACRO_END = "%>";
@@ -137,6 +138,11 @@ public interface WarpScriptStack {
    */
   public static final String ATTRIBUTE_TIMINGS = "timings";
   
+  /**
+   * Profiler (WarpScriptProfiler) recording calls, time and allocations per function and named macro, profiling is disabled if unset
+   */
+  public static final String ATTRIBUTE_PROFILER = "profiler";
+  
   /**
    * Maximum duration of loops in ms and its hard limit
    */
@@ -173,6 +179,12 @@ public interface WarpScriptStack {
   public static final String ATTRIBUTE_MAX_BUCKETS = "stack.maxbuckets";
   public static final String ATTRIBUTE_MAX_BUCKETS_HARD = "stack.maxbuckets.hard";
   
+  /**
+   * Maximum number of tasks REDUCE, APPLY and MAP can run concurrently, 1 means sequential execution
+   */
+  public static final String ATTRIBUTE_MAX_PARALLELISM = "stack.maxparallelism";
+  public static final String ATTRIBUTE_MAX_PARALLELISM_HARD = "stack.maxparallelism.hard";
+  
   /**
    * Current number of operations performed on this stack
    */
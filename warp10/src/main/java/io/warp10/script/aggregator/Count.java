@@ -17,10 +17,12 @@
 package io.warp10.script.aggregator;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
@@ -28,7 +30,7 @@ import io.warp10.script.WarpScriptException;
  * Return the number of measures with elevation and location from
  * the latest measure.
  */
-public class Count extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Count extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptSlidingWindowFunction {
   
   private final boolean omitNulls;
   
@@ -72,4 +74,66 @@ public class Count extends NamedWarpScriptFunction implements WarpScriptAggregat
     
     return new Object[] { tick, location, elevation, count };    
   }
+
+  @Override
+  public boolean supports(TYPE type) {
+    // Values are not considered, only their number
+    return true;
+  }
+  
+  @Override
+  public void aggregate(long tick, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int offset, int length, Result result) throws WarpScriptException {
+    result.reset();
+    
+    if (0 == length) {
+      return;
+    }
+    
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+    long timestamp = Long.MIN_VALUE;
+    
+    for (int i = offset; i < offset + length; i++) {
+      if (ticks[i] > timestamp) {
+        location = null != locations ? locations[i] : GeoTimeSerie.NO_LOCATION;
+        elevation = null != elevations ? elevations[i] : GeoTimeSerie.NO_ELEVATION;
+        timestamp = ticks[i];
+      }
+    }
+    
+    result.tick = tick;
+    result.location = location;
+    result.elevation = elevation;
+    result.setLong(length);
+  }
+
+  @Override
+  public Window window(TYPE type, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int size) {
+    return new Window(ticks, locations, elevations) {
+      @Override
+      protected void add(int idx) {}
+      
+      @Override
+      protected void remove(int idx) {}
+      
+      @Override
+      protected void clear() {}
+      
+      @Override
+      public void aggregate(long tick, Result result) {
+        result.reset();
+        
+        if (0 == size()) {
+          return;
+        }
+        
+        int idx = latest();
+        
+        result.tick = tick;
+        result.location = location(idx);
+        result.elevation = elevation(idx);
+        result.setLong(size());
+      }
+    };
+  }
 }
@@ -0,0 +1,97 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.aggregator;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.HyperLogLogPlus;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.SketchUtils;
+import io.warp10.script.StackUtils;
+import io.warp10.script.WarpScriptAggregatorFunction;
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Return an HyperLogLogPlus estimator of the number of distinct values on the interval.
+ * The estimator is returned serialized and base64 encoded, use ESTIMATE to get the
+ * cardinality and SKETCHMERGE to merge estimators.
+ * Null values are ignored, the returned value has no location nor elevation.
+ */
+public class HLLPSketch extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+  
+  private final int p;
+  
+  public static class Builder extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+    
+    public Builder(String name) {
+      super(name);
+    }
+    
+    @Override
+    public Object apply(WarpScriptStack stack) throws WarpScriptException {
+      Object value = stack.pop();
+      
+      if (!(value instanceof Long)) {
+        throw new WarpScriptException(getName() + " expects a LONG precision on top of the stack.");
+      }
+      
+      int p = ((Number) value).intValue();
+      
+      // Check the precision now rather than when the first bucket is aggregated
+      SketchUtils.newHLLP(p);
+      
+      stack.push(new HLLPSketch(getName(), p));
+      return stack;
+    }
+  }
+  
+  public HLLPSketch(String name, int p) {
+    super(name);
+    this.p = p;
+  }
+  
+  @Override
+  public Object apply(Object[] args) throws WarpScriptException {
+    long tick = (long) args[0];
+    long[] ticks = (long[]) args[3];
+    Object[] values = (Object[]) args[6];
+    
+    if (0 == ticks.length) {
+      return new Object[] { Long.MAX_VALUE, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, null };
+    }
+    
+    HyperLogLogPlus hllp = SketchUtils.newHLLP(this.p);
+    
+    for (int i = 0; i < values.length; i++) {
+      SketchUtils.add(hllp, values[i]);
+    }
+    
+    return new Object[] { tick, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, SketchUtils.toValue(hllp) };
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(StackUtils.toString((long) this.p));
+    sb.append(" ");
+    sb.append(this.getName());
+    return sb.toString();
+  }
+}
@@ -17,17 +17,19 @@
 package io.warp10.script.aggregator;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
 /**
  * Retain the last measurement of the interval
  */
-public class Last extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Last extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptSlidingWindowFunction {
   
   public Last(String name) {
     super(name);
@@ -54,4 +56,77 @@ public class Last extends NamedWarpScriptFunction implements WarpScriptAggregato
     }
     return new Object[] { ticks[idx], locations[idx], elevations[idx], values[idx] };
   }
+
+  @Override
+  public boolean supports(TYPE type) {
+    return TYPE.LONG == type || TYPE.DOUBLE == type;
+  }
+  
+  @Override
+  public void aggregate(long tick, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int offset, int length, Result result) throws WarpScriptException {
+    result.reset();
+    
+    if (0 == length) {
+      return;
+    }
+    
+    long t = Long.MIN_VALUE;
+    int idx = offset;
+    
+    for (int i = offset; i < offset + length; i++) {
+      if (ticks[i] > t) {
+        t = ticks[i];
+        idx = i;
+      }
+    }
+    
+    result.tick = ticks[idx];
+    result.location = null != locations ? locations[idx] : GeoTimeSerie.NO_LOCATION;
+    result.elevation = null != elevations ? elevations[idx] : GeoTimeSerie.NO_ELEVATION;
+    
+    if (null != longValues) {
+      result.setLong(longValues[idx]);
+    } else {
+      result.setDouble(doubleValues[idx]);
+    }
+  }
+
+  @Override
+  public Window window(TYPE type, long[] ticks, long[] locations, long[] elevations, final long[] longValues, final double[] doubleValues, int size) {
+    if (!supports(type)) {
+      return null;
+    }
+    
+    return new Window(ticks, locations, elevations) {
+      @Override
+      protected void add(int idx) {}
+      
+      @Override
+      protected void remove(int idx) {}
+      
+      @Override
+      protected void clear() {}
+      
+      @Override
+      public void aggregate(long tick, Result result) {
+        result.reset();
+        
+        if (0 == size()) {
+          return;
+        }
+        
+        int idx = latest();
+        
+        result.tick = this.ticks[idx];
+        result.location = location(idx);
+        result.elevation = elevation(idx);
+        
+        if (null != longValues) {
+          result.setLong(longValues[idx]);
+        } else {
+          result.setDouble(doubleValues[idx]);
+        }
+      }
+    };
+  }
 }
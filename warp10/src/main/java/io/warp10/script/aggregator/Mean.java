@@ -22,6 +22,7 @@ import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
@@ -32,7 +33,7 @@ import com.geoxp.GeoXPLib;
  * The returned location will be the centroid of all locations.
  * The returned elevation will be the average of all elevations.
  */
-public class Mean extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Mean extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptSlidingWindowFunction {
   
   private final boolean ignoreNulls;
   
@@ -142,4 +143,161 @@ public class Mean extends NamedWarpScriptFunction implements WarpScriptAggregato
     
     return new Object[] { ticks[0] + (ticksum / ticks.length), meanlocation, meanelevation, meanvalue };
   }
+
+  @Override
+  public boolean supports(TYPE type) {
+    return TYPE.LONG == type || TYPE.DOUBLE == type;
+  }
+  
+  @Override
+  public void aggregate(long tick, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int offset, int length, Result result) throws WarpScriptException {
+    result.reset();
+    
+    if (0 == length) {
+      return;
+    }
+    
+    long suml = null != longValues ? longValues[offset] : 0L;
+    double sumd = null != doubleValues ? doubleValues[offset] : 0.0D;
+    long ticksum = 0L;
+    long latitudes = 0L;
+    long longitudes = 0L;
+    int locationcount = 0;
+    long elev = 0L;
+    int elevationcount = 0;
+    
+    for (int i = offset; i < offset + length; i++) {
+      ticksum += ticks[i] - ticks[offset];
+      
+      if (null != locations && GeoTimeSerie.NO_LOCATION != locations[i]) {
+        long[] xy = GeoXPLib.xyFromGeoXPPoint(locations[i]);
+        latitudes += xy[0];
+        longitudes += xy[1];
+        locationcount++;
+      }
+      
+      if (null != elevations && GeoTimeSerie.NO_ELEVATION != elevations[i]) {
+        elev += elevations[i];
+        elevationcount++;
+      }
+      
+      if (i == offset) {
+        continue;
+      }
+      
+      if (null != longValues) {
+        suml = suml + longValues[i];
+      } else {
+        sumd = sumd + doubleValues[i];
+      }
+    }
+    
+    result.tick = ticks[offset] + (ticksum / length);
+    
+    if (locationcount > 0) {
+      latitudes = latitudes / locationcount;
+      longitudes = longitudes / locationcount;
+      result.location = GeoXPLib.toGeoXPPoint(latitudes, longitudes);
+    }
+    
+    if (elevationcount > 0) {
+      result.elevation = elev / elevationcount;
+    }
+    
+    if (null != longValues) {
+      result.setDouble(suml / (double) length);
+    } else {
+      result.setDouble(sumd / length);
+    }
+  }
+
+  @Override
+  public Window window(TYPE type, long[] ticks, long[] locations, long[] elevations, final long[] longValues, double[] doubleValues, int size) {
+    //
+    // Only means of LONG values are maintained incrementally, the sum of DOUBLE
+    // values depends on the order in which they are added
+    //
+    
+    if (TYPE.LONG != type) {
+      return null;
+    }
+    
+    //
+    // All sums are done on longs, so they wrap around exactly like those done in 'aggregate'
+    //
+    
+    return new Window(ticks, locations, elevations) {
+      private long sum = 0L;
+      private long ticksum = 0L;
+      private long latitudes = 0L;
+      private long longitudes = 0L;
+      private int locationcount = 0;
+      private long elev = 0L;
+      private int elevationcount = 0;
+      
+      private void update(int idx, int sign) {
+        this.sum += sign * longValues[idx];
+        this.ticksum += sign * this.ticks[idx];
+        
+        if (null != this.locations && GeoTimeSerie.NO_LOCATION != this.locations[idx]) {
+          long[] xy = GeoXPLib.xyFromGeoXPPoint(this.locations[idx]);
+          this.latitudes += sign * xy[0];
+          this.longitudes += sign * xy[1];
+          this.locationcount += sign;
+        }
+        
+        if (null != this.elevations && GeoTimeSerie.NO_ELEVATION != this.elevations[idx]) {
+          this.elev += sign * this.elevations[idx];
+          this.elevationcount += sign;
+        }
+      }
+      
+      @Override
+      protected void add(int idx) {
+        update(idx, 1);
+      }
+      
+      @Override
+      protected void remove(int idx) {
+        update(idx, -1);
+      }
+      
+      @Override
+      protected void clear() {
+        this.sum = 0L;
+        this.ticksum = 0L;
+        this.latitudes = 0L;
+        this.longitudes = 0L;
+        this.locationcount = 0;
+        this.elev = 0L;
+        this.elevationcount = 0;
+      }
+      
+      @Override
+      public void aggregate(long tick, Result result) {
+        result.reset();
+        
+        int n = size();
+        
+        if (0 == n) {
+          return;
+        }
+        
+        // Sum of the ticks relative to the first one of the window
+        long relticksum = this.ticksum - n * this.ticks[this.lo];
+        
+        result.tick = this.ticks[this.lo] + (relticksum / n);
+        
+        if (this.locationcount > 0) {
+          result.location = GeoXPLib.toGeoXPPoint(this.latitudes / this.locationcount, this.longitudes / this.locationcount);
+        }
+        
+        if (this.elevationcount > 0) {
+          result.elevation = this.elev / this.elevationcount;
+        }
+        
+        result.setDouble(this.sum / (double) n);
+      }
+    };
+  }
 }
@@ -17,17 +17,19 @@
 package io.warp10.script.aggregator;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
 /**
  * Retain the measurement with the minimum value and timestamp
  */
-public class Min extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Min extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptSlidingWindowFunction {
   
   private final boolean ignoreNulls;
   
@@ -138,4 +140,94 @@ public class Min extends NamedWarpScriptFunction implements WarpScriptAggregator
     
     return new Object[] { ticks[idx], locations[idx], elevations[idx], value };
   }
+
+  @Override
+  public boolean supports(TYPE type) {
+    return TYPE.LONG == type || TYPE.DOUBLE == type;
+  }
+  
+  @Override
+  public void aggregate(long tick, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int offset, int length, Result result) throws WarpScriptException {
+    result.reset();
+    
+    if (0 == length) {
+      return;
+    }
+    
+    int idx = offset;
+    
+    for (int i = offset + 1; i < offset + length; i++) {
+      //
+      // Use Long.compare/Double.compare so the ordering is that of Long.compareTo/Double.compareTo used in 'apply'
+      //
+      
+      int cmp = null != longValues ? Long.compare(longValues[idx], longValues[i]) : Double.compare(doubleValues[idx], doubleValues[i]);
+      
+      if (cmp > 0 || (0 == cmp && ticks[i] < ticks[idx])) {
+        idx = i;
+      }
+    }
+    
+    result.tick = ticks[idx];
+    result.location = null != locations ? locations[idx] : GeoTimeSerie.NO_LOCATION;
+    result.elevation = null != elevations ? elevations[idx] : GeoTimeSerie.NO_ELEVATION;
+    
+    if (null != longValues) {
+      result.setLong(longValues[idx]);
+    } else {
+      result.setDouble(doubleValues[idx]);
+    }
+  }
+
+  @Override
+  public Window window(TYPE type, long[] ticks, long[] locations, long[] elevations, final long[] longValues, final double[] doubleValues, int size) {
+    if (!supports(type)) {
+      return null;
+    }
+    
+    final MonotonicDeque deque = new MonotonicDeque(longValues, doubleValues, size, false);
+    
+    return new Window(ticks, locations, elevations) {
+      @Override
+      protected void add(int idx) {
+        deque.add(idx);
+      }
+      
+      @Override
+      protected void remove(int idx) {
+        deque.remove(idx);
+      }
+      
+      @Override
+      protected void clear() {
+        deque.clear();
+      }
+      
+      @Override
+      public void aggregate(long tick, Result result) {
+        result.reset();
+        
+        if (0 == size()) {
+          return;
+        }
+        
+        //
+        // Ticks are sorted, so among the values equal to the min, the one with
+        // the smallest index also has the oldest tick
+        //
+        
+        int idx = deque.first();
+        
+        result.tick = this.ticks[idx];
+        result.location = location(idx);
+        result.elevation = elevation(idx);
+        
+        if (null != longValues) {
+          result.setLong(longValues[idx]);
+        } else {
+          result.setDouble(doubleValues[idx]);
+        }
+      }
+    };
+  }
 }
@@ -17,16 +17,18 @@
 package io.warp10.script.aggregator;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
-public class StandardDeviation extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction {
+public class StandardDeviation extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, WarpScriptSlidingWindowFunction {
   
   private final boolean forbidNulls;
   private final Variance variance;
@@ -77,4 +79,48 @@ public class StandardDeviation extends NamedWarpScriptFunction implements WarpSc
   public String toString() {
     return Boolean.toString(this.forbidNulls) + " " + this.getName();
   }
+
+  @Override
+  public boolean supports(TYPE type) {
+    return this.variance.supports(type);
+  }
+  
+  @Override
+  public void aggregate(long tick, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int offset, int length, Result result) throws WarpScriptException {
+    this.variance.aggregate(tick, ticks, locations, elevations, longValues, doubleValues, offset, length, result);
+    
+    if (TYPE.DOUBLE == result.type) {
+      result.setDouble(Math.sqrt(result.doubleValue));
+    }
+  }
+
+  @Override
+  public Window window(TYPE type, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int size) {
+    final Window window = this.variance.window(type, ticks, locations, elevations, longValues, doubleValues, size);
+    
+    if (null == window) {
+      return null;
+    }
+    
+    return new Window(ticks, locations, elevations) {
+      @Override
+      protected void add(int idx) {}
+      
+      @Override
+      protected void remove(int idx) {}
+      
+      @Override
+      protected void clear() {}
+      
+      @Override
+      public void aggregate(long tick, Result result) throws WarpScriptException {
+        window.slide(this.lo, this.hi);
+        window.aggregate(tick, result);
+        
+        if (TYPE.DOUBLE == result.type) {
+          result.setDouble(Math.sqrt(result.doubleValue));
+        }
+      }
+    };
+  }
 }
@@ -22,6 +22,7 @@ import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
@@ -29,7 +30,7 @@ import io.warp10.script.WarpScriptException;
  * Return the sum of measures with elevation and location from
  * the latest measure.
  */
-public class Sum extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Sum extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptSlidingWindowFunction {
   
   private final boolean ignoreNulls;
   
@@ -111,4 +112,100 @@ public class Sum extends NamedWarpScriptFunction implements WarpScriptAggregator
     
     return new Object[] { 0L, location, elevation, sum };    
   }
+
+  @Override
+  public boolean supports(TYPE type) {
+    return TYPE.LONG == type || TYPE.DOUBLE == type;
+  }
+  
+  @Override
+  public void aggregate(long tick, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int offset, int length, Result result) throws WarpScriptException {
+    result.reset();
+    
+    if (0 == length) {
+      return;
+    }
+    
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+    long timestamp = Long.MIN_VALUE;
+    
+    long suml = null != longValues ? longValues[offset] : 0L;
+    double sumd = null != doubleValues ? doubleValues[offset] : 0.0D;
+    
+    for (int i = offset; i < offset + length; i++) {
+      if (ticks[i] > timestamp) {
+        location = null != locations ? locations[i] : GeoTimeSerie.NO_LOCATION;
+        elevation = null != elevations ? elevations[i] : GeoTimeSerie.NO_ELEVATION;
+        timestamp = ticks[i];
+      }
+      
+      if (i == offset) {
+        continue;
+      }
+      
+      if (null != longValues) {
+        suml = suml + longValues[i];
+      } else {
+        sumd = sumd + doubleValues[i];
+      }
+    }
+    
+    result.tick = 0L;
+    result.location = location;
+    result.elevation = elevation;
+    
+    if (null != longValues) {
+      result.setLong(suml);
+    } else {
+      result.setDouble(sumd);
+    }
+  }
+
+  @Override
+  public Window window(TYPE type, long[] ticks, long[] locations, long[] elevations, final long[] longValues, double[] doubleValues, int size) {
+    //
+    // Only sums of LONG values are maintained incrementally, the sum of DOUBLE
+    // values depends on the order in which they are added
+    //
+    
+    if (TYPE.LONG != type) {
+      return null;
+    }
+    
+    return new Window(ticks, locations, elevations) {
+      private long sum = 0L;
+      
+      @Override
+      protected void add(int idx) {
+        this.sum += longValues[idx];
+      }
+      
+      @Override
+      protected void remove(int idx) {
+        this.sum -= longValues[idx];
+      }
+      
+      @Override
+      protected void clear() {
+        this.sum = 0L;
+      }
+      
+      @Override
+      public void aggregate(long tick, Result result) {
+        result.reset();
+        
+        if (0 == size()) {
+          return;
+        }
+        
+        int idx = latest();
+        
+        result.tick = 0L;
+        result.location = location(idx);
+        result.elevation = elevation(idx);
+        result.setLong(this.sum);
+      }
+    };
+  }
 }
@@ -0,0 +1,97 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.aggregator;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.SketchUtils;
+import io.warp10.script.StackUtils;
+import io.warp10.script.TDigest;
+import io.warp10.script.WarpScriptAggregatorFunction;
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptReducerFunction;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Return a t-digest of the numeric values on the interval.
+ * The t-digest is returned serialized and base64 encoded, use QUANTILE to get the
+ * estimated percentiles and SKETCHMERGE to merge t-digests.
+ * Null values are ignored, the returned value has no location nor elevation.
+ */
+public class TDigestSketch extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+  
+  private final double compression;
+  
+  public static class Builder extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+    
+    public Builder(String name) {
+      super(name);
+    }
+    
+    @Override
+    public Object apply(WarpScriptStack stack) throws WarpScriptException {
+      Object value = stack.pop();
+      
+      if (!(value instanceof Long) && !(value instanceof Double)) {
+        throw new WarpScriptException(getName() + " expects a numeric compression on top of the stack.");
+      }
+      
+      double compression = ((Number) value).doubleValue();
+      
+      // Check the compression now rather than when the first bucket is aggregated
+      SketchUtils.newTDigest(compression);
+      
+      stack.push(new TDigestSketch(getName(), compression));
+      return stack;
+    }
+  }
+  
+  public TDigestSketch(String name, double compression) {
+    super(name);
+    this.compression = compression;
+  }
+  
+  @Override
+  public Object apply(Object[] args) throws WarpScriptException {
+    long tick = (long) args[0];
+    long[] ticks = (long[]) args[3];
+    Object[] values = (Object[]) args[6];
+    
+    if (0 == ticks.length) {
+      return new Object[] { Long.MAX_VALUE, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, null };
+    }
+    
+    TDigest digest = SketchUtils.newTDigest(this.compression);
+    
+    for (int i = 0; i < values.length; i++) {
+      SketchUtils.add(digest, values[i]);
+    }
+    
+    return new Object[] { tick, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, SketchUtils.toValue(digest) };
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(StackUtils.toString(this.compression));
+    sb.append(" ");
+    sb.append(this.getName());
+    return sb.toString();
+  }
+}
@@ -22,12 +22,13 @@ import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptSlidingWindowFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
-public class Variance extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction {
+public class Variance extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, WarpScriptSlidingWindowFunction {
   
   private final boolean useBessel;
   private final boolean forbidNulls;
@@ -151,4 +152,136 @@ public class Variance extends NamedWarpScriptFunction implements WarpScriptAggre
   public String toString() {
     return Boolean.toString(this.forbidNulls) + " " + this.getName();
   }
+
+  @Override
+  public boolean supports(TYPE type) {
+    return TYPE.LONG == type || TYPE.DOUBLE == type;
+  }
+  
+  @Override
+  public void aggregate(long tick, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int offset, int length, Result result) throws WarpScriptException {
+    result.reset();
+    
+    if (0 == length) {
+      return;
+    }
+    
+    double sum = 0.0D;
+    double sumsq = 0.0D;
+    
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+    long timestamp = Long.MIN_VALUE;
+    
+    for (int i = offset; i < offset + length; i++) {
+      if (ticks[i] > timestamp) {
+        location = null != locations ? locations[i] : GeoTimeSerie.NO_LOCATION;
+        elevation = null != elevations ? elevations[i] : GeoTimeSerie.NO_ELEVATION;
+        timestamp = ticks[i];
+      }
+      
+      double v = null != longValues ? (double) longValues[i] : doubleValues[i];
+      
+      if (i == offset) {
+        sum = v;
+        sumsq = sum * sum;
+      } else {
+        sum += v;
+        sumsq += v * v;
+      }
+    }
+    
+    int n = length;
+    double variance = (sumsq / (double) n) - (sum * sum) / (((double) n) * ((double) n));
+    
+    if (n > 1 && useBessel) {
+      variance = variance * ((double) n) / (((double) n) - 1.0D);
+    }
+    
+    result.tick = 0L;
+    result.location = location;
+    result.elevation = elevation;
+    result.setDouble(variance);
+  }
+
+  /**
+   * Bound below which sums of integers are exactly represented as doubles
+   */
+  private static final double EXACT_DOUBLE_BOUND = (double) (1L << 52);
+  
+  @Override
+  public Window window(TYPE type, long[] ticks, long[] locations, long[] elevations, final long[] longValues, double[] doubleValues, int size) {
+    if (TYPE.LONG != type) {
+      return null;
+    }
+    
+    //
+    // The moments are maintained as longs, this produces the same result as the floating
+    // point sums of 'aggregate' only if all the partial sums are exactly representable as doubles.
+    // Check that the sum of the absolute values and that of the squares are small enough.
+    //
+    
+    double abssum = 0.0D;
+    double sqsum = 0.0D;
+    
+    for (int i = 0; i < size; i++) {
+      double v = Math.abs((double) longValues[i]);
+      abssum += v;
+      sqsum += v * v;
+      
+      if (abssum >= EXACT_DOUBLE_BOUND || sqsum >= EXACT_DOUBLE_BOUND) {
+        return null;
+      }
+    }
+    
+    return new Window(ticks, locations, elevations) {
+      private long sum = 0L;
+      private long sumsq = 0L;
+      
+      @Override
+      protected void add(int idx) {
+        this.sum += longValues[idx];
+        this.sumsq += longValues[idx] * longValues[idx];
+      }
+      
+      @Override
+      protected void remove(int idx) {
+        this.sum -= longValues[idx];
+        this.sumsq -= longValues[idx] * longValues[idx];
+      }
+      
+      @Override
+      protected void clear() {
+        this.sum = 0L;
+        this.sumsq = 0L;
+      }
+      
+      @Override
+      public void aggregate(long tick, Result result) {
+        result.reset();
+        
+        int n = size();
+        
+        if (0 == n) {
+          return;
+        }
+        
+        double sum = (double) this.sum;
+        double sumsq = (double) this.sumsq;
+        
+        double variance = (sumsq / (double) n) - (sum * sum) / (((double) n) * ((double) n));
+        
+        if (n > 1 && useBessel) {
+          variance = variance * ((double) n) / (((double) n) - 1.0D);
+        }
+        
+        int idx = latest();
+        
+        result.tick = 0L;
+        result.location = location(idx);
+        result.elevation = elevation(idx);
+        result.setDouble(variance);
+      }
+    };
+  }
 }
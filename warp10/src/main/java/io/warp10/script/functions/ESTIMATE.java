@@ -0,0 +1,76 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.HyperLogLogPlus;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.SketchUtils;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.io.IOException;
+
+/**
+ * Push on the stack the cardinality estimated by an HyperLogLogPlus estimator.
+ * 
+ * The estimator can be serialized. If a GTS of serialized estimators is on top of the stack,
+ * as produced by bucketizer.hllp or reducer.hllp, a GTS of estimated cardinalities is pushed.
+ */
+public class ESTIMATE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+  
+  public ESTIMATE(String name) {
+    super(name);
+  }
+  
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object o = stack.pop();
+    
+    if (o instanceof GeoTimeSerie) {
+      GeoTimeSerie gts = (GeoTimeSerie) o;
+      int n = GTSHelper.nvalues(gts);
+      
+      GeoTimeSerie estimates = gts.cloneEmpty(n);
+      
+      for (int i = 0; i < n; i++) {
+        long cardinality = estimate(SketchUtils.toSketch(GTSHelper.valueAtIndex(gts, i)));
+        GTSHelper.setValue(estimates, GTSHelper.tickAtIndex(gts, i), GTSHelper.locationAtIndex(gts, i), GTSHelper.elevationAtIndex(gts, i), cardinality, false);
+      }
+      
+      stack.push(estimates);
+    } else {
+      stack.push(estimate(SketchUtils.toSketch(o)));
+    }
+    
+    return stack;
+  }
+  
+  private long estimate(Object sketch) throws WarpScriptException {
+    if (!(sketch instanceof HyperLogLogPlus)) {
+      throw new WarpScriptException(getName() + " operates on HyperLogLogPlus estimators.");
+    }
+    
+    try {
+      return ((HyperLogLogPlus) sketch).cardinality();
+    } catch (IOException ioe) {
+      throw new WarpScriptException(ioe);
+    }
+  }
+}
@@ -27,17 +27,22 @@ import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.FetchRequest;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.MetadataIterator;
+import io.warp10.continuum.store.Rollup;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.Metadata;
 import io.warp10.crypto.KeyStore;
 import io.warp10.crypto.SipHashInline;
 import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.script.JavaLibrary;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.sensision.Sensision;
 
 import java.io.IOException;
@@ -69,6 +74,22 @@ import com.geoxp.GeoXPLib.GeoXPShape;
  * @param timespan Width of time period to consider (in us). Timestamps at or before now - timespan will be ignored.
  * 
  * The last two parameters can be replaced by String parameters representing the end and start ISO8601 timestamps
+ * 
+ * When parameters are passed as a map, the 'bucketize' (a list of bucketizer, lastbucket, bucketspan and bucketcount)
+ * and 'macro' parameters can be used to reduce each GTS as soon as it has been read from the store. The GTS is first
+ * bucketized, then pushed onto the stack and the macro is called, the macro is expected to replace the GTS by its result.
+ * The list pushed onto the stack then contains those results instead of the raw GTS, so only the reduced data is
+ * kept in memory. Those parameters are rejected if the token has a postfetch hook, as the hook must see the raw GTS.
+ * 
+ * When parameters are passed as a map, 'count' can be combined with 'timespan' or 'start' to only fetch the 'count' most
+ * recent values of the time range, 'skip' ignores that many most recent values and 'sample' retains each selected value
+ * with the given probability. Those limits are passed down to the store so it only reads the values it needs.
+ * 
+ * When parameters are passed as a map and 'rollup' is true, 'bucketize' must use one of bucketizer.min, max, sum, count,
+ * first or last with a positive bucketspan and a lastbucket congruent to 0 modulo bucketspan (or lastbucket and bucketcount
+ * set to 0). The store then returns per bucket aggregates, read from its rollups when it maintains some at a resolution
+ * which divides bucketspan, which are then combined into the requested buckets. Locations and elevations are only kept
+ * for first and last, non numeric values are ignored.
  */
 public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFunction {
   
@@ -87,6 +108,8 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
   private static final String PARAM_START = "start";
   private static final String PARAM_COUNT = "count";
   private static final String PARAM_TIMESPAN = "timespan";
+  private static final String PARAM_SKIP = "skip";
+  private static final String PARAM_SAMPLE = "sample";
   private static final String PARAM_TYPE = "type";
   private static final String PARAM_GEO = "geo";
   private static final String PARAM_GEODIR = "geodir";
@@ -95,6 +118,9 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
   private static final String PARAM_GEOOP_OUT = "out";
   private static final String PARAM_WRITE_TIMESTAMP = "wtimestamp";
   private static final String PARAM_SHOWUUID = "showuuid";
+  private static final String PARAM_BUCKETIZE = "bucketize";
+  private static final String PARAM_MACRO = "macro";
+  private static final String PARAM_ROLLUP = "rollup";
   
   public static final String POSTFETCH_HOOK = "postfetch";
   
@@ -253,6 +279,8 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
     GeoTimeSerie base = null;
     
     ReadToken rtoken = Tokens.extractReadToken(params.get(PARAM_TOKEN).toString());
+    
+    boolean hasPostfetchHook = checkPostfetchHook(rtoken, params);
       
         
     List<String> clsSels = new ArrayList<String>();
@@ -289,7 +317,7 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
 
     metadatas = new ArrayList<Metadata>();
     
-    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();    
+    List<Object> series = new ArrayList<Object>();    
     AtomicLong fetched = (AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT);    
     long fetchLimit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT);
     long gtsLimit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT);
@@ -364,7 +392,28 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         // then one from another, then one from the first one.
         //
               
-        long timespan = params.containsKey(PARAM_TIMESPAN) ? (long) params.get(PARAM_TIMESPAN) : - ((long) params.get(PARAM_COUNT));
+        FetchRequest request = new FetchRequest();
+        request.setEnd((long) params.get(PARAM_END));
+        
+        if (params.containsKey(PARAM_TIMESPAN)) {
+          request.setStart((long) params.get(PARAM_END) - (long) params.get(PARAM_TIMESPAN) + 1);
+        }
+        
+        if (params.containsKey(PARAM_COUNT)) {
+          request.setCount((long) params.get(PARAM_COUNT));
+        }
+        
+        if (params.containsKey(PARAM_SKIP)) {
+          request.setSkip((long) params.get(PARAM_SKIP));
+        }
+        
+        if (params.containsKey(PARAM_SAMPLE)) {
+          request.setSample((double) params.get(PARAM_SAMPLE));
+        }
+        
+        if (params.containsKey(PARAM_ROLLUP)) {
+          request.setRollup((long) ((List<Object>) params.get(PARAM_BUCKETIZE)).get(2), (Rollup.Aggregate) params.get(PARAM_ROLLUP));
+        }
         
         TYPE type = (TYPE) params.get(PARAM_TYPE);
 
@@ -379,7 +428,10 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         
         boolean showUUID = Boolean.TRUE.equals(params.get(PARAM_SHOWUUID));
         
-        try (GTSDecoderIterator gtsiter = gtsStore.fetch(rtoken, metadatas, (long) params.get(PARAM_END), timespan, fromArchive, writeTimestamp)) {  
+        request.setFromArchive(fromArchive);
+        request.setWriteTimestamp(writeTimestamp);
+        
+        try (GTSDecoderIterator gtsiter = gtsStore.fetch(rtoken, metadatas, request)) {  
           while(gtsiter.hasNext()) {
             GTSDecoder decoder = gtsiter.next();
                     
@@ -422,7 +474,7 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
               // Otherwise add 'base' to the stack and set it to 'gts'.
               //
               if (!base.getMetadata().getName().equals(gts.getMetadata().getName()) || !base.getMetadata().getLabels().equals(gts.getMetadata().getLabels())) {
-                series.add(base);
+                series.add(reduce(stack, params, base));
                 base = gts;
               } else {
                 base = GTSHelper.merge(base, gts);
@@ -449,7 +501,7 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         //
         
         if (null != base) {
-          series.add(base);
+          series.add(reduce(stack, params, base));
         }     
         
         //
@@ -476,14 +528,77 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
     // Apply a possible postfetch hook
     //
     
-    if (rtoken.getHooksSize() > 0 && rtoken.getHooks().containsKey(POSTFETCH_HOOK)) {
+    if (hasPostfetchHook) {
       stack.execMulti(rtoken.getHooks().get(POSTFETCH_HOOK));
     }
     
     return stack;
   }
   
-  private Map<String,Object> paramsFromMap(WarpScriptStack stack, Map<String,Object> map) throws WarpScriptException {
+  /**
+   * The postfetch hook of the token must see the fetched GTS, so they cannot be reduced
+   * by 'bucketize' or 'macro' before it runs.
+   * 
+   * @return true if the token has a postfetch hook
+   * @throws WarpScriptException if the token has a postfetch hook and a reduction is requested
+   */
+  boolean checkPostfetchHook(ReadToken rtoken, Map<String,Object> params) throws WarpScriptException {
+    if (rtoken.getHooksSize() == 0 || !rtoken.getHooks().containsKey(POSTFETCH_HOOK)) {
+      return false;
+    }
+    
+    if (params.containsKey(PARAM_BUCKETIZE) || params.containsKey(PARAM_MACRO)) {
+      throw new WarpScriptException(getName() + " parameters '" + PARAM_BUCKETIZE + "' and '" + PARAM_MACRO + "' cannot be used with a token which has a '" + POSTFETCH_HOOK + "' hook.");
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Apply the 'bucketize' and 'macro' parameters, if any, to a fetched GTS
+   * 
+   * @return the GTS if no reduction was requested, the result of the reduction otherwise
+   */
+  private Object reduce(WarpScriptStack stack, Map<String,Object> params, GeoTimeSerie gts) throws WarpScriptException {
+    
+    if (params.containsKey(PARAM_BUCKETIZE)) {
+      List<Object> bparams = (List<Object>) params.get(PARAM_BUCKETIZE);
+      
+      WarpScriptBucketizerFunction bucketizer = (WarpScriptBucketizerFunction) bparams.get(0);
+      
+      //
+      // Rollups are combined with the same bucketizer, except counts which are summed
+      //
+      
+      if (Rollup.Aggregate.COUNT == params.get(PARAM_ROLLUP)) {
+        bucketizer = (WarpScriptBucketizerFunction) JavaLibrary.getFunction("bucketizer.sum");
+      }
+      long lastbucket = (long) bparams.get(1);
+      long bucketspan = (long) bparams.get(2);
+      int bucketcount = (int) ((long) bparams.get(3));
+      
+      long maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
+      
+      gts = GTSHelper.bucketize(gts, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets);
+    }
+    
+    if (!params.containsKey(PARAM_MACRO)) {
+      return gts;
+    }
+    
+    int depth = stack.depth();
+    
+    stack.push(gts);
+    stack.exec((Macro) params.get(PARAM_MACRO));
+    
+    if (stack.depth() != depth + 1) {
+      throw new WarpScriptException(getName() + " macro is expected to replace the Geo Time Series with a single result.");
+    }
+    
+    return stack.pop();
+  }
+  
+  Map<String,Object> paramsFromMap(WarpScriptStack stack, Map<String,Object> map) throws WarpScriptException {
     Map<String,Object> params = new HashMap<String, Object>();
     
     if (!map.containsKey(PARAM_TOKEN)) {
@@ -528,9 +643,19 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
     }
     
     if (map.containsKey(PARAM_TIMESPAN)) {
-      params.put(PARAM_TIMESPAN, (long) map.get(PARAM_TIMESPAN));
-    } else if (map.containsKey(PARAM_COUNT)) {
-      params.put(PARAM_COUNT, (long) map.get(PARAM_COUNT));
+      long timespan = (long) map.get(PARAM_TIMESPAN);
+      
+      //
+      // As in the list form, a negative timespan selects the -timespan most recent values
+      //
+      
+      if (timespan >= 0) {
+        params.put(PARAM_TIMESPAN, timespan);
+      } else if (map.containsKey(PARAM_COUNT)) {
+        throw new WarpScriptException(getName() + " A negative '" + PARAM_TIMESPAN + "' cannot be combined with '" + PARAM_COUNT + "'.");
+      } else {
+        params.put(PARAM_COUNT, -timespan);
+      }
     } else if (map.containsKey(PARAM_START)) {
       long end = (long) params.get(PARAM_END);
       long start;
@@ -538,7 +663,7 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
       if (map.get(PARAM_START) instanceof Long) {
         start = (long) map.get(PARAM_START);
       } else {
-        start = fmt.parseDateTime(map.get(PARAM_END).toString()).getMillis() * Constants.TIME_UNITS_PER_MS;
+        start = fmt.parseDateTime(map.get(PARAM_START).toString()).getMillis() * Constants.TIME_UNITS_PER_MS;
       }
       
       long timespan;
@@ -552,10 +677,44 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
       
       params.put(PARAM_END, end);
       params.put(PARAM_TIMESPAN, timespan);
-    } else {
+    }
+    
+    //
+    // 'count' can be used alone or to limit the number of values fetched in the time range
+    //
+    
+    if (map.containsKey(PARAM_COUNT)) {
+      params.put(PARAM_COUNT, (long) map.get(PARAM_COUNT));
+    }
+    
+    if (!params.containsKey(PARAM_TIMESPAN) && !params.containsKey(PARAM_COUNT)) {
       throw new WarpScriptException(getName() + " Missing parameter '" + PARAM_TIMESPAN + "' or '" + PARAM_COUNT + "' or '" + PARAM_START + "'");
     }
     
+    if (params.containsKey(PARAM_COUNT) && (long) params.get(PARAM_COUNT) < 0) {
+      throw new WarpScriptException(getName() + " Invalid negative value for parameter '" + PARAM_COUNT + "'.");
+    }
+    
+    if (map.containsKey(PARAM_SKIP)) {
+      long skip = ((Number) map.get(PARAM_SKIP)).longValue();
+      
+      if (skip < 0) {
+        throw new WarpScriptException(getName() + " Invalid negative value for parameter '" + PARAM_SKIP + "'.");
+      }
+      
+      params.put(PARAM_SKIP, skip);
+    }
+    
+    if (map.containsKey(PARAM_SAMPLE)) {
+      double sample = ((Number) map.get(PARAM_SAMPLE)).doubleValue();
+      
+      if (!(sample > 0.0D && sample <= 1.0D)) {
+        throw new WarpScriptException(getName() + " Parameter '" + PARAM_SAMPLE + "' must be in ]0,1].");
+      }
+      
+      params.put(PARAM_SAMPLE, sample);
+    }
+    
     if (map.containsKey(PARAM_GEO)) {
       if (!(map.get(PARAM_GEO) instanceof GeoXPShape)) {
         throw new WarpScriptException(getName() + " Invalid '" + PARAM_GEO + "' type.");
@@ -622,6 +781,70 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
       params.put(PARAM_WRITE_TIMESTAMP, Boolean.TRUE.equals(map.get(PARAM_WRITE_TIMESTAMP)));
     }
     
+    if (map.containsKey(PARAM_BUCKETIZE)) {
+      Object bparams = map.get(PARAM_BUCKETIZE);
+      
+      if (!(bparams instanceof List) || 4 != ((List) bparams).size()
+          || !(((List) bparams).get(0) instanceof WarpScriptBucketizerFunction)
+          || !(((List) bparams).get(1) instanceof Long) || !(((List) bparams).get(2) instanceof Long) || !(((List) bparams).get(3) instanceof Long)) {
+        throw new WarpScriptException(getName() + " expects parameter '" + PARAM_BUCKETIZE + "' to be a list of bucketizer, lastbucket, bucketspan and bucketcount.");
+      }
+      
+      params.put(PARAM_BUCKETIZE, bparams);
+    }
+    
+    if (map.containsKey(PARAM_MACRO)) {
+      if (!(map.get(PARAM_MACRO) instanceof Macro)) {
+        throw new WarpScriptException(getName() + " Invalid type for parameter '" + PARAM_MACRO + "'.");
+      }
+      
+      params.put(PARAM_MACRO, map.get(PARAM_MACRO));
+    }
+    
+    if (Boolean.TRUE.equals(map.get(PARAM_ROLLUP))) {
+      if (!params.containsKey(PARAM_BUCKETIZE)) {
+        throw new WarpScriptException(getName() + " parameter '" + PARAM_ROLLUP + "' requires parameter '" + PARAM_BUCKETIZE + "'.");
+      }
+      
+      if (params.containsKey(PARAM_COUNT) || params.containsKey(PARAM_SKIP) || params.containsKey(PARAM_SAMPLE)) {
+        throw new WarpScriptException(getName() + " parameter '" + PARAM_ROLLUP + "' cannot be combined with '" + PARAM_COUNT + "', '" + PARAM_SKIP + "' or '" + PARAM_SAMPLE + "'.");
+      }
+      
+      List<Object> bparams = (List<Object>) params.get(PARAM_BUCKETIZE);
+      
+      Rollup.Aggregate aggregate = getAggregate(bparams.get(0));
+      long lastbucket = (long) bparams.get(1);
+      long bucketspan = (long) bparams.get(2);
+      long bucketcount = (long) bparams.get(3);
+      
+      if (null == aggregate || bucketspan <= 0 || 0 != lastbucket % bucketspan || (0 == lastbucket && 0 != bucketcount)) {
+        throw new WarpScriptException(getName() + " parameter '" + PARAM_ROLLUP + "' requires a min, max, sum, count, first or last bucketizer, a positive bucketspan and a lastbucket congruent to 0 modulo bucketspan.");
+      }
+      
+      params.put(PARAM_ROLLUP, aggregate);
+    }
+    
     return params;
   }
+  
+  /**
+   * Return the rollup aggregate computed by a bucketizer, null if it cannot be computed from rollups
+   */
+  private static Rollup.Aggregate getAggregate(Object bucketizer) {
+    if (bucketizer == JavaLibrary.getFunction("bucketizer.min")) {
+      return Rollup.Aggregate.MIN;
+    } else if (bucketizer == JavaLibrary.getFunction("bucketizer.max")) {
+      return Rollup.Aggregate.MAX;
+    } else if (bucketizer == JavaLibrary.getFunction("bucketizer.sum")) {
+      return Rollup.Aggregate.SUM;
+    } else if (bucketizer == JavaLibrary.getFunction("bucketizer.count")) {
+      return Rollup.Aggregate.COUNT;
+    } else if (bucketizer == JavaLibrary.getFunction("bucketizer.first")) {
+      return Rollup.Aggregate.FIRST;
+    } else if (bucketizer == JavaLibrary.getFunction("bucketizer.last")) {
+      return Rollup.Aggregate.LAST;
+    } else {
+      return null;
+    }
+  }
 }
@@ -19,6 +19,7 @@ package io.warp10.script.functions;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
@@ -28,6 +29,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Apply a mapper on some GTS instances
@@ -137,12 +139,12 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
       throw new WarpScriptException(getName() + " Missing '" + PARAM_MAPPER + "' parameter.");
     }
     
-    WarpScriptMapperFunction mapper = (WarpScriptMapperFunction) params.get(PARAM_MAPPER);
-    long prewindow = !params.containsKey(PARAM_PREWINDOW) ? 0 : (long) params.get(PARAM_PREWINDOW);
-    long postwindow = !params.containsKey(PARAM_POSTWINDOW) ? 0 : (long) params.get(PARAM_POSTWINDOW);
-    int occurrences = !params.containsKey(PARAM_OCCURENCES) ? 0 : (int) ((long) params.get(PARAM_OCCURENCES));
-    int step = !params.containsKey(PARAM_STEP) ? 1 : (int) ((long) params.get(PARAM_STEP));
-    boolean overrideTick = !params.containsKey(PARAM_OVERRIDE) ? false : (boolean) params.get(PARAM_OVERRIDE);
+    final WarpScriptMapperFunction mapper = (WarpScriptMapperFunction) params.get(PARAM_MAPPER);
+    final long prewindow = !params.containsKey(PARAM_PREWINDOW) ? 0 : (long) params.get(PARAM_PREWINDOW);
+    final long postwindow = !params.containsKey(PARAM_POSTWINDOW) ? 0 : (long) params.get(PARAM_POSTWINDOW);
+    final int occurrences = !params.containsKey(PARAM_OCCURENCES) ? 0 : (int) ((long) params.get(PARAM_OCCURENCES));
+    final int step = !params.containsKey(PARAM_STEP) ? 1 : (int) ((long) params.get(PARAM_STEP));
+    final boolean overrideTick = !params.containsKey(PARAM_OVERRIDE) ? false : (boolean) params.get(PARAM_OVERRIDE);
     
     // Handle gts and nested list of gts
     
@@ -185,8 +187,41 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
     
     List<Object> mapped = new ArrayList<Object>();
     
-    for (GeoTimeSerie gts: series) {
-      List<GeoTimeSerie> res = GTSHelper.map(gts, mapper, prewindow, postwindow, Math.abs(occurrences), occurrences < 0 ? true : false, step, overrideTick);
+    int parallelism = WarpScriptParallel.getParallelism(stack, mapper);
+    
+    List<List<GeoTimeSerie>> results;
+    
+    if (parallelism > 1) {
+      //
+      // The same GTS may appear several times, sort them beforehand so
+      // they are not sorted concurrently
+      //
+      
+      for (GeoTimeSerie gts: series) {
+        GTSHelper.sort(gts);
+      }
+      
+      List<Callable<List<GeoTimeSerie>>> tasks = new ArrayList<Callable<List<GeoTimeSerie>>>(series.size());
+      
+      for (final GeoTimeSerie gts: series) {
+        tasks.add(new Callable<List<GeoTimeSerie>>() {
+          @Override
+          public List<GeoTimeSerie> call() throws Exception {
+            return GTSHelper.map(gts, mapper, prewindow, postwindow, Math.abs(occurrences), occurrences < 0 ? true : false, step, overrideTick);
+          }
+        });
+      }
+      
+      results = WarpScriptParallel.invoke(parallelism, tasks);
+    } else {
+      results = new ArrayList<List<GeoTimeSerie>>(series.size());
+      
+      for (GeoTimeSerie gts: series) {
+        results.add(GTSHelper.map(gts, mapper, prewindow, postwindow, Math.abs(occurrences), occurrences < 0 ? true : false, step, overrideTick));
+      }
+    }
+    
+    for (List<GeoTimeSerie> res: results) {
       if (res.size() < 2) {
         mapped.addAll(res);
       } else {
@@ -0,0 +1,50 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptProfiler;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.util.ArrayList;
+
+/**
+ * Push onto the stack the profile collected so far, as a list of maps with the
+ * name, call count, total and self times (in ns) and allocated bytes of each function
+ * and named macro. An empty list is pushed if profiling is not enabled.
+ */
+public class PROFILED extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+  
+  public PROFILED(String name) {
+    super(name);
+  }
+  
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object profiler = stack.getAttribute(WarpScriptStack.ATTRIBUTE_PROFILER);
+    
+    if (profiler instanceof WarpScriptProfiler) {
+      stack.push(((WarpScriptProfiler) profiler).getProfile());
+    } else {
+      stack.push(new ArrayList<Object>());
+    }
+    
+    return stack;
+  }
+}
@@ -0,0 +1,106 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.SketchUtils;
+import io.warp10.script.TDigest;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Push on the stack the value at a given quantile estimated by a t-digest.
+ * 
+ * The quantile (in [0,1]) or a list of quantiles is on top of the stack, the t-digest below.
+ * The t-digest can be serialized. If it is a GTS of serialized t-digests, as produced by
+ * bucketizer.tdigest or reducer.tdigest, a GTS of estimated values (one per t-digest) is pushed,
+ * in that case a single quantile is expected.
+ */
+public class QUANTILE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+  
+  public QUANTILE(String name) {
+    super(name);
+  }
+  
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object q = stack.pop();
+    Object o = stack.pop();
+    
+    if (o instanceof GeoTimeSerie) {
+      if (!(q instanceof Number)) {
+        throw new WarpScriptException(getName() + " expects a single quantile when operating on a GTS.");
+      }
+      
+      GeoTimeSerie gts = (GeoTimeSerie) o;
+      int n = GTSHelper.nvalues(gts);
+      
+      GeoTimeSerie quantiles = gts.cloneEmpty(n);
+      
+      for (int i = 0; i < n; i++) {
+        double value = quantile(toDigest(GTSHelper.valueAtIndex(gts, i)), q);
+        GTSHelper.setValue(quantiles, GTSHelper.tickAtIndex(gts, i), GTSHelper.locationAtIndex(gts, i), GTSHelper.elevationAtIndex(gts, i), value, false);
+      }
+      
+      stack.push(quantiles);
+    } else if (q instanceof List) {
+      TDigest digest = toDigest(o);
+      
+      List<Object> values = new ArrayList<Object>(((List<Object>) q).size());
+      
+      for (Object elt: (List<Object>) q) {
+        values.add(quantile(digest, elt));
+      }
+      
+      stack.push(values);
+    } else {
+      stack.push(quantile(toDigest(o), q));
+    }
+    
+    return stack;
+  }
+  
+  private TDigest toDigest(Object o) throws WarpScriptException {
+    Object sketch = SketchUtils.toSketch(o);
+    
+    if (!(sketch instanceof TDigest)) {
+      throw new WarpScriptException(getName() + " operates on t-digests.");
+    }
+    
+    return (TDigest) sketch;
+  }
+  
+  private double quantile(TDigest digest, Object q) throws WarpScriptException {
+    if (!(q instanceof Number)) {
+      throw new WarpScriptException(getName() + " expects numeric quantiles.");
+    }
+    
+    double quantile = ((Number) q).doubleValue();
+    
+    if (!(quantile >= 0.0D && quantile <= 1.0D)) {
+      throw new WarpScriptException("Invalid quantile, MUST be between 0 and 1.");
+    }
+    
+    return digest.quantile(quantile);
+  }
+}
@@ -19,6 +19,7 @@ package io.warp10.script.functions;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptParallel;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
@@ -86,10 +87,14 @@ public class REDUCE extends NamedWarpScriptFunction implements WarpScriptStackFu
       series.addAll((Collection<GeoTimeSerie>) params.get(i));
     }    
 
+    WarpScriptReducerFunction reducer = (WarpScriptReducerFunction) params.get(params.size() - 1);
+    
+    int parallelism = WarpScriptParallel.getParallelism(stack, reducer);
+    
     if (this.flatten) {
-      stack.push(GTSHelper.reduce((WarpScriptReducerFunction) params.get(params.size() - 1), series, bylabels));
+      stack.push(GTSHelper.reduce(reducer, series, bylabels, parallelism));
     } else {
-      stack.push(GTSHelper.reduceUnflattened((WarpScriptReducerFunction) params.get(params.size() - 1), series, bylabels));
+      stack.push(GTSHelper.reduceUnflattened(reducer, series, bylabels, parallelism));
     }
     return stack;
   }
@@ -0,0 +1,61 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.SketchUtils;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.util.List;
+
+/**
+ * Add values to a sketch (HyperLogLogPlus or t-digest).
+ * 
+ * The values are on top of the stack, either a single value, a list of values or a GTS
+ * whose values are added. The sketch below is updated and left on the stack.
+ */
+public class SKETCHADD extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+  
+  public SKETCHADD(String name) {
+    super(name);
+  }
+  
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object values = stack.pop();
+    Object sketch = stack.peek();
+    
+    if (!SketchUtils.isSketch(sketch)) {
+      throw new WarpScriptException(getName() + " expects a sketch below the values to add.");
+    }
+    
+    if (values instanceof GeoTimeSerie) {
+      SketchUtils.add(sketch, (GeoTimeSerie) values);
+    } else if (values instanceof List) {
+      for (Object value: (List<Object>) values) {
+        SketchUtils.add(sketch, value);
+      }
+    } else {
+      SketchUtils.add(sketch, values);
+    }
+    
+    return stack;
+  }
+}
@@ -0,0 +1,58 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.SketchUtils;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.util.List;
+
+/**
+ * Merge a list of sketches of the same kind into a new sketch.
+ * 
+ * The elements of the list can be sketches, serialized sketches (byte arrays or base64 encoded
+ * STRINGs) or GTS whose values are serialized sketches such as those produced by the sketch
+ * bucketizers and reducers. The input sketches are left untouched.
+ */
+public class SKETCHMERGE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+  
+  public SKETCHMERGE(String name) {
+    super(name);
+  }
+  
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object o = stack.pop();
+    
+    if (!(o instanceof List)) {
+      throw new WarpScriptException(getName() + " expects a list of sketches on top of the stack.");
+    }
+    
+    Object merged = SketchUtils.merge((List<Object>) o);
+    
+    if (null == merged) {
+      throw new WarpScriptException(getName() + " needs at least one sketch to merge.");
+    }
+    
+    stack.push(merged);
+    
+    return stack;
+  }
+}
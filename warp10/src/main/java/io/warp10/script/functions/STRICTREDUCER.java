@@ -33,7 +33,7 @@ public class STRICTREDUCER extends NamedWarpScriptFunction implements WarpScript
     super(name);
   }
   
-  private static final class StringentReducer extends NamedWarpScriptFunction implements WarpScriptReducerFunction {
+  public static final class StringentReducer extends NamedWarpScriptFunction implements WarpScriptReducerFunction {
     
     private final WarpScriptReducerFunction reducer;
     
@@ -56,6 +56,10 @@ public class STRICTREDUCER extends NamedWarpScriptFunction implements WarpScript
       return reducer.apply(args);
     }
     
+    public WarpScriptReducerFunction getReducer() {
+      return this.reducer;
+    }
+    
     @Override
     public String toString() {
       StringBuilder sb = new StringBuilder();
@@ -0,0 +1,48 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.SketchUtils;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Push on the stack an empty t-digest quantile estimator.
+ * The compression (in [10,10000]) is on top of the stack, the larger the compression
+ * the more accurate (and the larger) the digest. 100 is a sensible value.
+ */
+public class TDIGEST extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+  
+  public TDIGEST(String name) {
+    super(name);
+  }
+  
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object o = stack.pop();
+    
+    if (!(o instanceof Long) && !(o instanceof Double)) {
+      throw new WarpScriptException(getName() + " expects a numeric compression on top of the stack.");
+    }
+    
+    stack.push(SketchUtils.newTDigest(((Number) o).doubleValue()));
+    
+    return stack;
+  }
+}
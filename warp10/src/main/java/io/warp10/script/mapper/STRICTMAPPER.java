@@ -35,7 +35,7 @@ public class STRICTMAPPER extends NamedWarpScriptFunction implements WarpScriptS
   }
 
   
-  private static final class StringentMapper extends NamedWarpScriptFunction implements WarpScriptMapperFunction {
+  public static final class StringentMapper extends NamedWarpScriptFunction implements WarpScriptMapperFunction {
     
     private final int min;
     private final int max;
@@ -60,6 +60,10 @@ public class STRICTMAPPER extends NamedWarpScriptFunction implements WarpScriptS
       return mapper.apply(args);
     }
     
+    public WarpScriptMapperFunction getMapper() {
+      return this.mapper;
+    }
+    
     @Override
     public String toString() {
       StringBuilder sb = new StringBuilder();
@@ -0,0 +1,342 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.continuum.store.FetchRequest;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.quasar.token.thrift.data.WriteToken;
+import io.warp10.sensision.Sensision;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StoreClient sharing the results of identical fetches issued within 'ttl' ms, so the scripts run by
+ * the ScriptRunner in the same tick which FETCH the same GTS hit the underlying store once. A fetch
+ * identical to one in progress waits for its result, at most 'timeout' ms.
+ * 
+ * Fetches are only shared between tokens with the same billed identity and application, so the fetch
+ * statistics recorded by the underlying store for the first fetch are accounted to the right consumer.
+ * 
+ * Results are retained as long as their total encoded size stays below 'maxsize' bytes. Sampled fetches
+ * are never shared.
+ */
+public class CachingStoreClient implements StoreClient {
+  
+  private final StoreClient client;
+  
+  private final long ttl;
+  
+  private final long maxsize;
+  
+  /**
+   * Maximum time (in ms) to wait for the result of an identical fetch in progress
+   */
+  private final long timeout;
+  
+  /**
+   * Total encoded size of the retained results
+   */
+  private final AtomicLong size = new AtomicLong(0L);
+  
+  private final ConcurrentHashMap<Key,Result> results = new ConcurrentHashMap<Key, Result>();
+  
+  private volatile long lastPurge = 0L;
+  
+  /**
+   * Identity of a fetch, the billed identity, the GTS fetched and the parameters of the request
+   */
+  private static final class Key {
+    private final byte[] billedId;
+    private final String appName;
+    private final long[] ids;
+    private final long[] params;
+    private final Object aggregate;
+    private final boolean fromArchive;
+    private final boolean writeTimestamp;
+    private final int hash;
+    
+    private Key(ReadToken token, List<Metadata> metadatas, FetchRequest request) {
+      this.billedId = null == token ? null : token.getBilledId();
+      this.appName = null == token ? null : token.getAppName();
+      
+      this.ids = new long[metadatas.size() * 2];
+      
+      for (int i = 0; i < metadatas.size(); i++) {
+        this.ids[2 * i] = metadatas.get(i).getClassId();
+        this.ids[2 * i + 1] = metadatas.get(i).getLabelsId();
+      }
+      
+      this.params = new long[] { request.getStart(), request.getEnd(), request.getCount(), request.getSkip(), request.getRollup() };
+      this.aggregate = request.getAggregate();
+      this.fromArchive = request.isFromArchive();
+      this.writeTimestamp = request.isWriteTimestamp();
+      this.hash = 31 * (31 * Arrays.hashCode(this.ids) + Arrays.hashCode(this.params)) + Arrays.hashCode(this.billedId);
+    }
+    
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      
+      Key other = (Key) o;
+      
+      return this.hash == other.hash
+          && this.fromArchive == other.fromArchive
+          && this.writeTimestamp == other.writeTimestamp
+          && this.aggregate == other.aggregate
+          && Arrays.equals(this.params, other.params)
+          && Arrays.equals(this.ids, other.ids)
+          && Arrays.equals(this.billedId, other.billedId)
+          && (null == this.appName ? null == other.appName : this.appName.equals(other.appName));
+    }
+  }
+  
+  /**
+   * Result of a fetch, available once 'done' is set
+   */
+  private static final class Result {
+    private final long expiry;
+    private List<GTSEncoder> encoders = null;
+    private IOException error = null;
+    private long bytes = 0L;
+    private boolean done = false;
+    
+    private Result(long expiry) {
+      this.expiry = expiry;
+    }
+    
+    private synchronized void set(List<GTSEncoder> encoders, long bytes, IOException error) {
+      this.encoders = encoders;
+      this.bytes = bytes;
+      this.error = error;
+      this.done = true;
+      this.notifyAll();
+    }
+    
+    /**
+     * Wait at most 'timeout' ms for the result
+     */
+    private synchronized List<GTSEncoder> get(long timeout) throws IOException {
+      long deadline = System.currentTimeMillis() + timeout;
+      
+      while (!this.done) {
+        long delay = deadline - System.currentTimeMillis();
+        
+        if (delay <= 0L) {
+          throw new IOException("Timed out waiting for the result of an identical fetch.");
+        }
+        
+        try {
+          this.wait(delay);
+        } catch (InterruptedException ie) {
+          throw new IOException(ie);
+        }
+      }
+      
+      if (null != this.error) {
+        throw this.error;
+      }
+      
+      return this.encoders;
+    }
+  }
+  
+  public CachingStoreClient(StoreClient client, long ttl, long maxsize, long timeout) {
+    this.client = client;
+    this.ttl = ttl;
+    this.maxsize = maxsize;
+    this.timeout = timeout;
+  }
+  
+  @Override
+  public GTSDecoderIterator fetch(ReadToken token, List<Metadata> metadatas, FetchRequest request) throws IOException {
+    
+    if (request.getSample() < 1.0D) {
+      return this.client.fetch(token, metadatas, request);
+    }
+    
+    long now = System.currentTimeMillis();
+    
+    purge(now);
+    
+    Key key = new Key(token, metadatas, request);
+    Result fresh = new Result(now + this.ttl);
+    
+    Result result = this.results.putIfAbsent(key, fresh);
+    
+    if (null != result && result.expiry < now && this.results.replace(key, result, fresh)) {
+      release(result);
+      result = null;
+    }
+    
+    if (null != result) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_FETCH_SHARED, Sensision.EMPTY_LABELS, 1);
+      return iterator(result.get(this.timeout));
+    }
+    
+    //
+    // We are the first to issue this fetch, retrieve and retain its result
+    //
+    
+    List<GTSEncoder> encoders = new ArrayList<GTSEncoder>();
+    long bytes = 0L;
+    
+    GTSDecoderIterator iter = null;
+    
+    Throwable failure = null;
+    
+    try {
+      iter = this.client.fetch(token, metadatas, request);
+      
+      while (iter.hasNext()) {
+        GTSDecoder decoder = iter.next();
+        GTSEncoder encoder = new GTSEncoder(0L);
+        encoder.setMetadata(decoder.getMetadata());
+        
+        while (decoder.next()) {
+          encoder.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+        }
+        
+        bytes += encoder.size();
+        encoders.add(encoder);
+      }
+    } catch (Throwable t) {
+      failure = t;
+      throw t;
+    } finally {
+      if (null != iter) {
+        try { iter.close(); } catch (Exception e) {}
+      }
+      
+      //
+      // Complete the result whatever the failure, Errors included, so identical fetches do not wait for it
+      //
+      
+      if (null != failure) {
+        this.results.remove(key, fresh);
+        fresh.set(null, 0L, failure instanceof IOException ? (IOException) failure : new IOException(failure));
+      }
+    }
+    
+    fresh.set(encoders, bytes, null);
+    
+    //
+    // Only retain the result if it fits
+    //
+    
+    if (this.size.addAndGet(bytes) > this.maxsize) {
+      if (this.results.remove(key, fresh)) {
+        this.size.addAndGet(-bytes);
+      }
+    }
+    
+    return iterator(encoders);
+  }
+  
+  /**
+   * Forget the expired results
+   */
+  private void purge(long now) {
+    if (now - this.lastPurge < this.ttl) {
+      return;
+    }
+    
+    this.lastPurge = now;
+    
+    Iterator<Entry<Key,Result>> iter = this.results.entrySet().iterator();
+    
+    while (iter.hasNext()) {
+      Entry<Key,Result> entry = iter.next();
+      
+      if (entry.getValue().expiry < now && this.results.remove(entry.getKey(), entry.getValue())) {
+        release(entry.getValue());
+      }
+    }
+  }
+  
+  private void release(Result result) {
+    synchronized(result) {
+      if (result.done) {
+        this.size.addAndGet(-result.bytes);
+        result.bytes = 0L;
+      }
+    }
+  }
+  
+  private static GTSDecoderIterator iterator(final List<GTSEncoder> encoders) {
+    return new GTSDecoderIterator() {
+      private int idx = 0;
+      
+      @Override
+      public boolean hasNext() {
+        return idx < encoders.size();
+      }
+      
+      @Override
+      public GTSDecoder next() {
+        return encoders.get(idx++).getDecoder();
+      }
+      
+      @Override
+      public void remove() {
+      }
+      
+      @Override
+      public void close() throws Exception {
+      }
+    };
+  }
+  
+  @Override
+  public void store(GTSEncoder encoder) throws IOException {
+    this.client.store(encoder);
+  }
+  
+  @Override
+  public void archive(int chunk, GTSEncoder encoder) throws IOException {
+    this.client.archive(chunk, encoder);
+  }
+  
+  @Override
+  public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+    return this.client.delete(token, metadata, start, end);
+  }
+  
+  @Override
+  public void addPlasmaHandler(StandalonePlasmaHandlerInterface handler) {
+    this.client.addPlasmaHandler(handler);
+  }
+}
@@ -17,6 +17,7 @@
 package io.warp10.standalone;
 
 import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.store.FetchRequest;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.Metadata;
@@ -28,7 +29,7 @@ import java.io.IOException;
 public class NullStoreClient implements StoreClient {
   
   @Override
-  public GTSDecoderIterator fetch(ReadToken token, java.util.List<io.warp10.continuum.store.thrift.data.Metadata> metadatas, long now, long timespan, boolean fromArchive, boolean writeTimestamp) {
+  public GTSDecoderIterator fetch(ReadToken token, java.util.List<io.warp10.continuum.store.thrift.data.Metadata> metadatas, FetchRequest request) {
     return null;
   }
   
@@ -17,6 +17,7 @@
 package io.warp10.standalone;
 
 import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.store.FetchRequest;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.Metadata;
@@ -30,7 +31,7 @@ import java.util.List;
 public class PlasmaStoreClient implements StoreClient {
   private List<StandalonePlasmaHandlerInterface> plasmaHandlers = new ArrayList<StandalonePlasmaHandlerInterface>();
   @Override
-  public GTSDecoderIterator fetch(ReadToken token, List<Metadata> metadatas, long now, long timespan, boolean fromArchive, boolean writeTimestamp) {
+  public GTSDecoderIterator fetch(ReadToken token, List<Metadata> metadatas, FetchRequest request) {
     return null;
   }
   @Override
@@ -0,0 +1,252 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.TimeSource;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.continuum.store.Store;
+import io.warp10.sensision.Sensision;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.WriteBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread which periodically merges the individually stored datapoints ('R' keys)
+ * into per GTS time blocks ('B' keys) covering a fixed span.
+ * Only blocks whose span has fully elapsed are merged, the current block keeps
+ * receiving individual datapoints.
+ */
+public class StandaloneBlockMerger extends Thread {
+
+  private static final Logger LOG = LoggerFactory.getLogger(StandaloneBlockMerger.class);
+
+  private final DB db;
+
+  /**
+   * AES key used to wrap datapoints and blocks
+   */
+  private final byte[] aesKey;
+
+  /**
+   * Span of each block, in time units
+   */
+  private final long span;
+
+  /**
+   * Merge period in ms
+   */
+  private final long period;
+
+  /**
+   * Lock shared with the store client, the write lock is held while a block is being rewritten
+   */
+  private final ReadWriteLock lock;
+
+  public StandaloneBlockMerger(DB db, byte[] aesKey, long span, long period, ReadWriteLock lock) {
+    this.db = db;
+    this.aesKey = aesKey;
+    this.span = span;
+    this.period = period;
+    this.lock = lock;
+
+    this.setDaemon(true);
+    this.setName("[LevelDB Block Merger]");
+  }
+
+  @Override
+  public void run() {
+    while(true) {
+
+      LockSupport.parkNanos(this.period * 1000000L);
+
+      //
+      // Exit if db is not set anymore (i.e. it was closed)
+      //
+
+      if (null == Warp.getDB()) {
+        break;
+      }
+
+      long nano = System.nanoTime();
+
+      try {
+        merge(TimeSource.getTime());
+      } catch (Throwable t) {
+        LOG.error("Error while merging blocks.", t);
+      } finally {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_WARP_STANDALONE_LEVELDB_BLOCK_MERGE_RUNS, Sensision.EMPTY_LABELS, 1);
+        Sensision.update(SensisionConstants.SENSISION_CLASS_WARP_STANDALONE_LEVELDB_BLOCK_MERGE_TIME_NS, Sensision.EMPTY_LABELS, System.nanoTime() - nano);
+      }
+    }
+  }
+
+  /**
+   * Scan all the individual datapoints and merge them into their block.
+   * 'R' keys are sorted by classId, labelsId and reversed timestamp, so
+   * all the datapoints of a given block are contiguous.
+   * 
+   * @param now Current time, blocks which end after it are left untouched
+   */
+  void merge(long now) throws IOException {
+    DBIterator iterator = this.db.iterator();
+
+    byte[] prefix = Store.HBASE_RAW_DATA_KEY_PREFIX;
+
+    try {
+      iterator.seek(prefix);
+
+      List<byte[]> keys = new ArrayList<byte[]>();
+
+      long currentClassId = 0L;
+      long currentLabelsId = 0L;
+      long currentBlock = 0L;
+
+      while(iterator.hasNext()) {
+        Entry<byte[],byte[]> kv = iterator.next();
+
+        byte[] key = kv.getKey();
+
+        if (0 != Bytes.compareTo(key, 0, Math.min(prefix.length, key.length), prefix, 0, prefix.length)) {
+          break;
+        }
+
+        if (key.length != prefix.length + 8 + 8 + 8) {
+          continue;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+        bb.position(prefix.length);
+
+        long classId = bb.getLong();
+        long labelsId = bb.getLong();
+        long block = StandaloneStoreClient.blockStart(Long.MAX_VALUE - bb.getLong(), this.span);
+
+        //
+        // Skip the datapoints of blocks which have not yet elapsed
+        //
+
+        if (block > now - this.span) {
+          continue;
+        }
+
+        if (!keys.isEmpty() && (classId != currentClassId || labelsId != currentLabelsId || block != currentBlock)) {
+          mergeBlock(currentClassId, currentLabelsId, currentBlock, keys);
+          keys.clear();
+        }
+
+        currentClassId = classId;
+        currentLabelsId = labelsId;
+        currentBlock = block;
+
+        keys.add(key);
+      }
+
+      if (!keys.isEmpty()) {
+        mergeBlock(currentClassId, currentLabelsId, currentBlock, keys);
+      }
+    } finally {
+      iterator.close();
+    }
+  }
+
+  /**
+   * Merge the given individual datapoints into the block starting at 'blockts'.
+   * Individual datapoints take precedence over the content of the block for identical timestamps.
+   */
+  private void mergeBlock(long classId, long labelsId, long blockts, List<byte[]> keys) throws IOException {
+
+    this.lock.writeLock().lock();
+
+    WriteBatch batch = this.db.createWriteBatch();
+
+    try {
+      byte[] blockKey = StandaloneStoreClient.blockKey(classId, labelsId, blockts);
+
+      GTSEncoder encoder = new GTSEncoder(blockts, this.aesKey);
+
+      Set<Long> timestamps = new HashSet<Long>();
+
+      long datapoints = 0L;
+
+      for (byte[] key: keys) {
+
+        //
+        // Re-read the value as the datapoint might have been overwritten or deleted since our iterator was created
+        //
+
+        byte[] value = this.db.get(key);
+
+        batch.delete(key);
+
+        if (null == value) {
+          continue;
+        }
+
+        long ts = Long.MAX_VALUE - ByteBuffer.wrap(key, key.length - 8, 8).order(ByteOrder.BIG_ENDIAN).getLong();
+
+        GTSDecoder decoder = new GTSDecoder(ts, this.aesKey, ByteBuffer.wrap(value));
+
+        if (decoder.next()) {
+          encoder.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+          timestamps.add(decoder.getTimestamp());
+          datapoints++;
+        }
+      }
+
+      byte[] block = this.db.get(blockKey);
+
+      if (null != block) {
+        GTSDecoder decoder = new GTSDecoder(blockts, this.aesKey, ByteBuffer.wrap(block));
+
+        while(decoder.next()) {
+          if (!timestamps.contains(decoder.getTimestamp())) {
+            encoder.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+          }
+        }
+      }
+
+      if (encoder.getCount() > 0) {
+        batch.put(blockKey, encoder.getBytes());
+      }
+
+      this.db.write(batch);
+
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARP_STANDALONE_LEVELDB_BLOCK_MERGE_DATAPOINTS, Sensision.EMPTY_LABELS, datapoints);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARP_STANDALONE_LEVELDB_BLOCK_MERGE_BLOCKS, Sensision.EMPTY_LABELS, 1);
+    } finally {
+      batch.close();
+      this.lock.writeLock().unlock();
+    }
+  }
+}
@@ -20,7 +20,11 @@ import io.warp10.WarpConfig;
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.continuum.store.CompactMetadata;
+import io.warp10.continuum.store.CompactMetadataFilter;
 import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.DirectorySnapshot;
+import io.warp10.continuum.store.MetadataDictionary;
 import io.warp10.continuum.store.MetadataIterator;
 import io.warp10.continuum.store.thrift.data.Metadata;
 import io.warp10.crypto.CryptoUtils;
@@ -28,6 +32,7 @@ import io.warp10.crypto.KeyStore;
 import io.warp10.crypto.SipHashInline;
 import io.warp10.sensision.Sensision;
 
+import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
@@ -42,10 +47,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -66,7 +74,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.MapMaker;
 
 public class StandaloneDirectoryClient implements DirectoryClient {
@@ -77,6 +84,15 @@ public class StandaloneDirectoryClient implements DirectoryClient {
   
   private static final byte[] METADATA_PREFIX = "M".getBytes(Charsets.US_ASCII);
   
+  /**
+   * Prefix of the journal of metadata changes, used to replay the changes made after a snapshot was taken.
+   * Journal entries are stored under the prefix followed by their sequence number, the value under the
+   * prefix alone is the generation of the journal.
+   */
+  private static final byte[] JOURNAL_PREFIX = "J".getBytes(Charsets.US_ASCII);
+  
+  private static final long SNAPSHOT_PERIOD_DEFAULT = 3600000L;
+  
   private static final int MAX_BATCH_SIZE = 500000;
   
   private final DB db;
@@ -93,15 +109,59 @@ public class StandaloneDirectoryClient implements DirectoryClient {
   private final int initNThreads;
   
   /**
-   * Maps of class name to labelsId to metadata
+   * Dictionary of the names and values of the known metadata
+   */
+  private static final MetadataDictionary dictionary = new MetadataDictionary();
+  
+  /**
+   * Maps of class name to labelsId to metadata. Metadata are kept in their compact form,
+   * Metadata instances are only built when returned by 'find' or 'getMetadataById'
    */
   // 128BITS
-  private static final Map<String,Map<Long,Metadata>> metadatas = new MapMaker().concurrencyLevel(64).makeMap();
-  private static final Map<BigInteger,Metadata> metadatasById = new MapMaker().concurrencyLevel(64).makeMap();
+  private static final Map<String,Map<Long,CompactMetadata>> metadatas = new MapMaker().concurrencyLevel(64).makeMap();
+  private static final Map<BigInteger,CompactMetadata> metadatasById = new MapMaker().concurrencyLevel(64).makeMap();
+  
+  /**
+   * Inverted index of label/attribute values, used to speed up 'find'
+   */
+  private static final StandaloneLabelIndex labelIndex = new StandaloneLabelIndex(dictionary);
+  
+  private final boolean useLabelIndex;
+  
+  /**
+   * Local snapshot of the metadata, null if snapshots are disabled
+   */
+  private final File snapshotFile;
+  
+  private final long snapshotPeriod;
+  
+  /**
+   * Generation of the journal, snapshots are only loaded if they were taken for the current generation
+   */
+  private long generation;
+  
+  /**
+   * Sequence number of the last journal entry
+   */
+  private final AtomicLong sequence = new AtomicLong(0L);
+  
+  /**
+   * Sequence numbers of the journal entries whose metadata are still in a pending write batch
+   */
+  private final ConcurrentSkipListSet<Long> pendingJournal = new ConcurrentSkipListSet<Long>();
   
   public StandaloneDirectoryClient(DB db, final KeyStore keystore) {
     
     this.initNThreads = Integer.parseInt(WarpConfig.getProperties().getProperty(Configuration.DIRECTORY_INIT_NTHREADS, DIRECTORY_INIT_NTHREADS_DEFAULT));
+    this.useLabelIndex = !"false".equals(WarpConfig.getProperties().getProperty(Configuration.STANDALONE_DIRECTORY_LABELINDEX));
+    
+    if (null != db && null != WarpConfig.getProperties().getProperty(Configuration.STANDALONE_DIRECTORY_SNAPSHOT)) {
+      this.snapshotFile = new File(WarpConfig.getProperties().getProperty(Configuration.STANDALONE_DIRECTORY_SNAPSHOT));
+    } else {
+      this.snapshotFile = null;
+    }
+    
+    this.snapshotPeriod = Long.parseLong(WarpConfig.getProperties().getProperty(Configuration.STANDALONE_DIRECTORY_SNAPSHOT_PERIOD, Long.toString(SNAPSHOT_PERIOD_DEFAULT)));
 
     this.db = db;
     this.keystore = keystore;
@@ -121,6 +181,15 @@ public class StandaloneDirectoryClient implements DirectoryClient {
       return;      
     }
     
+    //
+    // Attempt to initialize from the local snapshot first
+    //
+    
+    if (null != this.snapshotFile && restore()) {
+      snapshotter();
+      return;
+    }
+    
     DBIterator iter = db.iterator();
     
     iter.seek(METADATA_PREFIX);
@@ -216,11 +285,7 @@ public class StandaloneDirectoryClient implements DirectoryClient {
                 metadata.setAttributes(new HashMap<String,String>());
               }
               
-              //
-              // Internalize Strings
-              //
-              
-              GTSHelper.internalizeStrings(metadata);
+              CompactMetadata compact = new CompactMetadata(dictionary, metadata);
 
               synchronized(metadatas) {
                 if (!metadatas.containsKey(metadata.getName())) {
@@ -230,7 +295,7 @@ public class StandaloneDirectoryClient implements DirectoryClient {
               
               synchronized(metadatas.get(metadata.getName())) {
                 if (!metadatas.get(metadata.getName()).containsKey(labelsId)) {
-                  metadatas.get(metadata.getName()).put(labelsId, metadata);
+                  metadatas.get(metadata.getName()).put(labelsId, compact);
                   
                   //
                   // Store Metadata under 'id'
@@ -238,8 +303,12 @@ public class StandaloneDirectoryClient implements DirectoryClient {
                   // 128BITS
                   GTSHelper.fillGTSIds(bytes, 0, classId, labelsId);
                   BigInteger id = new BigInteger(bytes);
-                  metadatasById.put(id, metadata);
+                  metadatasById.put(id, compact);
 
+                  if (useLabelIndex) {
+                    labelIndex.index(compact);
+                  }
+                  
                   continue;
                 }
               }
@@ -319,6 +388,16 @@ public class StandaloneDirectoryClient implements DirectoryClient {
         throw new RuntimeException(ioe);
       }
     }
+    
+    //
+    // The metadata now reflect the content of leveldb, start a new journal
+    //
+    
+    resetJournal();
+    
+    if (null != this.snapshotFile) {
+      snapshotter();
+    }
   }
   
   public List<Metadata> find(List<String> classExpr, List<Map<String,String>> labelsExpr) {
@@ -386,71 +465,33 @@ public class StandaloneDirectoryClient implements DirectoryClient {
         //
         
         if (((classPattern instanceof Matcher) && ((Matcher) classPattern).reset(className).matches()) || ((classPattern instanceof String) && classPattern.equals(className))) {
-          for (Metadata metadata: this.metadatas.get(className).values()) {
-            boolean exclude = false;
+          Collection<CompactMetadata> candidates;
+          CompactMetadataFilter filter = null;
+          
+          if (this.useLabelIndex) {
+            candidates = labelIndex.find(className, labelPatterns);
+          } else {
+            Map<Long,CompactMetadata> classMetadatas = this.metadatas.get(className);
             
-            for (String labelName: labelPatterns.keySet()) {
-              //
-              // Immediately exclude metadata which do not contain one of the
-              // labels for which we have patterns either in labels or in attributes
-              //
-              //
-              // If either label or attribute contain the label name, check if it matches the regexp
-              //
-                          
-              if (!metadata.getLabels().containsKey(labelName) && !metadata.getAttributes().containsKey(labelName)) {
-                exclude = true;
-                break;
-              }
-              
-              Object m = labelPatterns.get(labelName);
-              
-              //
-              // Check if the label value matches, if not, exclude the GTS
-              //
-
-              if (m instanceof Matcher) {
-                if ((metadata.getLabels().containsKey(labelName) && !((Matcher) m).reset(metadata.getLabels().get(labelName)).matches())
-                    || (metadata.getAttributes().containsKey(labelName) && !((Matcher) m).reset(metadata.getAttributes().get(labelName)).matches())) {
-                  exclude = true;
-                  break;
-                }                          
-              } else if (m instanceof String) {
-                if ((metadata.getLabels().containsKey(labelName) && !((String) m).equals(metadata.getLabels().get(labelName)))
-                    || (metadata.getAttributes().containsKey(labelName) && !((String) m).equals(metadata.getAttributes().get(labelName)))) {
-                  exclude = true;
-                  break;
-                }                                        
-              }
+            if (null == classMetadatas) {
+              continue;
             }
             
-            if (exclude) {
+            candidates = classMetadatas.values();
+            filter = new CompactMetadataFilter(dictionary, labelPatterns);
+          }
+          
+          for (CompactMetadata metadata: candidates) {
+            
+            if (null != filter && !filter.matches(metadata)) {
               continue;
             }
             
             //
-            // We have a match, rebuild metadata
-            //
-            // FIXME(hbs): include a 'safe' mode to expose the internal Metadata instances?
+            // We have a match, build metadata, the caller gets its own instance
             //
             
-            Metadata meta = new Metadata();
-            meta.setName(className);
-            meta.setLabels(ImmutableMap.copyOf(metadata.getLabels()));
-            meta.setAttributes(ImmutableMap.copyOf(metadata.getAttributes()));
-            // 128BITS
-            if (metadata.isSetClassId()) {
-              meta.setClassId(metadata.getClassId());
-            } else {
-              meta.setClassId(GTSHelper.classId(classKey, meta.getName()));
-            }
-            if (metadata.isSetLabelsId()) {
-              meta.setLabelsId(metadata.getLabelsId());
-            } else {
-              meta.setLabelsId(GTSHelper.labelsId(labelsKey, meta.getLabels()));
-            }
-            
-            metadatas.add(meta);
+            metadatas.add(metadata.toMetadata(dictionary));
           }
         }
       }      
@@ -491,8 +532,8 @@ public class StandaloneDirectoryClient implements DirectoryClient {
       if (!metadatas.get(metadata.getName()).containsKey(labelsId)) {
         store(metadata);
         Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS, Sensision.EMPTY_LABELS, 1);
-      } else if (!metadatas.get(metadata.getName()).get(labelsId).getLabels().equals(metadata.getLabels())){
-        LOG.warn("LabelsId collision under class '" + metadata.getName() + "' " + metadata.getLabels() + " and " + metadatas.get(metadata.getName()).get(labelsId).getLabels());
+      } else if (!metadatas.get(metadata.getName()).get(labelsId).getLabels(dictionary).equals(metadata.getLabels())){
+        LOG.warn("LabelsId collision under class '" + metadata.getName() + "' " + metadata.getLabels() + " and " + metadatas.get(metadata.getName()).get(labelsId).getLabels(dictionary));
         Sensision.update(SensisionConstants.CLASS_WARP_DIRECTORY_LABELS_COLLISIONS, Sensision.EMPTY_LABELS, 1);
       }
     } else if (!Configuration.INGRESS_METADATA_SOURCE.equals(metadata.getSource())) {
@@ -512,18 +553,11 @@ public class StandaloneDirectoryClient implements DirectoryClient {
     if (!metadatas.get(metadata.getName()).containsKey(labelsId)) {
       return;
     }
-    metadatas.get(metadata.getName()).remove(labelsId);
-    if (metadatas.get(metadata.getName()).isEmpty()) {
-      metadatas.remove(metadata.getName());
-    }
 
     // 128BITS
     long classId = GTSHelper.classId(this.classLongs, metadata.getName());
 
-    // Remove Metadata indexed by id
-    byte[] idbytes = new byte[16];
-    GTSHelper.fillGTSIds(idbytes, 0, classId, labelsId);
-    this.metadatasById.remove(new BigInteger(idbytes));
+    uncache(metadata.getName(), classId, labelsId);
     
     //
     // Remove entry from DB if need be
@@ -557,6 +591,8 @@ public class StandaloneDirectoryClient implements DirectoryClient {
     bytes[idx++] = (byte) ((labelsId >> 8) & 0xff);
     bytes[idx++] = (byte) (labelsId & 0xff);
 
+    journal(classId, labelsId);
+    
     this.db.delete(bytes);
     
     Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS, Sensision.EMPTY_LABELS, -1);
@@ -574,6 +610,12 @@ public class StandaloneDirectoryClient implements DirectoryClient {
     };
   };
 
+  private ThreadLocal<List<Long>> perThreadPendingJournal = new ThreadLocal<List<Long>>() {
+    protected List<Long> initialValue() {
+      return new ArrayList<Long>();
+    };
+  };
+  
   private void store(byte[] key, byte[] value) throws IOException {
     
     if (null == this.db) {
@@ -597,6 +639,11 @@ public class StandaloneDirectoryClient implements DirectoryClient {
         size.set(0L);
         perThreadWriteBatch.remove();
         written = true;
+        
+        // The journal entries of the batch are no longer pending
+        List<Long> pending = perThreadPendingJournal.get();
+        this.pendingJournal.removeAll(pending);
+        pending.clear();
       }
     } finally {
       if (written) {
@@ -655,32 +702,340 @@ public class StandaloneDirectoryClient implements DirectoryClient {
           serialized = CryptoUtils.wrap(this.aesKey, serialized);
         }
         
+        //
+        // Journal the change before it is added to the write batch, so a snapshot
+        // cannot miss a change which has not yet reached leveldb
+        //
+        
+        long seq = journal(classId, labelsId);
+        
+        if (seq > 0) {
+          this.pendingJournal.add(seq);
+          perThreadPendingJournal.get().add(seq);
+        }
+        
         //this.db.put(bb.array(), serialized);
         //this.db.put(bytes, serialized);
         store(bytes, serialized);
       }
-      synchronized (metadatas) {
-        if (!metadatas.containsKey(metadata.getName())) {
-          metadatas.put(metadata.getName(), (Map) new MapMaker().concurrencyLevel(64).makeMap());
+      
+      cache(new CompactMetadata(dictionary, metadata));
+    } catch (TException te) {
+      throw new RuntimeException(te);
+    }
+  }
+  
+  /**
+   * Add or replace a GTS in the in-memory maps and label index
+   */
+  private void cache(CompactMetadata metadata) {
+    String name = metadata.getName(dictionary);
+    
+    synchronized (metadatas) {
+      if (!metadatas.containsKey(name)) {
+        metadatas.put(name, (Map) new MapMaker().concurrencyLevel(64).makeMap());
+      }
+      metadatas.get(name).put(metadata.getLabelsId(), metadata);
+    }
+    
+    //
+    // Store Metadata under 'id'
+    //
+    
+    byte[] idbytes = new byte[16];
+    GTSHelper.fillGTSIds(idbytes, 0, metadata.getClassId(), metadata.getLabelsId());
+    BigInteger id = new BigInteger(idbytes);
+    this.metadatasById.put(id, metadata);
+    
+    if (this.useLabelIndex) {
+      labelIndex.index(metadata);
+    }
+  }
+  
+  /**
+   * Remove a GTS from the in-memory maps and label index
+   */
+  private void uncache(String name, long classId, long labelsId) {
+    synchronized (metadatas) {
+      Map<Long,CompactMetadata> classMetadatas = metadatas.get(name);
+      
+      if (null == classMetadatas) {
+        return;
+      }
+      
+      classMetadatas.remove(labelsId);
+      
+      if (classMetadatas.isEmpty()) {
+        metadatas.remove(name);
+      }
+    }
+    
+    // Remove Metadata indexed by id
+    byte[] idbytes = new byte[16];
+    GTSHelper.fillGTSIds(idbytes, 0, classId, labelsId);
+    this.metadatasById.remove(new BigInteger(idbytes));
+    
+    if (this.useLabelIndex) {
+      labelIndex.remove(name, labelsId);
+    }
+  }
+  
+  /**
+   * Append an entry for the GTS with the given ids to the journal
+   * 
+   * @return The sequence number of the entry or 0 if journaling is disabled
+   */
+  private long journal(long classId, long labelsId) {
+    if (null == this.snapshotFile) {
+      return 0L;
+    }
+    
+    long seq = this.sequence.incrementAndGet();
+    
+    byte[] key = ByteBuffer.allocate(JOURNAL_PREFIX.length + 8).put(JOURNAL_PREFIX).putLong(seq).array();
+    byte[] value = new byte[16];
+    GTSHelper.fillGTSIds(value, 0, classId, labelsId);
+    
+    this.db.put(key, value);
+    
+    return seq;
+  }
+  
+  /**
+   * Remove the journal entries with a sequence number less than or equal to 'seq'
+   */
+  private void pruneJournal(long seq) throws IOException {
+    DBIterator iter = this.db.iterator();
+    WriteBatch batch = this.db.createWriteBatch();
+    
+    try {
+      iter.seek(JOURNAL_PREFIX);
+      
+      while (iter.hasNext()) {
+        byte[] key = iter.next().getKey();
+        
+        if (!isJournalKey(key)) {
+          if (JOURNAL_PREFIX.length == key.length && JOURNAL_PREFIX[0] == key[0]) {
+            // Generation
+            continue;
+          }
+          break;
+        }
+        
+        if (ByteBuffer.wrap(key, JOURNAL_PREFIX.length, 8).getLong() > seq) {
+          break;
         }
-        metadatas.get(metadata.getName()).put(labelsId, metadata);
+        
+        batch.delete(key);
       }
-      //
-      // Store Metadata under 'id'
-      //
       
-      byte[] idbytes = new byte[16];
-      GTSHelper.fillGTSIds(idbytes, 0, classId, labelsId);
-      BigInteger id = new BigInteger(idbytes);
-      this.metadatasById.put(id, metadata);
+      this.db.write(batch);
+    } finally {
+      batch.close();
+      iter.close();
+    }
+  }
+  
+  private static boolean isJournalKey(byte[] key) {
+    return JOURNAL_PREFIX.length + 8 == key.length && JOURNAL_PREFIX[0] == key[0];
+  }
+  
+  /**
+   * Remove the journal and, if snapshots are enabled, start a new generation
+   */
+  private void resetJournal() {
+    try {
+      pruneJournal(Long.MAX_VALUE);
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    
+    this.sequence.set(0L);
+    
+    if (null == this.snapshotFile) {
+      this.db.delete(JOURNAL_PREFIX);
+    } else {
+      this.generation = UUID.randomUUID().getMostSignificantBits();
+      this.db.put(JOURNAL_PREFIX, ByteBuffer.allocate(8).putLong(this.generation).array());
+    }
+  }
+  
+  /**
+   * Load the metadata from the local snapshot and replay the journal entries added since it was taken.
+   * 
+   * @return true if the metadata were restored, false if they must be read from leveldb
+   */
+  private boolean restore() {
+    byte[] gen = this.db.get(JOURNAL_PREFIX);
+    
+    if (null == gen || !this.snapshotFile.exists()) {
+      return false;
+    }
+    
+    this.generation = ByteBuffer.wrap(gen).getLong();
+    
+    long nano = System.nanoTime();
+    
+    try {
+      long marker = DirectorySnapshot.read(this.snapshotFile, this.generation, dictionary, this.aesKey, new DirectorySnapshot.Sink() {
+        @Override
+        public void add(CompactMetadata metadata) {
+          cache(metadata);
+        }
+      });
 
+      this.sequence.set(marker);
+      
+      long replayed = replay(marker);
+      
+      nano = System.nanoTime() - nano;
+      
+      Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS, Sensision.EMPTY_LABELS, metadatasById.size());
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_SNAPSHOT_REPLAYED, Sensision.EMPTY_LABELS, replayed);
+      
+      LOG.info("Loaded " + metadatasById.size() + " GTS from snapshot, replayed " + replayed + " changes, in " + (nano / 1000000.0D) + " ms");
+      
+      return true;
+    } catch (IOException ioe) {
+      LOG.error("Unable to restore snapshot, reading metadata from leveldb.", ioe);
+      metadatas.clear();
+      metadatasById.clear();
+      labelIndex.clear();
+      return false;
+    }
+  }
+  
+  /**
+   * Apply the journal entries following 'marker', the current content of leveldb for each
+   * GTS referenced by the journal is loaded.
+   * 
+   * @return The number of replayed entries
+   */
+  private long replay(long marker) throws IOException {
+    DBIterator iter = this.db.iterator();
+    
+    TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
+    
+    long count = 0L;
+    
+    try {
+      iter.seek(ByteBuffer.allocate(JOURNAL_PREFIX.length + 8).put(JOURNAL_PREFIX).putLong(marker + 1).array());
+      
+      while (iter.hasNext()) {
+        Entry<byte[],byte[]> entry = iter.next();
+        
+        if (!isJournalKey(entry.getKey())) {
+          break;
+        }
+        
+        this.sequence.set(ByteBuffer.wrap(entry.getKey(), JOURNAL_PREFIX.length, 8).getLong());
+        
+        ByteBuffer bb = ByteBuffer.wrap(entry.getValue());
+        long classId = bb.getLong();
+        long labelsId = bb.getLong();
+        
+        byte[] key = ByteBuffer.allocate(METADATA_PREFIX.length + 16).put(METADATA_PREFIX).put(entry.getValue()).array();
+        byte[] value = this.db.get(key);
+        
+        count++;
+        
+        if (null == value) {
+          // The GTS was deleted, its class name is that of the snapshotted GTS if any
+          CompactMetadata metadata = metadatasById.get(new BigInteger(entry.getValue()));
+          
+          if (null != metadata) {
+            uncache(metadata.getName(dictionary), classId, labelsId);
+          }
+          
+          continue;
+        }
+        
+        if (null != this.aesKey) {
+          value = CryptoUtils.unwrap(this.aesKey, value);
+          
+          if (null == value) {
+            throw new IOException("Unable to decrypt metadata.");
+          }
+        }
+        
+        Metadata metadata = new Metadata();
+        deserializer.deserialize(metadata, value);
+        metadata.setClassId(classId);
+        metadata.setLabelsId(labelsId);
+        
+        if (!metadata.isSetAttributes()) {
+          metadata.setAttributes(new HashMap<String,String>());
+        }
+        
+        cache(new CompactMetadata(dictionary, metadata));
+      }
     } catch (TException te) {
-      throw new RuntimeException(te);
+      throw new IOException(te);
+    } finally {
+      iter.close();
     }
+    
+    return count;
+  }
+  
+  /**
+   * Start the thread which periodically takes snapshots of the metadata
+   */
+  private void snapshotter() {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        while (true) {
+          LockSupport.parkNanos(snapshotPeriod * 1000000L);
+          
+          try {
+            snapshot();
+          } catch (Throwable t) {
+            LOG.error("Error while taking directory snapshot.", t);
+          }
+        }
+      }
+    };
+    
+    thread.setDaemon(true);
+    thread.setName("[Directory snapshot]");
+    thread.start();
+  }
+  
+  /**
+   * Write a snapshot of the metadata then prune the journal
+   */
+  private void snapshot() throws IOException {
+    long nano = System.nanoTime();
+    
+    //
+    // Changes are journaled and applied in memory while holding the monitor, so the
+    // snapshot reflects at least all the changes up to the marker. Changes whose
+    // metadata are still in a write batch are not yet in leveldb, they must be replayed.
+    //
+    
+    long marker;
+    
+    synchronized (this) {
+      marker = this.pendingJournal.isEmpty() ? this.sequence.get() : this.pendingJournal.first() - 1;
+    }
+    
+    List<CompactMetadata> metadatas = new ArrayList<CompactMetadata>(metadatasById.values());
+    
+    DirectorySnapshot.write(this.snapshotFile, this.generation, marker, dictionary, metadatas, this.aesKey);
+    
+    pruneJournal(marker);
+    
+    nano = System.nanoTime() - nano;
+    
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_SNAPSHOTS, Sensision.EMPTY_LABELS, 1);
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_SNAPSHOT_TIME_NANOS, Sensision.EMPTY_LABELS, nano);
   }
   
   public Metadata getMetadataById(BigInteger id) {
-    return this.metadatasById.get(id);
+    CompactMetadata metadata = this.metadatasById.get(id);
+    
+    return null == metadata ? null : metadata.toMetadata(dictionary);
   }
   
   @Override
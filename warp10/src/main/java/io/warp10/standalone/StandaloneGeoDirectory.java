@@ -28,6 +28,7 @@ import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.FetchRequest;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.Metadata;
@@ -522,7 +523,7 @@ public class StandaloneGeoDirectory extends AbstractHandler implements Standalon
       return;
     }
 
-    try (GTSDecoderIterator iter = this.storeClient.fetch(rtoken, metas, now, timespan, false, false)) {
+    try (GTSDecoderIterator iter = this.storeClient.fetch(rtoken, metas, FetchRequest.fromTimespan(now, timespan))) {
       while(iter.hasNext()) {
         GTSDecoder decoder = iter.next();
         decoder.next();
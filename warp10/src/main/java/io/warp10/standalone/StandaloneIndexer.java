@@ -16,10 +16,364 @@
 
 package io.warp10.standalone;
 
-import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.store.Rollup;
+import io.warp10.continuum.store.thrift.data.Metadata;
 
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Maintains, at ingest time, the rollups of the GTS matching the configured selectors
+ * at each configured resolution ('U' keys).
+ * 
+ * Datapoints stored before the rollups of a GTS were maintained are not part of them, so the
+ * timestamp from which the rollups of a GTS account for all its datapoints is recorded per
+ * resolution ('V' keys) along with its first indexed datapoints. Rollups are only read for the
+ * buckets starting at or after that timestamp.
+ * 
+ * The rollup and coverage mutations are returned to the store which writes them in the same
+ * batch as the datapoints, while holding the lock of the GTS so the read-modify-write of the
+ * rollups always sees those of the previous batches. Rollups are merged with the datapoints as
+ * they are stored, except for the buckets in which a datapoint may be overwritten, which the
+ * store recomputes from the stored datapoints and the new ones.
+ * Deletes drop the rollups of the buckets they cover, the store recomputes those only
+ * partially covered from the remaining datapoints.
+ */
 public class StandaloneIndexer {
-  public void index(GTSEncoder encoder) {
+  
+  /**
+   * Prefix for rollups, followed by classId, labelsId, span and reversed bucket end
+   */
+  public static final byte[] ROLLUP_KEY_PREFIX = "U".getBytes(Charsets.UTF_8);
+  
+  /**
+   * Prefix for the start of the coverage of the rollups, followed by classId, labelsId and span
+   */
+  public static final byte[] COVERAGE_KEY_PREFIX = "V".getBytes(Charsets.UTF_8);
+  
+  private final DB db;
+  
+  /**
+   * AES key used to wrap the rollups
+   */
+  private final byte[] aesKey;
+  
+  /**
+   * Patterns of the selectors, the class pattern is associated with the null key
+   */
+  private final List<Map<String,Pattern>> selectors = new ArrayList<Map<String,Pattern>>();
+  
+  /**
+   * Rollup spans in increasing order
+   */
+  private final long[] resolutions;
+  
+  /**
+   * Locks guarding the read-modify-write of rollups, picked by GTS
+   */
+  private final Object[] locks = new Object[64];
+  
+  /**
+   * Upper bound of the timestamp of the most recent datapoint stored for the GTS stored since startup,
+   * keyed by GTS id. The coverage of the rollups of those GTS is known for all resolutions.
+   */
+  private final Map<BigInteger,Long> latest = new ConcurrentHashMap<BigInteger,Long>();
+  
+  public StandaloneIndexer(DB db, byte[] aesKey, Properties properties) {
+    this.db = db;
+    this.aesKey = aesKey;
+    
+    for (String selector: properties.getProperty(Configuration.LEVELDB_ROLLUP_SELECTORS).trim().split("\\s+")) {
+      try {
+        this.selectors.add(GTSHelper.patternsFromSelectors(selector));
+      } catch (Exception e) {
+        throw new RuntimeException("Invalid selector '" + selector + "' in '" + Configuration.LEVELDB_ROLLUP_SELECTORS + "'.", e);
+      }
+    }
+    
+    if (null == properties.getProperty(Configuration.LEVELDB_ROLLUP_RESOLUTIONS)) {
+      throw new RuntimeException("Missing '" + Configuration.LEVELDB_ROLLUP_RESOLUTIONS + "'.");
+    }
+    
+    String[] spans = properties.getProperty(Configuration.LEVELDB_ROLLUP_RESOLUTIONS).split(",");
+    
+    this.resolutions = new long[spans.length];
+    
+    for (int i = 0; i < spans.length; i++) {
+      this.resolutions[i] = Long.parseLong(spans[i].trim());
+      
+      if (this.resolutions[i] <= 0) {
+        throw new RuntimeException("Invalid value for '" + Configuration.LEVELDB_ROLLUP_RESOLUTIONS + "', spans MUST be positive.");
+      }
+    }
+    
+    Arrays.sort(this.resolutions);
+    
+    for (int i = 0; i < this.locks.length; i++) {
+      this.locks[i] = new Object();
+    }
+  }
+  
+  /**
+   * Return the rollup spans in increasing order
+   */
+  public long[] getResolutions() {
+    return this.resolutions;
+  }
+  
+  /**
+   * Return the upper bound of the timestamp of the most recent datapoint stored for a GTS,
+   * null if it was not stored since startup, in which case its coverage must be recorded.
+   * Must be called while holding lock(classId, labelsId).
+   */
+  Long getLatest(long classId, long labelsId) {
+    return this.latest.get(id(classId, labelsId));
+  }
+  
+  /**
+   * Must be called while holding lock(classId, labelsId), once the datapoints up to 'ts' were written
+   */
+  void setLatest(long classId, long labelsId, long ts) {
+    this.latest.put(id(classId, labelsId), ts);
+  }
+  
+  /**
+   * Add to 'kvs' the start of the coverage of the rollups of a GTS for the resolutions at which it is unknown.
+   * The mutations must be written along with the first datapoints which will be indexed, while
+   * holding lock(classId, labelsId).
+   * 
+   * @param latest Timestamp of the most recent datapoint stored for the GTS, Long.MIN_VALUE if it has none
+   */
+  void cover(long classId, long labelsId, long latest, List<byte[][]> kvs) throws IOException {
     
+    long coverage = Long.MIN_VALUE == latest || Long.MAX_VALUE == latest ? latest : latest + 1;
+    
+    byte[] value = new byte[8];
+    ByteBuffer.wrap(value).order(ByteOrder.BIG_ENDIAN).putLong(coverage);
+    
+    for (long span: this.resolutions) {
+      byte[] key = coverageKey(classId, labelsId, span);
+      
+      if (null == this.db.get(key)) {
+        kvs.add(new byte[][] { key, value });
+      }
+    }
+  }
+  
+  /**
+   * Return the timestamp from which the rollups of span 'span' of a GTS account for all its datapoints,
+   * null if this is unknown, in which case the rollups should not be read
+   */
+  public Long getCoverage(Metadata metadata, long span) throws IOException {
+    byte[] value = this.db.get(coverageKey(metadata.getClassId(), metadata.getLabelsId(), span));
+    
+    if (null == value || 8 != value.length) {
+      return null;
+    }
+    
+    return ByteBuffer.wrap(value).order(ByteOrder.BIG_ENDIAN).getLong();
+  }
+  
+  /**
+   * Add to 'kvs' the rollups of span 'span', keyed by bucket end, merged into the stored ones or
+   * replacing them. The mutations must be written before lock(classId, labelsId), which must be
+   * held when calling this method, is released.
+   */
+  void update(long classId, long labelsId, long span, Map<Long,Rollup> buckets, boolean replace, List<byte[][]> kvs) throws IOException {
+    
+    for (Entry<Long,Rollup> entry: buckets.entrySet()) {
+      Rollup rollup = entry.getValue();
+      
+      if (0 == rollup.getCount()) {
+        continue;
+      }
+      
+      byte[] key = rollupKey(classId, labelsId, span, entry.getKey());
+      byte[] value = replace ? null : this.db.get(key);
+      
+      if (null != value) {
+        Rollup stored = Rollup.fromBytes(entry.getKey(), this.aesKey, value);
+        stored.merge(rollup);
+        rollup = stored;
+      }
+      
+      kvs.add(new byte[][] { key, rollup.toBytes(entry.getKey(), this.aesKey) });
+    }
+  }
+  
+  /**
+   * Return the largest resolution which divides 'span' if rollups are maintained for the GTS, 0 otherwise
+   */
+  public long getResolution(Metadata metadata, long span) {
+    
+    if (!matches(metadata)) {
+      return 0L;
+    }
+    
+    for (int i = this.resolutions.length - 1; i >= 0; i--) {
+      if (0 == span % this.resolutions[i]) {
+        return this.resolutions[i];
+      }
+    }
+    
+    return 0L;
+  }
+  
+  /**
+   * Read the rollups of span 'span' of a GTS whose bucket ends lie in [from,to]
+   * 
+   * @param buckets Map in which the rollups are stored, keyed by bucket end
+   * @return the number of bytes read
+   */
+  public long read(DBIterator iterator, Metadata metadata, long span, long from, long to, Map<Long,Rollup> buckets) throws IOException {
+    
+    byte[] startrow = rollupKey(metadata.getClassId(), metadata.getLabelsId(), span, to);
+    byte[] stoprow = rollupKey(metadata.getClassId(), metadata.getLabelsId(), span, from);
+    
+    long bytes = 0L;
+    
+    iterator.seek(startrow);
+    
+    while (iterator.hasNext()) {
+      Entry<byte[],byte[]> kv = iterator.next();
+      
+      if (Bytes.compareTo(kv.getKey(), stoprow) > 0) {
+        break;
+      }
+      
+      long end = Long.MAX_VALUE - ByteBuffer.wrap(kv.getKey(), ROLLUP_KEY_PREFIX.length + 8 + 8 + 8, 8).order(ByteOrder.BIG_ENDIAN).getLong();
+      
+      bytes += kv.getKey().length + kv.getValue().length;
+      
+      buckets.put(end, Rollup.fromBytes(end, this.aesKey, kv.getValue()));
+    }
+    
+    return bytes;
+  }
+  
+  /**
+   * Remove the rollups of a GTS whose bucket overlaps [start,end]
+   * 
+   * @return the spans and ends of the removed buckets which were only partially covered by [start,end]
+   */
+  public List<long[]> delete(Metadata metadata, long start, long end) throws IOException {
+    
+    List<long[]> partial = new ArrayList<long[]>();
+    
+    if (!matches(metadata)) {
+      return partial;
+    }
+    
+    DBIterator iterator = this.db.iterator();
+    
+    try {
+      synchronized (lock(metadata.getClassId(), metadata.getLabelsId())) {
+        for (long span: this.resolutions) {
+          long last = Rollup.bucketEnd(end, span);
+          long first = Rollup.bucketEnd(start, span);
+          
+          byte[] startrow = rollupKey(metadata.getClassId(), metadata.getLabelsId(), span, last);
+          byte[] stoprow = rollupKey(metadata.getClassId(), metadata.getLabelsId(), span, first);
+          
+          iterator.seek(startrow);
+          
+          while (iterator.hasNext()) {
+            Entry<byte[],byte[]> kv = iterator.next();
+            
+            if (Bytes.compareTo(kv.getKey(), stoprow) > 0) {
+              break;
+            }
+            
+            this.db.delete(kv.getKey());
+            
+            long bucketEnd = Long.MAX_VALUE - ByteBuffer.wrap(kv.getKey(), ROLLUP_KEY_PREFIX.length + 8 + 8 + 8, 8).order(ByteOrder.BIG_ENDIAN).getLong();
+            
+            if (bucketEnd > end || bucketEnd - span + 1 < start) {
+              partial.add(new long[] { span, bucketEnd });
+            }
+          }
+        }
+      }
+    } finally {
+      iterator.close();
+    }
+    
+    return partial;
+  }
+  
+  /**
+   * Check if a GTS matches one of the selectors
+   */
+  boolean matches(Metadata metadata) {
+    for (Map<String,Pattern> patterns: this.selectors) {
+      boolean matches = true;
+      
+      for (Entry<String,Pattern> entry: patterns.entrySet()) {
+        String value = null == entry.getKey() ? metadata.getName() : metadata.getLabels().get(entry.getKey());
+        
+        if (null == value || !entry.getValue().matcher(value).matches()) {
+          matches = false;
+          break;
+        }
+      }
+      
+      if (matches) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Return the lock guarding the rollups of a GTS
+   */
+  Object lock(long classId, long labelsId) {
+    return this.locks[(int) (((classId ^ labelsId) >>> 1) % this.locks.length)];
+  }
+  
+  private static BigInteger id(long classId, long labelsId) {
+    byte[] bytes = new byte[16];
+    GTSHelper.fillGTSIds(bytes, 0, classId, labelsId);
+    return new BigInteger(bytes);
+  }
+  
+  static byte[] coverageKey(long classId, long labelsId, long span) {
+    byte[] key = new byte[COVERAGE_KEY_PREFIX.length + 8 + 8 + 8];
+    ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+    bb.put(COVERAGE_KEY_PREFIX);
+    bb.putLong(classId);
+    bb.putLong(labelsId);
+    bb.putLong(span);
+    return key;
+  }
+  
+  static byte[] rollupKey(long classId, long labelsId, long span, long bucketEnd) {
+    byte[] key = new byte[ROLLUP_KEY_PREFIX.length + 8 + 8 + 8 + 8];
+    ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+    bb.put(ROLLUP_KEY_PREFIX);
+    bb.putLong(classId);
+    bb.putLong(labelsId);
+    bb.putLong(span);
+    bb.putLong(Long.MAX_VALUE - bucketEnd);
+    return key;
   }
 }
@@ -24,6 +24,7 @@ import io.warp10.continuum.Tokens;
 import io.warp10.continuum.WarpException;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSParser;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.StoreClient;
@@ -36,7 +37,9 @@ import io.warp10.sensision.Sensision;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
@@ -172,13 +175,15 @@ public class StandaloneIngressHandler extends AbstractHandler {
         gzipped = true;
       }
       
-      BufferedReader br = null;
+      InputStream is = null;
+      Charset charset = null;
           
       if (gzipped) {
-        GZIPInputStream is = new GZIPInputStream(request.getInputStream());
-        br = new BufferedReader(new InputStreamReader(is));
+        is = new GZIPInputStream(request.getInputStream());
+        charset = Charset.defaultCharset();
       } else {    
-        br = request.getReader();
+        is = request.getInputStream();
+        charset = GTSParser.getCharset(request.getCharacterEncoding());
       }
       
       //
@@ -234,6 +239,9 @@ public class StandaloneIngressHandler extends AbstractHandler {
       // Loop on all lines
       //
       
+      // Lines without a timestamp get the current time, as GTSHelper.parse(GTSEncoder,String,Map,Long) does
+      GTSParser parser = new GTSParser(is, charset, extraLabels, null, Long.MAX_VALUE, true);
+      
       GTSEncoder lastencoder = null;
       GTSEncoder encoder = null;
       
@@ -245,17 +253,9 @@ public class StandaloneIngressHandler extends AbstractHandler {
 
       do {
         
-        String line = br.readLine();
-        
-        if (null == line) {
+        if (!parser.next()) {
           break;
         }
-
-        line = line.trim();
-        
-        if (0 == line.length()) {
-          continue;
-        }
         
         //
         // Check for pushback
@@ -275,7 +275,7 @@ public class StandaloneIngressHandler extends AbstractHandler {
         count++;
 
         try {
-          encoder = GTSHelper.parse(lastencoder, line, extraLabels, now);
+          encoder = parser.parse(lastencoder);
           //nano2 += System.nanoTime() - nano0;
         } catch (ParseException pe) {
           if (update) {
@@ -283,7 +283,7 @@ public class StandaloneIngressHandler extends AbstractHandler {
           } else {
             Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_ARCHIVE_PARSEERRORS, sensisionLabels, 1);
           }
-          throw new IOException("Parse error at '" + line + "'", pe);
+          throw new IOException("Parse error at '" + parser.getLine() + "'", pe);
         }
 
         if (encoder != lastencoder || lastencoder.size() > ENCODER_SIZE_THRESHOLD) {
@@ -295,8 +295,7 @@ public class StandaloneIngressHandler extends AbstractHandler {
           if (null != lastencoder) {
             
             // 128BITS
-            lastencoder.setClassId(GTSHelper.classId(classKeyLongs, lastencoder.getName()));
-            lastencoder.setLabelsId(GTSHelper.labelsId(labelsKeyLongs, lastencoder.getMetadata().getLabels()));
+            setIds(lastencoder);
 
             if (update) {
               ThrottlingManager.checkMADS(lastencoder.getMetadata(), producer, owner, application, lastencoder.getClassId(), lastencoder.getLabelsId());
@@ -347,12 +346,11 @@ public class StandaloneIngressHandler extends AbstractHandler {
         
       } while (true); 
       
-      br.close();
+      parser.close();
       
       if (null != lastencoder && lastencoder.size() > 0) {
         // 128BITS
-        lastencoder.setClassId(GTSHelper.classId(classKeyLongs, lastencoder.getName()));
-        lastencoder.setLabelsId(GTSHelper.labelsId(labelsKeyLongs, lastencoder.getMetadata().getLabels()));
+        setIds(lastencoder);
                 
         if (update) {
           ThrottlingManager.checkMADS(lastencoder.getMetadata(), producer, owner, application, lastencoder.getClassId(), lastencoder.getLabelsId());
@@ -408,7 +406,22 @@ public class StandaloneIngressHandler extends AbstractHandler {
 
     response.setStatus(HttpServletResponse.SC_OK);
   }
-  
+
+  /**
+   * Compute the class and labels ids of an encoder unless they are already known,
+   * which is the case when the encoder continues the GTS of one which was stored.
+   */
+  private void setIds(GTSEncoder encoder) {
+    Metadata metadata = encoder.getMetadata();
+
+    if (metadata.isSetClassId() && metadata.isSetLabelsId()) {
+      return;
+    }
+
+    encoder.setClassId(GTSHelper.classId(classKeyLongs, encoder.getName()));
+    encoder.setLabelsId(GTSHelper.labelsId(labelsKeyLongs, metadata.getLabels()));
+  }
+
   /**
    * Handle Metadata updating
    */
@@ -0,0 +1,368 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.store.CompactMetadata;
+import io.warp10.continuum.store.MetadataDictionary;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * In memory inverted index of label and attribute values used by StandaloneDirectoryClient.
+ *
+ * Each GTS of a class is given an ordinal, for each label (resp. attribute) name and value the
+ * index maintains the set of ordinals of the GTS with that value. Exact selectors are
+ * then resolved by set intersections and regular expressions are evaluated once per
+ * distinct value instead of once per GTS.
+ *
+ * Names and values are referenced by their id in the MetadataDictionary shared with the
+ * directory.
+ */
+public class StandaloneLabelIndex {
+
+  private final Map<String,ClassIndex> classes = new MapMaker().concurrencyLevel(64).makeMap();
+
+  private final MetadataDictionary dictionary;
+
+  public StandaloneLabelIndex(MetadataDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  private static final class ClassIndex {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final MetadataDictionary dictionary;
+
+    private ClassIndex(MetadataDictionary dictionary) {
+      this.dictionary = dictionary;
+    }
+
+    /**
+     * Metadata indexed by ordinal, null for free ordinals
+     */
+    private final List<CompactMetadata> metadatas = new ArrayList<CompactMetadata>();
+
+    /**
+     * Ordinal of each labelsId
+     */
+    private final Map<Long,Integer> ordinals = new HashMap<Long,Integer>();
+
+    /**
+     * Ordinals which were freed and can be reused
+     */
+    private final BitSet free = new BitSet();
+
+    /**
+     * Label name id to value id to ordinals
+     */
+    private final Map<Integer,Map<Integer,BitSet>> labels = new HashMap<Integer,Map<Integer,BitSet>>();
+
+    /**
+     * Label name id to ordinals of GTS having this label
+     */
+    private final Map<Integer,BitSet> labelHolders = new HashMap<Integer,BitSet>();
+
+    private final Map<Integer,Map<Integer,BitSet>> attributes = new HashMap<Integer,Map<Integer,BitSet>>();
+    private final Map<Integer,BitSet> attributeHolders = new HashMap<Integer,BitSet>();
+
+    private void add(long labelsId, CompactMetadata metadata) {
+      Integer ordinal = this.ordinals.get(labelsId);
+
+      if (null != ordinal) {
+        // Metadata are being updated, remove the previous version first
+        unindex(ordinal, this.metadatas.get(ordinal));
+      } else if (!this.free.isEmpty()) {
+        ordinal = this.free.nextSetBit(0);
+        this.free.clear(ordinal);
+      } else {
+        ordinal = this.metadatas.size();
+        this.metadatas.add(null);
+      }
+
+      this.ordinals.put(labelsId, ordinal);
+      this.metadatas.set(ordinal, metadata);
+
+      for (int i = 0; i < metadata.getLabelsSize(); i++) {
+        index(ordinal, metadata.getLabelName(i), metadata.getLabelValue(i), this.labels, this.labelHolders);
+      }
+      for (int i = 0; i < metadata.getAttributesSize(); i++) {
+        index(ordinal, metadata.getAttributeName(i), metadata.getAttributeValue(i), this.attributes, this.attributeHolders);
+      }
+    }
+
+    private void remove(long labelsId) {
+      Integer ordinal = this.ordinals.remove(labelsId);
+
+      if (null == ordinal) {
+        return;
+      }
+
+      unindex(ordinal, this.metadatas.get(ordinal));
+      this.metadatas.set(ordinal, null);
+      this.free.set(ordinal);
+    }
+
+    private void unindex(int ordinal, CompactMetadata metadata) {
+      for (int i = 0; i < metadata.getLabelsSize(); i++) {
+        unindex(ordinal, metadata.getLabelName(i), metadata.getLabelValue(i), this.labels, this.labelHolders);
+      }
+      for (int i = 0; i < metadata.getAttributesSize(); i++) {
+        unindex(ordinal, metadata.getAttributeName(i), metadata.getAttributeValue(i), this.attributes, this.attributeHolders);
+      }
+    }
+
+    private static void index(int ordinal, int name, int value, Map<Integer,Map<Integer,BitSet>> postings, Map<Integer,BitSet> holders) {
+      Map<Integer,BitSet> values = postings.get(name);
+
+      if (null == values) {
+        values = new HashMap<Integer,BitSet>();
+        postings.put(name, values);
+        holders.put(name, new BitSet());
+      }
+
+      BitSet bits = values.get(value);
+
+      if (null == bits) {
+        bits = new BitSet();
+        values.put(value, bits);
+      }
+
+      bits.set(ordinal);
+      holders.get(name).set(ordinal);
+    }
+
+    private static void unindex(int ordinal, int name, int value, Map<Integer,Map<Integer,BitSet>> postings, Map<Integer,BitSet> holders) {
+      Map<Integer,BitSet> values = postings.get(name);
+
+      if (null == values) {
+        return;
+      }
+
+      BitSet bits = values.get(value);
+
+      if (null != bits) {
+        bits.clear(ordinal);
+        if (bits.isEmpty()) {
+          values.remove(value);
+        }
+      }
+
+      BitSet holder = holders.get(name);
+      holder.clear(ordinal);
+
+      if (holder.isEmpty()) {
+        postings.remove(name);
+        holders.remove(name);
+      }
+    }
+
+    /**
+     * Compute the ordinals of the GTS whose labels or attributes match the given selectors.
+     * A GTS matches a selector if it has a label or attribute with the selector's name and
+     * if the values of those it has match.
+     *
+     * @param selectors Map of label name to String (exact match) or Matcher
+     */
+    private BitSet find(Map<String,Object> selectors) {
+      BitSet result = null;
+
+      for (Entry<String,Object> selector: selectors.entrySet()) {
+        int name = this.dictionary.lookup(selector.getKey());
+
+        if (name < 0) {
+          // No GTS has this label or attribute
+          return new BitSet();
+        }
+
+        BitSet lmatch = match(this.labels.get(name), selector.getValue());
+        BitSet amatch = match(this.attributes.get(name), selector.getValue());
+
+        BitSet matching = new BitSet();
+        matching.or(lmatch);
+        matching.or(amatch);
+
+        //
+        // Exclude the GTS which have a label (resp. attribute) with that name whose value does not match
+        //
+
+        BitSet holders = this.labelHolders.get(name);
+
+        if (null != holders) {
+          BitSet mismatch = (BitSet) holders.clone();
+          mismatch.andNot(lmatch);
+          matching.andNot(mismatch);
+        }
+
+        holders = this.attributeHolders.get(name);
+
+        if (null != holders) {
+          BitSet mismatch = (BitSet) holders.clone();
+          mismatch.andNot(amatch);
+          matching.andNot(mismatch);
+        }
+
+        if (null == result) {
+          result = matching;
+        } else {
+          result.and(matching);
+        }
+
+        if (result.isEmpty()) {
+          break;
+        }
+      }
+
+      return result;
+    }
+
+    private BitSet match(Map<Integer,BitSet> values, Object selector) {
+      BitSet bits = new BitSet();
+
+      if (null == values) {
+        return bits;
+      }
+
+      if (selector instanceof String) {
+        BitSet posting = values.get(this.dictionary.lookup((String) selector));
+        if (null != posting) {
+          bits.or(posting);
+        }
+      } else {
+        Matcher matcher = (Matcher) selector;
+        for (Entry<Integer,BitSet> entry: values.entrySet()) {
+          if (matcher.reset(this.dictionary.get(entry.getKey())).matches()) {
+            bits.or(entry.getValue());
+          }
+        }
+      }
+
+      return bits;
+    }
+  }
+
+  /**
+   * Add or update the given Metadata in the index
+   */
+  public void index(CompactMetadata metadata) {
+    //
+    // Updates are done while holding the monitor on 'classes' so a ClassIndex
+    // cannot be dropped by 'remove' while we add to it
+    //
+
+    synchronized(this.classes) {
+      String className = metadata.getName(this.dictionary);
+
+      ClassIndex index = this.classes.get(className);
+
+      if (null == index) {
+        index = new ClassIndex(this.dictionary);
+        this.classes.put(className, index);
+      }
+
+      index.lock.writeLock().lock();
+      try {
+        index.add(metadata.getLabelsId(), metadata);
+      } finally {
+        index.lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Remove all GTS from the index
+   */
+  public void clear() {
+    synchronized(this.classes) {
+      this.classes.clear();
+    }
+  }
+
+  /**
+   * Remove the GTS with the given class name and labelsId from the index
+   */
+  public void remove(String className, long labelsId) {
+    synchronized(this.classes) {
+      ClassIndex index = this.classes.get(className);
+
+      if (null == index) {
+        return;
+      }
+
+      index.lock.writeLock().lock();
+      try {
+        index.remove(labelsId);
+
+        if (index.ordinals.isEmpty()) {
+          this.classes.remove(className);
+        }
+      } finally {
+        index.lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Retrieve the Metadata of the given class which match all label selectors.
+   *
+   * @param className Name of the class
+   * @param selectors Map of label name to String (exact match) or Matcher (regular expression). Matchers are reset by this method.
+   * @return The list of matching Metadata, never null
+   */
+  public List<CompactMetadata> find(String className, Map<String,Object> selectors) {
+    ClassIndex index = this.classes.get(className);
+
+    List<CompactMetadata> result = new ArrayList<CompactMetadata>();
+
+    if (null == index) {
+      return result;
+    }
+
+    index.lock.readLock().lock();
+
+    try {
+      if (selectors.isEmpty()) {
+        for (CompactMetadata metadata: index.metadatas) {
+          if (null != metadata) {
+            result.add(metadata);
+          }
+        }
+        return result;
+      }
+
+      BitSet bits = index.find(selectors);
+
+      for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+        result.add(index.metadatas.get(i));
+      }
+    } finally {
+      index.lock.readLock().unlock();
+    }
+
+    return result;
+  }
+}
@@ -23,23 +23,39 @@ import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.FetchRequest;
 import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.RollupGTSDecoderIterator;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.GTSWrapper;
 import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.CryptoUtils;
 import io.warp10.crypto.KeyStore;
 import io.warp10.quasar.token.thrift.data.ReadToken;
 import io.warp10.quasar.token.thrift.data.WriteToken;
 import io.warp10.sensision.Sensision;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -53,16 +69,48 @@ import org.apache.thrift.TDeserializer;
 import org.apache.thrift.TSerializer;
 import org.apache.thrift.protocol.TCompactProtocol;
 
-import com.google.common.collect.MapMaker;
+import com.google.common.base.Charsets;
 
 public class StandaloneMemoryStore extends Thread implements StoreClient {
   
   private static final String STANDALONE_MEMORY_STORE_LOAD = "in.memory.load";
   private static final String STANDALONE_MEMORY_STORE_DUMP = "in.memory.dump";
+  private static final String STANDALONE_MEMORY_STORE_DUMP_FORMAT = "in.memory.dump.format";
+  private static final String STANDALONE_MEMORY_STORE_DUMP_SHARDS = "in.memory.dump.shards";
   private static final String STANDALONE_MEMORY_GC_PERIOD = "in.memory.gcperiod";
   
-  //private final ConcurrentHashMap<BigInteger,GTSEncoder> series;
-  private final Map<BigInteger,GTSEncoder> series;
+  private static final String DUMP_FORMAT_SNAPSHOT = "snapshot";
+  private static final String DUMP_FORMAT_SEQUENCEFILE = "sequencefile";
+  
+  /**
+   * Magic bytes at the start of snapshot manifests and shards, the last two are the format version
+   */
+  private static final byte[] SNAPSHOT_MAGIC = "W10MEM02".getBytes(Charsets.US_ASCII);
+  
+  /**
+   * Size of the write buffer of each shard when dumping a snapshot
+   */
+  private static final int SNAPSHOT_BUFFER_SIZE = 1024 * 1024;
+  
+  /**
+   * Maximum size of the windows shard files are mapped by when loading a snapshot
+   */
+  private static final long SNAPSHOT_MAP_SIZE = 256L * 1024L * 1024L;
+  
+  /**
+   * Size of the chunks used to compute the checksums of snapshot shards
+   */
+  private static final int SNAPSHOT_CHECKSUM_CHUNK = 64 * 1024;
+  
+  private static final int DEFAULT_STRIPES = 64;
+  private static final int DEFAULT_SLABSIZE = 8 * 1024 * 1024;
+  
+  /**
+   * Default number of time slots per 'timespan'
+   */
+  private static final long DEFAULT_SLOTS = 16L;
+  
+  private final StandaloneSeriesTable series;
   
   //private final Map<BigInteger,Metadata> metadatas;
   
@@ -94,8 +142,10 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
   public StandaloneMemoryStore(KeyStore keystore, long timespan, long highwatermark, long lowwatermark) {
     this.keystore = keystore;
     this.aesKey = this.keystore.getKey(KeyStore.AES_LEVELDB_DATA);
-    //this.series = new ConcurrentHashMap<BigInteger,GTSEncoder>();
-    this.series = new MapMaker().concurrencyLevel(64).makeMap();
+    this.series = new StandaloneSeriesTable(
+        Integer.parseInt(WarpConfig.getProperties().getProperty(io.warp10.continuum.Configuration.IN_MEMORY_STRIPES, Integer.toString(DEFAULT_STRIPES))),
+        Integer.parseInt(WarpConfig.getProperties().getProperty(io.warp10.continuum.Configuration.IN_MEMORY_SLABSIZE, Integer.toString(DEFAULT_SLABSIZE))),
+        Long.parseLong(WarpConfig.getProperties().getProperty(io.warp10.continuum.Configuration.IN_MEMORY_SLOTSPAN, Long.toString(Math.max(1L, timespan / DEFAULT_SLOTS)))));
     this.timespan = timespan;
     this.highwatermark = highwatermark;
     this.lowwatermark = lowwatermark;
@@ -137,16 +187,25 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
   }
   
   @Override
-  public GTSDecoderIterator fetch(final ReadToken token, final List<Metadata> metadatas, final long now, final long timespan, boolean fromArchive, boolean writeTimestamp) {
+  public GTSDecoderIterator fetch(final ReadToken token, final List<Metadata> metadatas, final FetchRequest request) {
   
+    //
+    // Rollups are computed from the datapoints read for each GTS
+    //
+    
+    if (request.hasRollup()) {
+      FetchRequest raw = new FetchRequest();
+      raw.setStart(request.getStart());
+      raw.setEnd(request.getEnd());
+      return new RollupGTSDecoderIterator(fetch(token, metadatas, raw), request);
+    }
+    
     GTSDecoderIterator iterator = new GTSDecoderIterator() {
 
       private int idx = 0;
       
       private GTSDecoder decoder = null;
       
-      private long nvalues = Long.MAX_VALUE;
-      
       @Override
       public void close() throws Exception {}
       
@@ -161,125 +220,58 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
       @Override
       public boolean hasNext() {  
         
-        byte[] bytes = new byte[16];
-        
         while(true) {
           if (idx >= metadatas.size()) {
             return false;
           }
           
           while(idx < metadatas.size()) {
-            //ByteBuffer bb = ByteBuffer.wrap(new byte[16]).order(ByteOrder.BIG_ENDIAN);
-            //bb.putLong(metadatas.get(idx).getClassId());
-            //bb.putLong(metadatas.get(idx).getLabelsId());
-            //BigInteger clslbls = new BigInteger(bb.array());
-
-            long id = metadatas.get(idx).getClassId();
+            StandaloneSeriesTable.Series s = series.get(metadatas.get(idx).getClassId(), metadatas.get(idx).getLabelsId());
             
-            int bidx = 0;
+            GTSEncoder encoder = null;
             
-            bytes[bidx++] = (byte) ((id >> 56) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 48) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 40) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 32) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 24) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 16) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 8) & 0xff);
-            bytes[bidx++] = (byte) (id & 0xff);
-            
-            id = metadatas.get(idx).getLabelsId();
-
-            bytes[bidx++] = (byte) ((id >> 56) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 48) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 40) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 32) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 24) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 16) & 0xff);
-            bytes[bidx++] = (byte) ((id >> 8) & 0xff);
-            bytes[bidx++] = (byte) (id & 0xff);
-
-            BigInteger clslbls = new BigInteger(bytes);
-            
-            if (idx < metadatas.size() && series.containsKey(clslbls)) {
-              GTSEncoder encoder = series.get(clslbls);
-              
-              GTSDecoder decoder = null;
-                  
-              synchronized (encoder) {
-                decoder = encoder.getDecoder();              
+            if (null != s) {
+              try {
+                // Skip the time slots which cannot contain datapoints in the requested range
+                encoder = series.getEncoder(s, request.getStart(), request.getEnd());
+              } catch (IOException ioe) {
+                encoder = null;
               }
+            }
+            
+            if (null != encoder) {
+              GTSDecoder decoder = encoder.getDecoder(true);
               
-              //
-              // Use nvalues to count the number of values within the right timerange
-              //
-              
-              nvalues = 0L;
-                            
               encoder = decoder.getCompatibleEncoder(0L);
 
               while(decoder.next()) {
                 //
-                // Ignore ticks after 'now'
+                // Ignore ticks outside of the requested range
                 //
                 
-                if (decoder.getTimestamp() > now) {
+                if (!request.contains(decoder.getTimestamp())) {
                   continue;
                 }
                 
-                // When retrieving ticks within a range, ignore those before the start timestamp
-                if (timespan >= 0 && decoder.getTimestamp() < (now - timespan + 1)) {
-                  continue;
-                }
-
                 try {
                   encoder.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
-                  nvalues++;
                 } catch (IOException ioe) {                  
                 }
               }
 
-              if (0 == encoder.size()) {
-                break;
-              }
-              
               //
-              // If retrieving a fixed number of ticks (negative timespan), check how many
-              // ticks we collected, if that number is <= to the limit, use the encoder as is,
-              // otherwise we need to do something more elaborate...
+              // Datapoints are not ordered in the encoder, retain the ones selected by
+              // the request according to their rank in decreasing timestamp order
               //
               
-              if (timespan < 0 && nvalues > -timespan) {
-                // Allocate an array for the timestamps
-                long[] ticks = new long[(int) nvalues];
-                
-                // Extract the timestamps of the ticks we kept
-                GTSDecoder dec = encoder.getDecoder(true);
-                
-                int idx = 0;
-
-                while (dec.next()) {
-                  ticks[idx++] = dec.getTimestamp();
-                }
-                
-                // Sort the ticks
-                Arrays.sort(ticks);
-                
-                // Determine the most ancient tick to consider
-                long lowerbound = ticks[(int) (nvalues + timespan)];
-                
-                // Now iterate one more time on the encoder, only keeping the ticks in the valid range
-                dec = encoder.getDecoder(true);
-                
+              try {
+                encoder = request.select(encoder);
+              } catch (IOException ioe) {
                 encoder = decoder.getCompatibleEncoder(0L);
-
-                while(dec.next()) {
-                  if (dec.getTimestamp() >= lowerbound) {
-                    try {
-                      encoder.addValue(dec.getTimestamp(), dec.getLocation(), dec.getElevation(), dec.getValue());
-                    } catch (IOException ioe) {                      
-                    }
-                  }
-                }
+              }
+              
+              if (0 == encoder.size()) {
+                break;
               }
               
               this.decoder = encoder.getDecoder(true);              
@@ -307,75 +299,17 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
       return;
     }
 
-    byte[] bytes = new byte[16];
-    
     Metadata meta = encoder.getMetadata();
 
     // 128BITS
-    long id = null != meta ? meta.getClassId() : encoder.getClassId();
+    long classId = null != meta ? meta.getClassId() : encoder.getClassId();
+    long labelsId = null != meta ? meta.getLabelsId() : encoder.getLabelsId();
     
-    int bidx = 0;
-    
-    bytes[bidx++] = (byte) ((id >> 56) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 48) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 40) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 32) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 24) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 16) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 8) & 0xff);
-    bytes[bidx++] = (byte) (id & 0xff);
-    
-    id = null != meta ? meta.getLabelsId() : encoder.getLabelsId();
-
-    bytes[bidx++] = (byte) ((id >> 56) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 48) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 40) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 32) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 24) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 16) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 8) & 0xff);
-    bytes[bidx++] = (byte) (id & 0xff);
-
-    BigInteger clslbls = new BigInteger(bytes);
-
-    GTSEncoder memencoder = null;
-
     //
-    // WARNING(hbs): the following 2 synchronized blocks MUST stay sequential (cf run())
+    // If in ephemeral mode, the content of the series is replaced by that of 'encoder'
     //
     
-    synchronized (this.series) {      
-      memencoder = this.series.get(clslbls);
-            
-      // If in ephemeral mode, always allocate a new GTSEncoder.
-      // We could probably directly store 'encoder', but this is
-      // discouraged since 'encoder' could be later modified outside of 'store'
-      
-      if (null == memencoder || this.ephemeral) {
-        memencoder = new GTSEncoder(0L, this.aesKey);
-        // We're among trusted friends, use safeSetMetadata...
-        if (null != meta) {
-          memencoder.safeSetMetadata(meta);
-        }
-        this.series.put(clslbls, memencoder);
-//        if (null != meta) {
-//          this.metadatas.put(clslbls, meta);
-//        }
-      }            
-    }
-
-    synchronized(memencoder) {
-      //
-      // If the encoder's size is 0 and it's not in 'series', call store recursively since
-      // it's highly probable the encoder has been cleaned by the GC since we entered 'store'
-      // Otherwise simply merge 'encoder' into 'memencoder'
-      //
-      if (0 == memencoder.size() && this.series.get(clslbls) != memencoder) {
-        store(encoder);
-      } else {
-        memencoder.merge(encoder);
-      }
-    }            
+    this.series.append(classId, labelsId, encoder, this.ephemeral);
     
     for (StandalonePlasmaHandlerInterface plasmaHandler: this.plasmaHandlers) {
       if (plasmaHandler.hasSubscriptions()) {
@@ -395,11 +329,7 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
     // Loop endlessly over the series, cleaning them as they grow
     //
     
-    // TODO(hbs): when an encoder no longer contains data, we should remove it completely from memory.
-    // This is tricky as we synchronize on the encoder for now, meaning we might have a waiting 'store' call.
-    // Need to think about it a little more
-    
-    List<BigInteger> metadatas = null;
+    List<StandaloneSeriesTable.Series> metadatas = null;
 
     long datapoints = 0L;
     long bytes = 0L;
@@ -414,8 +344,7 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
       // Sleep for 25% of the timespan
       try { Thread.sleep(gcperiod); } catch (InterruptedException ie) {}
             
-      metadatas = new ArrayList<BigInteger>();
-      metadatas.addAll(this.series.keySet());
+      metadatas = this.series.getSeries();
 
       if (0 == metadatas.size()) { continue; }
 
@@ -424,15 +353,7 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
       
       for (int idx = 0 ; idx < metadatas.size(); idx++) {
 
-        //
-        // Extract GTSEncoder
-        //
-        
-        GTSEncoder encoder;
-
-        synchronized (this.series) {
-          encoder = this.series.get(metadatas.get(idx));
-        }
+        StandaloneSeriesTable.Series s = metadatas.get(idx);
         
         long now = TimeSource.getTime();
         
@@ -444,112 +365,39 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
         //
         // If one of those conditions is met, encoder size will be reduced.
         //
-        // Reducing an encoder size means synchronizing on the given encoder, thus
-        // blocking any possible update
+        // Data is expired by dropping whole time slots, which only blocks updates of the
+        // series for the time needed to unlink them. Fetches are never blocked.
         //
               
-        if (now - encoder.getLastTimestamp() > this.timespan) {
-          
-          synchronized (encoder) {
-            GTSDecoder decoder = encoder.getDecoder(true);
-            
-            long skipped = 0;
-            
-            boolean keeplastskipped = false;
-            
-            while (decoder.next()) {
-              skipped++;
-              // Stop when reaching the first timestamp which is still within timespan
-              if (decoder.getTimestamp() > now - this.timespan) {
-                keeplastskipped = true;
-                break;
-              }
-            }
-            
-            try {
-              //
-              // Only modify the encoder if we skipped values
-              //
-              
-              if (skipped > 0) {
-                if (!keeplastskipped) {
-                  decoder.next();
-                } else {
-                  skipped--;
-                }                
-                encoder.reset(decoder.getEncoder(true));
-                datapoints += skipped;
-              }
-            } catch (IOException ioe) {            
-            }
-          }
-        } else if (encoder.size() > this.highwatermark) {
+        if (s.size() > 0 && now - s.getLastTimestamp() > this.timespan) {
+          // Drop the time slots which ended 'timespan' ago or more
+          datapoints += this.series.expire(s, now - this.timespan, 0L);
+        } else if (s.size() > this.highwatermark) {
+          // Drop the expired time slots until the series goes back below 'lowwatermark'
+          datapoints += this.series.expire(s, now - this.timespan, this.lowwatermark);
+        } else if (this.series.needsCompaction(s)) {
+          //
+          // Rewrite time slots made of many small segments or lying in mostly free slabs
+          //
           
-          synchronized (encoder) {
-            GTSDecoder decoder = encoder.getDecoder(true);
-            
-            int skipped = 0;
-            
-            boolean keeplastskipped = false;
-            
-            while (decoder.next()) {
-              skipped++;
-              if (decoder.getTimestamp() > now - this.timespan) {
-                keeplastskipped = true;
-                break;
-              }
-              if (decoder.getRemainingSize() <= this.lowwatermark) {
-                break;
-              }
-            }
-            
-            try {
-              //
-              // Only modify the encoder if we skipped values
-              //
-              
-              if (skipped > 0) {
-                if (!keeplastskipped) {
-                  decoder.next();
-                } else {
-                  skipped--;
-                }
-                encoder.reset(decoder.getEncoder(true));
-                datapoints += skipped;
-              }
-            } catch (IOException ioe) {            
-            }
+          try {
+            this.series.compact(s);
+          } catch (IOException ioe) {            
           }
         }
         
-        bytes += encoder.size();
+        bytes += s.size();
         
         //
-        // ATTENTION.... We have a double synchronized clause, we need to make sure
-        // there is no other double synchronized with the reverse order, otherwise we
-        // would deadlock. The 'synchronized' in 'store' are sequential, not enclosed, so
-        // we're safe!
+        // Remove the series if it no longer contains data. The series is only removed if no data
+        // was stored in it concurrently.
         //
         
-        synchronized(encoder) {
-          if (0 == encoder.size()) {
-            synchronized(this.series) {
-              this.series.remove(this.series.get(metadatas.get(idx)));
-              // TODO(hbs): Still need to unregister properly the Metadata from the Directory. This is tricky since
-              // the call to store is re-entrant but won't go through the register phase....
-            }
-          }
+        if (0 == s.size()) {
+          this.series.removeIfEmpty(s);
+          // TODO(hbs): Still need to unregister properly the Metadata from the Directory. This is tricky since
+          // the call to store is re-entrant but won't go through the register phase....
         }
-        
-        //
-        // TODO(hbs): remove the encoder if it's empty.
-        // This is tricky to do since we might be storing data concurrently in an encoder
-        // that is for now empty.
-        // We also need to remove the metadata from the Directory.
-        // For now we'll tolerate to have dangling Metadata (i.e. with no associated non empty encoder)
-        //
-        
-        // Count empty encoders and report them as a Sensision metric.
       }
       
       //
@@ -565,6 +413,7 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
       Long oldbytes = (Long) Sensision.getValue(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_BYTES, Sensision.EMPTY_LABELS);     
       
       Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_BYTES, Sensision.EMPTY_LABELS, bytes);
+      Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_OFFHEAP, Sensision.EMPTY_LABELS, this.series.getOffHeapBytes());
       Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_GC_DATAPOINTS, Sensision.EMPTY_LABELS, datapoints);
       if (null != oldbytes && oldbytes > bytes) {
         Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_GC_BYTES, Sensision.EMPTY_LABELS, oldbytes - bytes);
@@ -586,46 +435,385 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
     metadata.setLabelsId(GTSHelper.labelsId(this.keystore.getKey(KeyStore.SIPHASH_LABELS), metadata.getLabels()));
     metadata.setClassId(GTSHelper.classId(this.keystore.getKey(KeyStore.SIPHASH_CLASS), metadata.getName()));
 
-    byte[] bytes = new byte[16];
+    this.series.remove(metadata.getClassId(), metadata.getLabelsId());
     
-    long id = metadata.getClassId();
+    return 0L;
+  }
+  
+  public void addPlasmaHandler(StandalonePlasmaHandlerInterface plasmaHandler) {
+    this.plasmaHandlers.add(plasmaHandler);
+  } 
+  
+  /**
+   * Return the 128 bits id of a series as used by the Directory
+   */
+  private static BigInteger id(StandaloneSeriesTable.Series s) {
+    byte[] idbytes = new byte[16];
+    
+    long id = s.getClassId();
     
     int bidx = 0;
     
-    bytes[bidx++] = (byte) ((id >> 56) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 48) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 40) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 32) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 24) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 16) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 8) & 0xff);
-    bytes[bidx++] = (byte) (id & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 56) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 48) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 40) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 32) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 24) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 16) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 8) & 0xff);
+    idbytes[bidx++] = (byte) (id & 0xff);
     
-    id = metadata.getLabelsId();
-
-    bytes[bidx++] = (byte) ((id >> 56) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 48) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 40) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 32) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 24) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 16) & 0xff);
-    bytes[bidx++] = (byte) ((id >> 8) & 0xff);
-    bytes[bidx++] = (byte) (id & 0xff);
-
-    BigInteger clslbls = new BigInteger(bytes);
+    id = s.getLabelsId();
 
-    synchronized(this.series) {
-      this.series.remove(clslbls);
+    idbytes[bidx++] = (byte) ((id >> 56) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 48) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 40) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 32) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 24) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 16) & 0xff);
+    idbytes[bidx++] = (byte) ((id >> 8) & 0xff);
+    idbytes[bidx++] = (byte) (id & 0xff);
+    
+    return new BigInteger(idbytes);
+  }
+  
+  /**
+   * Dump the content of the memory store to 'path', in the format configured by 'in.memory.dump.format'
+   */
+  public void dump(String path) throws IOException {
+    if (DUMP_FORMAT_SEQUENCEFILE.equals(WarpConfig.getProperties().getProperty(STANDALONE_MEMORY_STORE_DUMP_FORMAT, DUMP_FORMAT_SNAPSHOT))) {
+      dumpSequenceFile(path);
+    } else {
+      dumpSnapshot(path);
     }
+  }
+  
+  /**
+   * Dump the content of the memory store as a snapshot.
+   * 
+   * A snapshot is made of a manifest file at 'path' and of shard files 'path.GENERATION.0', 'path.GENERATION.1', ...
+   * which are written in parallel, each by its own thread. The manifest contains SNAPSHOT_MAGIC, the number of shards,
+   * the generation and the CRC32 of each shard file. It is written last and atomically replaces the previous manifest, so
+   * an incomplete dump never alters the previous snapshot, whose shard files are only removed once the new manifest
+   * is in place. Each shard file starts with SNAPSHOT_MAGIC followed by one record per series:
+   * 
+   * [metadata length (4 bytes)][wrapped Thrift compact Metadata][base timestamp (8 bytes)][count (8 bytes)][data length (4 bytes)][encoded data]
+   * 
+   * Metadata and data are encrypted with the LevelDB data key when one is configured, as in the SequenceFile format.
+   */
+  private void dumpSnapshot(final String path) throws IOException {
+    long nano = System.nanoTime();
     
-    return 0L;
+    int shards = Integer.parseInt(WarpConfig.getProperties().getProperty(STANDALONE_MEMORY_STORE_DUMP_SHARDS, Integer.toString(Runtime.getRuntime().availableProcessors())));
+    shards = Math.max(1, shards);
+    
+    //
+    // Retrieve the shard files of the previous snapshot, they will be removed once the new one is complete
+    //
+    
+    Manifest previous = readManifest(path);
+    
+    final long generation = null == previous ? System.currentTimeMillis() : Math.max(System.currentTimeMillis(), previous.generation + 1);
+    
+    final List<StandaloneSeriesTable.Series> series = this.series.getSeries();
+    
+    List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+    
+    for (int i = 0; i < shards; i++) {
+      final int shard = i;
+      final int nshards = shards;
+      tasks.add(new Callable<long[]>() {
+        @Override
+        public long[] call() throws Exception {
+          return dumpShard(series, shard, nshards, shardFile(path, generation, shard));
+        }
+      });
+    }
+    
+    long[][] results;
+    
+    try {
+      results = runShards(tasks);
+    } catch (IOException ioe) {
+      for (int i = 0; i < shards; i++) {
+        shardFile(path, generation, i).delete();
+      }
+      throw ioe;
+    }
+    
+    long[] totals = totals(results);
+    
+    //
+    // Write the manifest
+    //
+    
+    File tmp = new File(path + ".tmp");
+    
+    FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    
+    try {
+      ByteBuffer bb = ByteBuffer.allocate(SNAPSHOT_MAGIC.length + 4 + 8 + 8 * shards);
+      bb.put(SNAPSHOT_MAGIC);
+      bb.putInt(shards);
+      bb.putLong(generation);
+      for (long[] result: results) {
+        bb.putLong(result[2]);
+      }
+      bb.flip();
+      while (bb.hasRemaining()) {
+        channel.write(bb);
+      }
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+    
+    Files.move(tmp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    
+    //
+    // Remove the shard files of the previous snapshot
+    //
+    
+    if (null != previous) {
+      for (int i = 0; i < previous.shards; i++) {
+        previous.shardFile(i).delete();
+      }
+    }
+    
+    nano = System.nanoTime() - nano;
+    
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_DUMP_GTS, Sensision.EMPTY_LABELS, totals[0]);
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_DUMP_BYTES, Sensision.EMPTY_LABELS, totals[1]);
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_DUMP_TIME_NS, Sensision.EMPTY_LABELS, nano);
+    
+    System.out.println("Dumped " + totals[0] + " GTS (" + totals[1] + " bytes) in " + shards + " shards in " + (nano / 1000000.0D) + " ms.");
   }
   
-  public void addPlasmaHandler(StandalonePlasmaHandlerInterface plasmaHandler) {
-    this.plasmaHandlers.add(plasmaHandler);
-  } 
+  private static File shardFile(String path, long generation, int shard) {
+    return new File(path + "." + generation + "." + shard);
+  }
   
-  public void dump(String path) throws IOException {
+  /**
+   * Content of a snapshot manifest
+   */
+  private static final class Manifest {
+    private final String path;
+    private final int shards;
+    private final long generation;
+    private final long[] checksums;
+    
+    private Manifest(String path, int shards, long generation, long[] checksums) {
+      this.path = path;
+      this.shards = shards;
+      this.generation = generation;
+      this.checksums = checksums;
+    }
+    
+    private File shardFile(int shard) {
+      return StandaloneMemoryStore.shardFile(this.path, this.generation, shard);
+    }
+  }
+  
+  /**
+   * Read the manifest of the snapshot at 'path'
+   * 
+   * @return the manifest or null if there is no snapshot manifest at 'path'
+   */
+  private static Manifest readManifest(String path) throws IOException {
+    File file = new File(path);
+    
+    if (!file.exists()) {
+      return null;
+    }
+    
+    byte[] content = Files.readAllBytes(file.toPath());
+    
+    if (content.length < SNAPSHOT_MAGIC.length + 4) {
+      return null;
+    }
+    
+    ByteBuffer bb = ByteBuffer.wrap(content);
+    
+    byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+    bb.get(magic);
+    
+    int shards = bb.getInt();
+    
+    if (shards < 0) {
+      throw new IOException("Corrupted in-memory snapshot manifest '" + path + "'.");
+    }
+    
+    if (!Arrays.equals(magic, SNAPSHOT_MAGIC)) {
+      return null;
+    }
+    
+    if (bb.remaining() != 8L + 8L * shards) {
+      throw new IOException("Truncated in-memory snapshot manifest '" + path + "'.");
+    }
+    
+    long generation = bb.getLong();
+    
+    long[] checksums = new long[shards];
+    
+    for (int i = 0; i < shards; i++) {
+      checksums[i] = bb.getLong();
+    }
+    
+    return new Manifest(path, shards, generation, checksums);
+  }
+  
+  /**
+   * Write the series whose index modulo 'shards' is 'shard' to a shard file
+   * 
+   * @return An array with the number of series, the number of bytes written and the CRC32 of the file
+   */
+  private long[] dumpShard(List<StandaloneSeriesTable.Series> series, int shard, int shards, File file) throws Exception {
+    TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+    
+    CRC32 crc = new CRC32();
+    
+    long gts = 0L;
+    long bytes = 0L;
+    
+    ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER_SIZE);
+    
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    
+    try {
+      buffer.put(SNAPSHOT_MAGIC);
+      
+      for (int i = shard; i < series.size(); i += shards) {
+        StandaloneSeriesTable.Series s = series.get(i);
+        
+        GTSEncoder encoder = this.series.getEncoder(s);
+        
+        if (null == encoder) {
+          continue;
+        }
+        
+        Metadata metadata = this.directoryClient.getMetadataById(id(s));
+        
+        if (null == metadata) {
+          continue;
+        }
+        
+        encoder.setWrappingKey(this.aesKey);
+        
+        byte[] meta = serializer.serialize(metadata);
+        
+        if (null != this.aesKey) {
+          meta = CryptoUtils.wrap(this.aesKey, meta);
+        }
+        
+        byte[] data = encoder.getBytes();
+        
+        int len = 4 + meta.length + 8 + 8 + 4 + data.length;
+        
+        if (buffer.remaining() < len) {
+          write(channel, buffer, crc);
+        }
+        
+        // Records larger than the buffer are written on their own
+        ByteBuffer bb = buffer.remaining() < len ? ByteBuffer.allocate(len) : buffer;
+        
+        bb.putInt(meta.length);
+        bb.put(meta);
+        bb.putLong(encoder.getBaseTimestamp());
+        bb.putLong(encoder.getCount());
+        bb.putInt(data.length);
+        bb.put(data);
+        
+        if (bb != buffer) {
+          write(channel, bb, crc);
+        }
+        
+        gts++;
+        bytes += len;
+      }
+      
+      write(channel, buffer, crc);
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+    
+    return new long[] { gts, bytes, crc.getValue() };
+  }
+  
+  /**
+   * Update a checksum with the remaining content of a buffer, leaving the buffer position unchanged
+   */
+  private static void checksum(CRC32 crc, ByteBuffer buffer) {
+    ByteBuffer view = buffer.duplicate();
+    byte[] chunk = new byte[Math.min(view.remaining(), SNAPSHOT_CHECKSUM_CHUNK)];
+    
+    while (view.hasRemaining()) {
+      int len = Math.min(view.remaining(), chunk.length);
+      view.get(chunk, 0, len);
+      crc.update(chunk, 0, len);
+    }
+  }
+  
+  /**
+   * Write the content of a buffer to a channel, update the checksum of the file and clear the buffer
+   */
+  private static void write(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+    buffer.flip();
+    checksum(crc, buffer);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+  
+  /**
+   * Run the tasks dumping or loading shards in parallel
+   * 
+   * @return The arrays returned by the tasks, in the order of the tasks
+   */
+  private static long[][] runShards(List<Callable<long[]>> tasks) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+    
+    long[][] results = new long[tasks.size()][];
+    
+    try {
+      List<Future<long[]>> futures = executor.invokeAll(tasks);
+      
+      for (int i = 0; i < results.length; i++) {
+        results[i] = futures.get(i).get();
+      }
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof IOException) {
+        throw (IOException) ee.getCause();
+      }
+      throw new IOException(ee.getCause());
+    } catch (InterruptedException ie) {
+      throw new IOException(ie);
+    } finally {
+      executor.shutdownNow();
+    }
+    
+    return results;
+  }
+  
+  /**
+   * Sum the number of series and of bytes returned by the shard tasks
+   */
+  private static long[] totals(long[][] results) {
+    long[] totals = new long[2];
+    
+    for (long[] result: results) {
+      totals[0] += result[0];
+      totals[1] += result[1];
+    }
+    
+    return totals;
+  }
+  
+  /**
+   * Dump the content of the memory store as a Hadoop SequenceFile
+   */
+  private void dumpSequenceFile(String path) throws IOException {
     
     long nano = System.nanoTime();
     int gts = 0;
@@ -648,13 +836,21 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
     TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
     
     try {
-      for (Entry<BigInteger,GTSEncoder> entry: this.series.entrySet()) {
+      for (StandaloneSeriesTable.Series s: this.series.getSeries()) {
+        GTSEncoder encoder = this.series.getEncoder(s);
+        
+        if (null == encoder) {
+          continue;
+        }
+        
+        // Encrypt the data as in-memory encoders used to be
+        encoder.setWrappingKey(this.aesKey);
+        
         gts++;
-        Metadata metadata = this.directoryClient.getMetadataById(entry.getKey());
+        
+        Metadata metadata = this.directoryClient.getMetadataById(id(s));
 
         GTSWrapper wrapper = new GTSWrapper(metadata);        
-        
-        GTSEncoder encoder = entry.getValue();
 
         wrapper.setBase(encoder.getBaseTimestamp());
         wrapper.setCount(encoder.getCount());
@@ -696,6 +892,10 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
 
     nano = System.nanoTime() - nano;
     
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_DUMP_GTS, Sensision.EMPTY_LABELS, gts);
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_DUMP_BYTES, Sensision.EMPTY_LABELS, bytes);
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_DUMP_TIME_NS, Sensision.EMPTY_LABELS, nano);
+    
     System.out.println("Dumped " + gts + " GTS (" + bytes + " bytes) in " + (nano / 1000000.0D) + " ms.");
   }
   
@@ -713,7 +913,225 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
     }    
   }
   
-  private void load(String path) throws IOException {
+  void load(String path) throws IOException {
+    
+    //
+    // Determine the format of the dump from its first bytes
+    //
+    
+    byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+    int len = 0;
+    
+    try {
+      InputStream in = new FileInputStream(path);
+      try {
+        while (len < magic.length) {
+          int n = in.read(magic, len, magic.length - len);
+          if (n < 0) {
+            break;
+          }
+          len += n;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (FileNotFoundException fnfe) {
+      System.err.println("File '" + path + "' was not found, skipping.");
+      return;
+    }
+    
+    if (len == magic.length && Arrays.equals(magic, SNAPSHOT_MAGIC)) {
+      loadSnapshot(path);
+    } else if (len >= 3 && 'S' == magic[0] && 'E' == magic[1] && 'Q' == magic[2]) {
+      loadSequenceFile(path);
+    } else {
+      throw new IOException("Unknown in-memory dump format for '" + path + "'.");
+    }
+  }
+  
+  /**
+   * Load a snapshot written by 'dumpSnapshot', each shard being loaded by its own thread
+   */
+  private void loadSnapshot(final String path) throws IOException {
+    long nano = System.nanoTime();
+    
+    final Manifest manifest = readManifest(path);
+    
+    if (null == manifest) {
+      throw new IOException("Invalid in-memory snapshot manifest '" + path + "'.");
+    }
+    
+    System.out.println("Loading '" + path + "' (" + manifest.shards + " shards) back in memory.");
+    
+    List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+    
+    for (int i = 0; i < manifest.shards; i++) {
+      final int shard = i;
+      tasks.add(new Callable<long[]>() {
+        @Override
+        public long[] call() throws Exception {
+          return loadShard(manifest, shard);
+        }
+      });
+    }
+    
+    long[] totals = totals(runShards(tasks));
+    
+    nano = System.nanoTime() - nano;
+    
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_LOAD_GTS, Sensision.EMPTY_LABELS, totals[0]);
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_LOAD_BYTES, Sensision.EMPTY_LABELS, totals[1]);
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_LOAD_TIME_NS, Sensision.EMPTY_LABELS, nano);
+    
+    System.out.println("Loaded " + totals[0] + " GTS (" + totals[1] + " bytes) in " + (nano / 1000000.0D) + " ms.");
+  }
+  
+  /**
+   * Load the records of a shard file. The file is memory mapped by windows of at most
+   * SNAPSHOT_MAP_SIZE bytes, each window starting at a record boundary.
+   * The checksum of the file is verified before any record is loaded.
+   * 
+   * @return An array with the number of series and the number of bytes read
+   */
+  private long[] loadShard(Manifest manifest, int shard) throws Exception {
+    TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
+    
+    File file = manifest.shardFile(shard);
+    
+    long gts = 0L;
+    long bytes = 0L;
+    
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    
+    try {
+      long size = channel.size();
+      
+      CRC32 crc = new CRC32();
+      
+      for (long offset = 0L; offset < size; offset += SNAPSHOT_MAP_SIZE) {
+        checksum(crc, channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(size - offset, SNAPSHOT_MAP_SIZE)));
+      }
+      
+      if (crc.getValue() != manifest.checksums[shard]) {
+        throw new IOException("Checksum mismatch for in-memory snapshot shard '" + file + "'.");
+      }
+      
+      byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+      
+      if (size < magic.length) {
+        throw new IOException("Truncated in-memory snapshot shard '" + file + "'.");
+      }
+      
+      channel.map(FileChannel.MapMode.READ_ONLY, 0, magic.length).get(magic);
+      
+      if (!Arrays.equals(magic, SNAPSHOT_MAGIC)) {
+        throw new IOException("Invalid in-memory snapshot shard '" + file + "'.");
+      }
+      
+      long position = magic.length;
+      long window = SNAPSHOT_MAP_SIZE;
+      
+      while (position < size) {
+        MappedByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, window));
+        
+        long needed = 0L;
+        
+        while (bb.hasRemaining()) {
+          int start = bb.position();
+          
+          if (bb.remaining() < 4) {
+            needed = 4;
+            break;
+          }
+          
+          int metalen = bb.getInt(start);
+          
+          if (metalen < 0) {
+            throw new IOException("Corrupted in-memory snapshot shard '" + file + "'.");
+          }
+          
+          if (bb.remaining() < 4L + metalen + 8 + 8 + 4) {
+            needed = 4L + metalen + 8 + 8 + 4;
+            break;
+          }
+          
+          int datalen = bb.getInt(start + 4 + metalen + 8 + 8);
+          
+          if (datalen < 0) {
+            throw new IOException("Corrupted in-memory snapshot shard '" + file + "'.");
+          }
+          
+          long reclen = 4L + metalen + 8 + 8 + 4 + datalen;
+          
+          if (bb.remaining() < reclen) {
+            needed = reclen;
+            break;
+          }
+          
+          bb.position(start + 4);
+          
+          byte[] meta = new byte[metalen];
+          bb.get(meta);
+          
+          long base = bb.getLong();
+          long count = bb.getLong();
+          
+          bb.getInt();
+          
+          byte[] data = new byte[datalen];
+          bb.get(data);
+          
+          meta = CryptoUtils.unwrap(this.aesKey, meta);
+          
+          if (null == meta) {
+            throw new IOException("Unable to decrypt in-memory snapshot shard '" + file + "'.");
+          }
+          
+          Metadata metadata = new Metadata();
+          deserializer.deserialize(metadata, meta);
+          
+          // The data is decrypted when the encoder is merged into the series
+          GTSEncoder encoder = new GTSEncoder(base, this.aesKey, data);
+          encoder.setCount(count);
+          encoder.safeSetMetadata(metadata);
+          
+          store(encoder);
+          
+          if (null != this.directoryClient) {
+            this.directoryClient.register(metadata);
+          }
+          
+          gts++;
+          bytes += reclen;
+        }
+        
+        if (0 == bb.position()) {
+          //
+          // The next record does not fit in the window, map a window large enough for it
+          //
+          
+          if (position + needed > size) {
+            throw new IOException("Truncated in-memory snapshot shard '" + file + "'.");
+          }
+          
+          window = needed;
+        } else {
+          window = SNAPSHOT_MAP_SIZE;
+        }
+        
+        position += bb.position();
+      }
+    } finally {
+      channel.close();
+    }
+    
+    return new long[] { gts, bytes };
+  }
+  
+  /**
+   * Load a dump in the Hadoop SequenceFile format
+   */
+  private void loadSequenceFile(String path) throws IOException {
     
     long nano = System.nanoTime();
     int gts = 0;
@@ -739,7 +1157,8 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
         gts++;
         GTSWrapper wrapper = new GTSWrapper();
         deserializer.deserialize(wrapper, key.copyBytes());
-        GTSEncoder encoder = new GTSEncoder(0L, null, value.copyBytes());
+        // Data was encrypted with the in-memory data key when dumped
+        GTSEncoder encoder = new GTSEncoder(wrapper.isSetBase() ? wrapper.getBase() : 0L, this.aesKey, value.copyBytes());
         encoder.setCount(wrapper.getCount());
         
         bytes += value.getLength() + key.getLength();
@@ -762,6 +1181,10 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
     
     nano = System.nanoTime() - nano;
     
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_LOAD_GTS, Sensision.EMPTY_LABELS, gts);
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_LOAD_BYTES, Sensision.EMPTY_LABELS, bytes);
+    Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_LOAD_TIME_NS, Sensision.EMPTY_LABELS, nano);
+    
     System.out.println("Loaded " + gts + " GTS (" + bytes + " bytes) in " + (nano / 1000000.0D) + " ms.");
   }
   
@@ -22,12 +22,14 @@ import io.warp10.continuum.egress.EgressFetchHandler;
 import io.warp10.continuum.gts.GTSDecoder;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSWrapperHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.continuum.plasma.PlasmaSubscriptionListener;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
 import io.warp10.continuum.store.MetadataIterator;
+import io.warp10.continuum.store.thrift.data.GTSWrapper;
 import io.warp10.continuum.store.thrift.data.Metadata;
 import io.warp10.crypto.CryptoUtils;
 import io.warp10.crypto.KeyStore;
@@ -35,22 +37,24 @@ import io.warp10.crypto.OrderPreservingBase64;
 import io.warp10.quasar.token.thrift.data.ReadToken;
 import io.warp10.sensision.Sensision;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -63,7 +67,6 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.thrift.TException;
 import org.apache.thrift.TSerializer;
 import org.apache.thrift.protocol.TCompactProtocol;
-import org.apache.thrift.protocol.TCompactProtocol.Factory;
 import org.boon.json.JsonSerializer;
 import org.boon.json.JsonSerializerFactory;
 import org.eclipse.jetty.server.Request;
@@ -82,13 +85,33 @@ import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 import com.geoxp.GeoXPLib;
 import com.google.common.base.Charsets;
 
+/**
+ * WebSocket endpoint of Plasma.
+ * 
+ * Each session subscribes to a set of GTS, a reverse index maps each GTS to the sessions which subscribed
+ * to it so dispatching an encoder only considers those sessions. Datapoints are formatted once per output
+ * format and appended to the current frame of each session. A frame is sealed before a record would make
+ * it larger than 90% of the maximum message size, records larger than the maximum message size are dropped.
+ * 
+ * By default each frame contains the records of a single encoder, i.e. one RAW record, one JSON array or
+ * the TEXT/FULLTEXT lines of the encoder. Sessions which sent the BATCH verb get frames coalescing the
+ * records of several encoders (separated by '\n' for RAW, TEXT and FULLTEXT), sent when they reach 90%
+ * of the maximum message size or by a flushing thread every 'plasma.frontend.flush.interval' ms.
+ * 
+ * Each session has a bounded queue of frames and at most one frame being sent, frames which do not fit in
+ * the queue of a slow session are dropped, so dispatching never waits for a subscriber.
+ * 
+ * In the WRAPPER output format frames are binary, they contain a sequence of GTSWrapper serialized with
+ * TCompactProtocol, each one preceded by its length as a 4 bytes big endian int.
+ */
 public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements Runnable, StandalonePlasmaHandlerInterface {
   
-  private enum OUTPUT_FORMAT {
+  enum OUTPUT_FORMAT {
     RAW,
     JSON,
     TEXT,
     FULLTEXT,
+    WRAPPER,
   };
 
   protected final KeyStore keystore;
@@ -105,7 +128,7 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   /**
    * Map of classId+labelsId to Metadata
    */
-  private Map<BigInteger, Metadata> metadatas = new HashMap<BigInteger, Metadata>();
+  private Map<BigInteger, Metadata> metadatas = new ConcurrentHashMap<BigInteger, Metadata>();
   
   /**
    * Map of Session to subscription
@@ -113,19 +136,14 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   private Map<Session, Set<BigInteger>> subscriptions = new ConcurrentHashMap<Session, Set<BigInteger>>();
   
   /**
-   * Map of Session to JSON format
+   * Map of classId+labelsId to the sessions which subscribed to it
    */
-  private Map<Session, Boolean> format = new HashMap<Session, Boolean>();
+  private Map<BigInteger, Set<Session>> sessions = new ConcurrentHashMap<BigInteger, Set<Session>>();
   
   /**
-   * Map of Session to output format
+   * Map of Session to output state (format, sample rate, frames)
    */
-  private Map<Session, OUTPUT_FORMAT> outputFormat = new HashMap<Session, OUTPUT_FORMAT>();
-  
-  /**
-   * Mp of Session to sample rate
-   */
-  private Map<Session, Long> sampleRate = new HashMap<Session, Long>();
+  private Map<Session, Subscriber> subscribers = new ConcurrentHashMap<Session, Subscriber>();
   
   /**
    * Number of 
@@ -136,6 +154,213 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   
   private PlasmaSubscriptionListener subscriptionListener = null;
   
+  /**
+   * Maximum number of frames waiting to be sent per session
+   */
+  private final int maxFrames;
+  
+  /**
+   * Delay (in ms) between flushes of the sessions frames
+   */
+  private final long flushInterval;
+  
+  /**
+   * Output state of a session.
+   */
+  private static final class Subscriber {
+    
+    private final Session session;
+    
+    private OUTPUT_FORMAT format = OUTPUT_FORMAT.TEXT;
+    
+    private double rate = 1.0D;
+    
+    /**
+     * Should the records of several encoders be coalesced in the same frame
+     */
+    private boolean batch = false;
+    
+    /**
+     * Frame being built, 'text' for the text formats, 'binary' for WRAPPER
+     */
+    private final StringBuilder text = new StringBuilder();
+    private final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    
+    /**
+     * Number of datapoints (or encoders for RAW and WRAPPER) in the frame being built
+     */
+    private long count = 0L;
+    
+    /**
+     * Id of the GTS of the last datapoint of the frame being built, for the TEXT format
+     */
+    private BigInteger last = null;
+    
+    /**
+     * Frames waiting to be sent and their number of datapoints
+     */
+    private final ArrayDeque<Object> frames = new ArrayDeque<Object>();
+    
+    /**
+     * Frame currently being sent
+     */
+    private Future<Void> inflight = null;
+    
+    /**
+     * Maximum number of frames waiting to be sent
+     */
+    private final int maxFrames;
+    
+    private Subscriber(Session session, int maxFrames) {
+      this.session = session;
+      this.maxFrames = maxFrames;
+    }
+    
+    private synchronized OUTPUT_FORMAT getFormat() {
+      return this.format;
+    }
+    
+    private synchronized void setFormat(OUTPUT_FORMAT format) {
+      if (format != this.format) {
+        seal(0L);
+        this.format = format;
+      }
+    }
+    
+    private synchronized double getRate() {
+      return this.rate;
+    }
+    
+    private synchronized void setRate(double rate) {
+      this.rate = rate;
+    }
+    
+    private synchronized boolean getBatch() {
+      return this.batch;
+    }
+    
+    private synchronized void setBatch(boolean batch) {
+      if (batch != this.batch) {
+        seal(0L);
+        this.batch = batch;
+      }
+    }
+    
+    /**
+     * Append a line to the current frame, which is sealed first if the line would make it larger than
+     * 'threshold'. For the TEXT format 'cont' is used instead of 'line' when the previous line of the
+     * frame was for the same GTS. Lines which would not fit in a message of 'max' chars are dropped.
+     * 
+     * @return the number of datapoints dropped
+     */
+    private synchronized long append(BigInteger id, String line, String cont, long threshold, long max) {
+      // Leave room for the JSON brackets
+      if (line.length() + 2 > max) {
+        return 1L;
+      }
+      
+      long dropped = 0L;
+      
+      String record = null != cont && id.equals(this.last) ? cont : line;
+      
+      if (0 != this.count && this.text.length() + record.length() + 2 > threshold) {
+        dropped = seal(0L);
+        record = line;
+      }
+      
+      if (0 == this.count) {
+        if (OUTPUT_FORMAT.JSON == this.format) {
+          this.text.append("[");
+        }
+      } else if (OUTPUT_FORMAT.JSON == this.format) {
+        this.text.append(",");
+      } else {
+        this.text.append("\n");
+      }
+      
+      this.text.append(record);
+      
+      this.last = id;
+      this.count++;
+      
+      return dropped;
+    }
+    
+    /**
+     * Append a length prefixed record to the current binary frame, which is sealed first if the record
+     * would make it larger than 'threshold'. Records which would not fit in a message of 'max' bytes are dropped.
+     * 
+     * @return the number of records dropped
+     */
+    private synchronized long append(byte[] record, long threshold, long max) {
+      if (record.length + 4 > max) {
+        return 1L;
+      }
+      
+      long dropped = 0L;
+      
+      if (0 != this.count && this.binary.size() + record.length + 4 > threshold) {
+        dropped = seal(0L);
+      }
+      
+      this.binary.write((record.length >>> 24) & 0xff);
+      this.binary.write((record.length >>> 16) & 0xff);
+      this.binary.write((record.length >>> 8) & 0xff);
+      this.binary.write(record.length & 0xff);
+      this.binary.write(record, 0, record.length);
+      this.count++;
+      
+      return dropped;
+    }
+    
+    /**
+     * Move the current frame to the queue of frames to send if it is larger than 'threshold'.
+     * If the queue is full the frame is dropped.
+     * 
+     * @return the number of datapoints dropped
+     */
+    private synchronized long seal(long threshold) {
+      if (0 == this.count || Math.max(this.text.length(), this.binary.size()) < threshold) {
+        return 0L;
+      }
+      
+      long dropped = 0L;
+      
+      if (this.frames.size() >= this.maxFrames) {
+        dropped = this.count;
+      } else if (OUTPUT_FORMAT.WRAPPER == this.format) {
+        this.frames.add(ByteBuffer.wrap(this.binary.toByteArray()));
+      } else {
+        if (OUTPUT_FORMAT.JSON == this.format) {
+          this.text.append("]");
+        }
+        this.frames.add(this.text.toString());
+      }
+      
+      this.text.setLength(0);
+      this.binary.reset();
+      this.count = 0L;
+      this.last = null;
+      
+      return dropped;
+    }
+    
+    /**
+     * Send the queued frames as long as the previous one has been sent
+     */
+    private synchronized void drain() {
+      while (!this.frames.isEmpty() && (null == this.inflight || this.inflight.isDone())) {
+        Object frame = this.frames.poll();
+        
+        if (frame instanceof ByteBuffer) {
+          this.inflight = this.session.getRemote().sendBytesByFuture((ByteBuffer) frame);
+        } else {
+          this.inflight = this.session.getRemote().sendStringByFuture((String) frame);
+        }
+      }
+    }
+  }
+  
   @WebSocket
   public static class StandalonePlasmaWebSocket {
     
@@ -201,20 +426,14 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
         
         List<Metadata> metadatas = new ArrayList<Metadata>();
         
-        Iterator<Metadata> iter = this.handler.getDirectoryClient().iterator(clsSels, lblsSels);
-
         //
         // FIXME(hbs): we do not limit the number of subscriptions
         //
         
-        try {
+        try (MetadataIterator iter = this.handler.getDirectoryClient().iterator(clsSels, lblsSels)) {
           while(iter.hasNext()) {
             metadatas.add(iter.next());
           }          
-        } finally {
-          if (iter instanceof MetadataIterator) {
-            try { ((MetadataIterator) iter).close(); } catch (Exception e) {}
-          }
         }
                 
         if ('S' == tokens[0].charAt(0)) {
@@ -243,6 +462,15 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
       } else if ("RAW".equals(tokens[0])) {
         // Output raw GTSEncoders
         this.handler.setOutputFormat(session, OUTPUT_FORMAT.RAW);
+      } else if ("WRAPPER".equals(tokens[0])) {
+        // Output binary frames of GTSWrappers
+        this.handler.setOutputFormat(session, OUTPUT_FORMAT.WRAPPER);
+      } else if ("BATCH".equals(tokens[0])) {
+        //
+        // Coalesce the records of several encoders in each message, 'BATCH false' reverts to one encoder per message
+        //
+        
+        this.handler.setBatch(session, tokens.length < 2 || !"false".equals(tokens[1].trim()));
       } else if ("GEO".equals(tokens[0])) {
         //
         // Geofencing
@@ -261,7 +489,7 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
         if (rate > 0.0D && rate <= 1.0D) {
           this.handler.setSampleRate(session, rate);
         } else {
-          this.handler.sampleRate.remove(session);
+          this.handler.setSampleRate(session, 1.0D);
         }
       } else {
         throw new IOException("Invalid verb.");
@@ -291,6 +519,9 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     
     this.metadataKey = keystore.getKey(KeyStore.AES_KAFKA_METADATA);
     
+    this.maxFrames = Integer.parseInt(properties.getProperty(Configuration.PLASMA_FRONTEND_SESSION_MAXFRAMES, "16"));
+    this.flushInterval = Long.parseLong(properties.getProperty(Configuration.PLASMA_FRONTEND_FLUSH_INTERVAL, "100"));
+    
     configure(super.getWebSocketFactory());
     
     if (startThread) {
@@ -299,6 +530,30 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
       t.setName("[StandalonePlasmaHandler]");
       t.start();      
     }
+    
+    //
+    // Start the thread which periodically sends the frames of the sessions
+    //
+    
+    final StandalonePlasmaHandler self = this;
+    
+    Thread flusher = new Thread() {
+      @Override
+      public void run() {
+        while (true) {
+          try {
+            Thread.sleep(self.flushInterval);
+          } catch (InterruptedException ie) {
+          }
+          
+          self.flush(0L);
+        }
+      }
+    };
+    
+    flusher.setDaemon(true);
+    flusher.setName("[StandalonePlasmaHandler Flusher]");
+    flusher.start();
   }
 
   public void setDirectoryClient(DirectoryClient directoryClient) {
@@ -349,7 +604,7 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     super.configure(factory);
   }
   
-  private synchronized void subscribe(Session session, List<Metadata> metadatas) {
+  synchronized void subscribe(Session session, List<Metadata> metadatas) {
     
     // 128BITS
     byte[] bytes = new byte[16];
@@ -359,6 +614,8 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
       this.subscriptions.put(session, new HashSet<BigInteger>());
     }
     
+    getSubscriber(session);
+    
     for (Metadata metadata: metadatas) {
       bb.rewind();
       bb.putLong(metadata.getClassId());
@@ -375,6 +632,15 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
       if (!subscriptions.get(session).contains(id)) {
         subscriptions.get(session).add(id);
         this.refcounts.get(id).addAndGet(1);
+        
+        Set<Session> targets = this.sessions.get(id);
+        
+        if (null == targets) {
+          targets = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+          this.sessions.put(id, targets);
+        }
+        
+        targets.add(session);
       }
       hasclients = true;
     }
@@ -384,7 +650,7 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     }
   }
 
-  private synchronized void unsubscribe(Session session, List<Metadata> metadatas) {   
+  synchronized void unsubscribe(Session session, List<Metadata> metadatas) {   
     
     // 128BITS
     byte[] bytes = new byte[16];
@@ -403,6 +669,7 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
 
       if (subscriptions.get(session).contains(id)) {
         subscriptions.get(session).remove(id);
+        removeTarget(id, session);
         if (0 == this.refcounts.get(id).addAndGet(-1)) {
           this.metadatas.remove(id);
           this.refcounts.remove(id);
@@ -415,14 +682,24 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     }
   }
 
+  private void removeTarget(BigInteger id, Session session) {
+    Set<Session> targets = this.sessions.get(id);
+    
+    if (null != targets) {
+      targets.remove(session);
+      if (targets.isEmpty()) {
+        this.sessions.remove(id);
+      }
+    }
+  }
+  
   public void setSubscriptionListener(PlasmaSubscriptionListener listener) {
     this.subscriptionListener = listener;
   }
   
   private synchronized void deregister(Session session) {    
     clearSubscriptions(session);
-    this.format.remove(session);
-    this.sampleRate.remove(session);
+    this.subscribers.remove(session);
   }
   
   private synchronized void clearSubscriptions(Session session) {
@@ -436,6 +713,7 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
       Set<BigInteger> ids = this.subscriptions.get(session);
       this.subscriptions.remove(session);
       for (BigInteger id: ids) {
+        removeTarget(id, session);
         if (0 == this.refcounts.get(id).addAndGet(-1)) {
           // FIXME(hbs): we need to ensure refcount is not incremented by another thread, otherwise
           // we may remove some Metadata even though another client just subscribed to it
@@ -469,11 +747,12 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   }
   
   public void publish(GTSEncoder encoder) {
-    try {      
-      // FIXME(hbs): this will block the pushing of data
-      this.encoders.offer(encoder, 1000L, TimeUnit.SECONDS);
-    } catch (InterruptedException ie) {
-      // FIXME(hbs): Sensision metrics
+    //
+    // Never wait for the dispatching thread, drop the encoder if it lags behind
+    //
+    
+    if (!this.encoders.offer(encoder)) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DROPPED_ENCODERS, Sensision.EMPTY_LABELS, 1);
     }
   }
   
@@ -482,13 +761,10 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     return hasclients;
   }
   
-  //
-  // FIXME(hbs): dispatch will forward a given encoder to every single session which subscribed to it
-  // This is done in the Kafka consuming thread. It might be a good idea to add some loosely coupled
-  // logic in this by having a set of threads doing the actual dispatch.
-  // Or maybe first add a metric to know how many different sessions were targeted
-  //
-  
+  /**
+   * Forward an encoder to the sessions which subscribed to its GTS.
+   * This only appends to the frames of those sessions and never waits for them.
+   */
   protected void dispatch(GTSEncoder encoder) throws IOException {
     
     long nano = System.nanoTime();
@@ -503,203 +779,190 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     
     BigInteger id = new BigInteger(bytes);
     
-    AtomicInteger count = refcounts.get(id);
+    Set<Session> targets = this.sessions.get(id);
+    
+    if (null == targets) {
+      return;
+    }
     
-    if (null == count) {
+    Metadata metadata = this.metadatas.get(id);
+
+    if (null == metadata) {
       return;
     }
-       
-    int refcount = count.get();
     
-    if (refcount > 0) {
+    //
+    // Determine the formats needed by the targeted sessions
+    //
+    
+    List<Subscriber> subs = new ArrayList<Subscriber>(targets.size());
+    
+    boolean text = false;
+    boolean json = false;
+    
+    for (Session session: targets) {
+      
+      //
+      // We might have missed the close of a session, we get a chance to correct that here
+      // FIXME(hbs): if we missed a close it's probably a bug though!
+      //
       
-      long maxmessagesize = this.getWebSocketFactory().getPolicy().getMaxMessageSize();
+      if (!session.isOpen()) {
+        deregister(session);
+        continue;
+      }
       
-      StringBuilder metasb = new StringBuilder();
-      StringBuilder sb = new StringBuilder();
-
-      Metadata metadata = this.metadatas.get(id);
-
-      if (null == metadata) {
-        return;
+      Subscriber sub = this.subscribers.get(session);
+      
+      if (null == sub) {
+        continue;
       }
       
+      subs.add(sub);
+      
+      OUTPUT_FORMAT format = sub.getFormat();
+      
+      text |= OUTPUT_FORMAT.TEXT == format || OUTPUT_FORMAT.FULLTEXT == format;
+      json |= OUTPUT_FORMAT.JSON == format;
+    }
+    
+    if (subs.isEmpty()) {
+      return;
+    }
+    
+    Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_SESSIONS, Sensision.EMPTY_LABELS, subs.size());
+    
+    long max = this.getWebSocketFactory().getPolicy().getMaxMessageSize();
+    long threshold = (long) (0.9 * max);
+    
+    //
+    // Format the datapoints once per format
+    //
+    
+    List<String> lines = new ArrayList<String>();
+    List<String> conts = new ArrayList<String>();
+    List<String> jsons = new ArrayList<String>();
+    
+    if (text || json) {
+      StringBuilder metasb = new StringBuilder();
       GTSHelper.metadataToString(metasb, metadata.getName(), metadata.getLabels());
       
-      //Gson gson = null;
+      HashMap<String,String> labels = new HashMap<String,String>();
+      labels.putAll(metadata.getLabels());
+      
+      //
+      // Remove PRODUCER/OWNER
+      //
+      
+      labels.remove(Constants.PRODUCER_LABEL);
+      labels.remove(Constants.OWNER_LABEL);
+
       JsonSerializer serializer = new JsonSerializerFactory().create();
       
-      Set<Entry<Session, Set<BigInteger>>> subs = subscriptions.entrySet();
+      StringBuilder sb = new StringBuilder();
       
-      for (Entry<Session, Set<BigInteger>> entry: subs) {
-        
-        //
-        // We might have missed the close of a session, we get a chance to correct that here
-        // FIXME(hbs): if we missed a close it's probably a bug though!
-        //
+      GTSDecoder decoder = encoder.getDecoder();
+      
+      while(decoder.next()) {
+        if (json) {
+          Map<String,Object> map = new HashMap<String,Object>();
+          
+          map.put("c", metadata.getName());
+          map.put("l", labels);
+          map.put("t", decoder.getTimestamp());
+          map.put("v", decoder.getValue());
+          if (GeoTimeSerie.NO_LOCATION != decoder.getLocation()) {
+            double[] latlon = GeoXPLib.fromGeoXPPoint(decoder.getLocation());
+            map.put("lat", latlon[0]);
+            map.put("lon", latlon[1]);
+          }
+          if (GeoTimeSerie.NO_ELEVATION != decoder.getElevation()) {
+            map.put("elev", decoder.getElevation());
+          }
+          
+          jsons.add(serializer.serialize(map).toString());
+        }
         
-        if (!entry.getKey().isOpen()) {
-          deregister(entry.getKey());
-          continue;
+        if (text) {
+          sb.setLength(0);
+          sb.append(decoder.getTimestamp());
+          sb.append("/");
+          if (GeoTimeSerie.NO_LOCATION != decoder.getLocation()) {
+            double[] latlon = GeoXPLib.fromGeoXPPoint(decoder.getLocation());
+            sb.append(latlon[0]);
+            sb.append(":");
+            sb.append(latlon[1]);
+          }
+          sb.append("/");
+          if (GeoTimeSerie.NO_ELEVATION != decoder.getElevation()) {
+            sb.append(decoder.getElevation());
+          }
+          sb.append(" ");
+          
+          int prefix = sb.length();
+          
+          GTSHelper.encodeValue(sb, decoder.getValue());
+          
+          conts.add("=" + sb.toString());
+          
+          sb.insert(prefix, " ");
+          sb.insert(prefix, metasb);
+          
+          lines.add(sb.toString());
         }
+      }
+    }
+    
+    String raw = null;
+    byte[] wrapper = null;
+    
+    long dropped = 0L;
+    
+    for (Subscriber sub: subs) {
+      try {
+        OUTPUT_FORMAT format = sub.getFormat();
+        double rate = sub.getRate();
         
-        try {
-          if (entry.getValue().contains(id)) {
-            Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_SESSIONS, Sensision.EMPTY_LABELS, 1);
-            OUTPUT_FORMAT format = getOutputFormat(entry.getKey());
-            
-            if (OUTPUT_FORMAT.RAW.equals(format)) {
-              sb.setLength(0);
-              
-              sb.append(encoder.getBaseTimestamp());
-              sb.append("// ");
-              
-              TSerializer tserializer = new TSerializer(new TCompactProtocol.Factory());
-              
-              try {
-                byte[] serialized = tserializer.serialize(metadata);
-
-                // FIXME(hbs): should we use a specific key?
-                // FIXME(hbs): create chunks so we stay below maxmessagesize
-                byte[] encrypted = CryptoUtils.wrap(this.metadataKey, serialized);
-                sb.append(new String(OrderPreservingBase64.encode(encrypted), Charsets.US_ASCII));
-                sb.append(":");              
-                sb.append(new String(OrderPreservingBase64.encode(encoder.getBytes()), Charsets.US_ASCII));
-                
-                entry.getKey().getRemote().sendStringByFuture(sb.toString());                
-              } catch (TException te) {
-                // Oh well, skip it!
-              }
-              
-              continue;
-            }
-            
-            GTSDecoder decoder = encoder.getDecoder();
-                      
-            boolean first = true;
-                        
-            double rate = getSampleRate(entry.getKey());
-            
-            long budget = maxmessagesize;
-            
-            //
-            // Reset StringBuilder
-            //
-            
-            sb.setLength(0);
-            
-            while(decoder.next()) {
-              
-              if (1.0D != rate && random.nextDouble() > rate) {
-                continue;
-              }
-              
-              if (OUTPUT_FORMAT.JSON.equals(format)) {
-                
-                //if (null == gson) {
-                //  gson = new Gson();
-                //}
-                
-                Map<String,Object> json = new HashMap<String,Object>();
-                    
-                HashMap<String,String> labels = new HashMap<String,String>();
-
-                json.put("c", metadata.getName());
-                
-                labels.putAll(metadata.getLabels());
-                
-                //
-                // Remove PRODUCER/OWNER
-                //
-                
-                labels.remove(Constants.PRODUCER_LABEL);
-                labels.remove(Constants.OWNER_LABEL);
-                
-                json.put("l", labels);              
-                
-                json.put("t", decoder.getTimestamp());
-                json.put("v", decoder.getValue());
-                if (GeoTimeSerie.NO_LOCATION != decoder.getLocation()) {
-                  double[] latlon = GeoXPLib.fromGeoXPPoint(decoder.getLocation());
-                  json.put("lat", latlon[0]);
-                  json.put("lon", latlon[1]);
-                }
-                if (GeoTimeSerie.NO_ELEVATION != decoder.getElevation()) {
-                  json.put("elev", decoder.getElevation());
-                }
-                
-                //entry.getKey().getRemote().sendStringByFuture(gson.toJson(json).toString());
-                if (first) {
-                  sb.append("[");
-                } else {
-                  sb.append(",");                
-                }
-                sb.append(serializer.serialize(json).toString());
-                
-                first = false;
-              } else {
-                
-                if (!first && OUTPUT_FORMAT.TEXT.equals(format)) {
-                  sb.append("=");
-                }
-                
-                sb.append(decoder.getTimestamp());
-                sb.append("/");
-                if (GeoTimeSerie.NO_LOCATION != decoder.getLocation()) {
-                  double[] latlon = GeoXPLib.fromGeoXPPoint(decoder.getLocation());
-                  sb.append(latlon[0]);
-                  sb.append(":");
-                  sb.append(latlon[1]);
-                }
-                sb.append("/");
-                if (GeoTimeSerie.NO_ELEVATION != decoder.getElevation()) {
-                  sb.append(decoder.getElevation());
-                }
-                sb.append(" ");
-                if (first || !OUTPUT_FORMAT.TEXT.equals(format)) {
-                  sb.append(metasb);
-                  sb.append(" ");
-                }
-                GTSHelper.encodeValue(sb, decoder.getValue());
-                first = false;
-              }
-              
-              //
-              // If we've reached 90% of the max message size, flush the current message
-              // FIXME(hbs): we really should check beforehand that we will not overflow the buffer.
-              // With specifally crafted content (String values) we could overflow the message size.
-              // Given we're in a try/catch we would simply ignore the message, but still...
-              //
-              
-              if (sb.length() > 0.9 * maxmessagesize) {
-                if (OUTPUT_FORMAT.JSON.equals(format) && sb.length() > 0) {
-                  sb.append("]");
-                }
-
-                entry.getKey().getRemote().sendStringByFuture(sb.toString());
-                sb.setLength(0);
-                first = true;
-              }
-            }
-            
-            if (OUTPUT_FORMAT.JSON.equals(format) && sb.length() > 0) {
-              sb.append("]");
+        if (OUTPUT_FORMAT.RAW == format) {
+          if (null == raw) {
+            raw = raw(encoder, metadata);
+          }
+          if (null != raw) {
+            dropped += sub.append(id, raw, null, threshold, max);
+          }
+        } else if (OUTPUT_FORMAT.WRAPPER == format) {
+          if (1.0D != rate) {
+            dropped += sub.append(wrap(sample(encoder, rate), metadata), threshold, max);
+          } else {
+            if (null == wrapper) {
+              wrapper = wrap(encoder, metadata);
             }
-
-            if (sb.length() > 0) {
-              entry.getKey().getRemote().sendStringByFuture(sb.toString());
-              sb.setLength(0);              
+            dropped += sub.append(wrapper, threshold, max);
+          }
+        } else {
+          List<String> formatted = OUTPUT_FORMAT.JSON == format ? jsons : lines;
+          
+          for (int i = 0; i < formatted.size(); i++) {
+            if (1.0D != rate && random.nextDouble() > rate) {
+              continue;
             }
             
-            refcount--;
-            
-            if (0 == refcount) {
-              break;
-            }
-          }          
-        } catch (WebSocketException wse) {          
+            dropped += sub.append(id, formatted.get(i), OUTPUT_FORMAT.TEXT == format ? conts.get(i) : null, threshold, max);
+          }
         }
-      }      
+        
+        //
+        // Unless the session asked for batches, the frame only contains the records of this encoder
+        //
+        
+        dropped += sub.seal(sub.getBatch() ? threshold : 0L);
+        sub.drain();
+      } catch (WebSocketException wse) {          
+      }
+    }
+    
+    if (dropped > 0) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DROPPED, Sensision.EMPTY_LABELS, dropped);
     }
     
     nano = System.nanoTime() - nano;
@@ -707,6 +970,90 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_TIME_US, Sensision.EMPTY_LABELS, nano/1000L);
   }
   
+  /**
+   * Send the frames of all sessions which are larger than 'threshold'
+   */
+  void flush(long threshold) {
+    long dropped = 0L;
+    
+    for (Subscriber sub: this.subscribers.values()) {
+      try {
+        dropped += sub.seal(threshold);
+        sub.drain();
+      } catch (WebSocketException wse) {
+      }
+    }
+    
+    if (dropped > 0) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DROPPED, Sensision.EMPTY_LABELS, dropped);
+    }
+  }
+  
+  /**
+   * Format an encoder for the RAW output format, with its wrapped Metadata
+   */
+  private String raw(GTSEncoder encoder, Metadata metadata) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    
+    sb.append(encoder.getBaseTimestamp());
+    sb.append("// ");
+    
+    TSerializer tserializer = new TSerializer(new TCompactProtocol.Factory());
+    
+    try {
+      byte[] serialized = tserializer.serialize(metadata);
+
+      // FIXME(hbs): should we use a specific key?
+      // FIXME(hbs): create chunks so we stay below maxmessagesize
+      byte[] encrypted = CryptoUtils.wrap(this.metadataKey, serialized);
+      sb.append(new String(OrderPreservingBase64.encode(encrypted), Charsets.US_ASCII));
+      sb.append(":");              
+      sb.append(new String(OrderPreservingBase64.encode(encoder.getBytes()), Charsets.US_ASCII));
+    } catch (TException te) {
+      // Oh well, skip it!
+      return null;
+    }
+    
+    return sb.toString();
+  }
+  
+  /**
+   * Serialize an encoder as a GTSWrapper, without the producer and owner labels
+   */
+  private static byte[] wrap(GTSEncoder encoder, Metadata metadata) throws IOException {
+    GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, false);
+    
+    Metadata meta = new Metadata(metadata);
+    meta.getLabels().remove(Constants.PRODUCER_LABEL);
+    meta.getLabels().remove(Constants.OWNER_LABEL);
+    
+    wrapper.setMetadata(meta);
+    
+    TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+    
+    try {
+      return serializer.serialize(wrapper);
+    } catch (TException te) {
+      throw new IOException(te);
+    }
+  }
+  
+  private GTSEncoder sample(GTSEncoder encoder, double rate) throws IOException {
+    GTSEncoder sampled = new GTSEncoder(0L);
+    
+    GTSDecoder decoder = encoder.getDecoder();
+    
+    while(decoder.next()) {
+      if (random.nextDouble() > rate) {
+        continue;
+      }
+      
+      sampled.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+    }
+    
+    return sampled;
+  }
+  
   /**
    * Return the current set of subscribed classId/labelsId
    * 
@@ -724,28 +1071,27 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     return ids;
   }
   
-  private OUTPUT_FORMAT getOutputFormat(Session session) {
-    if (this.outputFormat.containsKey(session)) {
-      return this.outputFormat.get(session);
-    } else {
-      return OUTPUT_FORMAT.TEXT;
+  private Subscriber getSubscriber(Session session) {
+    Subscriber sub = this.subscribers.get(session);
+    
+    if (null == sub) {
+      sub = new Subscriber(session, this.maxFrames);
+      this.subscribers.put(session, sub);
     }
+    
+    return sub;
+  }
+  
+  synchronized void setOutputFormat(Session session, OUTPUT_FORMAT format) {
+    getSubscriber(session).setFormat(format);
   }
   
-  private synchronized void setOutputFormat(Session session, OUTPUT_FORMAT format) {
-    this.outputFormat.put(session, format);
+  synchronized void setBatch(Session session, boolean batch) {
+    getSubscriber(session).setBatch(batch);
   }
 
   private synchronized void setSampleRate(Session session, double rate) {
-    this.sampleRate.put(session, Double.doubleToLongBits(rate));
-  }
-  
-  private synchronized double getSampleRate(Session session) {
-    if (!this.sampleRate.containsKey(session)) {
-      return 1.0D;
-    } else {
-      return Double.longBitsToDouble(this.sampleRate.get(session));
-    }
+    getSubscriber(session).setRate(rate);
   }
   
   @Override
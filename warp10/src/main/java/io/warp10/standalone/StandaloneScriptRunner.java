@@ -56,7 +56,20 @@ public class StandaloneScriptRunner extends ScriptRunner {
     this.props = props;
     this.directoryClient = directoryClient;
     this.geoDirectoryClient = geoDirectoryClient;
-    this.storeClient = storeClient;
+    
+    //
+    // Share the results of identical fetches issued by scripts run in the same tick
+    //
+    
+    long ttl = Long.parseLong(props.getProperty(Configuration.RUNNER_FETCH_CACHE_TTL, "0"));
+    
+    if (ttl > 0) {
+      long maxsize = Long.parseLong(props.getProperty(Configuration.RUNNER_FETCH_CACHE_MAXSIZE, "67108864"));
+      long timeout = Long.parseLong(props.getProperty(Configuration.RUNNER_FETCH_CACHE_TIMEOUT, "600000"));
+      this.storeClient = new CachingStoreClient(storeClient, ttl, maxsize, timeout);
+    } else {
+      this.storeClient = storeClient;
+    }
     
     //
     // Check if we have a 'bootstrap' property
@@ -77,11 +90,21 @@ public class StandaloneScriptRunner extends ScriptRunner {
   @Override
   protected void schedule(Map<String, Long> nextrun, final String script, final long periodicity) {
     
+    if (!acquire(script)) {
+      return;
+    }
+    
+    final long deadline = System.currentTimeMillis() + periodicity;
+    
     try {
       this.executor.submit(new Runnable() {            
         @Override
         public void run() {
           
+          if (!start(script, deadline)) {
+            return;
+          }
+          
           File f = new File(script);
           
           Map<String,String> labels = new HashMap<String,String>();
@@ -143,10 +166,12 @@ public class StandaloneScriptRunner extends ScriptRunner {
             nano = System.nanoTime() - nano;
             Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_TIME_US, labels, (long) (nano / 1000L));
             Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RUN_CURRENT, Sensision.EMPTY_LABELS, -1);
+            release(script);
           }              
         }
       });                  
     } catch (RejectedExecutionException ree) {
+      release(script);
       // Reschedule script immediately
       nextrun.put(script, System.currentTimeMillis());
     }    
@@ -0,0 +1,893 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Table of the series held by StandaloneMemoryStore.
+ * 
+ * Series are keyed by their primitive classId/labelsId and spread among lock striped
+ * open addressing hash tables. The stripe locks only protect the structure of the tables,
+ * they are held while looking up, adding or removing a series, never while reading or
+ * writing data.
+ * 
+ * The datapoints of a series are split among buckets, each bucket holding the datapoints whose
+ * timestamps fall in a fixed time slot of 'slotSpan' time units. The buckets of a series are
+ * kept sorted by slot, new slots are added at the end and expired slots are dropped from the
+ * head, so expiring data never needs to decode anything.
+ * 
+ * The encoded data of a bucket is kept off heap, as a list of chunks carved out of large
+ * direct ByteBuffer slabs. Each chunk contains segments, a segment being the content of an
+ * encoder as passed to 'append' (or the part of it which falls in the slot of the bucket):
+ * 
+ * [base timestamp (8 bytes)][count (8 bytes)][length (4 bytes)][encoded data (length bytes)]
+ * 
+ * Writers append segments under the lock of the series, then publish them by updating the
+ * volatile limit of the chunk. Readers never lock, they read the chunks up to their limit.
+ * Chunk content below the limit is never modified and slabs are never reused, so readers can
+ * safely use the chunks they saw even if the series was rewritten concurrently, the memory of
+ * slabs which no longer hold live chunks is reclaimed by the JVM once no reader refers to them.
+ */
+public class StandaloneSeriesTable {
+  
+  private static final int SEGMENT_HEADER_SIZE = 8 + 8 + 4;
+  
+  /**
+   * Bounds of the capacity of chunks allocated when appending
+   */
+  private static final int MIN_CHUNK_SIZE = 64;
+  private static final int MAX_CHUNK_SIZE = 65536;
+  
+  /**
+   * Number of segments above which a bucket should be compacted
+   */
+  private static final int MAX_SEGMENTS = 32;
+  
+  private static final Chunk[] NO_CHUNKS = new Chunk[0];
+  private static final Bucket[] NO_BUCKETS = new Bucket[0];
+  
+  static final class Slab {
+    private final ByteBuffer buffer;
+    
+    /**
+     * Next free offset, guarded by the table
+     */
+    private int position = 0;
+    
+    /**
+     * Number of bytes of live chunks in this slab
+     */
+    private final AtomicLong live = new AtomicLong(0L);
+    
+    /**
+     * Flag indicating the slab is no longer accounted for, guarded by the table
+     */
+    private boolean dropped = false;
+    
+    private Slab(int size) {
+      this.buffer = ByteBuffer.allocateDirect(size);
+    }
+  }
+  
+  static final class Chunk {
+    private final Slab slab;
+    private final int offset;
+    private final int capacity;
+    
+    /**
+     * Number of bytes of published segments
+     */
+    private volatile int limit = 0;
+    
+    private Chunk(Slab slab, int offset, int capacity) {
+      this.slab = slab;
+      this.offset = offset;
+      this.capacity = capacity;
+    }
+  }
+  
+  /**
+   * Datapoints of a series which fall in a given time slot.
+   * Fields are modified under the lock of the series.
+   */
+  static final class Bucket {
+    private final long slot;
+    
+    private volatile Chunk[] chunks = NO_CHUNKS;
+    
+    /**
+     * Number of bytes of encoded data (excluding segment headers)
+     */
+    private volatile long size = 0L;
+    
+    /**
+     * Number of datapoints
+     */
+    private volatile long count = 0L;
+    
+    private volatile int segments = 0;
+    
+    private Bucket(long slot) {
+      this.slot = slot;
+    }
+  }
+  
+  public static final class Series {
+    private final long classId;
+    private final long labelsId;
+    
+    /**
+     * Buckets sorted by slot, the array is replaced (never modified) when buckets are added or dropped
+     */
+    private volatile Bucket[] buckets = NO_BUCKETS;
+    
+    /**
+     * Number of bytes of encoded data (excluding segment headers)
+     */
+    private volatile long size = 0L;
+    
+    private volatile long lastTimestamp = Long.MIN_VALUE;
+    
+    /**
+     * Flag set when the series was removed from the table, writers which
+     * looked it up before that must look it up again.
+     */
+    private boolean removed = false;
+    
+    private Series(long classId, long labelsId) {
+      this.classId = classId;
+      this.labelsId = labelsId;
+    }
+    
+    public long getClassId() {
+      return this.classId;
+    }
+    
+    public long getLabelsId() {
+      return this.labelsId;
+    }
+    
+    /**
+     * Return the size of the encoded data of this series
+     */
+    public long size() {
+      return this.size;
+    }
+    
+    /**
+     * Return the last timestamp of the last appended encoder
+     */
+    public long getLastTimestamp() {
+      return this.lastTimestamp;
+    }
+  }
+  
+  private static final class Stripe {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    /**
+     * classId/labelsId of the series at each slot, in consecutive cells
+     */
+    private long[] keys = new long[32];
+    private Series[] values = new Series[16];
+    private int size = 0;
+  }
+  
+  private final Stripe[] stripes;
+  
+  /**
+   * Shift selecting the high bits of a hash which pick its stripe, the low bits pick the slot within the stripe
+   */
+  private final int stripeShift;
+  
+  private final int slabSize;
+  
+  /**
+   * Width of the time slots of buckets, in time units
+   */
+  private final long slotSpan;
+  
+  /**
+   * Slab chunks are currently allocated from, guarded by 'this'
+   */
+  private Slab slab = null;
+  
+  private final AtomicLong slabs = new AtomicLong(0L);
+  private final AtomicLong offheap = new AtomicLong(0L);
+  
+  /**
+   * @param stripes Number of stripes, rounded up to a power of 2
+   * @param slabSize Size in bytes of the off heap slabs chunks are allocated from
+   * @param slotSpan Width in time units of the time slots datapoints are bucketed in
+   */
+  public StandaloneSeriesTable(int stripes, int slabSize, long slotSpan) {
+    int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+    this.stripes = new Stripe[n];
+    this.stripeShift = 32 - Integer.numberOfTrailingZeros(n);
+    for (int i = 0; i < n; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.slabSize = Math.max(slabSize, MAX_CHUNK_SIZE);
+    this.slotSpan = Math.max(1L, slotSpan);
+  }
+  
+  /**
+   * Return the time slot a timestamp falls in, rounding towards negative infinity
+   */
+  private long slot(long timestamp) {
+    if (timestamp >= 0) {
+      return timestamp / this.slotSpan;
+    } else {
+      return -((-(timestamp + 1)) / this.slotSpan) - 1;
+    }
+  }
+  
+  private static int hash(long classId, long labelsId) {
+    long h = classId * 0x9E3779B97F4A7C15L + labelsId;
+    h ^= h >>> 32;
+    h *= 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 29));
+  }
+  
+  private Stripe stripe(int hash) {
+    return this.stripes[hash >>> this.stripeShift];
+  }
+  
+  /**
+   * Find the slot of a series in a stripe, or the free slot where it should be inserted
+   */
+  private static int slot(Stripe stripe, long classId, long labelsId, int hash) {
+    int mask = stripe.values.length - 1;
+    int idx = hash & mask;
+    
+    while (null != stripe.values[idx] && (stripe.keys[idx << 1] != classId || stripe.keys[(idx << 1) + 1] != labelsId)) {
+      idx = (idx + 1) & mask;
+    }
+    
+    return idx;
+  }
+  
+  /**
+   * Return the series with the given ids, or null if it is not in the table
+   */
+  public Series get(long classId, long labelsId) {
+    int hash = hash(classId, labelsId);
+    Stripe stripe = stripe(hash);
+    
+    stripe.lock.readLock().lock();
+    try {
+      return stripe.values[slot(stripe, classId, labelsId, hash)];
+    } finally {
+      stripe.lock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * Return the series with the given ids, adding it to the table if needed
+   */
+  private Series getOrCreate(long classId, long labelsId) {
+    Series series = get(classId, labelsId);
+    
+    if (null != series) {
+      return series;
+    }
+    
+    int hash = hash(classId, labelsId);
+    Stripe stripe = stripe(hash);
+    
+    stripe.lock.writeLock().lock();
+    try {
+      int idx = slot(stripe, classId, labelsId, hash);
+      
+      if (null != stripe.values[idx]) {
+        return stripe.values[idx];
+      }
+      
+      series = new Series(classId, labelsId);
+      stripe.keys[idx << 1] = classId;
+      stripe.keys[(idx << 1) + 1] = labelsId;
+      stripe.values[idx] = series;
+      stripe.size++;
+      
+      //
+      // Grow the stripe when it is more than half full
+      //
+      
+      if (stripe.size << 1 > stripe.values.length) {
+        Series[] values = stripe.values;
+        stripe.values = new Series[values.length << 1];
+        stripe.keys = new long[stripe.values.length << 1];
+        
+        for (Series s: values) {
+          if (null != s) {
+            int i = slot(stripe, s.classId, s.labelsId, hash(s.classId, s.labelsId));
+            stripe.keys[i << 1] = s.classId;
+            stripe.keys[(i << 1) + 1] = s.labelsId;
+            stripe.values[i] = s;
+          }
+        }
+      }
+      
+      return series;
+    } finally {
+      stripe.lock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Remove a series from the table, releasing its chunks
+   * 
+   * @param onlyIfEmpty Only remove the series if it contains no data
+   * @return true if the series was removed
+   */
+  private boolean remove(Series series, boolean onlyIfEmpty) {
+    int hash = hash(series.classId, series.labelsId);
+    Stripe stripe = stripe(hash);
+    
+    synchronized (series) {
+      if (series.removed || (onlyIfEmpty && series.buckets.length > 0)) {
+        return false;
+      }
+      
+      stripe.lock.writeLock().lock();
+      try {
+        int mask = stripe.values.length - 1;
+        int idx = slot(stripe, series.classId, series.labelsId, hash);
+        
+        if (stripe.values[idx] != series) {
+          return false;
+        }
+        
+        stripe.values[idx] = null;
+        stripe.size--;
+        
+        //
+        // Shift back the entries which follow in the probe sequence
+        //
+        
+        int next = (idx + 1) & mask;
+        
+        while (null != stripe.values[next]) {
+          Series s = stripe.values[next];
+          int home = hash(s.classId, s.labelsId) & mask;
+          
+          // Move 's' to 'idx' if 'idx' lies cyclically between its home slot and its current slot
+          if (((next - home) & mask) >= ((next - idx) & mask)) {
+            stripe.keys[idx << 1] = s.classId;
+            stripe.keys[(idx << 1) + 1] = s.labelsId;
+            stripe.values[idx] = s;
+            stripe.values[next] = null;
+            idx = next;
+          }
+          
+          next = (next + 1) & mask;
+        }
+      } finally {
+        stripe.lock.writeLock().unlock();
+      }
+      
+      series.removed = true;
+      clear(series);
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Remove the series with the given ids
+   */
+  public boolean remove(long classId, long labelsId) {
+    Series series = get(classId, labelsId);
+    
+    if (null == series) {
+      return false;
+    }
+    
+    return remove(series, false);
+  }
+  
+  /**
+   * Remove a series if it does not contain any data
+   */
+  public boolean removeIfEmpty(Series series) {
+    return remove(series, true);
+  }
+  
+  /**
+   * Append the content of an encoder to a series, adding the series if needed.
+   * 
+   * @param replace If true, the current content of the series is discarded
+   */
+  public void append(long classId, long labelsId, GTSEncoder encoder, boolean replace) throws IOException {
+    
+    //
+    // Extract the unencrypted content of the encoder
+    //
+    
+    GTSEncoder raw = new GTSEncoder(encoder.getBaseTimestamp());
+    raw.merge(encoder);
+    
+    //
+    // Determine the slots the datapoints fall in. In the common case they all fall in
+    // the same slot and the encoder is stored as is, otherwise it is split per slot.
+    //
+    
+    GTSDecoder decoder = raw.getDecoder(true);
+    
+    long first = 0L;
+    boolean single = true;
+    
+    if (decoder.next()) {
+      first = slot(decoder.getTimestamp());
+      
+      while (decoder.next()) {
+        if (slot(decoder.getTimestamp()) != first) {
+          single = false;
+          break;
+        }
+      }
+    }
+    
+    Map<Long,GTSEncoder> parts = null;
+    
+    if (!single) {
+      parts = new TreeMap<Long,GTSEncoder>();
+      
+      decoder = raw.getDecoder(true);
+      
+      while (decoder.next()) {
+        Long slot = slot(decoder.getTimestamp());
+        GTSEncoder part = parts.get(slot);
+        
+        if (null == part) {
+          part = new GTSEncoder(raw.getBaseTimestamp());
+          parts.put(slot, part);
+        }
+        
+        part.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+      }
+    }
+    
+    byte[] data = single ? raw.getBytes() : null;
+    
+    while (true) {
+      Series series = getOrCreate(classId, labelsId);
+      
+      synchronized (series) {
+        // The series was removed since we retrieved it, retrieve it again
+        if (series.removed) {
+          continue;
+        }
+        
+        if (replace) {
+          clear(series);
+        }
+        
+        if (0 == raw.getCount()) {
+          // Nothing to store
+        } else if (single) {
+          write(series, bucket(series, first), raw.getBaseTimestamp(), raw.getCount(), data, false);
+        } else {
+          for (Entry<Long,GTSEncoder> entry: parts.entrySet()) {
+            GTSEncoder part = entry.getValue();
+            write(series, bucket(series, entry.getKey()), part.getBaseTimestamp(), part.getCount(), part.getBytes(), false);
+          }
+        }
+        
+        series.lastTimestamp = raw.getLastTimestamp();
+        return;
+      }
+    }
+  }
+  
+  /**
+   * Return the bucket of a series for a given slot, adding it if needed.
+   * The caller holds the lock of the series.
+   */
+  private Bucket bucket(Series series, long slot) {
+    Bucket[] buckets = series.buckets;
+    
+    //
+    // Datapoints usually fall in the most recent slot, so search from the end
+    //
+    
+    int idx = buckets.length - 1;
+    
+    while (idx >= 0 && buckets[idx].slot > slot) {
+      idx--;
+    }
+    
+    if (idx >= 0 && buckets[idx].slot == slot) {
+      return buckets[idx];
+    }
+    
+    Bucket bucket = new Bucket(slot);
+    
+    Bucket[] newbuckets = new Bucket[buckets.length + 1];
+    System.arraycopy(buckets, 0, newbuckets, 0, idx + 1);
+    newbuckets[idx + 1] = bucket;
+    System.arraycopy(buckets, idx + 1, newbuckets, idx + 2, buckets.length - idx - 1);
+    
+    series.buckets = newbuckets;
+    
+    return bucket;
+  }
+  
+  /**
+   * Release all the buckets of a series, the caller holds the lock of the series
+   */
+  private void clear(Series series) {
+    Bucket[] buckets = series.buckets;
+    
+    series.buckets = NO_BUCKETS;
+    series.size = 0L;
+    
+    for (Bucket bucket: buckets) {
+      release(bucket.chunks);
+    }
+  }
+  
+  /**
+   * Write a segment to a bucket, the caller holds the lock of the series
+   * 
+   * @param replace If true, the segment replaces the current content of the bucket
+   */
+  private void write(Series series, Bucket bucket, long baseTimestamp, long count, byte[] data, boolean replace) {
+    int len = SEGMENT_HEADER_SIZE + data.length;
+    
+    Chunk[] chunks = replace ? NO_CHUNKS : bucket.chunks;
+    Chunk chunk = 0 == chunks.length ? null : chunks[chunks.length - 1];
+    
+    if (null == chunk || chunk.capacity - chunk.limit < len) {
+      //
+      // Allocate a new chunk, larger than the previous one so the number of chunks
+      // stays low for buckets which grow. Rewritten buckets get an exact fit.
+      //
+      
+      int capacity = len;
+      
+      if (!replace) {
+        capacity = Math.max(len, Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, null == chunk ? 0 : chunk.capacity << 1)));
+      }
+      
+      chunk = allocate(capacity);
+      
+      Chunk[] newchunks = new Chunk[chunks.length + 1];
+      System.arraycopy(chunks, 0, newchunks, 0, chunks.length);
+      newchunks[chunks.length] = chunk;
+      chunks = newchunks;
+    }
+    
+    ByteBuffer bb = chunk.slab.buffer.duplicate();
+    bb.position(chunk.offset + chunk.limit);
+    bb.putLong(baseTimestamp);
+    bb.putLong(count);
+    bb.putInt(data.length);
+    bb.put(data);
+    
+    // Publish the segment
+    chunk.limit = chunk.limit + len;
+    
+    if (replace) {
+      Chunk[] old = bucket.chunks;
+      bucket.chunks = chunks;
+      series.size = series.size - bucket.size + data.length;
+      bucket.size = data.length;
+      bucket.count = count;
+      bucket.segments = 1;
+      release(old);
+    } else {
+      bucket.chunks = chunks;
+      bucket.size = bucket.size + data.length;
+      bucket.count = bucket.count + count;
+      bucket.segments = bucket.segments + 1;
+      series.size = series.size + data.length;
+    }
+  }
+  
+  /**
+   * Drop the oldest buckets of a series whose slot ends at or before 'cutoff', as long as the
+   * size of the series is above 'lowwatermark'. Buckets are dropped as a whole, their content
+   * is not decoded.
+   * 
+   * @return The number of datapoints which were dropped
+   */
+  public long expire(Series series, long cutoff, long lowwatermark) {
+    long dropped = 0L;
+    
+    synchronized (series) {
+      if (series.removed) {
+        return 0L;
+      }
+      
+      Bucket[] buckets = series.buckets;
+      
+      int n = 0;
+      long size = series.size;
+      
+      while (n < buckets.length && size > lowwatermark && slotEnd(buckets[n].slot) <= cutoff) {
+        size -= buckets[n].size;
+        dropped += buckets[n].count;
+        n++;
+      }
+      
+      if (0 == n) {
+        return 0L;
+      }
+      
+      series.buckets = Arrays.copyOfRange(buckets, n, buckets.length);
+      series.size = size;
+      
+      for (int i = 0; i < n; i++) {
+        release(buckets[i].chunks);
+      }
+    }
+    
+    return dropped;
+  }
+  
+  /**
+   * Return the last timestamp of a slot, saturating on overflow
+   */
+  private long slotEnd(long slot) {
+    if (slot >= Long.MAX_VALUE / this.slotSpan) {
+      return Long.MAX_VALUE;
+    }
+    return (slot + 1) * this.slotSpan - 1;
+  }
+  
+  /**
+   * Rewrite the buckets of a series which would benefit from it, because they contain
+   * many segments or lie in slabs which are mostly free.
+   */
+  public void compact(Series series) throws IOException {
+    synchronized (series) {
+      if (series.removed) {
+        return;
+      }
+      
+      Slab current = currentSlab();
+      
+      for (Bucket bucket: series.buckets) {
+        if (needsCompaction(bucket, current)) {
+          GTSEncoder encoder = getEncoder(bucket.chunks, null);
+          
+          if (null != encoder) {
+            write(series, bucket, encoder.getBaseTimestamp(), encoder.getCount(), encoder.getBytes(), true);
+          }
+        }
+      }
+    }
+  }
+  
+  private synchronized Chunk allocate(int capacity) {
+    Slab target;
+    
+    if (capacity > this.slabSize >>> 2) {
+      // Large chunks get a dedicated slab
+      target = new Slab(capacity);
+      this.slabs.incrementAndGet();
+      this.offheap.addAndGet(capacity);
+    } else {
+      if (null == this.slab || this.slabSize - this.slab.position < capacity) {
+        Slab previous = this.slab;
+        this.slab = new Slab(this.slabSize);
+        this.slabs.incrementAndGet();
+        this.offheap.addAndGet(this.slabSize);
+        
+        // The previous slab may already be empty
+        if (null != previous && 0 == previous.live.get()) {
+          drop(previous);
+        }
+      }
+      target = this.slab;
+    }
+    
+    Chunk chunk = new Chunk(target, target.position, capacity);
+    target.position += capacity;
+    target.live.addAndGet(capacity);
+    
+    return chunk;
+  }
+  
+  private void release(Chunk[] chunks) {
+    for (Chunk chunk: chunks) {
+      if (0 == chunk.slab.live.addAndGet(-chunk.capacity)) {
+        synchronized (this) {
+          // Slabs are dropped once empty unless chunks are still allocated from them
+          if (chunk.slab != this.slab) {
+            drop(chunk.slab);
+          }
+        }
+      }
+    }
+  }
+  
+  private synchronized void drop(Slab slab) {
+    if (!slab.dropped) {
+      slab.dropped = true;
+      this.slabs.decrementAndGet();
+      this.offheap.addAndGet(-slab.buffer.capacity());
+    }
+  }
+  
+  /**
+   * Return an encoder with the content of a series, or null if the series is empty.
+   * This method does not lock, it returns the data appended up to the time of the call.
+   */
+  public GTSEncoder getEncoder(Series series) throws IOException {
+    return getEncoder(series, Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+  
+  /**
+   * Return an encoder with the content of the buckets of a series whose slots overlap
+   * [start,end], or null if there is no such bucket. The encoder may contain datapoints
+   * outside of [start,end], only whole buckets are skipped.
+   */
+  public GTSEncoder getEncoder(Series series, long start, long end) throws IOException {
+    Bucket[] buckets = series.buckets;
+    
+    long first = slot(start);
+    long last = slot(end);
+    
+    GTSEncoder encoder = null;
+    
+    for (Bucket bucket: buckets) {
+      if (bucket.slot < first) {
+        continue;
+      }
+      if (bucket.slot > last) {
+        break;
+      }
+      encoder = getEncoder(bucket.chunks, encoder);
+    }
+    
+    return encoder;
+  }
+  
+  /**
+   * Merge the segments of chunks into an encoder, allocating it if 'encoder' is null
+   */
+  private static GTSEncoder getEncoder(Chunk[] chunks, GTSEncoder encoder) throws IOException {
+    for (Chunk chunk: chunks) {
+      int limit = chunk.limit;
+      
+      ByteBuffer bb = chunk.slab.buffer.duplicate();
+      bb.position(chunk.offset);
+      bb.limit(chunk.offset + limit);
+      
+      while (bb.hasRemaining()) {
+        long base = bb.getLong();
+        long count = bb.getLong();
+        byte[] data = new byte[bb.getInt()];
+        bb.get(data);
+        
+        if (null == encoder) {
+          encoder = new GTSEncoder(base, null, data);
+          encoder.setCount(count);
+        } else {
+          GTSEncoder segment = new GTSEncoder(base, null, data);
+          segment.setCount(count);
+          encoder.merge(segment);
+        }
+      }
+    }
+    
+    return encoder;
+  }
+  
+  /**
+   * Return true if some buckets of a series would benefit from being rewritten
+   */
+  public boolean needsCompaction(Series series) {
+    Slab current = currentSlab();
+    
+    for (Bucket bucket: series.buckets) {
+      if (needsCompaction(bucket, current)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  private static boolean needsCompaction(Bucket bucket, Slab current) {
+    if (bucket.segments > MAX_SEGMENTS) {
+      return true;
+    }
+    
+    for (Chunk chunk: bucket.chunks) {
+      if (chunk.slab != current && chunk.slab.live.get() < (chunk.slab.buffer.capacity() >>> 1)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  private synchronized Slab currentSlab() {
+    return this.slab;
+  }
+  
+  /**
+   * Return a snapshot of the series in the table
+   */
+  public List<Series> getSeries() {
+    List<Series> series = new ArrayList<Series>();
+    
+    for (Stripe stripe: this.stripes) {
+      stripe.lock.readLock().lock();
+      try {
+        for (Series s: stripe.values) {
+          if (null != s) {
+            series.add(s);
+          }
+        }
+      } finally {
+        stripe.lock.readLock().unlock();
+      }
+    }
+    
+    return series;
+  }
+  
+  /**
+   * Return the number of series in the table
+   */
+  public long size() {
+    long size = 0L;
+    
+    for (Stripe stripe: this.stripes) {
+      stripe.lock.readLock().lock();
+      try {
+        size += stripe.size;
+      } finally {
+        stripe.lock.readLock().unlock();
+      }
+    }
+    
+    return size;
+  }
+  
+  /**
+   * Return the number of off heap bytes currently allocated for slabs
+   */
+  public long getOffHeapBytes() {
+    return this.offheap.get();
+  }
+  
+  /**
+   * Return the number of slabs currently allocated
+   */
+  public long getSlabs() {
+    return this.slabs.get();
+  }
+}
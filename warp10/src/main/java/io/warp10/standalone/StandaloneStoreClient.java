@@ -24,7 +24,9 @@ import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.MetadataIdComparator;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.FetchRequest;
 import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.Rollup;
 import io.warp10.continuum.store.Store;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.Metadata;
@@ -39,19 +41,32 @@ import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.hadoop.hbase.util.Bytes;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.WriteBatch;
 
+import com.google.common.base.Charsets;
+
 public class StandaloneStoreClient implements StoreClient {
   
+  /**
+   * Prefix for blocks of datapoints, each block holds the datapoints of a GTS for a fixed time span
+   */
+  public static final byte[] BLOCK_DATA_KEY_PREFIX = "B".getBytes(Charsets.UTF_8);
+  
   /**
    * This determines how often we will perform merges when retrieving
    */
@@ -59,6 +74,23 @@ public class StandaloneStoreClient implements StoreClient {
   
   private static final String DEFAULT_MAX_ENCODER_SIZE = "1000000";
   
+  private static final String DEFAULT_BLOCK_MERGE_PERIOD = "60000";
+  
+  /**
+   * Span of the data blocks, 0 if datapoints are only stored individually
+   */
+  private final long blockSpan;
+  
+  /**
+   * Lock preventing writes and deletes while the block merger rewrites a block
+   */
+  private final ReadWriteLock blockLock = new ReentrantReadWriteLock();
+  
+  /**
+   * Maintainer of the rollups, null if no rollups are configured
+   */
+  private final StandaloneIndexer indexer;
+  
   private final DB db;
   private final KeyStore keystore;
   private final Properties properties;
@@ -72,19 +104,43 @@ public class StandaloneStoreClient implements StoreClient {
     this.plasmaHandlers = new ArrayList<StandalonePlasmaHandlerInterface>();
     
     MAX_ENCODER_SIZE = Long.valueOf(properties.getProperty(Configuration.STANDALONE_MAX_ENCODER_SIZE, DEFAULT_MAX_ENCODER_SIZE));
+    
+    this.blockSpan = Long.valueOf(properties.getProperty(Configuration.LEVELDB_BLOCK_SPAN, "0"));
+    
+    if (this.blockSpan < 0) {
+      throw new RuntimeException("Invalid value for '" + Configuration.LEVELDB_BLOCK_SPAN + "', MUST be positive.");
+    }
+    
+    if (this.blockSpan > 0) {
+      long period = Long.valueOf(properties.getProperty(Configuration.LEVELDB_BLOCK_MERGE_PERIOD, DEFAULT_BLOCK_MERGE_PERIOD));
+      StandaloneBlockMerger merger = new StandaloneBlockMerger(db, keystore.getKey(KeyStore.AES_LEVELDB_DATA), this.blockSpan, period, this.blockLock);
+      merger.start();
+    }
+    
+    if (null != properties.getProperty(Configuration.LEVELDB_ROLLUP_SELECTORS)) {
+      this.indexer = new StandaloneIndexer(db, keystore.getKey(KeyStore.AES_LEVELDB_DATA), properties);
+    } else {
+      this.indexer = null;
+    }
   }
   
   @Override
-  public GTSDecoderIterator fetch(final ReadToken token, final List<Metadata> metadatas, final long now, final long timespan, final boolean fromArchive, boolean writeTimestamp) {
+  public GTSDecoderIterator fetch(final ReadToken token, final List<Metadata> metadatas, final FetchRequest request) {
     
-    if (timespan < 0 && fromArchive) {
-      throw new RuntimeException("No support for negative timespans when fetching from archive.");      
+    final boolean fromArchive = request.isFromArchive();
+    
+    if (request.hasLimit() && fromArchive) {
+      throw new RuntimeException("No support for count or skip when fetching from archive.");      
     }
 
-    if (writeTimestamp) {
+    if (request.isWriteTimestamp()) {
       throw new RuntimeException("No support for write timestamp retrieval.");
     }
     
+    if (request.hasRollup() && (fromArchive || request.hasLimit() || request.getSample() < 1.0D)) {
+      throw new RuntimeException("No support for rollups when fetching from archive or with count, skip or sample.");
+    }
+    
     final DBIterator iterator = db.iterator();
 
     Map<String,String> labels = new HashMap<String,String>();
@@ -100,6 +156,15 @@ public class StandaloneStoreClient implements StoreClient {
     //
     
     Collections.sort(metadatas, MetadataIdComparator.COMPARATOR);
+    
+    //
+    // When blocks are enabled, datapoints might live in both layouts, use the per GTS iterator,
+    // rollups are also computed per GTS
+    //
+    
+    if ((this.blockSpan > 0 && !fromArchive) || request.hasRollup()) {
+      return fetchBlocks(iterator, token, metadatas, request);
+    }
         
     return new GTSDecoderIterator() {
     
@@ -111,9 +176,9 @@ public class StandaloneStoreClient implements StoreClient {
       byte[] stoprow = null;
       
       /**
-       * Number of values yet to retrieve for the current GTS
+       * Selection of the datapoints of the current GTS
        */ 
-      long nvalues = Long.MAX_VALUE;
+      FetchRequest.Selection selection = request.selection();
       
       @Override
       public void close() throws Exception {
@@ -161,15 +226,16 @@ public class StandaloneStoreClient implements StoreClient {
           keyBytes += kv.getKey().length;          
           datapoints++;
           
-          nvalues--;
-          
-          
           if (fromArchive) {
             // When reading from the archive, create an encoder with the chunk data
             encoder = new GTSEncoder(0L, keystore.getKey(KeyStore.AES_LEVELDB_DATA), kv.getValue());
             // Exit after the chunk
             break;
           } else {
+            // The key range only covers the requested time range, skipped or unsampled datapoints are not decoded
+            if (!selection.retain()) {
+              continue;
+            }
             GTSDecoder decoder = new GTSDecoder(basets, keystore.getKey(KeyStore.AES_LEVELDB_DATA), ByteBuffer.wrap(kv.getValue()));
             decoder.next();
             try {
@@ -178,66 +244,11 @@ public class StandaloneStoreClient implements StoreClient {
               throw new RuntimeException(ioe);
             }            
           }
-        } while(iterator.hasNext() && encoder.size() < MAX_ENCODER_SIZE && nvalues > 0);
+        } while(iterator.hasNext() && encoder.size() < MAX_ENCODER_SIZE && !selection.isDone());
 
         encoder.setMetadata(metadatas.get(idx));
 
-        //
-        // Update Sensision
-        //
-
-        Map<String,String> labels = new HashMap<String,String>();
-        
-        Map<String,String> metadataLabels = metadatas.get(idx).getLabels();
-        
-        String billedCustomerId = Tokens.getUUID(token.getBilledId());
-
-        if (null != billedCustomerId) {
-          labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERID, billedCustomerId);
-        }
-        
-        if (metadataLabels.containsKey(Constants.APPLICATION_LABEL)) {
-          labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, metadataLabels.get(Constants.APPLICATION_LABEL));
-        }
-        
-        if (metadataLabels.containsKey(Constants.OWNER_LABEL)) {
-          labels.put(SensisionConstants.SENSISION_LABEL_OWNER, metadataLabels.get(Constants.OWNER_LABEL));
-        }
-        
-        if (null != token.getAppName()) {
-          labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERAPP, token.getAppName());
-        }
-        
-        //
-        // Update per owner statistics, use a TTL for those
-        //
-        
-        if (fromArchive) {
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_VALUES_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, valueBytes);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_KEYS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, keyBytes);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_DATAPOINTS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, datapoints);                    
-        } else {
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, valueBytes);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, keyBytes);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, datapoints);          
-        }
-               
-        //
-        // Update summary statistics
-        //
-
-        // Remove 'owner' label
-        labels.remove(SensisionConstants.SENSISION_LABEL_OWNER);
-
-        if (fromArchive) {
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_VALUES, labels, valueBytes);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_KEYS, labels, keyBytes);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_DATAPOINTS, labels, datapoints);          
-        } else {
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES, labels, valueBytes);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS, labels, keyBytes);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS, labels, datapoints);          
-        }
+        updateFetchStatistics(token, metadatas.get(idx), fromArchive, keyBytes, valueBytes, datapoints);
 
         return encoder.getDecoder();
       }
@@ -262,8 +273,8 @@ public class StandaloneStoreClient implements StoreClient {
               startrow = null;
             } else {
               //
-              // If we are time based or value count based with values left to read, return true
-              if (timespan >= 0 || (timespan < 0 && nvalues > 0)) {
+              // If there are values left to select, return true
+              if (!selection.isDone()) {
                 return true;
               } else {
                 startrow = null;
@@ -300,7 +311,7 @@ public class StandaloneStoreClient implements StoreClient {
               bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
               bb.putLong(metadatas.get(idx).getClassId());
               bb.putLong(metadatas.get(idx).getLabelsId());
-              bb.putLong(Long.MAX_VALUE - now);
+              bb.putLong(Long.MAX_VALUE - request.getEnd());
               
               stoprow = new byte[startrow.length];
               bb = ByteBuffer.wrap(stoprow).order(ByteOrder.BIG_ENDIAN);
@@ -309,12 +320,12 @@ public class StandaloneStoreClient implements StoreClient {
               bb.putLong(metadatas.get(idx).getLabelsId());              
               
               //
-              // If 'timespan' is negative, we are interested in retrieving -'timespan' values,
-              // regardless of how long ago they were measured
+              // If the time range has no start, we are interested in retrieving the most recent
+              // values, regardless of how long ago they were measured
               //
               
-              if (timespan >= 0) {
-                bb.putLong(Long.MAX_VALUE - (now - timespan + 1));
+              if (request.hasStart()) {
+                bb.putLong(Long.MAX_VALUE - request.getStart());
               } else {
                 bb.putLong(0xffffffffffffffffL);
               }
@@ -322,12 +333,10 @@ public class StandaloneStoreClient implements StoreClient {
           }
 
           //
-          // Reset number of values retrieved since we just skipped to a new GTS.
-          // If 'timespan' is negative this is the opposite of the number of values to retrieve
-          // otherwise use Long.MAX_VALUE
+          // Reset the selection since we just skipped to a new GTS.
           //
           
-          nvalues = (!fromArchive && (timespan < 0)) ? -timespan : Long.MAX_VALUE;
+          selection = request.selection();
           
           iterator.seek(startrow);          
         }
@@ -335,6 +344,423 @@ public class StandaloneStoreClient implements StoreClient {
     };
   }
   
+  /**
+   * Fetch datapoints when blocks are enabled or rollups are requested. Each GTS is fetched in one go by
+   * combining its individually stored datapoints with the content of its blocks.
+   * Individually stored datapoints take precedence over those in blocks for identical timestamps.
+   */
+  private GTSDecoderIterator fetchBlocks(final DBIterator iterator, final ReadToken token, final List<Metadata> metadatas, final FetchRequest request) {
+    return new GTSDecoderIterator() {
+      
+      int idx = -1;
+      
+      GTSDecoder decoder = null;
+      
+      @Override
+      public void close() throws Exception {
+        iterator.close();
+      }
+      
+      @Override
+      public void remove() {        
+      }
+      
+      @Override
+      public boolean hasNext() {
+        while (null == decoder) {
+          idx++;
+          
+          if (idx >= metadatas.size()) {
+            return false;
+          }
+          
+          try {
+            if (request.hasRollup()) {
+              decoder = fetchRollup(iterator, token, metadatas.get(idx), request);
+            } else {
+              decoder = fetchBlocks(iterator, token, metadatas.get(idx), request);
+            }
+          } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+          }
+        }
+        
+        return true;
+      }
+      
+      @Override
+      public GTSDecoder next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        
+        GTSDecoder next = decoder;
+        decoder = null;
+        return next;
+      }
+    };
+  }
+  
+  /**
+   * Fetch the datapoints of a single GTS from both the individual datapoints and the blocks.
+   * 
+   * @param token Token used for the fetch statistics, null to not update them
+   * @return a decoder with the datapoints or null if the GTS has no datapoints in the requested range
+   */
+  private GTSDecoder fetchBlocks(DBIterator iterator, ReadToken token, Metadata metadata, FetchRequest request) throws IOException {
+    
+    byte[] aesKey = keystore.getKey(KeyStore.AES_LEVELDB_DATA);
+    
+    long now = request.getEnd();
+    long start = request.getStart();
+    
+    //
+    // Only the 'skip' + 'count' most recent datapoints of each layout can be selected
+    //
+    
+    long maxcount = request.getLimit();
+    
+    long keyBytes = 0L;
+    long valueBytes = 0L;
+    
+    GTSEncoder encoder = new GTSEncoder(0L);
+    
+    //
+    // Scan the individual datapoints, most recent first
+    //
+    
+    byte[] startrow = rawKey(metadata.getClassId(), metadata.getLabelsId(), now);
+    byte[] stoprow = rawKey(metadata.getClassId(), metadata.getLabelsId(), start);
+    
+    Set<Long> timestamps = new HashSet<Long>();
+    
+    iterator.seek(startrow);
+    
+    while (iterator.hasNext() && encoder.getCount() < maxcount) {
+      Entry<byte[],byte[]> kv = iterator.next();
+      
+      if (Bytes.compareTo(kv.getKey(), stoprow) > 0) {
+        break;
+      }
+
+      long basets = Long.MAX_VALUE - ByteBuffer.wrap(kv.getKey(), Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8, 8).order(ByteOrder.BIG_ENDIAN).getLong();
+      
+      keyBytes += kv.getKey().length;
+      valueBytes += kv.getValue().length;
+      
+      GTSDecoder decoder = new GTSDecoder(basets, aesKey, ByteBuffer.wrap(kv.getValue()));
+      
+      if (decoder.next()) {
+        encoder.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+        timestamps.add(decoder.getTimestamp());
+      }
+    }
+    
+    //
+    // Scan the blocks, most recent first. As blocks do not overlap, we can stop as soon
+    // as we have read enough datapoints from blocks.
+    //
+    
+    long blockValues = 0L;
+    
+    if (this.blockSpan > 0) {
+      startrow = blockKey(metadata.getClassId(), metadata.getLabelsId(), blockStart(now, this.blockSpan));
+      stoprow = blockKey(metadata.getClassId(), metadata.getLabelsId(), blockStart(start, this.blockSpan));
+      
+      iterator.seek(startrow);
+    }
+    
+    while (this.blockSpan > 0 && iterator.hasNext() && blockValues < maxcount) {
+      Entry<byte[],byte[]> kv = iterator.next();
+      
+      if (Bytes.compareTo(kv.getKey(), stoprow) > 0) {
+        break;
+      }
+      
+      long blockts = Long.MAX_VALUE - ByteBuffer.wrap(kv.getKey(), BLOCK_DATA_KEY_PREFIX.length + 8 + 8, 8).order(ByteOrder.BIG_ENDIAN).getLong();
+      
+      keyBytes += kv.getKey().length;
+      valueBytes += kv.getValue().length;
+      
+      GTSDecoder decoder = new GTSDecoder(blockts, aesKey, ByteBuffer.wrap(kv.getValue()));
+      
+      while (decoder.next()) {
+        long ts = decoder.getTimestamp();
+        
+        if (ts > now || ts < start || timestamps.contains(ts)) {
+          continue;
+        }
+        
+        encoder.addValue(ts, decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+        blockValues++;
+      }
+    }
+    
+    if (0 == encoder.getCount()) {
+      return null;
+    }
+    
+    //
+    // Datapoints from both layouts are not ordered, select the requested ones according to
+    // their rank in decreasing timestamp order
+    //
+    
+    encoder = request.select(encoder);
+    
+    if (0 == encoder.getCount()) {
+      return null;
+    }
+    
+    encoder.setMetadata(metadata);
+    
+    if (null != token) {
+      updateFetchStatistics(token, metadata, false, keyBytes, valueBytes, encoder.getCount());
+    }
+    
+    return encoder.getDecoder();
+  }
+  
+  /**
+   * Fetch the rollups of a single GTS. When rollups are maintained for the GTS at a resolution which
+   * divides the requested span, the buckets entirely within the time range and the coverage of the
+   * rollups are read from those rollups and the others are computed from the datapoints at that
+   * resolution. Otherwise the datapoints are aggregated at the requested span.
+   * 
+   * @return a decoder with the aggregates or null if the GTS has no numeric datapoints in the requested range
+   */
+  private GTSDecoder fetchRollup(DBIterator iterator, ReadToken token, Metadata metadata, FetchRequest request) throws IOException {
+    
+    long start = request.getStart();
+    long end = request.getEnd();
+    
+    long resolution = null == this.indexer ? 0L : this.indexer.getResolution(metadata, request.getRollup());
+    
+    Long coverage = 0L == resolution ? null : this.indexer.getCoverage(metadata, resolution);
+    
+    Map<Long,Rollup> buckets = new TreeMap<Long,Rollup>();
+    
+    long rollupBytes = 0L;
+    
+    if (null == coverage) {
+      aggregate(iterator, token, metadata, start, end, request.getRollup(), buckets);
+    } else {
+      //
+      // Determine the ends of the first and last buckets entirely within [start,end] and
+      // starting at or after the coverage of the rollups
+      //
+      
+      long lower = Math.max(start, coverage);
+      
+      long first;
+      
+      if (Long.MIN_VALUE == lower) {
+        first = Long.MIN_VALUE;
+      } else if (lower > Long.MAX_VALUE - resolution + 1) {
+        first = Long.MAX_VALUE;
+      } else {
+        first = Rollup.bucketEnd(lower + resolution - 1, resolution);
+      }
+      
+      long last = Rollup.bucketEnd(end, resolution);
+      
+      if (last > end) {
+        last -= resolution;
+      }
+      
+      if (first > last) {
+        aggregate(iterator, token, metadata, start, end, resolution, buckets);
+      } else {
+        if (Long.MIN_VALUE != first && first - resolution >= start) {
+          aggregate(iterator, token, metadata, start, first - resolution, resolution, buckets);
+        }
+        
+        rollupBytes = this.indexer.read(iterator, metadata, resolution, first, last, buckets);
+        
+        if (last < end) {
+          aggregate(iterator, token, metadata, last + 1, end, resolution, buckets);
+        }
+      }
+    }
+    
+    GTSEncoder encoder = Rollup.encode(buckets, request.getAggregate());
+    
+    if (0 == encoder.getCount()) {
+      return null;
+    }
+    
+    encoder.setMetadata(metadata);
+    
+    if (rollupBytes > 0) {
+      updateFetchStatistics(token, metadata, false, 0L, rollupBytes, buckets.size());
+    }
+    
+    return encoder.getDecoder();
+  }
+  
+  /**
+   * Return the timestamp of the most recent datapoint stored for a GTS, or an upper bound of it
+   * when it lies in a block, Long.MIN_VALUE if the GTS has no datapoints
+   */
+  private long latest(long classId, long labelsId) throws IOException {
+    
+    long latest = Long.MIN_VALUE;
+    
+    DBIterator iterator = this.db.iterator();
+    
+    try {
+      // Most recent datapoints sort first
+      byte[] prefix = ByteBuffer.allocate(Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8).order(ByteOrder.BIG_ENDIAN).put(Store.HBASE_RAW_DATA_KEY_PREFIX).putLong(classId).putLong(labelsId).array();
+      
+      iterator.seek(prefix);
+      
+      if (iterator.hasNext()) {
+        byte[] key = iterator.next().getKey();
+        
+        if (key.length == prefix.length + 8 && 0 == Bytes.compareTo(key, 0, prefix.length, prefix, 0, prefix.length)) {
+          latest = Long.MAX_VALUE - ByteBuffer.wrap(key, prefix.length, 8).order(ByteOrder.BIG_ENDIAN).getLong();
+        }
+      }
+      
+      if (this.blockSpan > 0) {
+        prefix = ByteBuffer.allocate(BLOCK_DATA_KEY_PREFIX.length + 8 + 8).order(ByteOrder.BIG_ENDIAN).put(BLOCK_DATA_KEY_PREFIX).putLong(classId).putLong(labelsId).array();
+        
+        iterator.seek(prefix);
+        
+        if (iterator.hasNext()) {
+          byte[] key = iterator.next().getKey();
+          
+          if (key.length == prefix.length + 8 && 0 == Bytes.compareTo(key, 0, prefix.length, prefix, 0, prefix.length)) {
+            long blockts = Long.MAX_VALUE - ByteBuffer.wrap(key, prefix.length, 8).order(ByteOrder.BIG_ENDIAN).getLong();
+            latest = Math.max(latest, blockts > Long.MAX_VALUE - this.blockSpan + 1 ? Long.MAX_VALUE : blockts + this.blockSpan - 1);
+          }
+        }
+      }
+    } finally {
+      iterator.close();
+    }
+    
+    return latest;
+  }
+  
+  /**
+   * Aggregate the datapoints of a GTS in [start,end] into rollups of span 'span'
+   */
+  private void aggregate(DBIterator iterator, ReadToken token, Metadata metadata, long start, long end, long span, Map<Long,Rollup> buckets) throws IOException {
+    FetchRequest request = new FetchRequest();
+    request.setStart(start);
+    request.setEnd(end);
+    
+    GTSDecoder decoder = fetchBlocks(iterator, token, metadata, request);
+    
+    if (null != decoder) {
+      Rollup.aggregate(decoder, span, buckets);
+    }
+  }
+  
+  /**
+   * Compute the start of the block containing the given timestamp.
+   * Timestamps in the first span after Long.MIN_VALUE all belong to the block starting at Long.MIN_VALUE.
+   */
+  static long blockStart(long ts, long span) {
+    long mod = ts % span;
+    long base = ts - mod;
+    
+    if (mod < 0) {
+      if (base < Long.MIN_VALUE + span) {
+        base = Long.MIN_VALUE;
+      } else {
+        base -= span;
+      }
+    }
+    
+    return base;
+  }
+  
+  /**
+   * Build the key of the block starting at 'blockts'
+   */
+  static byte[] blockKey(long classId, long labelsId, long blockts) {
+    byte[] key = new byte[BLOCK_DATA_KEY_PREFIX.length + 8 + 8 + 8];
+    ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+    bb.put(BLOCK_DATA_KEY_PREFIX);
+    bb.putLong(classId);
+    bb.putLong(labelsId);
+    bb.putLong(Long.MAX_VALUE - blockts);
+    return key;
+  }
+  
+  /**
+   * Build the key of an individually stored datapoint
+   */
+  static byte[] rawKey(long classId, long labelsId, long ts) {
+    byte[] key = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8];
+    ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+    bb.putLong(classId);
+    bb.putLong(labelsId);
+    bb.putLong(Long.MAX_VALUE - ts);
+    return key;
+  }
+  
+  /**
+   * Update the Sensision metrics after a GTS was fetched
+   */
+  private static void updateFetchStatistics(ReadToken token, Metadata metadata, boolean fromArchive, long keyBytes, long valueBytes, long datapoints) {
+
+    Map<String,String> labels = new HashMap<String,String>();
+    
+    Map<String,String> metadataLabels = metadata.getLabels();
+    
+    String billedCustomerId = Tokens.getUUID(token.getBilledId());
+
+    if (null != billedCustomerId) {
+      labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERID, billedCustomerId);
+    }
+    
+    if (metadataLabels.containsKey(Constants.APPLICATION_LABEL)) {
+      labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, metadataLabels.get(Constants.APPLICATION_LABEL));
+    }
+    
+    if (metadataLabels.containsKey(Constants.OWNER_LABEL)) {
+      labels.put(SensisionConstants.SENSISION_LABEL_OWNER, metadataLabels.get(Constants.OWNER_LABEL));
+    }
+    
+    if (null != token.getAppName()) {
+      labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERAPP, token.getAppName());
+    }
+    
+    //
+    // Update per owner statistics, use a TTL for those
+    //
+    
+    if (fromArchive) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_VALUES_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, valueBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_KEYS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, keyBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_DATAPOINTS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, datapoints);                    
+    } else {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, valueBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, keyBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, datapoints);          
+    }
+           
+    //
+    // Update summary statistics
+    //
+
+    // Remove 'owner' label
+    labels.remove(SensisionConstants.SENSISION_LABEL_OWNER);
+
+    if (fromArchive) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_VALUES, labels, valueBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_KEYS, labels, keyBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_DATAPOINTS, labels, datapoints);          
+    } else {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES, labels, valueBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS, labels, keyBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS, labels, datapoints);          
+    }
+  }
+  
   private ThreadLocal<WriteBatch> perThreadWriteBatch = new ThreadLocal<WriteBatch>() {
     protected WriteBatch initialValue() {      
       return db.createWriteBatch();
@@ -347,7 +773,11 @@ public class StandaloneStoreClient implements StoreClient {
     };
   };
   
-  private void store(List<byte[][]> kvs) throws IOException {
+  /**
+   * Add key/value pairs to the per thread batch, which is written when 'kvs' is null, when
+   * 'flush' is true or when it is too large.
+   */
+  private void store(List<byte[][]> kvs, boolean flush) throws IOException {
   
     //WriteBatch batch = this.db.createWriteBatch();
     
@@ -365,8 +795,13 @@ public class StandaloneStoreClient implements StoreClient {
         }        
       }
       
-      if (null == kvs || size.get() > MAX_ENCODER_SIZE) {
-        this.db.write(batch);
+      if (null == kvs || flush || size.get() > MAX_ENCODER_SIZE) {
+        this.blockLock.readLock().lock();
+        try {
+          this.db.write(batch);
+        } finally {
+          this.blockLock.readLock().unlock();
+        }
         size.set(0L);
         perThreadWriteBatch.remove();
         written = true;
@@ -382,7 +817,7 @@ public class StandaloneStoreClient implements StoreClient {
   public void store(GTSEncoder encoder) throws IOException {
     
     if (null == encoder) {
-      store((List<byte[][]>) null);
+      store((List<byte[][]>) null, true);
       return;
     }
     
@@ -406,7 +841,20 @@ public class StandaloneStoreClient implements StoreClient {
       kvs.add(new byte[][] { bb.array(), value });
     }
     
-    store(kvs);
+    if (null != this.indexer && 0 != encoder.getCount() && this.indexer.matches(encoder.getMetadata())) {
+      //
+      // The rollups and their coverage are written in the same batch as the datapoints. The batch
+      // is written while holding the lock of the GTS so the next read-modify-write of its rollups sees them.
+      //
+      
+      synchronized (this.indexer.lock(encoder.getClassId(), encoder.getLabelsId())) {
+        long latest = index(encoder, kvs);
+        store(kvs, true);
+        this.indexer.setLatest(encoder.getClassId(), encoder.getLabelsId(), latest);
+      }
+    } else {
+      store(kvs, false);
+    }
     
     for (StandalonePlasmaHandlerInterface plasmaHandler: this.plasmaHandlers) {
       if (plasmaHandler.hasSubscriptions()) {
@@ -415,11 +863,169 @@ public class StandaloneStoreClient implements StoreClient {
     }
   }
   
+  /**
+   * Add to 'kvs' the rollup and coverage mutations for the datapoints of 'encoder'. The buckets in which
+   * a datapoint may be overwritten are recomputed from the stored datapoints and those of 'encoder',
+   * the others are merged into the stored rollups.
+   * Must be called while holding the lock of the GTS in the indexer.
+   * 
+   * @return an upper bound of the timestamp of the most recent datapoint of the GTS once 'kvs' is written
+   */
+  private long index(GTSEncoder encoder, List<byte[][]> kvs) throws IOException {
+    
+    long classId = encoder.getClassId();
+    long labelsId = encoder.getLabelsId();
+    
+    //
+    // Record from when the rollups of the GTS are complete the first time it is stored since startup
+    //
+    
+    Long known = this.indexer.getLatest(classId, labelsId);
+    
+    if (null == known) {
+      known = latest(classId, labelsId);
+      this.indexer.cover(classId, labelsId, known, kvs);
+    }
+    
+    //
+    // Find the timestamps at which a datapoint may be overwritten, i.e. those which are not after the
+    // most recent stored datapoint and are already stored, individually or possibly in a block,
+    // and those 'encoder' stores several times
+    //
+    
+    Set<Long> overwritten = new HashSet<Long>();
+    Map<Long,Boolean> blocks = new HashMap<Long,Boolean>();
+    
+    long newest = known;
+    long previous = Long.MIN_VALUE;
+    boolean ordered = true;
+    
+    GTSDecoder decoder = encoder.getDecoder(true);
+    
+    while (decoder.next()) {
+      long ts = decoder.getTimestamp();
+      
+      if (ts <= previous) {
+        ordered = false;
+      }
+      
+      previous = ts;
+      newest = Math.max(newest, ts);
+      
+      if (Long.MIN_VALUE == known || ts > known) {
+        continue;
+      }
+      
+      if (null != this.db.get(rawKey(classId, labelsId, ts))) {
+        overwritten.add(ts);
+      } else if (this.blockSpan > 0) {
+        long blockts = blockStart(ts, this.blockSpan);
+        
+        Boolean exists = blocks.get(blockts);
+        
+        if (null == exists) {
+          exists = null != this.db.get(blockKey(classId, labelsId, blockts));
+          blocks.put(blockts, exists);
+        }
+        
+        if (exists) {
+          overwritten.add(ts);
+        }
+      }
+    }
+    
+    if (!ordered) {
+      Set<Long> timestamps = new HashSet<Long>();
+      
+      decoder = encoder.getDecoder(true);
+      
+      while (decoder.next()) {
+        if (!timestamps.add(decoder.getTimestamp())) {
+          overwritten.add(decoder.getTimestamp());
+        }
+      }
+    }
+    
+    DBIterator iterator = overwritten.isEmpty() ? null : this.db.iterator();
+    
+    try {
+      for (long span: this.indexer.getResolutions()) {
+        Map<Long,Rollup> merged = new TreeMap<Long,Rollup>();
+        
+        if (overwritten.isEmpty()) {
+          Rollup.aggregate(encoder.getDecoder(true), span, merged);
+          this.indexer.update(classId, labelsId, span, merged, false, kvs);
+          continue;
+        }
+        
+        Map<Long,Rollup> replaced = new TreeMap<Long,Rollup>();
+        
+        for (long ts: overwritten) {
+          replaced.put(Rollup.bucketEnd(ts, span), new Rollup());
+        }
+        
+        //
+        // Keep the last value 'encoder' stores at each timestamp of the recomputed buckets
+        //
+        
+        Map<Long,Object[]> values = new HashMap<Long,Object[]>();
+        
+        decoder = encoder.getDecoder(true);
+        
+        while (decoder.next()) {
+          long end = Rollup.bucketEnd(decoder.getTimestamp(), span);
+          
+          if (replaced.containsKey(end)) {
+            values.put(decoder.getTimestamp(), new Object[] { decoder.getLocation(), decoder.getElevation(), decoder.getValue() });
+            continue;
+          }
+          
+          Rollup rollup = merged.get(end);
+          
+          if (null == rollup) {
+            rollup = new Rollup();
+            merged.put(end, rollup);
+          }
+          
+          rollup.add(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+        }
+        
+        for (Entry<Long,Rollup> entry: replaced.entrySet()) {
+          FetchRequest request = new FetchRequest();
+          request.setStart(entry.getKey() - span + 1);
+          request.setEnd(entry.getKey());
+          
+          GTSDecoder stored = fetchBlocks(iterator, null, encoder.getMetadata(), request);
+          
+          while (null != stored && stored.next()) {
+            if (!values.containsKey(stored.getTimestamp())) {
+              entry.getValue().add(stored.getTimestamp(), stored.getLocation(), stored.getElevation(), stored.getValue());
+            }
+          }
+        }
+        
+        for (Entry<Long,Object[]> entry: values.entrySet()) {
+          Object[] value = entry.getValue();
+          replaced.get(Rollup.bucketEnd(entry.getKey(), span)).add(entry.getKey(), (Long) value[0], (Long) value[1], value[2]);
+        }
+        
+        this.indexer.update(classId, labelsId, span, merged, false, kvs);
+        this.indexer.update(classId, labelsId, span, replaced, true, kvs);
+      }
+    } finally {
+      if (null != iterator) {
+        iterator.close();
+      }
+    }
+    
+    return newest;
+  }
+  
   @Override
   public void archive(int chunk, GTSEncoder encoder) throws IOException {
     
     if (null == encoder || chunk < 0) {
-      store((List<byte[][]>) null);
+      store((List<byte[][]>) null, true);
       return;
     }
     
@@ -506,7 +1112,7 @@ public class StandaloneStoreClient implements StoreClient {
     
     kvs.add(new byte[][] { key, encoder.getBytes() });
     
-    store(kvs);
+    store(kvs, false);
     
     //
     // We don't propagate data to the plasma handler when archiving
@@ -525,50 +1131,157 @@ public class StandaloneStoreClient implements StoreClient {
     metadata.setClassId(GTSHelper.classId(this.keystore.getKey(KeyStore.SIPHASH_CLASS), metadata.getName()));
 
     //
-    // Retrieve an iterator
+    // Prevent the block merger from running while we delete
     //
     
-    DBIterator iterator = this.db.iterator();
-    
-    //
-    // Seek the most recent key
-    //
+    this.blockLock.readLock().lock();
     
-    // 128BITS
-    byte[] bend = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8];
-    ByteBuffer bb = ByteBuffer.wrap(bend).order(ByteOrder.BIG_ENDIAN);
-    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
-    bb.putLong(metadata.getClassId());
-    bb.putLong(metadata.getLabelsId());
-    bb.putLong(Long.MAX_VALUE - end);
-
-    iterator.seek(bend);
-    
-    byte[] bstart = new byte[bend.length];
-    bb = ByteBuffer.wrap(bstart).order(ByteOrder.BIG_ENDIAN);
-    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
-    bb.putLong(metadata.getClassId());
-    bb.putLong(metadata.getLabelsId());
-    bb.putLong(Long.MAX_VALUE - start);
+    try {
+      return delete(metadata, start, end);
+    } finally {
+      this.blockLock.readLock().unlock();
+    }
+  }
+  
+  private long delete(Metadata metadata, long start, long end) throws IOException {
     
     //
-    // Scan the iterator, deleteing keys if they are between start and end
+    // Retrieve an iterator
     //
     
+    DBIterator iterator = this.db.iterator();
+    
     long count = 0L;
     
-    while (iterator.hasNext()) {
-      Entry<byte[],byte[]> entry = iterator.next();
+    try {
+      //
+      // Seek the most recent key
+      //
       
-      if (Bytes.compareTo(entry.getKey(), bend) >= 0 && Bytes.compareTo(entry.getKey(), bstart) <= 0) {
-        this.db.delete(entry.getKey());
-        count++;
-      } else {
-        break;
+      // 128BITS
+      byte[] bend = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8];
+      ByteBuffer bb = ByteBuffer.wrap(bend).order(ByteOrder.BIG_ENDIAN);
+      bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+      bb.putLong(metadata.getClassId());
+      bb.putLong(metadata.getLabelsId());
+      bb.putLong(Long.MAX_VALUE - end);
+
+      iterator.seek(bend);
+      
+      byte[] bstart = new byte[bend.length];
+      bb = ByteBuffer.wrap(bstart).order(ByteOrder.BIG_ENDIAN);
+      bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+      bb.putLong(metadata.getClassId());
+      bb.putLong(metadata.getLabelsId());
+      bb.putLong(Long.MAX_VALUE - start);
+      
+      //
+      // Scan the iterator, deleteing keys if they are between start and end
+      //
+      
+      while (iterator.hasNext()) {
+        Entry<byte[],byte[]> entry = iterator.next();
+        
+        if (Bytes.compareTo(entry.getKey(), bend) >= 0 && Bytes.compareTo(entry.getKey(), bstart) <= 0) {
+          this.db.delete(entry.getKey());
+          count++;
+        } else {
+          break;
+        }
+      }
+      
+      //
+      // Remove the datapoints from the blocks overlapping [start,end], blocks
+      // which end up empty are removed, the others are rewritten. All the block
+      // updates are applied atomically so readers never see a partially rewritten range.
+      //
+      
+      if (this.blockSpan > 0) {
+        byte[] aesKey = this.keystore.getKey(KeyStore.AES_LEVELDB_DATA);
+        
+        bend = blockKey(metadata.getClassId(), metadata.getLabelsId(), blockStart(end, this.blockSpan));
+        bstart = blockKey(metadata.getClassId(), metadata.getLabelsId(), blockStart(start, this.blockSpan));
+        
+        WriteBatch batch = this.db.createWriteBatch();
+        
+        try {
+          iterator.seek(bend);
+          
+          while (iterator.hasNext()) {
+            Entry<byte[],byte[]> entry = iterator.next();
+            
+            if (Bytes.compareTo(entry.getKey(), bstart) > 0) {
+              break;
+            }
+            
+            long blockts = Long.MAX_VALUE - ByteBuffer.wrap(entry.getKey(), BLOCK_DATA_KEY_PREFIX.length + 8 + 8, 8).order(ByteOrder.BIG_ENDIAN).getLong();
+            
+            GTSDecoder decoder = new GTSDecoder(blockts, aesKey, ByteBuffer.wrap(entry.getValue()));
+            GTSEncoder encoder = new GTSEncoder(blockts, aesKey);
+            
+            long removed = 0L;
+            
+            while (decoder.next()) {
+              if (decoder.getTimestamp() >= start && decoder.getTimestamp() <= end) {
+                removed++;
+              } else {
+                encoder.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+              }
+            }
+            
+            if (0 == removed) {
+              continue;
+            }
+            
+            if (0 == encoder.getCount()) {
+              batch.delete(entry.getKey());
+            } else {
+              batch.put(entry.getKey(), encoder.getBytes());
+            }
+            
+            count += removed;
+          }
+          
+          this.db.write(batch);
+        } finally {
+          batch.close();
+        }
       }
+    } finally {
+      iterator.close();
     }
     
-    iterator.close();
+    //
+    // Remove the rollups of the buckets overlapping [start,end] and recompute those
+    // which were only partially covered from the remaining datapoints. The iterator
+    // used above reads a snapshot taken before the deletes, so a new one is opened.
+    //
+    
+    if (null != this.indexer) {
+      synchronized (this.indexer.lock(metadata.getClassId(), metadata.getLabelsId())) {
+        List<long[]> partial = this.indexer.delete(metadata, start, end);
+        
+        if (!partial.isEmpty()) {
+          List<byte[][]> kvs = new ArrayList<byte[][]>();
+          
+          iterator = this.db.iterator();
+          
+          try {
+            for (long[] bucket: partial) {
+              Map<Long,Rollup> buckets = new TreeMap<Long,Rollup>();
+              
+              aggregate(iterator, null, metadata, bucket[1] - bucket[0] + 1, bucket[1], bucket[0], buckets);
+              
+              this.indexer.update(metadata.getClassId(), metadata.getLabelsId(), bucket[0], buckets, true, kvs);
+            }
+          } finally {
+            iterator.close();
+          }
+          
+          store(kvs, true);
+        }
+      }
+    }
     
     return count;
   }
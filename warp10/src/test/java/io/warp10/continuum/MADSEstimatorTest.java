@@ -0,0 +1,151 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum;
+
+import io.warp10.script.HyperLogLogPlus;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MADSEstimatorTest {
+  
+  private static MADSEstimator estimator() throws Exception {
+    HyperLogLogPlus hllp = new HyperLogLogPlus(14, 25);
+    hllp.toNormal();
+    return new MADSEstimator(hllp);
+  }
+  
+  @Test
+  public void testOvershoot() throws Exception {
+    final MADSEstimator estimator = estimator();
+    final long limit = 20000L;
+    final int threads = 16;
+    
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    
+    Thread[] workers = new Thread[threads];
+    
+    for (int i = 0; i < threads; i++) {
+      final long seed = i;
+      workers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(seed);
+            
+            //
+            // Add new hashes the way ThrottlingManager does until one is rejected
+            //
+            
+            for (int j = 0; j < 10 * limit; j++) {
+              long hash = random.nextLong();
+              
+              if (!estimator.isNew(hash)) {
+                continue;
+              }
+              
+              if (estimator.exceeds(limit)) {
+                return;
+              }
+              
+              estimator.add(hash);
+            }
+            
+            error.set(new AssertionError("No hash was rejected."));
+          } catch (Throwable t) {
+            error.set(t);
+          }
+        }
+      };
+      workers[i].start();
+    }
+    
+    for (Thread worker: workers) {
+      worker.join();
+    }
+    
+    Assert.assertNull(error.get());
+    
+    //
+    // The limit is exceeded by at most SHARD_SIZE hashes per thread, on top of the error of the estimator
+    //
+    
+    long cardinality = estimator.cardinality();
+    
+    Assert.assertTrue(cardinality > limit * 0.95D);
+    Assert.assertTrue(cardinality <= limit * 1.05D + threads * MADSEstimator.SHARD_SIZE);
+    
+    // The shards of the terminated threads were removed
+    Assert.assertEquals(0, estimator.getShardCount());
+  }
+  
+  @Test
+  public void testOrphanShards() throws Exception {
+    final MADSEstimator estimator = estimator();
+    
+    for (int i = 0; i < 10; i++) {
+      final long hash = i;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            estimator.add(new Random(hash).nextLong());
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      thread.start();
+      thread.join();
+    }
+    
+    // The buffered hashes were merged before the shards were removed
+    long cardinality = estimator.cardinality();
+    Assert.assertTrue(cardinality >= 9L && cardinality <= 11L);
+    Assert.assertEquals(0, estimator.getShardCount());
+    
+    estimator.add(42L);
+    Assert.assertEquals(1, estimator.getShardCount());
+  }
+  
+  @Test
+  public void testRetire() throws Exception {
+    MADSEstimator old = estimator();
+    MADSEstimator fresh = estimator();
+    
+    Random random = new Random(0L);
+    
+    for (int i = 0; i < 1000; i++) {
+      old.add(random.nextLong());
+    }
+    
+    old.retire(fresh);
+    
+    // Hashes added to the retired estimator reach its successor
+    for (int i = 0; i < 1000; i++) {
+      old.add(random.nextLong());
+    }
+    
+    long cardinality = fresh.cardinality();
+    
+    Assert.assertTrue(cardinality > 1900L);
+    Assert.assertTrue(cardinality < 2100L);
+  }
+}
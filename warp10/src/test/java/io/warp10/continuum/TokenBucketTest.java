@@ -0,0 +1,58 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenBucketTest {
+  
+  @Test
+  public void testTryAcquire() throws Exception {
+    TokenBucket bucket = new TokenBucket(10.0D);
+    
+    // The first request is always granted, its cost is paid by the next requests
+    Assert.assertTrue(bucket.tryAcquire(10, 0L, TimeUnit.MILLISECONDS));
+    
+    // Tokens granted to the previous request are produced in one second
+    Assert.assertFalse(bucket.tryAcquire(1, 0L, TimeUnit.MILLISECONDS));
+    Assert.assertFalse(bucket.tryAcquire(1, 500L, TimeUnit.MILLISECONDS));
+    
+    long nanos = System.nanoTime();
+    Assert.assertTrue(bucket.tryAcquire(1, 2000L, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(System.nanoTime() - nanos >= 900000000L);
+  }
+  
+  @Test
+  public void testBurst() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000.0D);
+    
+    Thread.sleep(1500L);
+    
+    // At most one second worth of tokens can be stored
+    int granted = 0;
+    
+    while (bucket.tryAcquire(1, 0L, TimeUnit.MILLISECONDS)) {
+      granted++;
+    }
+    
+    Assert.assertTrue(granted > 900);
+    Assert.assertTrue(granted <= 1100);
+  }
+}
@@ -0,0 +1,214 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.OrderPreservingBase64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamingMetadataIteratorTest {
+
+  private static final int DIRECTORIES = 4;
+  private static final int SERIES = 5000;
+  
+  /**
+   * Stand-in for the streaming endpoints, directory 'r' serves the series whose classId
+   * is 'r' modulo DIRECTORIES, selector 's' offsets the classIds by s * SERIES.
+   */
+  private static class LocalIterator extends StreamingMetadataIterator {
+    public LocalIterator(List<String> classSelectors, List<Map<String,String>> labelsSelectors, List<URL> urls, ExecutorService executor, long maxInflight, long offerTimeout) {
+      super(new long[2], classSelectors, labelsSelectors, urls, false, executor, maxInflight, offerTimeout);
+    }
+    
+    public LocalIterator(List<String> classSelectors, List<Map<String,String>> labelsSelectors, List<URL> urls, ExecutorService executor, long maxInflight) {
+      this(classSelectors, labelsSelectors, urls, executor, maxInflight, 60000L);
+    }
+    
+    @Override
+    protected InputStream open(int selidx, URL url) throws IOException {
+      int r = url.getPort();
+      
+      if (r < 0) {
+        throw new IOException("Directory unavailable.");
+      }
+      
+      try {
+        TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        for (int i = r; i < SERIES; i += DIRECTORIES) {
+          Metadata metadata = new Metadata();
+          metadata.setName("class");
+          metadata.setLabels(new HashMap<String,String>());
+          metadata.setClassId(selidx * SERIES + i);
+          metadata.setLabelsId(i);
+          out.write(OrderPreservingBase64.encode(serializer.serialize(metadata)));
+          out.write('\r');
+          out.write('\n');
+        }
+        
+        return new ByteArrayInputStream(out.toByteArray());
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+  }
+  
+  private static List<URL> urls(int... ports) throws Exception {
+    List<URL> urls = new ArrayList<URL>();
+    
+    for (int port: ports) {
+      urls.add(port < 0 ? new URL("http://localhost/") : new URL("http://localhost:" + port + "/"));
+    }
+    
+    return urls;
+  }
+  
+  private static List<String> classSelectors(int n) {
+    List<String> selectors = new ArrayList<String>();
+    for (int i = 0; i < n; i++) {
+      selectors.add("~.*");
+    }
+    return selectors;
+  }
+  
+  private static List<Map<String,String>> labelsSelectors(int n) {
+    List<Map<String,String>> selectors = new ArrayList<Map<String,String>>();
+    for (int i = 0; i < n; i++) {
+      selectors.add(new HashMap<String,String>());
+    }
+    return selectors;
+  }
+  
+  @Test
+  public void testIterate() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    
+    try {
+      // Small inflight limit so the readers have to wait for the consumer
+      for (long inflight: new long[] { 1L, 1000L, 1000000L }) {
+        LocalIterator iter = new LocalIterator(classSelectors(2), labelsSelectors(2), urls(0, 1, 2, 3), executor, inflight);
+        
+        BitSet seen = new BitSet();
+        int count = 0;
+        
+        while (iter.hasNext()) {
+          Metadata metadata = iter.next();
+          Assert.assertFalse(seen.get((int) metadata.getClassId()));
+          seen.set((int) metadata.getClassId());
+          count++;
+        }
+        
+        iter.close();
+        
+        Assert.assertEquals(2 * SERIES, count);
+        Assert.assertEquals(2 * SERIES, seen.cardinality());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testError() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    
+    try {
+      // The directory with no port fails, the error must reach the consumer
+      LocalIterator iter = new LocalIterator(classSelectors(1), labelsSelectors(1), urls(0, 1, -1, 3), executor, 1000000L);
+      
+      try {
+        while (iter.hasNext()) {
+          iter.next();
+        }
+        Assert.fail();
+      } catch (RuntimeException re) {
+        Assert.assertTrue(re.getCause() instanceof IOException);
+      } finally {
+        iter.close();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testClose() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    
+    try {
+      LocalIterator iter = new LocalIterator(classSelectors(4), labelsSelectors(4), urls(0, 1, 2, 3), executor, 10L);
+      
+      Assert.assertTrue(iter.hasNext());
+      iter.next();
+      
+      // The readers are blocked waiting for the consumer, closing must release them
+      iter.close();
+      
+      Assert.assertFalse(iter.hasNext());
+      
+      executor.shutdown();
+      Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testOfferTimeout() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    
+    try {
+      LocalIterator iter = new LocalIterator(classSelectors(4), labelsSelectors(4), urls(0, 1, 2, 3), executor, 10L, 100L);
+      
+      try {
+        // The consumer never iterates, the readers must give up on their own
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        
+        try {
+          iter.hasNext();
+          Assert.fail();
+        } catch (RuntimeException re) {
+          Assert.assertTrue(re.getCause() instanceof IOException);
+        }
+      } finally {
+        iter.close();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,239 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.geo;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.geoxp.GeoXPLib;
+import com.geoxp.GeoXPLib.GeoXPShape;
+
+public class GeoIndexTest {
+  
+  /**
+   * Index resolution, in HHCode levels
+   */
+  private static final int RESOLUTION = 16;
+  
+  private static final long HOUR = 3600000L;
+  
+  private static final long P = GeoXPLib.toGeoXPPoint(48.0D, -4.5D);
+  
+  /**
+   * Location in the same cell as P at the index resolution but not at finer ones
+   */
+  private static final long Q = GeoXPLib.toGeoXPPoint(48.0001D, -4.5001D);
+  
+  private static final long R = GeoXPLib.toGeoXPPoint(45.0D, 5.0D);
+  
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    if (null == WarpConfig.getProperties()) {
+      WarpConfig.setProperties((String) null);
+    }
+  }
+  
+  /**
+   * Return the cell of the given level (1 -> 15) containing 'location'
+   */
+  private static long cell(long location, int level) {
+    for (long cell: GeoXPLib.indexable(location)) {
+      if (level == (int) (cell >>> 60)) {
+        return cell;
+      }
+    }
+    
+    throw new IllegalArgumentException();
+  }
+  
+  private static GeoXPShape shape(long location, int level) {
+    return GeoXPLib.fromCells(new long[] { cell(location, level) }, false);
+  }
+  
+  private static GTSEncoder encoder(long id, long timestamp, long... locations) throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setClassId(id);
+    encoder.setLabelsId(id);
+    
+    for (long location: locations) {
+      encoder.addValue(timestamp * Constants.TIME_UNITS_PER_MS, location, GeoTimeSerie.NO_ELEVATION, 1L);
+    }
+    
+    return encoder;
+  }
+  
+  private static String id(long id) {
+    return GTSHelper.gtsIdToString(id, id, false);
+  }
+  
+  private static Set<String> set(String... ids) {
+    return new HashSet<String>(Arrays.asList(ids));
+  }
+  
+  @Test
+  public void testFind() throws Exception {
+    Assert.assertEquals(cell(P, RESOLUTION / 2), cell(Q, RESOLUTION / 2));
+    Assert.assertTrue(cell(P, RESOLUTION / 2 + 3) != cell(Q, RESOLUTION / 2 + 3));
+    
+    GeoIndex index = new GeoIndex(RESOLUTION, 2, HOUR);
+    
+    long now = System.currentTimeMillis();
+    
+    index.index(encoder(1L, now, P));
+    index.index(encoder(2L, now, R));
+    
+    List<String> all = Arrays.asList(id(1L), id(2L), id(3L));
+    
+    Assert.assertEquals(set(id(1L)), index.find(all, shape(P, RESOLUTION / 2), true, now - HOUR, now));
+    Assert.assertEquals(set(id(1L)), index.find(all, shape(P, RESOLUTION / 2 - 3), true, now - HOUR, now));
+    Assert.assertEquals(set(id(2L), id(3L)), index.find(all, shape(P, RESOLUTION / 2), false, now - HOUR, now));
+    
+    // Only the requested GTS are returned
+    Assert.assertEquals(set(), index.find(Collections.singletonList(id(2L)), shape(P, RESOLUTION / 2), true, now - HOUR, now));
+    
+    //
+    // Cells finer than the index resolution are matched at the index resolution, as the Geo Bloom filters did
+    //
+    
+    Assert.assertEquals(set(id(1L)), index.find(all, shape(P, RESOLUTION / 2 + 3), true, now - HOUR, now));
+    Assert.assertEquals(set(id(1L)), index.find(all, shape(Q, RESOLUTION / 2 + 3), true, now - HOUR, now));
+    
+    // Chunks outside the time range are ignored
+    Assert.assertEquals(set(), index.find(all, shape(P, RESOLUTION / 2), true, now - 10 * HOUR, now - 5 * HOUR));
+  }
+  
+  @Test
+  public void testResolution() throws Exception {
+    long now = System.currentTimeMillis();
+    
+    GeoIndex single = new GeoIndex(RESOLUTION, 2, HOUR);
+    single.index(encoder(1L, now, P));
+    
+    //
+    // Locations in the same cell at the index resolution are posted in the same cells
+    //
+    
+    long[] locations = new long[50];
+    
+    for (int i = 0; i < locations.length; i++) {
+      locations[i] = GeoXPLib.toGeoXPPoint(48.0D + i * 0.000002D, -4.5D - i * 0.000002D);
+      Assert.assertEquals(cell(P, RESOLUTION / 2), cell(locations[i], RESOLUTION / 2));
+    }
+    
+    GeoIndex multiple = new GeoIndex(RESOLUTION, 2, HOUR);
+    multiple.index(encoder(1L, now, locations));
+    
+    Assert.assertEquals(single.size(), multiple.size());
+  }
+  
+  @Test
+  public void testFindLKP() throws Exception {
+    GeoIndex index = new GeoIndex(RESOLUTION, 0, 0L);
+    
+    long now = System.currentTimeMillis();
+    
+    index.index(encoder(1L, now, P));
+    index.index(encoder(2L, now, R));
+    
+    List<String> all = Arrays.asList(id(1L), id(2L));
+    
+    Assert.assertEquals(set(id(1L)), index.find(all, shape(P, RESOLUTION / 2), true, 0L, 0L));
+    Assert.assertEquals(set(id(2L)), index.find(all, shape(P, RESOLUTION / 2), false, 0L, 0L));
+    
+    //
+    // Cells finer than the index resolution are checked against the last known positions
+    //
+    
+    Assert.assertEquals(set(id(1L)), index.find(all, shape(P, 15), true, 0L, 0L));
+    Assert.assertEquals(set(), index.find(all, shape(Q, RESOLUTION / 2 + 3), true, 0L, 0L));
+    
+    //
+    // Only the last known position is indexed
+    //
+    
+    index.index(encoder(1L, now + 1L, R));
+    
+    Assert.assertEquals(set(), index.find(all, shape(P, RESOLUTION / 2), true, 0L, 0L));
+    Assert.assertEquals(set(id(1L), id(2L)), index.find(all, shape(R, RESOLUTION / 2), true, 0L, 0L));
+    Assert.assertEquals(set(id(1L), id(2L)), index.find(all, shape(R, 15), true, 0L, 0L));
+    
+    //
+    // Dump and reload the index
+    //
+    
+    File file = File.createTempFile("lkp", ".idx");
+    
+    try {
+      index.dumpLKPIndex(file);
+      
+      GeoIndex loaded = new GeoIndex(RESOLUTION, 0, 0L);
+      loaded.loadLKPIndex(file);
+      
+      Assert.assertEquals(set(id(1L), id(2L)), loaded.find(all, shape(R, 15), true, 0L, 0L));
+      Assert.assertEquals(set(), loaded.find(all, shape(P, RESOLUTION / 2), true, 0L, 0L));
+    } finally {
+      file.delete();
+    }
+  }
+  
+  @Test
+  public void testReclaim() throws Exception {
+    long depth = 100L;
+    
+    GeoIndex index = new GeoIndex(RESOLUTION, 2, depth);
+    
+    index.index(encoder(1L, System.currentTimeMillis(), P));
+    
+    Thread.sleep(4 * depth);
+    
+    index.index(encoder(2L, System.currentTimeMillis(), P));
+    index.index(encoder(3L, System.currentTimeMillis() - depth, P));
+    
+    Assert.assertEquals(3, index.getOrdinalCount());
+    
+    //
+    // The chunk of the first GTS is removed when the index holds too many chunks, its ordinal is reclaimed
+    //
+    
+    long now = System.currentTimeMillis();
+    
+    index.index(encoder(4L, now, P));
+    
+    Assert.assertTrue(index.getOrdinalCount() <= 3);
+    
+    List<String> all = Arrays.asList(id(1L), id(2L), id(3L), id(4L));
+    
+    Set<String> found = index.find(all, shape(P, RESOLUTION / 2), true, now - depth, now);
+    
+    Assert.assertFalse(found.contains(id(1L)));
+    Assert.assertTrue(found.contains(id(4L)));
+  }
+}
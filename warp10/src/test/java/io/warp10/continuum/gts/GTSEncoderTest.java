@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Random;
 
 import org.bouncycastle.crypto.engines.AESWrapEngine;
 import org.bouncycastle.crypto.paddings.PKCS7Padding;
@@ -613,4 +614,124 @@ public class GTSEncoderTest {
     Assert.assertEquals(1.0D, decoder.getTimestamp(), 0.000000000001D);
     Assert.assertEquals("1", decoder.getValue().toString());
   }
+
+  @Test
+  public void testEncoding_XOR() throws Exception {
+    GTSEncoder.setDoubleXOR(true);
+    
+    try {
+      GTSEncoder encoder = new GTSEncoder(0L);
+      
+      //
+      // First double is stored as IEEE754, the second one as its XOR with the first
+      //
+      
+      encoder.addValue(0L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1.0D);
+      encoder.addValue(1L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1.5D);
+      Assert.assertEquals("343ff000000000000052021108", new String(Hex.encode(encoder.getBytes())));
+      
+      //
+      // After a flush the previous value is unknown, IEEE754 must be used
+      //
+      
+      encoder.flush();
+      encoder.addValue(2L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1.5D);
+      Assert.assertEquals("7400000000000000023ff8000000000000", new String(Hex.encode(encoder.getBytes())));
+    } finally {
+      GTSEncoder.setDoubleXOR(false);
+    }
+  }
+  
+  @Test
+  public void testEncoding_XOR_Disabled() throws Exception {
+    //
+    // XOR encoding is disabled by default so older readers can decode the data
+    //
+    
+    GTSEncoder encoder = new GTSEncoder(0L);
+    
+    encoder.addValue(0L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1.0D);
+    encoder.addValue(1L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1.5D);
+    Assert.assertEquals("343ff000000000000054023ff8000000000000", new String(Hex.encode(encoder.getBytes())));
+  }
+  
+  @Test
+  public void testDecoding_IEEE754() throws Exception {
+    //
+    // Data encoded without XOR must still be readable
+    //
+    
+    GTSDecoder decoder = new GTSDecoder(0L, ByteBuffer.wrap(Hex.decode("343ff0000000000000140000000000000000001402bff8000000000000")));
+    
+    Assert.assertTrue(decoder.next());
+    Assert.assertEquals(1.0D, decoder.getValue());
+    Assert.assertTrue(decoder.next());
+    Assert.assertEquals(0.0D, decoder.getValue());
+    Assert.assertTrue(decoder.next());
+    Assert.assertEquals(1L, decoder.getTimestamp());
+    Assert.assertEquals(-1.5D, decoder.getValue());
+    Assert.assertFalse(decoder.next());
+  }
+  
+  @Test
+  public void testEncodingConsistency_XOR() throws Exception {
+    GTSEncoder.setDoubleXOR(true);
+    
+    try {
+      checkEncodingConsistency();
+    } finally {
+      GTSEncoder.setDoubleXOR(false);
+    }
+  }
+  
+  private void checkEncodingConsistency() throws Exception {
+    Random random = new Random(0L);
+    
+    GTSEncoder encoder = new GTSEncoder(0L);
+    
+    int n = 100000;
+    
+    double[] values = new double[n];
+    
+    for (int i = 0; i < n; i++) {
+      switch (i % 5) {
+        case 0:
+          values[i] = random.nextDouble();
+          break;
+        case 1:
+          values[i] = Math.round(random.nextGaussian() * 100.0D) / 10.0D;
+          break;
+        case 2:
+          values[i] = 0 == i % 2 ? 0.0D : -0.0D;
+          break;
+        case 3:
+          values[i] = 0 == i % 7 ? Double.NaN : values[i - 1];
+          break;
+        default:
+          values[i] = 0 == i % 11 ? Double.POSITIVE_INFINITY : values[i - 3] + 0.5D;
+      }
+      
+      encoder.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, values[i]);
+      
+      // Mix in BigDecimal values
+      if (0 == i % 13) {
+        encoder.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, new BigDecimal("1.5"));
+      }
+    }
+    
+    GTSDecoder decoder = encoder.getDecoder();
+    
+    for (int i = 0; i < n; i++) {
+      Assert.assertTrue(decoder.next());
+      Assert.assertEquals(i, decoder.getTimestamp());
+      Assert.assertEquals(values[i], ((Number) decoder.getValue()).doubleValue(), 0.0D);
+
+      if (0 == i % 13) {
+        Assert.assertTrue(decoder.next());
+        Assert.assertTrue(decoder.getValue() instanceof BigDecimal);
+      }
+    }
+    
+    Assert.assertFalse(decoder.next());
+  }
 }
@@ -0,0 +1,157 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
+import io.warp10.script.aggregator.Count;
+import io.warp10.script.aggregator.Max;
+import io.warp10.script.aggregator.Mean;
+import io.warp10.script.aggregator.Min;
+import io.warp10.script.aggregator.StandardDeviation;
+import io.warp10.script.aggregator.Sum;
+import io.warp10.script.aggregator.Variance;
+
+import java.util.Random;
+
+/**
+ * Compare the cost of GTSHelper.map with a sliding window when mappers are called
+ * with a copy of each window, with a slice of the original arrays and when
+ * they maintain their result incrementally.
+ *
+ * Results of the three paths are checked for equality.
+ *
+ * Usage: GTSHelperMapBenchmark [number of datapoints] [prewindow] [iterations]
+ */
+public class GTSHelperMapBenchmark {
+
+  /**
+   * Hide all the optional interfaces of a mapper so 'apply' is called
+   */
+  private static final class Generic implements WarpScriptMapperFunction {
+    private final WarpScriptMapperFunction mapper;
+
+    public Generic(WarpScriptMapperFunction mapper) {
+      this.mapper = mapper;
+    }
+
+    @Override
+    public Object apply(Object[] args) throws WarpScriptException {
+      return this.mapper.apply(args);
+    }
+  }
+
+  /**
+   * Only expose the primitive interface so 'aggregate' is called for each window
+   */
+  private static final class PerWindow implements WarpScriptMapperFunction, WarpScriptPrimitiveAggregatorFunction {
+    private final WarpScriptMapperFunction mapper;
+
+    public PerWindow(WarpScriptMapperFunction mapper) {
+      this.mapper = mapper;
+    }
+
+    @Override
+    public Object apply(Object[] args) throws WarpScriptException {
+      return this.mapper.apply(args);
+    }
+
+    @Override
+    public boolean supports(TYPE type) {
+      return ((WarpScriptPrimitiveAggregatorFunction) this.mapper).supports(type);
+    }
+
+    @Override
+    public void aggregate(long tick, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, int offset, int length, Result result) throws WarpScriptException {
+      ((WarpScriptPrimitiveAggregatorFunction) this.mapper).aggregate(tick, ticks, locations, elevations, longValues, doubleValues, offset, length, result);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 86400;
+    long prewindow = args.length > 1 ? Long.parseLong(args[1]) : 3600L;
+    int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    Random random = new Random(42L);
+
+    GeoTimeSerie gts = new GeoTimeSerie(n);
+    gts.setName("bench");
+
+    for (int i = 0; i < n; i++) {
+      GTSHelper.setValue(gts, i * 1000000L, (long) random.nextInt(1000));
+    }
+
+    WarpScriptMapperFunction[] mappers = new WarpScriptMapperFunction[] {
+      new Sum("mapper.sum", true),
+      new Count("mapper.count", false),
+      new Mean("mapper.mean", false),
+      new Min("mapper.min", true),
+      new Max("mapper.max", true),
+      new Variance("mapper.var", false, false),
+      new StandardDeviation("mapper.sd", false, false),
+    };
+
+    for (WarpScriptMapperFunction mapper: mappers) {
+      GeoTimeSerie generic = null;
+      GeoTimeSerie perWindow = null;
+      GeoTimeSerie incremental = null;
+
+      long genericTime = 0L;
+      long perWindowTime = 0L;
+      long incrementalTime = 0L;
+
+      for (int i = 0; i < iterations; i++) {
+        long nano = System.nanoTime();
+        generic = GTSHelper.map(gts, new Generic(mapper), prewindow, 0L).get(0);
+        genericTime += System.nanoTime() - nano;
+
+        nano = System.nanoTime();
+        perWindow = GTSHelper.map(gts, new PerWindow(mapper), prewindow, 0L).get(0);
+        perWindowTime += System.nanoTime() - nano;
+
+        nano = System.nanoTime();
+        incremental = GTSHelper.map(gts, mapper, prewindow, 0L).get(0);
+        incrementalTime += System.nanoTime() - nano;
+      }
+
+      check(mapper, generic, perWindow);
+      check(mapper, generic, incremental);
+
+      System.out.println(mapper
+          + " generic=" + (genericTime / iterations / 1000000.0D) + " ms"
+          + " window=" + (perWindowTime / iterations / 1000000.0D) + " ms"
+          + " incremental=" + (incrementalTime / iterations / 1000000.0D) + " ms");
+    }
+  }
+
+  private static void check(WarpScriptMapperFunction mapper, GeoTimeSerie expected, GeoTimeSerie actual) {
+    if (expected.size() != actual.size()) {
+      throw new RuntimeException(mapper + " size mismatch " + actual.size() + " != " + expected.size());
+    }
+
+    for (int i = 0; i < expected.size(); i++) {
+      if (GTSHelper.tickAtIndex(expected, i) != GTSHelper.tickAtIndex(actual, i)
+          || GTSHelper.locationAtIndex(expected, i) != GTSHelper.locationAtIndex(actual, i)
+          || GTSHelper.elevationAtIndex(expected, i) != GTSHelper.elevationAtIndex(actual, i)
+          || !GTSHelper.valueAtIndex(expected, i).equals(GTSHelper.valueAtIndex(actual, i))) {
+        throw new RuntimeException(mapper + " mismatch at index " + i + ": " + GTSHelper.valueAtIndex(actual, i) + " != " + GTSHelper.valueAtIndex(expected, i));
+      }
+    }
+  }
+}
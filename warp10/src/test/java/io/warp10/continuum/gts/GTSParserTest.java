@@ -0,0 +1,112 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class GTSParserTest {
+
+  private static final String INPUT =
+      "1// foo{a=b} 42\n"
+    + "2// foo{a=b} -42\r\n"
+    + "3// foo{a=b} 1.5\r"
+    + "4// foo{a=b} 1234567890.123456\n"
+    + "5/48.0:-4.5/ foo{a=b} T\n"
+    + "6//100 foo{a=b} false\n"
+    + "=7// 'str%20ing'\n"
+    + "8//   bar{a=b,c=d}   12345678901234567890\n"
+    + "9// bar{a=b,c=d} 1e3\n"
+    + "10// b%41r{a=b%20c} NaN\n"
+    + "11// b%41r{a=b%20c} \"héllo\"\n"
+    + "12// 0.0\n"
+    + "13// foo{a=b} +7.\n"
+    + "T-14// foo{a=b} +7";
+
+  @Test
+  public void testParse() throws Exception {
+    Map<String,String> extraLabels = new HashMap<String,String>();
+    extraLabels.put("producer", "p");
+    extraLabels.put("a", null);
+
+    //
+    // Parse the input with GTSHelper.parse
+    //
+
+    List<GTSEncoder> expected = new ArrayList<GTSEncoder>();
+
+    BufferedReader br = new BufferedReader(new StringReader(INPUT));
+
+    GTSEncoder encoder = null;
+
+    while (true) {
+      String line = br.readLine();
+
+      if (null == line) {
+        break;
+      }
+
+      GTSEncoder enc = GTSHelper.parse(encoder, line, extraLabels, 0L, Long.MAX_VALUE);
+
+      if (enc != encoder) {
+        expected.add(enc);
+        encoder = enc;
+      }
+    }
+
+    //
+    // Parse the same input with GTSParser, with a small read buffer so lines span reads
+    //
+
+    List<GTSEncoder> actual = new ArrayList<GTSEncoder>();
+
+    GTSParser parser = new GTSParser(new ByteArrayInputStream(INPUT.getBytes(Charsets.UTF_8)) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 3));
+      }
+    }, Charsets.UTF_8, extraLabels, 0L, Long.MAX_VALUE, false);
+
+    encoder = null;
+
+    while (parser.next()) {
+      GTSEncoder enc = parser.parse(encoder);
+
+      if (enc != encoder) {
+        actual.add(enc);
+        encoder = enc;
+      }
+    }
+
+    Assert.assertEquals(expected.size(), actual.size());
+
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(expected.get(i).getMetadata(), actual.get(i).getMetadata());
+      Assert.assertArrayEquals(expected.get(i).getBytes(), actual.get(i).getBytes());
+    }
+  }
+}
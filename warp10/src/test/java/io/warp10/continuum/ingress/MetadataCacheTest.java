@@ -0,0 +1,114 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.ingress;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetadataCacheTest {
+  
+  @Test
+  public void testPutRemove() {
+    MetadataCache cache = new MetadataCache(100000);
+    
+    Random rand = new Random(42L);
+    
+    long[] ids = new long[20000];
+    
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = rand.nextLong();
+      cache.put(ids[i], ~ids[i]);
+    }
+    
+    Assert.assertEquals(ids.length, cache.size());
+    
+    for (int i = 0; i < ids.length; i++) {
+      Assert.assertTrue(cache.contains(ids[i], ~ids[i]));
+      Assert.assertFalse(cache.contains(ids[i], ids[i]));
+    }
+    
+    //
+    // Removing entries must not hide the others
+    //
+    
+    for (int i = 0; i < ids.length; i += 2) {
+      cache.remove(ids[i], ~ids[i]);
+    }
+    
+    Assert.assertEquals(ids.length / 2, cache.size());
+    
+    for (int i = 0; i < ids.length; i++) {
+      Assert.assertEquals(1 == i % 2, cache.contains(ids[i], ~ids[i]));
+    }
+  }
+  
+  @Test
+  public void testEviction() {
+    MetadataCache cache = new MetadataCache(6400);
+    
+    //
+    // Entries looked up while the cache fills up survive the evictions
+    //
+    
+    cache.put(-1L, -1L);
+    
+    for (long i = 0; i < 100000; i++) {
+      cache.put(i, i);
+      Assert.assertTrue(cache.contains(-1L, -1L));
+    }
+    
+    Assert.assertEquals(6400, cache.size());
+    Assert.assertTrue(cache.contains(99999L, 99999L));
+  }
+  
+  @Test
+  public void testDump() throws Exception {
+    MetadataCache cache = new MetadataCache(1000);
+    
+    Set<Long> ids = new HashSet<Long>();
+    
+    for (long i = 0; i < 500; i++) {
+      cache.put(i << 32, i);
+      ids.add(i);
+    }
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    
+    Assert.assertEquals(500L, cache.dump(out));
+    
+    byte[] bytes = out.toByteArray();
+    
+    Assert.assertEquals(500 * 16, bytes.length);
+    
+    MetadataCache loaded = new MetadataCache(1000);
+    
+    for (int i = 0; i < bytes.length; i += 16) {
+      loaded.put(bytes, i);
+    }
+    
+    for (long id: ids) {
+      Assert.assertTrue(loaded.contains(id << 32, id));
+    }
+    
+    Assert.assertEquals(500L, loaded.size());
+  }
+}
@@ -0,0 +1,167 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compare the heap footprint and scan time of Metadata instances with those of
+ * their CompactMetadata representation.
+ *
+ * Usage: CompactMetadataBenchmark [number of GTS] [iterations]
+ */
+public class CompactMetadataBenchmark {
+
+  public static void main(String[] args) {
+    int ngts = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    long heap = usedHeap();
+
+    List<Metadata> metadatas = new ArrayList<Metadata>(ngts);
+
+    for (int i = 0; i < ngts; i++) {
+      metadatas.add(metadata(i));
+    }
+
+    long metadataHeap = usedHeap() - heap;
+
+    heap = usedHeap();
+
+    MetadataDictionary dictionary = new MetadataDictionary();
+    List<CompactMetadata> compacts = new ArrayList<CompactMetadata>(ngts);
+
+    for (int i = 0; i < ngts; i++) {
+      compacts.add(new CompactMetadata(dictionary, metadata(i)));
+    }
+
+    long compactHeap = usedHeap() - heap;
+
+    System.out.println("GTS=" + ngts + " Metadata=" + (metadataHeap / 1048576L) + " MB"
+        + " CompactMetadata=" + (compactHeap / 1048576L) + " MB"
+        + " dictionary=" + dictionary.size());
+
+    List<Map<String,Object>> selectors = new ArrayList<Map<String,Object>>();
+
+    Map<String,Object> selector = new HashMap<String,Object>();
+    selector.put("host", "host-42");
+    selectors.add(selector);
+
+    selector = new HashMap<String,Object>();
+    selector.put("host", Pattern.compile("host-4.*").matcher(""));
+    selector.put("dc", "dc-10");
+    selectors.add(selector);
+
+    selector = new HashMap<String,Object>();
+    selector.put("rack", Pattern.compile(".*-1").matcher(""));
+    selectors.add(selector);
+
+    for (Map<String,Object> sel: selectors) {
+      long scanCount = 0L;
+      long compactCount = 0L;
+
+      long nano = System.nanoTime();
+
+      for (int i = 0; i < iterations; i++) {
+        for (Metadata metadata: metadatas) {
+          if (matches(metadata, sel)) {
+            scanCount++;
+          }
+        }
+      }
+
+      long scan = System.nanoTime() - nano;
+
+      nano = System.nanoTime();
+
+      for (int i = 0; i < iterations; i++) {
+        CompactMetadataFilter filter = new CompactMetadataFilter(dictionary, sel);
+        for (CompactMetadata metadata: compacts) {
+          if (filter.matches(metadata)) {
+            compactCount++;
+          }
+        }
+      }
+
+      long compact = System.nanoTime() - nano;
+
+      if (scanCount != compactCount) {
+        throw new RuntimeException("Metadata and CompactMetadata disagree for " + sel + ": " + compactCount + " != " + scanCount);
+      }
+
+      System.out.println(sel + " matches=" + (scanCount / iterations)
+          + " Metadata=" + (scan / iterations / 1000000.0D) + " ms"
+          + " CompactMetadata=" + (compact / iterations / 1000000.0D) + " ms");
+    }
+  }
+
+  private static Metadata metadata(int i) {
+    Metadata metadata = new Metadata();
+    metadata.setName("bench." + (i % 100));
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.setAttributes(new HashMap<String,String>());
+    // Distinct Strings for each GTS, as if they were deserialized
+    metadata.getLabels().put(new String("host"), "host-" + (i % 10000));
+    metadata.getLabels().put(new String("dc"), "dc-" + (i % 16));
+    metadata.getLabels().put(new String("id"), Integer.toString(i));
+    metadata.getAttributes().put(new String("rack"), "rack-" + (i % 64));
+    metadata.setClassId(i % 100);
+    metadata.setLabelsId(i);
+    return metadata;
+  }
+
+  /**
+   * Label selector semantics of the Directory, applied to Metadata
+   */
+  private static boolean matches(Metadata metadata, Map<String,Object> selectors) {
+    for (Map.Entry<String,Object> entry: selectors.entrySet()) {
+      String name = entry.getKey();
+      String label = metadata.getLabels().get(name);
+      String attribute = metadata.getAttributes().get(name);
+
+      if (null == label && null == attribute) {
+        return false;
+      }
+
+      if (entry.getValue() instanceof Matcher) {
+        Matcher m = (Matcher) entry.getValue();
+        if ((null != label && !m.reset(label).matches()) || (null != attribute && !m.reset(attribute).matches())) {
+          return false;
+        }
+      } else if ((null != label && !entry.getValue().equals(label)) || (null != attribute && !entry.getValue().equals(attribute))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+    }
+    Runtime rt = Runtime.getRuntime();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+}
@@ -0,0 +1,130 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactMetadataTest {
+
+  private static Metadata metadata(String name, String... kv) {
+    Metadata metadata = new Metadata();
+    metadata.setName(name);
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.setAttributes(new HashMap<String,String>());
+    
+    for (int i = 0; i < kv.length; i += 2) {
+      if (kv[i].startsWith("@")) {
+        metadata.getAttributes().put(kv[i].substring(1), kv[i + 1]);
+      } else {
+        metadata.getLabels().put(kv[i], kv[i + 1]);
+      }
+    }
+    
+    metadata.setClassId(42L);
+    metadata.setLabelsId(kv.length);
+    
+    return metadata;
+  }
+  
+  @Test
+  public void testRoundTrip() {
+    MetadataDictionary dictionary = new MetadataDictionary();
+    
+    Metadata[] metadatas = new Metadata[] {
+      metadata("foo"),
+      metadata("foo", "a", "b"),
+      metadata("bar", "z", "1", "a", "2", "m", "3", "@a", "4", "@y", "5"),
+      metadata("bar", "@only", "attr"),
+    };
+    
+    for (Metadata metadata: metadatas) {
+      CompactMetadata compact = new CompactMetadata(dictionary, metadata);
+      
+      Assert.assertEquals(metadata, compact.toMetadata(dictionary));
+      Assert.assertEquals(metadata.getLabelsSize(), compact.getLabelsSize());
+      Assert.assertEquals(metadata.getAttributesSize(), compact.getAttributesSize());
+      
+      for (Map.Entry<String,String> entry: metadata.getLabels().entrySet()) {
+        Assert.assertEquals(entry.getValue(), dictionary.get(compact.getLabel(dictionary.lookup(entry.getKey()))));
+      }
+      
+      for (Map.Entry<String,String> entry: metadata.getAttributes().entrySet()) {
+        Assert.assertEquals(entry.getValue(), dictionary.get(compact.getAttribute(dictionary.lookup(entry.getKey()))));
+      }
+    }
+    
+    // Shared Strings are stored once
+    Assert.assertEquals(dictionary.lookup("a"), dictionary.id("a"));
+    Assert.assertEquals(-1, dictionary.lookup("unknown"));
+  }
+  
+  @Test
+  public void testFilter() {
+    MetadataDictionary dictionary = new MetadataDictionary();
+    
+    Metadata[] metadatas = new Metadata[] {
+      metadata("foo", "host", "h1", "dc", "paris"),
+      metadata("foo", "host", "h2", "dc", "london"),
+      metadata("foo", "host", "h3", "@dc", "paris"),
+      metadata("foo", "host", "h4", "dc", "paris", "@dc", "london"),
+      metadata("foo", "host", "h5"),
+    };
+    
+    CompactMetadata[] compacts = new CompactMetadata[metadatas.length];
+    
+    for (int i = 0; i < metadatas.length; i++) {
+      compacts[i] = new CompactMetadata(dictionary, metadatas[i]);
+    }
+    
+    Map<String,Object> selectors = new HashMap<String,Object>();
+    selectors.put("dc", "paris");
+    assertMatches(dictionary, selectors, compacts, true, false, true, false, false);
+    
+    selectors.put("host", Pattern.compile("h[13]").matcher(""));
+    assertMatches(dictionary, selectors, compacts, true, false, true, false, false);
+    
+    selectors.clear();
+    selectors.put("dc", Pattern.compile(".*o.*").matcher(""));
+    assertMatches(dictionary, selectors, compacts, false, true, false, false, false);
+    
+    selectors.clear();
+    selectors.put("dc", "unknown");
+    assertMatches(dictionary, selectors, compacts, false, false, false, false, false);
+    
+    selectors.clear();
+    selectors.put("unknown", Pattern.compile(".*").matcher(""));
+    assertMatches(dictionary, selectors, compacts, false, false, false, false, false);
+    
+    selectors.clear();
+    assertMatches(dictionary, selectors, compacts, true, true, true, true, true);
+  }
+  
+  private static void assertMatches(MetadataDictionary dictionary, Map<String,Object> selectors, CompactMetadata[] compacts, boolean... expected) {
+    CompactMetadataFilter filter = new CompactMetadataFilter(dictionary, selectors);
+    
+    for (int i = 0; i < compacts.length; i++) {
+      Assert.assertEquals(selectors + " #" + i, expected[i], filter.matches(compacts[i]));
+    }
+  }
+}
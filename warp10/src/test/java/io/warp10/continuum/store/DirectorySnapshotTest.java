@@ -0,0 +1,143 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DirectorySnapshotTest {
+
+  private static final byte[] AES_KEY = new byte[32];
+  
+  private static List<CompactMetadata> metadatas(MetadataDictionary dictionary, int n) {
+    List<CompactMetadata> metadatas = new ArrayList<CompactMetadata>();
+    
+    for (int i = 0; i < n; i++) {
+      Metadata metadata = new Metadata();
+      metadata.setName("class-" + (i % 7));
+      metadata.setLabels(new HashMap<String,String>());
+      metadata.setAttributes(new HashMap<String,String>());
+      metadata.getLabels().put("id", Integer.toString(i));
+      metadata.getLabels().put("host", "h\u00e9llo-" + (i % 13));
+      if (0 == i % 3) {
+        metadata.getAttributes().put("attr", "value-" + i);
+      }
+      metadata.setClassId(i % 7);
+      metadata.setLabelsId(i);
+      metadatas.add(new CompactMetadata(dictionary, metadata));
+    }
+    
+    return metadatas;
+  }
+  
+  private static Set<Metadata> read(File file, long tag, byte[] aesKey) throws IOException {
+    final MetadataDictionary dictionary = new MetadataDictionary();
+    final Set<Metadata> metadatas = new HashSet<Metadata>();
+    
+    DirectorySnapshot.read(file, tag, dictionary, aesKey, new DirectorySnapshot.Sink() {
+      @Override
+      public void add(CompactMetadata metadata) {
+        metadatas.add(metadata.toMetadata(dictionary));
+      }
+    });
+    
+    return metadatas;
+  }
+  
+  @Test
+  public void testRoundTrip() throws Exception {
+    File file = File.createTempFile("directory", ".snapshot");
+    file.deleteOnExit();
+    
+    for (byte[] aesKey: new byte[][] { null, AES_KEY }) {
+      MetadataDictionary dictionary = new MetadataDictionary();
+      
+      // Strings of GTS which are not in the snapshot
+      metadatas(dictionary, 50000);
+      
+      List<CompactMetadata> metadatas = metadatas(dictionary, 10000);
+      
+      DirectorySnapshot.write(file, 42L, 123456789L, dictionary, metadatas, aesKey);
+      
+      Assert.assertEquals(123456789L, DirectorySnapshot.marker(file, 42L));
+      
+      Set<Metadata> expected = new HashSet<Metadata>();
+      
+      for (CompactMetadata metadata: metadatas) {
+        expected.add(metadata.toMetadata(dictionary));
+      }
+      
+      Assert.assertEquals(expected, read(file, 42L, aesKey));
+    }
+    
+    // Empty snapshot
+    DirectorySnapshot.write(file, 42L, 0L, new MetadataDictionary(), new ArrayList<CompactMetadata>(), null);
+    Assert.assertEquals(0, read(file, 42L, null).size());
+  }
+  
+  @Test
+  public void testInvalid() throws Exception {
+    File file = File.createTempFile("directory", ".snapshot");
+    file.deleteOnExit();
+    
+    MetadataDictionary dictionary = new MetadataDictionary();
+    DirectorySnapshot.write(file, 42L, 0L, dictionary, metadatas(dictionary, 1000), null);
+    
+    // Wrong tag
+    try {
+      read(file, 43L, null);
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+    
+    // Corrupted content
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(raf.length() / 2);
+    int b = raf.read();
+    raf.seek(raf.length() / 2);
+    raf.write(b ^ 0x01);
+    raf.close();
+    
+    try {
+      read(file, 42L, null);
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+    
+    // Truncated file
+    raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() - 100);
+    raf.close();
+    
+    try {
+      read(file, 42L, null);
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+  }
+}
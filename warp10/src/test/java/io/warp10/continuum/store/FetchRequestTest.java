@@ -0,0 +1,146 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FetchRequestTest {
+  
+  @Test
+  public void testFromTimespan() {
+    FetchRequest request = FetchRequest.fromTimespan(1000L, 100L);
+    
+    Assert.assertEquals(1000L, request.getEnd());
+    Assert.assertEquals(901L, request.getStart());
+    Assert.assertFalse(request.hasLimit());
+    Assert.assertFalse(request.contains(900L));
+    Assert.assertTrue(request.contains(901L));
+    Assert.assertTrue(request.contains(1000L));
+    Assert.assertFalse(request.contains(1001L));
+    
+    request = FetchRequest.fromTimespan(1000L, -10L);
+    
+    Assert.assertFalse(request.hasStart());
+    Assert.assertEquals(10L, request.getCount());
+    Assert.assertEquals(10L, request.getLimit());
+    
+    request.setSkip(5L);
+    Assert.assertEquals(15L, request.getLimit());
+    
+    request.setCount(Long.MAX_VALUE - 1L);
+    Assert.assertEquals(Long.MAX_VALUE, request.getLimit());
+  }
+  
+  @Test
+  public void testSelection() {
+    FetchRequest.Selection selection = new FetchRequest().setSkip(2L).setCount(3L).selection();
+    
+    boolean[] expected = { false, false, true, true, true, false, false };
+    
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i], selection.retain());
+    }
+    
+    Assert.assertTrue(selection.isDone());
+  }
+  
+  @Test
+  public void testSelect() throws Exception {
+    Random rand = new Random(42L);
+    
+    for (int iter = 0; iter < 1000; iter++) {
+      //
+      // Unordered timestamps with duplicates
+      //
+      
+      int n = rand.nextInt(50);
+      
+      List<Long> ticks = new ArrayList<Long>();
+      
+      GTSEncoder encoder = new GTSEncoder(0L);
+      
+      for (int i = 0; i < n; i++) {
+        long ts = rand.nextInt(20);
+        ticks.add(ts);
+        encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, ts);
+      }
+      
+      long skip = rand.nextInt(10);
+      long count = rand.nextBoolean() ? Long.MAX_VALUE : rand.nextInt(30);
+      
+      FetchRequest request = new FetchRequest().setSkip(skip).setCount(count);
+      
+      //
+      // The selected timestamps are those of ranks [skip,skip+count[ in decreasing order
+      //
+      
+      Collections.sort(ticks, Collections.reverseOrder());
+      
+      List<Long> expected = new ArrayList<Long>();
+      
+      for (int i = 0; i < ticks.size(); i++) {
+        if (i >= skip && i - skip < count) {
+          expected.add(ticks.get(i));
+        }
+      }
+      
+      GTSDecoder decoder = request.select(encoder).getDecoder(true);
+      
+      List<Long> actual = new ArrayList<Long>();
+      
+      while (decoder.next()) {
+        actual.add(decoder.getTimestamp());
+      }
+      
+      Collections.sort(actual, Collections.reverseOrder());
+      
+      Assert.assertEquals(expected, actual);
+    }
+  }
+  
+  @Test
+  public void testSample() throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    
+    for (long ts = 0; ts < 100000L; ts++) {
+      encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, ts);
+    }
+    
+    long count = request(0.25D).select(encoder).getCount();
+    
+    Assert.assertTrue(count > 20000L && count < 30000L);
+    
+    // Sampling applies after the count
+    count = request(0.25D).setCount(1000L).select(encoder).getCount();
+    
+    Assert.assertTrue(count > 150L && count < 350L);
+  }
+  
+  private static FetchRequest request(double sample) {
+    return new FetchRequest().setSample(sample);
+  }
+}
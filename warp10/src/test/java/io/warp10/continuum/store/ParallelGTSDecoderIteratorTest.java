@@ -0,0 +1,205 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelGTSDecoderIteratorTest {
+
+  private static final int SERIES = 200;
+  
+  /**
+   * Stand-in for the HBase scans, produces 'classId % 5' decoders for each series,
+   * the values of the decoders are the sequence numbers of the datapoints.
+   */
+  private static class Reader implements ParallelGTSDecoderIterator.SeriesReader {
+    private final AtomicLong produced = new AtomicLong(0L);
+    
+    @Override
+    public void read(Metadata metadata, ParallelGTSDecoderIterator.Sink sink) throws IOException {
+      long seq = 0L;
+      
+      for (int i = 0; i < metadata.getClassId() % 5; i++) {
+        GTSEncoder encoder = new GTSEncoder(0L);
+        encoder.setMetadata(metadata);
+        
+        for (int j = 0; j < 100; j++) {
+          encoder.addValue(seq, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, seq);
+          seq++;
+        }
+        
+        GTSDecoder decoder = encoder.getDecoder();
+        this.produced.addAndGet(decoder.getRemainingSize());
+        
+        if (0 == seq % 3) {
+          Thread.yield();
+        }
+        
+        sink.add(decoder);
+      }
+    }
+  }
+  
+  private static List<Metadata> metadatas() {
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+    
+    for (int i = 0; i < SERIES; i++) {
+      Metadata metadata = new Metadata();
+      metadata.setName("series");
+      metadata.setLabels(new HashMap<String,String>());
+      metadata.setClassId(i);
+      metadata.setLabelsId(i);
+      metadatas.add(metadata);
+    }
+    
+    return metadatas;
+  }
+  
+  @Test
+  public void testOrder() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    
+    try {
+      for (long maxInflight: new long[] { 1L, 4096L, Long.MAX_VALUE }) {
+        Reader reader = new Reader();
+        
+        ParallelGTSDecoderIterator iter = new ParallelGTSDecoderIterator(metadatas(), reader, executor, 8, maxInflight);
+        
+        long consumed = 0L;
+        long lastClassId = -1L;
+        long seq = 0L;
+        long decoders = 0L;
+        
+        while (iter.hasNext()) {
+          GTSDecoder decoder = iter.next();
+          consumed += decoder.getRemainingSize();
+          decoders++;
+          
+          // Series are returned in the order of the metadatas
+          long classId = decoder.getMetadata().getClassId();
+          Assert.assertTrue(classId >= lastClassId);
+          
+          if (classId != lastClassId) {
+            lastClassId = classId;
+            seq = 0L;
+          }
+          
+          // Decoders of a series are returned in the order they were produced
+          while (decoder.next()) {
+            Assert.assertEquals(seq, decoder.getTimestamp());
+            seq++;
+          }
+          
+          // The readers never get much further ahead than the limit, each of them may have queued one extra decoder
+          Assert.assertTrue(maxInflight == Long.MAX_VALUE || reader.produced.get() - consumed <= maxInflight + 8 * 2048);
+        }
+        
+        iter.close();
+        
+        long expected = 0L;
+        for (int i = 0; i < SERIES; i++) {
+          expected += i % 5;
+        }
+        
+        Assert.assertEquals(expected, decoders);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testClose() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    
+    try {
+      ParallelGTSDecoderIterator iter = new ParallelGTSDecoderIterator(metadatas(), new Reader(), executor, 4, 1L);
+      
+      Assert.assertTrue(iter.hasNext());
+      iter.next();
+      
+      // Closing the iterator must release the readers blocked on the inflight limit
+      iter.close();
+      
+      Assert.assertFalse(iter.hasNext());
+      
+      executor.shutdown();
+      Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testError() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    
+    try {
+      final IOException error = new IOException("Scan failed.");
+      
+      ParallelGTSDecoderIterator iter = new ParallelGTSDecoderIterator(metadatas(), new Reader() {
+        @Override
+        public void read(Metadata metadata, ParallelGTSDecoderIterator.Sink sink) throws IOException {
+          super.read(metadata, sink);
+          
+          if (14 == metadata.getClassId()) {
+            throw error;
+          }
+        }
+      }, executor, 4, Long.MAX_VALUE);
+      
+      long decoders = 0L;
+      
+      try {
+        while (iter.hasNext()) {
+          iter.next();
+          decoders++;
+        }
+        Assert.fail();
+      } catch (RuntimeException re) {
+        Assert.assertSame(error, re.getCause());
+      } finally {
+        iter.close();
+      }
+      
+      // The decoders produced before the error, up to those of the failing series, were returned
+      long expected = 0L;
+      for (int i = 0; i <= 14; i++) {
+        expected += i % 5;
+      }
+      
+      Assert.assertEquals(expected, decoders);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RollupTest {
+  
+  @Test
+  public void testBucketEnd() {
+    Assert.assertEquals(100L, Rollup.bucketEnd(100L, 100L));
+    Assert.assertEquals(100L, Rollup.bucketEnd(1L, 100L));
+    Assert.assertEquals(200L, Rollup.bucketEnd(101L, 100L));
+    Assert.assertEquals(0L, Rollup.bucketEnd(-99L, 100L));
+    Assert.assertEquals(-100L, Rollup.bucketEnd(-100L, 100L));
+    Assert.assertEquals(-100L, Rollup.bucketEnd(-199L, 100L));
+    Assert.assertEquals(Long.MAX_VALUE, Rollup.bucketEnd(Long.MAX_VALUE - 1L, 100L));
+  }
+  
+  @Test
+  public void testMerge() throws Exception {
+    Rollup a = new Rollup();
+    a.add(10L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 5L);
+    a.add(20L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, -3L);
+    a.add(15L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "ignored");
+    
+    Assert.assertEquals(2L, a.getCount());
+    Assert.assertEquals(-3L, a.getValue(Rollup.Aggregate.MIN));
+    Assert.assertEquals(5L, a.getValue(Rollup.Aggregate.MAX));
+    Assert.assertEquals(2L, a.getValue(Rollup.Aggregate.SUM));
+    Assert.assertEquals(5L, a.getValue(Rollup.Aggregate.FIRST));
+    Assert.assertEquals(-3L, a.getValue(Rollup.Aggregate.LAST));
+    Assert.assertEquals(10L, a.getTick(Rollup.Aggregate.FIRST, 100L));
+    Assert.assertEquals(100L, a.getTick(Rollup.Aggregate.SUM, 100L));
+    
+    Rollup b = new Rollup();
+    b.add(5L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1.5D);
+    
+    a.merge(b);
+    
+    Assert.assertEquals(3L, a.getValue(Rollup.Aggregate.COUNT));
+    Assert.assertEquals(-3.0D, a.getValue(Rollup.Aggregate.MIN));
+    Assert.assertEquals(5.0D, a.getValue(Rollup.Aggregate.MAX));
+    Assert.assertEquals(3.5D, a.getValue(Rollup.Aggregate.SUM));
+    Assert.assertEquals(1.5D, a.getValue(Rollup.Aggregate.FIRST));
+    Assert.assertEquals(-3L, a.getValue(Rollup.Aggregate.LAST));
+    
+    Rollup c = Rollup.fromBytes(100L, null, a.toBytes(100L, null));
+    
+    for (Rollup.Aggregate aggregate: Rollup.Aggregate.values()) {
+      Assert.assertEquals(a.getValue(aggregate), c.getValue(aggregate));
+      Assert.assertEquals(a.getTick(aggregate, 100L), c.getTick(aggregate, 100L));
+    }
+  }
+  
+  @Test
+  public void testAggregate() throws Exception {
+    Random rand = new Random(42L);
+    
+    GTSEncoder encoder = new GTSEncoder(0L);
+    
+    for (int i = 0; i < 1000; i++) {
+      encoder.addValue(rand.nextInt(10000) - 5000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) rand.nextInt(100));
+    }
+    
+    //
+    // Merging the rollups at a resolution which divides the span yields the rollups at that span
+    //
+    
+    Map<Long,Rollup> fine = new TreeMap<Long,Rollup>();
+    Rollup.aggregate(encoder.getDecoder(true), 100L, fine);
+    
+    Map<Long,Rollup> coarse = new TreeMap<Long,Rollup>();
+    Rollup.aggregate(encoder.getDecoder(true), 1000L, coarse);
+    
+    Map<Long,Rollup> merged = new TreeMap<Long,Rollup>();
+    
+    for (Map.Entry<Long,Rollup> entry: fine.entrySet()) {
+      long end = Rollup.bucketEnd(entry.getKey(), 1000L);
+      
+      if (!merged.containsKey(end)) {
+        merged.put(end, new Rollup());
+      }
+      
+      merged.get(end).merge(entry.getValue());
+    }
+    
+    Assert.assertEquals(coarse.keySet(), merged.keySet());
+    
+    for (Rollup.Aggregate aggregate: Rollup.Aggregate.values()) {
+      GTSDecoder expected = Rollup.encode(coarse, aggregate).getDecoder(true);
+      GTSDecoder actual = Rollup.encode(merged, aggregate).getDecoder(true);
+      
+      while (expected.next()) {
+        Assert.assertTrue(actual.next());
+        Assert.assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        Assert.assertEquals(expected.getValue(), actual.getValue());
+      }
+      
+      Assert.assertFalse(actual.next());
+    }
+  }
+}
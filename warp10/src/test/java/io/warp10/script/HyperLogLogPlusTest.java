@@ -0,0 +1,116 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.thrift.data.HyperLogLogPlusParameters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HyperLogLogPlusTest {
+  
+  private static byte[] serialize(HyperLogLogPlusParameters params) throws Exception {
+    TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+    return serializer.serialize(params);
+  }
+  
+  private static HyperLogLogPlusParameters normal(int p, byte[] registers, boolean gzipped) {
+    HyperLogLogPlusParameters params = new HyperLogLogPlusParameters();
+    params.setInitTime(0L);
+    params.setP((byte) p);
+    params.setPprime((byte) p);
+    params.setSparse(false);
+    params.setRegisters(registers);
+    params.setGzipped(gzipped);
+    return params;
+  }
+  
+  private static byte[] gzip(byte[] data) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GZIPOutputStream gzos = new GZIPOutputStream(baos);
+    gzos.write(data);
+    gzos.close();
+    return baos.toByteArray();
+  }
+  
+  private static void assertInvalid(HyperLogLogPlusParameters params) throws Exception {
+    try {
+      HyperLogLogPlus.fromBytes(serialize(params));
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+  }
+  
+  @Test
+  public void testRoundTrip() throws Exception {
+    for (int n: new int[] { 10, 100000 }) {
+      HyperLogLogPlus hllp = new HyperLogLogPlus(10, 20);
+      
+      for (long i = 0; i < n; i++) {
+        hllp.aggregate(i * 0x9E3779B97F4A7C15L);
+      }
+      
+      HyperLogLogPlus copy = HyperLogLogPlus.fromBytes(hllp.toBytes());
+      
+      Assert.assertEquals(hllp.getP(), copy.getP());
+      Assert.assertEquals(hllp.getPPrime(), copy.getPPrime());
+      Assert.assertEquals(hllp.cardinality(), copy.cardinality());
+    }
+  }
+  
+  @Test
+  public void testInvalidParameters() throws Exception {
+    // p' above the limit of 25
+    HyperLogLogPlusParameters params = normal(10, new byte[768], false);
+    params.setPprime((byte) 40);
+    assertInvalid(params);
+    
+    // p above p'
+    params = normal(10, new byte[768], false);
+    params.setP((byte) 12);
+    assertInvalid(params);
+    
+    // p below 4
+    assertInvalid(normal(2, new byte[3], false));
+    
+    // Sparse list length above 2^p'
+    params = normal(10, null, false);
+    params.setSparse(true);
+    params.setSparseListLen(1 << 20);
+    params.setSparseList(new byte[0]);
+    assertInvalid(params);
+  }
+  
+  @Test
+  public void testInvalidRegisters() throws Exception {
+    // 2^10 registers of 6 bits are 768 bytes
+    Assert.assertNotNull(HyperLogLogPlus.fromBytes(serialize(normal(10, new byte[768], false))));
+    Assert.assertNotNull(HyperLogLogPlus.fromBytes(serialize(normal(10, gzip(new byte[768]), true))));
+    
+    assertInvalid(normal(10, new byte[767], false));
+    assertInvalid(normal(10, gzip(new byte[767]), true));
+    
+    // Registers which would inflate far beyond their expected size
+    assertInvalid(normal(10, gzip(new byte[64 * 1024 * 1024]), true));
+  }
+}
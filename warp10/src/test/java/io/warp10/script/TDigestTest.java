@@ -0,0 +1,145 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TDigestTest {
+  
+  private static final double[] QUANTILES = { 0.0D, 0.001D, 0.01D, 0.1D, 0.25D, 0.5D, 0.75D, 0.9D, 0.99D, 0.999D, 1.0D };
+  
+  /**
+   * Check that the rank of the estimated value is within 'error' of the requested quantile
+   */
+  private static void check(TDigest digest, double[] sorted, double error) {
+    for (double q: QUANTILES) {
+      double estimate = digest.quantile(q);
+      
+      int lo = Arrays.binarySearch(sorted, estimate);
+      
+      if (lo < 0) {
+        lo = -lo - 1;
+      }
+      
+      double rank = (double) lo / sorted.length;
+      
+      Assert.assertTrue("q=" + q + " rank=" + rank, Math.abs(rank - q) <= error);
+    }
+  }
+  
+  @Test
+  public void testQuantile() throws Exception {
+    Random random = new Random(42L);
+    
+    double[] values = new double[100000];
+    
+    TDigest digest = new TDigest(100.0D);
+    
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextGaussian() * 1000.0D;
+      digest.add(values[i]);
+    }
+    
+    Arrays.sort(values);
+    
+    Assert.assertEquals(values.length, digest.size());
+    Assert.assertEquals(values[0], digest.quantile(0.0D), 0.0D);
+    Assert.assertEquals(values[values.length - 1], digest.quantile(1.0D), 0.0D);
+    
+    check(digest, values, 0.005D);
+    
+    //
+    // The footprint is far smaller than that of the values
+    //
+    
+    Assert.assertTrue(digest.toBytes().length < 16 * 1000);
+  }
+  
+  @Test
+  public void testSmall() throws Exception {
+    TDigest digest = new TDigest(100.0D);
+    
+    Assert.assertTrue(Double.isNaN(digest.quantile(0.5D)));
+    
+    digest.add(3.0D);
+    Assert.assertEquals(3.0D, digest.quantile(0.5D), 0.0D);
+    
+    digest.add(1.0D);
+    digest.add(2.0D);
+    
+    Assert.assertEquals(1.0D, digest.quantile(0.0D), 0.0D);
+    Assert.assertEquals(2.0D, digest.quantile(0.5D), 0.0D);
+    Assert.assertEquals(3.0D, digest.quantile(1.0D), 0.0D);
+  }
+  
+  @Test
+  public void testFuse() throws Exception {
+    Random random = new Random(42L);
+    
+    double[] values = new double[100000];
+    
+    TDigest merged = new TDigest(100.0D);
+    
+    //
+    // Each digest gets a distinct range of values so the merge has to interleave them
+    //
+    
+    for (int d = 0; d < 10; d++) {
+      TDigest digest = new TDigest(100.0D);
+      
+      for (int i = 0; i < values.length / 10; i++) {
+        int idx = d * (values.length / 10) + i;
+        values[idx] = d * 100.0D + random.nextDouble() * 200.0D;
+        digest.add(values[idx]);
+      }
+      
+      merged.fuse(TDigest.fromBytes(digest.toBytes()));
+    }
+    
+    Arrays.sort(values);
+    
+    Assert.assertEquals(values.length, merged.size());
+    Assert.assertEquals(values[0], merged.quantile(0.0D), 0.0D);
+    Assert.assertEquals(values[values.length - 1], merged.quantile(1.0D), 0.0D);
+    
+    check(merged, values, 0.01D);
+  }
+  
+  @Test
+  public void testSerialization() throws Exception {
+    Random random = new Random(42L);
+    
+    TDigest digest = new TDigest(50.0D);
+    
+    for (int i = 0; i < 10000; i++) {
+      digest.add(random.nextDouble());
+    }
+    
+    TDigest copy = TDigest.fromBytes(digest.toBytes());
+    
+    Assert.assertEquals(digest.getCompression(), copy.getCompression(), 0.0D);
+    Assert.assertEquals(digest.size(), copy.size());
+    
+    for (double q: QUANTILES) {
+      Assert.assertEquals(digest.quantile(q), copy.quantile(q), 0.0D);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimingWheelTest {
+  
+  @Test
+  public void testAdvance() {
+    TimingWheel<String> wheel = new TimingWheel<String>(10L, 8, 1000L);
+    
+    wheel.schedule("a", 1005L);
+    wheel.schedule("b", 1025L);
+    // More than one turn of the wheel ahead
+    wheel.schedule("c", 1105L);
+    // In the past
+    wheel.schedule("d", 500L);
+    
+    Assert.assertEquals(4, wheel.size());
+    
+    Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "d")), new HashSet<String>(wheel.advance(1009L)));
+    Assert.assertTrue(wheel.advance(1019L).isEmpty());
+    Assert.assertEquals(Arrays.asList("b"), wheel.advance(1030L));
+    
+    // 'c' lives in the same slot as 'a' but one turn later
+    Assert.assertTrue(wheel.advance(1095L).isEmpty());
+    Assert.assertEquals(Arrays.asList("c"), wheel.advance(1100L));
+    
+    Assert.assertEquals(0, wheel.size());
+  }
+  
+  @Test
+  public void testJump() {
+    TimingWheel<Integer> wheel = new TimingWheel<Integer>(10L, 4, 0L);
+    
+    for (int i = 0; i < 100; i++) {
+      wheel.schedule(i, i * 10L);
+    }
+    
+    // Advance by much more than a turn at once
+    List<Integer> due = wheel.advance(495L);
+    
+    Assert.assertEquals(50, due.size());
+    Assert.assertEquals(50, wheel.size());
+    
+    due = wheel.advance(10000L);
+    
+    Assert.assertEquals(50, due.size());
+    Assert.assertEquals(0, wheel.size());
+  }
+}
@@ -0,0 +1,246 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.WarpDist;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+import io.warp10.script.WarpScriptStack.Macro;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that executing a pre-parsed script gives the same results as executing it line by line
+ */
+public class WarpScriptCompiledScriptTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    if (null == WarpConfig.getProperties()) {
+      WarpConfig.setProperties((String) null);
+    }
+    
+    // Secure scripts need an AES key
+    if (null == WarpDist.getKeyStore()) {
+      KeyStore keystore = new UnsecureKeyStore();
+      keystore.setKey(KeyStore.AES_SECURESCRIPTS, new byte[32]);
+      WarpDist.setKeyStore(keystore);
+    }
+  }
+  
+  /**
+   * Execute a script and return the content of the stack, top first, macros being replaced by their string form
+   */
+  private static List<Object> run(String script, boolean compiled) throws Exception {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    
+    if (compiled) {
+      WarpScriptCompiledScript cscript = WarpScriptCompiledScript.compile(script);
+      
+      for (int i = 0; i < cscript.size(); i++) {
+        stack.exec(cscript, i);
+      }
+    } else {
+      BufferedReader br = new BufferedReader(new StringReader(script));
+      
+      while (true) {
+        String line = br.readLine();
+        
+        if (null == line) {
+          break;
+        }
+        
+        stack.exec(line);
+      }
+    }
+    
+    List<Object> levels = new ArrayList<Object>();
+    
+    while (stack.depth() > 0) {
+      Object o = stack.pop();
+      levels.add(o instanceof Macro ? o.toString() : o);
+    }
+    
+    return levels;
+  }
+  
+  /**
+   * Run a script both ways, check the results are identical and return them
+   */
+  private static List<Object> check(String script) throws Exception {
+    List<Object> expected = run(script, false);
+    List<Object> actual = run(script, true);
+    
+    Assert.assertEquals(expected, actual);
+    
+    return actual;
+  }
+  
+  /**
+   * Run a script both ways and check both fail with the same exception
+   */
+  private static void checkError(String script) throws Exception {
+    String expected = null;
+    String actual = null;
+    
+    try {
+      run(script, false);
+      Assert.fail();
+    } catch (Exception e) {
+      expected = e.getClass().getName() + ": " + e.getMessage();
+    }
+    
+    try {
+      run(script, true);
+      Assert.fail();
+    } catch (Exception e) {
+      actual = e.getClass().getName() + ": " + e.getMessage();
+    }
+    
+    Assert.assertEquals(expected, actual);
+  }
+  
+  @Test
+  public void testStrings() throws Exception {
+    List<Object> levels = check("'hello world' \"a%20b\" '%2B%27' ''\n  '  leading'  ");
+    
+    Assert.assertEquals(Arrays.asList((Object) "  leading", "", "+'", "a b", "hello world"), levels);
+    
+    check("<% 'in macro' '%25' %>");
+  }
+  
+  @Test
+  public void testNumbersAndBooleans() throws Exception {
+    List<Object> levels = check("0x1F 0b101 -3 42 1.5 -2.25 T F true false TRUE False");
+    
+    Assert.assertEquals(Arrays.asList((Object) false, true, false, true, false, true, -2.25D, 1.5D, 42L, -3L, 5L, 31L), levels);
+    
+    check("<% 0x10 0b11 7 0.5 T F %>");
+    checkError("0xZZ");
+  }
+  
+  @Test
+  public void testMacros() throws Exception {
+    List<Object> levels = check("<% 1 <% 2 + %> EVAL %> EVAL\n<% 'a' <% 'b' %> %>\n<%\n1\n%>");
+    
+    Assert.assertEquals(3L, levels.get(2));
+    
+    checkError("%>");
+  }
+  
+  @Test
+  public void testVariables() throws Exception {
+    List<Object> levels = check("10 'x' STORE\n<% $x %> 'deferred' STORE\n<% !$x %> 'immediate' STORE\n20 'x' STORE\n@deferred @immediate $x !$x");
+    
+    Assert.assertEquals(Arrays.asList((Object) 20L, 20L, 10L, 20L), levels);
+    
+    levels = check("<% 1 + %> 'inc' STORE\n41 @inc <% @inc %> EVAL");
+    
+    Assert.assertEquals(Arrays.asList((Object) 43L), levels);
+    
+    checkError("$unknown");
+    checkError("!$unknown");
+  }
+  
+  @Test
+  public void testDefOverridesBuiltin() throws Exception {
+    List<Object> levels = check("1 2 SWAP\n<% 42 %> 'SWAP' DEF\n1 2 SWAP\n<% SWAP %> EVAL");
+    
+    Assert.assertEquals(Arrays.asList((Object) 42L, 42L, 2L, 1L, 1L, 2L), levels);
+    
+    checkError("1 UNKNOWNFUNCTION");
+  }
+  
+  @Test
+  public void testComments() throws Exception {
+    List<Object> levels = check("1 // 2\n# 3\n4 /* 5\n6\n*/ 7\n/*\n8\n*/\n9 #10");
+    
+    Assert.assertEquals(Arrays.asList((Object) 9L, 7L, 4L, 1L), levels);
+    
+    checkError("*/");
+  }
+  
+  @Test
+  public void testMultiline() throws Exception {
+    List<Object> levels = check("1\n<'\n  first line\n2 3 +\n// not a comment\n'>\n<% \n<'\nin macro\n'>\n%>");
+    
+    Assert.assertEquals(3, levels.size());
+    Assert.assertEquals("  first line\n2 3 +\n// not a comment", levels.get(1));
+    
+    checkError("'>");
+  }
+  
+  @Test
+  public void testSecureScript() throws Exception {
+    List<Object> levels = check("'key' SECUREKEY\n<S\n1 2 +\n<'\nmulti\n'>\n'a%20b'\nS>\nUNSECURE");
+    
+    Assert.assertEquals(1, levels.size());
+    
+    checkError("S>");
+  }
+  
+  @Test
+  public void testReuse() throws Exception {
+    //
+    // A pre-parsed script keeps no state across executions
+    //
+    
+    WarpScriptCompiledScript cscript = WarpScriptCompiledScript.compile("<% 42 %> 'SWAP' DEF\n1 2 SWAP");
+    
+    for (int n = 0; n < 2; n++) {
+      MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+      
+      for (int i = 0; i < cscript.size(); i++) {
+        stack.exec(cscript, i);
+      }
+      
+      Assert.assertEquals(3, stack.depth());
+      Assert.assertEquals(42L, stack.pop());
+    }
+    
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.exec(WarpScriptCompiledScript.compile("1 2 SWAP"), 0);
+    Assert.assertEquals(1L, stack.pop());
+  }
+  
+  @Test
+  public void testRetainedSize() throws Exception {
+    WarpScriptCompiledScript small = WarpScriptCompiledScript.compile("1 2 +");
+    
+    StringBuilder sb = new StringBuilder();
+    
+    for (int i = 0; i < 1000; i++) {
+      sb.append("1 2 +\n");
+    }
+    
+    WarpScriptCompiledScript large = WarpScriptCompiledScript.compile(sb.toString());
+    
+    Assert.assertTrue(small.getRetainedSize() >= 2L * "1 2 +".length());
+    Assert.assertTrue(large.getRetainedSize() >= 2L * sb.length());
+    Assert.assertTrue(large.getRetainedSize() > 500L * small.getRetainedSize());
+  }
+}
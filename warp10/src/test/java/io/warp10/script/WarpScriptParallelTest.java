@@ -0,0 +1,222 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.script.WarpScriptStack.Macro;
+import io.warp10.script.aggregator.Sum;
+import io.warp10.script.functions.DummyMapper;
+import io.warp10.script.functions.MACROMAPPER.MacroMapperWrapper;
+import io.warp10.script.functions.STRICTREDUCER.StringentReducer;
+import io.warp10.script.mapper.MapperAbs;
+import io.warp10.script.mapper.STRICTMAPPER.StringentMapper;
+import io.warp10.script.op.OpAdd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WarpScriptParallelTest {
+  
+  private static final int TASKS = 100;
+  
+  /**
+   * Task returning its index and keeping track of the threads and the concurrency it ran with
+   */
+  private static class Task implements Callable<Integer> {
+    private final int index;
+    private final AtomicInteger running;
+    private final AtomicInteger maxRunning;
+    private final Set<Thread> threads;
+    
+    private Task(int index, AtomicInteger running, AtomicInteger maxRunning, Set<Thread> threads) {
+      this.index = index;
+      this.running = running;
+      this.maxRunning = maxRunning;
+      this.threads = threads;
+    }
+    
+    @Override
+    public Integer call() throws Exception {
+      int current = this.running.incrementAndGet();
+      
+      try {
+        while (true) {
+          int max = this.maxRunning.get();
+          if (current <= max || this.maxRunning.compareAndSet(max, current)) {
+            break;
+          }
+        }
+        
+        this.threads.add(Thread.currentThread());
+        
+        Thread.sleep(1L);
+        
+        return this.index;
+      } finally {
+        this.running.decrementAndGet();
+      }
+    }
+  }
+  
+  private static List<Task> tasks(AtomicInteger maxRunning, Set<Thread> threads) {
+    AtomicInteger running = new AtomicInteger(0);
+    
+    List<Task> tasks = new ArrayList<Task>();
+    
+    for (int i = 0; i < TASKS; i++) {
+      tasks.add(new Task(i, running, maxRunning, threads));
+    }
+    
+    return tasks;
+  }
+  
+  private static void checkOrder(List<Integer> results) {
+    Assert.assertEquals(TASKS, results.size());
+    
+    for (int i = 0; i < TASKS; i++) {
+      Assert.assertEquals(i, results.get(i).intValue());
+    }
+  }
+  
+  @Test
+  public void testThreadSafe() {
+    Assert.assertTrue(WarpScriptParallel.isThreadSafe(new Sum("sum", false)));
+    Assert.assertTrue(WarpScriptParallel.isThreadSafe(new MapperAbs("abs")));
+    Assert.assertTrue(WarpScriptParallel.isThreadSafe(new OpAdd("+", false)));
+    Assert.assertTrue(WarpScriptParallel.isThreadSafe(new StringentMapper("strict", 1, 2, new MapperAbs("abs"))));
+    Assert.assertTrue(WarpScriptParallel.isThreadSafe(new StringentReducer("strict", new Sum("sum", false))));
+    
+    //
+    // Macros share the stack of the script, functions outside of the allowed packages are not trusted
+    //
+    
+    MacroMapperWrapper macro = new MacroMapperWrapper("macro", null, new Macro());
+    
+    Assert.assertFalse(WarpScriptParallel.isThreadSafe(macro));
+    Assert.assertFalse(WarpScriptParallel.isThreadSafe(new StringentReducer("strict", macro)));
+    Assert.assertFalse(WarpScriptParallel.isThreadSafe(new DummyMapper("dummy")));
+    Assert.assertFalse(WarpScriptParallel.isThreadSafe(new Object()));
+    Assert.assertFalse(WarpScriptParallel.isThreadSafe(null));
+  }
+  
+  @Test
+  public void testSequential() throws Exception {
+    AtomicInteger maxRunning = new AtomicInteger(0);
+    Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    
+    ForkJoinPool pool = new ForkJoinPool(4);
+    
+    try {
+      checkOrder(WarpScriptParallel.invoke(pool, 1, tasks(maxRunning, threads)));
+      
+      Assert.assertEquals(1, maxRunning.get());
+      Assert.assertEquals(Collections.singleton(Thread.currentThread()), threads);
+      
+      //
+      // No pool, tasks run in the calling thread
+      //
+      
+      threads.clear();
+      
+      checkOrder(WarpScriptParallel.invoke(null, 4, tasks(maxRunning, threads)));
+      
+      Assert.assertEquals(1, maxRunning.get());
+      Assert.assertEquals(Collections.singleton(Thread.currentThread()), threads);
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testParallel() throws Exception {
+    AtomicInteger maxRunning = new AtomicInteger(0);
+    Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    
+    ForkJoinPool pool = new ForkJoinPool(8);
+    
+    try {
+      checkOrder(WarpScriptParallel.invoke(pool, 3, tasks(maxRunning, threads)));
+      
+      Assert.assertTrue(maxRunning.get() <= 3);
+      Assert.assertFalse(threads.contains(Thread.currentThread()));
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testErrors() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    
+    try {
+      for (int parallelism: new int[] { 1, 4 }) {
+        
+        //
+        // RuntimeExceptions are wrapped, WarpScriptExceptions are rethrown as is and the error
+        // reported is that of the first failed task in the order of the tasks
+        //
+        
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        
+        final RuntimeException re = new IllegalStateException("runtime");
+        final WarpScriptException wse = new WarpScriptException("warpscript");
+        
+        for (int i = 0; i < TASKS; i++) {
+          final int index = i;
+          tasks.add(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+              if (10 == index) {
+                throw re;
+              } else if (index > 10) {
+                throw wse;
+              }
+              return index;
+            }
+          });
+        }
+        
+        try {
+          WarpScriptParallel.invoke(pool, parallelism, tasks);
+          Assert.fail();
+        } catch (WarpScriptException e) {
+          Assert.assertNotSame(wse, e);
+          Assert.assertSame(re, e.getCause());
+        }
+        
+        tasks.remove(10);
+        
+        try {
+          WarpScriptParallel.invoke(pool, parallelism, tasks);
+          Assert.fail();
+        } catch (WarpScriptException e) {
+          Assert.assertSame(wse, e);
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
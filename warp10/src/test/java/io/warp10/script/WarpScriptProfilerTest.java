@@ -0,0 +1,146 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WarpScriptProfilerTest {
+  
+  private static com.sun.management.ThreadMXBean bean() {
+    Object bean = ManagementFactory.getThreadMXBean();
+    
+    if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+      return (com.sun.management.ThreadMXBean) bean;
+    }
+    
+    return null;
+  }
+  
+  private static void spin(long nanos) {
+    long end = System.nanoTime() + nanos;
+    while (System.nanoTime() < end) {
+    }
+  }
+  
+  @Test
+  public void testProfile() {
+    WarpScriptProfiler profiler = new WarpScriptProfiler();
+    
+    try {
+      //
+      // outer calls inner twice, self time of outer excludes the time spent in inner
+      //
+      
+      profiler.enter();
+      spin(1000000L);
+      
+      for (int i = 0; i < 2; i++) {
+        profiler.enter();
+        spin(5000000L);
+        profiler.exit("inner");
+      }
+      
+      profiler.exit("outer");
+      
+      List<Map<String,Object>> profile = profiler.getProfile();
+      
+      Assert.assertEquals(2, profile.size());
+      
+      // Sorted by decreasing self time
+      Map<String,Object> inner = profile.get(0);
+      Map<String,Object> outer = profile.get(1);
+      
+      Assert.assertEquals("inner", inner.get(WarpScriptProfiler.KEY_NAME));
+      Assert.assertEquals("outer", outer.get(WarpScriptProfiler.KEY_NAME));
+      
+      Assert.assertEquals(2L, inner.get(WarpScriptProfiler.KEY_COUNT));
+      Assert.assertEquals(1L, outer.get(WarpScriptProfiler.KEY_COUNT));
+      
+      long innerTime = (Long) inner.get(WarpScriptProfiler.KEY_TIME);
+      long outerTime = (Long) outer.get(WarpScriptProfiler.KEY_TIME);
+      long outerSelf = (Long) outer.get(WarpScriptProfiler.KEY_SELF_TIME);
+      
+      Assert.assertEquals(innerTime, inner.get(WarpScriptProfiler.KEY_SELF_TIME));
+      Assert.assertTrue(innerTime >= 10000000L);
+      Assert.assertEquals(outerTime - innerTime, outerSelf);
+      Assert.assertTrue(outerSelf >= 1000000L);
+    } finally {
+      profiler.close();
+    }
+  }
+  
+  @Test
+  public void testAllocated() {
+    com.sun.management.ThreadMXBean bean = bean();
+    
+    if (null == bean) {
+      return;
+    }
+    
+    boolean initial = bean.isThreadAllocatedMemoryEnabled();
+    
+    try {
+      bean.setThreadAllocatedMemoryEnabled(false);
+      
+      WarpScriptProfiler profiler = new WarpScriptProfiler();
+      
+      Assert.assertTrue(bean.isThreadAllocatedMemoryEnabled());
+      
+      profiler.enter();
+      byte[] data = new byte[1 << 20];
+      profiler.exit("alloc");
+      
+      Assert.assertEquals(1 << 20, data.length);
+      Assert.assertTrue((Long) profiler.getProfile().get(0).get(WarpScriptProfiler.KEY_ALLOCATED) >= (1 << 20));
+      
+      //
+      // Measurement stays enabled until the last profiler is closed, then the previous setting is restored
+      //
+      
+      WarpScriptProfiler other = new WarpScriptProfiler();
+      
+      profiler.close();
+      
+      Assert.assertTrue(bean.isThreadAllocatedMemoryEnabled());
+      
+      other.close();
+      
+      Assert.assertFalse(bean.isThreadAllocatedMemoryEnabled());
+      
+      // Closing twice has no effect
+      other.close();
+      
+      //
+      // A measurement enabled outside of the profilers is left enabled
+      //
+      
+      bean.setThreadAllocatedMemoryEnabled(true);
+      
+      profiler = new WarpScriptProfiler();
+      profiler.close();
+      
+      Assert.assertTrue(bean.isThreadAllocatedMemoryEnabled());
+    } finally {
+      bean.setThreadAllocatedMemoryEnabled(initial);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack.Macro;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FETCHTest {
+  
+  private static Map<String,Object> params() {
+    Map<String,Object> params = new HashMap<String,Object>();
+    params.put("token", "token");
+    params.put("class", "class");
+    params.put("labels", new HashMap<String,String>());
+    params.put("end", 1000L);
+    params.put("timespan", 100L);
+    return params;
+  }
+  
+  @Test
+  public void testPostfetchHook() throws Exception {
+    FETCH fetch = new FETCH("FETCH", false, null);
+    
+    Map<String,Object> params = params();
+    params.put("macro", new Macro());
+    
+    Map<String,Object> reduced = fetch.paramsFromMap(null, params);
+    
+    ReadToken rtoken = new ReadToken();
+    
+    //
+    // Without a postfetch hook the GTS can be reduced as they are fetched
+    //
+    
+    Assert.assertFalse(fetch.checkPostfetchHook(rtoken, reduced));
+    
+    rtoken.putToHooks("prefetch", "");
+    
+    Assert.assertFalse(fetch.checkPostfetchHook(rtoken, reduced));
+    
+    rtoken.putToHooks(FETCH.POSTFETCH_HOOK, "DROP [] ");
+    
+    Assert.assertTrue(fetch.checkPostfetchHook(rtoken, fetch.paramsFromMap(null, params())));
+    
+    try {
+      fetch.checkPostfetchHook(rtoken, reduced);
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+    }
+    
+    // 'bucketize' is validated by paramsFromMap, only its presence matters here
+    reduced = fetch.paramsFromMap(null, params());
+    reduced.put("bucketize", null);
+    
+    try {
+      fetch.checkPostfetchHook(rtoken, reduced);
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+    }
+  }
+  
+  @Test
+  public void testNegativeTimespan() throws Exception {
+    FETCH fetch = new FETCH("FETCH", false, null);
+    
+    Map<String,Object> params = fetch.paramsFromMap(null, params());
+    
+    Assert.assertEquals(100L, params.get("timespan"));
+    Assert.assertFalse(params.containsKey("count"));
+    
+    //
+    // A negative timespan selects the -timespan most recent values, as in the list form
+    //
+    
+    Map<String,Object> map = params();
+    map.put("timespan", -10L);
+    
+    params = fetch.paramsFromMap(null, map);
+    
+    Assert.assertEquals(10L, params.get("count"));
+    Assert.assertFalse(params.containsKey("timespan"));
+    
+    map.put("count", 5L);
+    
+    try {
+      fetch.paramsFromMap(null, map);
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+    }
+    
+    map.remove("count");
+    map.put("timespan", Long.MIN_VALUE);
+    
+    try {
+      fetch.paramsFromMap(null, map);
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+    }
+  }
+}
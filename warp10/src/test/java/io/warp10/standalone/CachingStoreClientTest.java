@@ -0,0 +1,317 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.FetchRequest;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.quasar.token.thrift.data.WriteToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class CachingStoreClientTest {
+  
+  private static final long TTL = 60000L;
+  
+  /**
+   * StoreClient returning 10 datapoints per GTS, optionally blocking or failing
+   */
+  private static final class FakeStoreClient implements StoreClient {
+    private final AtomicInteger fetches = new AtomicInteger(0);
+    private volatile CountDownLatch entered = null;
+    private volatile CountDownLatch release = null;
+    private volatile Throwable failure = null;
+    
+    @Override
+    public GTSDecoderIterator fetch(ReadToken token, List<Metadata> metadatas, FetchRequest request) throws IOException {
+      this.fetches.incrementAndGet();
+      
+      if (null != this.entered) {
+        this.entered.countDown();
+        
+        try {
+          this.release.await();
+        } catch (InterruptedException ie) {
+          throw new IOException(ie);
+        }
+      }
+      
+      if (this.failure instanceof Error) {
+        throw (Error) this.failure;
+      } else if (this.failure instanceof IOException) {
+        throw (IOException) this.failure;
+      }
+      
+      final List<GTSEncoder> encoders = new ArrayList<GTSEncoder>();
+      
+      for (Metadata metadata: metadatas) {
+        GTSEncoder encoder = new GTSEncoder(0L);
+        encoder.setMetadata(metadata);
+        
+        for (long ts = 0L; ts < 10L; ts++) {
+          encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, ts);
+        }
+        
+        encoders.add(encoder);
+      }
+      
+      return new GTSDecoderIterator() {
+        private int idx = 0;
+        
+        @Override
+        public boolean hasNext() {
+          return idx < encoders.size();
+        }
+        
+        @Override
+        public GTSDecoder next() {
+          return encoders.get(idx++).getDecoder();
+        }
+        
+        @Override
+        public void remove() {
+        }
+        
+        @Override
+        public void close() throws Exception {
+        }
+      };
+    }
+    
+    @Override
+    public void store(GTSEncoder encoder) throws IOException {
+    }
+    
+    @Override
+    public void archive(int chunk, GTSEncoder encoder) throws IOException {
+    }
+    
+    @Override
+    public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+      return 0L;
+    }
+    
+    @Override
+    public void addPlasmaHandler(StandalonePlasmaHandlerInterface handler) {
+    }
+  }
+  
+  private static ReadToken token(String billedId, String appName) {
+    ReadToken token = new ReadToken();
+    token.setBilledId(billedId.getBytes(Charsets.UTF_8));
+    token.setAppName(appName);
+    return token;
+  }
+  
+  private static List<Metadata> metadatas() {
+    Metadata metadata = new Metadata();
+    metadata.setName("series");
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.setClassId(1L);
+    metadata.setLabelsId(2L);
+    return Collections.singletonList(metadata);
+  }
+  
+  private static FetchRequest request() {
+    return new FetchRequest().setStart(0L).setEnd(100L);
+  }
+  
+  private static int count(GTSDecoderIterator iter) throws Exception {
+    int count = 0;
+    
+    try {
+      while (iter.hasNext()) {
+        GTSDecoder decoder = iter.next();
+        
+        while (decoder.next()) {
+          count++;
+        }
+      }
+    } finally {
+      iter.close();
+    }
+    
+    return count;
+  }
+  
+  @Test
+  public void testShared() throws Exception {
+    FakeStoreClient store = new FakeStoreClient();
+    CachingStoreClient client = new CachingStoreClient(store, TTL, Long.MAX_VALUE, TTL);
+    
+    Assert.assertEquals(10, count(client.fetch(token("billed", "app"), metadatas(), request())));
+    Assert.assertEquals(10, count(client.fetch(token("billed", "app"), metadatas(), request())));
+    Assert.assertEquals(1, store.fetches.get());
+    
+    // Different parameters are not shared
+    Assert.assertEquals(10, count(client.fetch(token("billed", "app"), metadatas(), request().setEnd(50L))));
+    Assert.assertEquals(2, store.fetches.get());
+    
+    // Sampled fetches are not shared
+    client.fetch(token("billed", "app"), metadatas(), request().setSample(0.5D)).close();
+    client.fetch(token("billed", "app"), metadatas(), request().setSample(0.5D)).close();
+    Assert.assertEquals(4, store.fetches.get());
+  }
+  
+  @Test
+  public void testBilledIdentity() throws Exception {
+    FakeStoreClient store = new FakeStoreClient();
+    CachingStoreClient client = new CachingStoreClient(store, TTL, Long.MAX_VALUE, TTL);
+    
+    //
+    // Fetches are only shared by tokens billed to the same consumer for the same application
+    //
+    
+    count(client.fetch(token("billed", "app"), metadatas(), request()));
+    count(client.fetch(token("other", "app"), metadatas(), request()));
+    count(client.fetch(token("billed", "other"), metadatas(), request()));
+    
+    Assert.assertEquals(3, store.fetches.get());
+    
+    count(client.fetch(token("other", "app"), metadatas(), request()));
+    
+    Assert.assertEquals(3, store.fetches.get());
+  }
+  
+  @Test
+  public void testMaxSize() throws Exception {
+    FakeStoreClient store = new FakeStoreClient();
+    CachingStoreClient client = new CachingStoreClient(store, TTL, 1L, TTL);
+    
+    // Results which do not fit are not retained
+    count(client.fetch(token("billed", "app"), metadatas(), request()));
+    count(client.fetch(token("billed", "app"), metadatas(), request()));
+    
+    Assert.assertEquals(2, store.fetches.get());
+  }
+  
+  @Test
+  public void testError() throws Exception {
+    final FakeStoreClient store = new FakeStoreClient();
+    final CachingStoreClient client = new CachingStoreClient(store, TTL, Long.MAX_VALUE, TTL);
+    
+    store.entered = new CountDownLatch(1);
+    store.release = new CountDownLatch(1);
+    store.failure = new StackOverflowError();
+    
+    final AtomicReference<Throwable> leader = new AtomicReference<Throwable>();
+    final AtomicReference<Throwable> follower = new AtomicReference<Throwable>();
+    
+    Thread first = new Thread() {
+      @Override
+      public void run() {
+        try {
+          client.fetch(token("billed", "app"), metadatas(), request());
+        } catch (Throwable t) {
+          leader.set(t);
+        }
+      }
+    };
+    
+    first.start();
+    store.entered.await();
+    
+    Thread second = new Thread() {
+      @Override
+      public void run() {
+        try {
+          client.fetch(token("billed", "app"), metadatas(), request());
+        } catch (Throwable t) {
+          follower.set(t);
+        }
+      }
+    };
+    
+    second.start();
+    
+    // Let the second fetch wait for the result of the first one
+    Thread.sleep(200L);
+    
+    store.release.countDown();
+    
+    first.join();
+    second.join(5000L);
+    
+    //
+    // An Error thrown by the first fetch completes the shared result
+    //
+    
+    Assert.assertFalse(second.isAlive());
+    Assert.assertTrue(leader.get() instanceof StackOverflowError);
+    Assert.assertTrue(follower.get() instanceof IOException);
+    Assert.assertTrue(follower.get().getCause() instanceof StackOverflowError);
+    Assert.assertEquals(1, store.fetches.get());
+    
+    // Failed results are not retained
+    store.entered = null;
+    store.failure = null;
+    
+    Assert.assertEquals(10, count(client.fetch(token("billed", "app"), metadatas(), request())));
+    Assert.assertEquals(2, store.fetches.get());
+  }
+  
+  @Test
+  public void testTimeout() throws Exception {
+    final FakeStoreClient store = new FakeStoreClient();
+    final CachingStoreClient client = new CachingStoreClient(store, TTL, Long.MAX_VALUE, 100L);
+    
+    store.entered = new CountDownLatch(1);
+    store.release = new CountDownLatch(1);
+    
+    Thread first = new Thread() {
+      @Override
+      public void run() {
+        try {
+          client.fetch(token("billed", "app"), metadatas(), request()).close();
+        } catch (Throwable t) {
+        }
+      }
+    };
+    
+    first.start();
+    store.entered.await();
+    
+    long nanos = System.nanoTime();
+    
+    try {
+      client.fetch(token("billed", "app"), metadatas(), request());
+      Assert.fail();
+    } catch (IOException ioe) {
+      Assert.assertTrue(System.nanoTime() - nanos >= 90000000L);
+    } finally {
+      store.release.countDown();
+      first.join();
+    }
+  }
+}
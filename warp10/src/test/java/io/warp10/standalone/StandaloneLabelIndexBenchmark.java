@@ -0,0 +1,111 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.store.CompactMetadata;
+import io.warp10.continuum.store.CompactMetadataFilter;
+import io.warp10.continuum.store.MetadataDictionary;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compare the inverted label index of StandaloneDirectoryClient with a filtered scan of all the GTS of a class.
+ *
+ * Usage: StandaloneLabelIndexBenchmark [number of GTS] [iterations]
+ */
+public class StandaloneLabelIndexBenchmark {
+
+  public static void main(String[] args) {
+    int ngts = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    MetadataDictionary dictionary = new MetadataDictionary();
+    StandaloneLabelIndex index = new StandaloneLabelIndex(dictionary);
+    List<CompactMetadata> metadatas = new ArrayList<CompactMetadata>(ngts);
+
+    for (int i = 0; i < ngts; i++) {
+      Metadata metadata = new Metadata();
+      metadata.setName("bench");
+      metadata.setLabels(new HashMap<String,String>());
+      metadata.setAttributes(new HashMap<String,String>());
+      metadata.getLabels().put("host", "host-" + (i % 10000));
+      metadata.getLabels().put("dc", "dc-" + (i % 16));
+      metadata.getLabels().put("id", Integer.toString(i));
+      metadata.setClassId(0L);
+      metadata.setLabelsId(i);
+      CompactMetadata compact = new CompactMetadata(dictionary, metadata);
+      metadatas.add(compact);
+      index.index(compact);
+    }
+
+    List<Map<String,Object>> selectors = new ArrayList<Map<String,Object>>();
+
+    Map<String,Object> selector = new HashMap<String,Object>();
+    selector.put("host", "host-42");
+    selectors.add(selector);
+
+    selector = new HashMap<String,Object>();
+    selector.put("host", "host-42");
+    selector.put("dc", "dc-10");
+    selectors.add(selector);
+
+    selector = new HashMap<String,Object>();
+    selector.put("host", Pattern.compile("host-4.*").matcher(""));
+    selector.put("dc", "dc-10");
+    selectors.add(selector);
+
+    for (Map<String,Object> sel: selectors) {
+      long scanCount = 0L;
+      long indexCount = 0L;
+
+      long nano = System.nanoTime();
+
+      for (int i = 0; i < iterations; i++) {
+        CompactMetadataFilter filter = new CompactMetadataFilter(dictionary, sel);
+        
+        for (CompactMetadata metadata: metadatas) {
+          if (filter.matches(metadata)) {
+            scanCount++;
+          }
+        }
+      }
+
+      long scan = System.nanoTime() - nano;
+
+      nano = System.nanoTime();
+
+      for (int i = 0; i < iterations; i++) {
+        indexCount += index.find("bench", sel).size();
+      }
+
+      long indexed = System.nanoTime() - nano;
+
+      if (scanCount != indexCount) {
+        throw new RuntimeException("Index and scan disagree for " + sel + ": " + indexCount + " != " + scanCount);
+      }
+
+      System.out.println(sel + " matches=" + (scanCount / iterations)
+          + " scan=" + (scan / iterations / 1000000.0D) + " ms"
+          + " index=" + (indexed / iterations / 1000000.0D) + " ms");
+    }
+  }
+}
@@ -0,0 +1,292 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.TimeSource;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.FetchRequest;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class StandaloneMemoryStoreTest {
+  
+  private static final int SERIES = 10;
+  
+  private File dir;
+  private KeyStore keystore;
+  private long now;
+  private long timespan;
+  
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    if (null == WarpConfig.getProperties()) {
+      WarpConfig.setProperties((String) null);
+    }
+  }
+  
+  @Before
+  public void setUp() throws Exception {
+    this.dir = Files.createTempDirectory("snapshot").toFile();
+    
+    this.keystore = new UnsecureKeyStore();
+    this.keystore.setKey(KeyStore.SIPHASH_CLASS, new byte[16]);
+    this.keystore.setKey(KeyStore.SIPHASH_LABELS, new byte[16]);
+    this.keystore.setKey(KeyStore.AES_LEVELDB_DATA, new byte[32]);
+    this.keystore.setKey(KeyStore.AES_LEVELDB_METADATA, new byte[32]);
+    
+    this.now = TimeSource.getTime();
+    
+    // Constants can only be loaded once the configuration is set
+    this.timespan = 86400000L * Constants.TIME_UNITS_PER_MS;
+  }
+  
+  @After
+  public void tearDown() throws Exception {
+    for (File file: this.dir.listFiles()) {
+      file.delete();
+    }
+    
+    this.dir.delete();
+  }
+  
+  private StandaloneMemoryStore store(StandaloneDirectoryClient directory) {
+    StandaloneMemoryStore store = new StandaloneMemoryStore(this.keystore, this.timespan, Long.MAX_VALUE, Long.MAX_VALUE);
+    store.setDirectoryClient(directory);
+    return store;
+  }
+  
+  private Metadata metadata(int i) {
+    Metadata metadata = new Metadata();
+    metadata.setName("series");
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.getLabels().put("idx", Integer.toString(i));
+    return metadata;
+  }
+  
+  /**
+   * Register SERIES series in 'store' and store 'n' values in each of them
+   */
+  private List<Metadata> populate(StandaloneMemoryStore store, StandaloneDirectoryClient directory, int n) throws Exception {
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+    
+    for (int i = 0; i < SERIES; i++) {
+      Metadata metadata = metadata(i);
+      
+      // Registration computes the class and labels ids
+      directory.register(metadata);
+      metadatas.add(metadata);
+      
+      GTSEncoder encoder = new GTSEncoder(0L);
+      encoder.setMetadata(metadata);
+      
+      for (int j = 0; j < n; j++) {
+        encoder.addValue(this.now - j, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) (i * n + j));
+      }
+      
+      store.store(encoder);
+    }
+    
+    return metadatas;
+  }
+  
+  private Map<String,Map<Long,Object>> fetch(StandaloneMemoryStore store, StandaloneDirectoryClient directory) throws Exception {
+    List<String> classes = new ArrayList<String>();
+    classes.add("~.*");
+    List<Map<String,String>> labels = new ArrayList<Map<String,String>>();
+    labels.add(new HashMap<String,String>());
+    
+    List<Metadata> metadatas = directory.find(classes, labels);
+    
+    Map<String,Map<Long,Object>> values = new TreeMap<String,Map<Long,Object>>();
+    
+    GTSDecoderIterator iter = store.fetch(null, metadatas, new FetchRequest());
+    
+    try {
+      while (iter.hasNext()) {
+        GTSDecoder decoder = iter.next();
+        Map<Long,Object> series = new TreeMap<Long,Object>();
+        while (decoder.next()) {
+          Assert.assertNull(series.put(decoder.getTimestamp(), decoder.getValue()));
+        }
+        values.put(decoder.getMetadata().getLabels().toString(), series);
+      }
+    } finally {
+      iter.close();
+    }
+    
+    return values;
+  }
+  
+  private List<String> files() {
+    String[] names = this.dir.list();
+    Arrays.sort(names);
+    return Arrays.asList(names);
+  }
+  
+  @Test
+  public void testRoundTrip() throws Exception {
+    StandaloneDirectoryClient directory = new StandaloneDirectoryClient(null, this.keystore);
+    StandaloneMemoryStore store = store(directory);
+    
+    populate(store, directory, 100);
+    
+    String path = new File(this.dir, "snapshot").getAbsolutePath();
+    
+    store.dump(path);
+    
+    Map<String,Map<Long,Object>> expected = fetch(store, directory);
+    
+    Assert.assertEquals(SERIES, expected.size());
+    
+    //
+    // Load the snapshot in an empty store
+    //
+    
+    StandaloneDirectoryClient loadedDirectory = new StandaloneDirectoryClient(null, this.keystore);
+    StandaloneMemoryStore loaded = store(loadedDirectory);
+    
+    loaded.load(path);
+    
+    Assert.assertEquals(expected, fetch(loaded, loadedDirectory));
+  }
+  
+  @Test
+  public void testGenerations() throws Exception {
+    StandaloneDirectoryClient directory = new StandaloneDirectoryClient(null, this.keystore);
+    StandaloneMemoryStore store = store(directory);
+    
+    populate(store, directory, 10);
+    
+    String path = new File(this.dir, "snapshot").getAbsolutePath();
+    
+    store.dump(path);
+    
+    List<String> first = files();
+    
+    store.dump(path);
+    
+    List<String> second = files();
+    
+    //
+    // The second dump wrote new shard files and removed those of the first one
+    //
+    
+    Assert.assertEquals(first.size(), second.size());
+    Assert.assertTrue(second.contains("snapshot"));
+    
+    for (String name: second) {
+      if (!"snapshot".equals(name)) {
+        Assert.assertFalse(first.contains(name));
+      }
+    }
+  }
+  
+  @Test
+  public void testEncrypted() throws Exception {
+    StandaloneDirectoryClient directory = new StandaloneDirectoryClient(null, this.keystore);
+    StandaloneMemoryStore store = store(directory);
+    
+    populate(store, directory, 10);
+    
+    String path = new File(this.dir, "snapshot").getAbsolutePath();
+    
+    store.dump(path);
+    
+    //
+    // Neither the class name nor the label values appear in clear in the shards
+    //
+    
+    for (String name: files()) {
+      if ("snapshot".equals(name)) {
+        continue;
+      }
+      
+      String content = new String(Files.readAllBytes(new File(this.dir, name).toPath()), "ISO-8859-1");
+      
+      Assert.assertFalse(content.contains("series"));
+      Assert.assertFalse(content.contains("idx"));
+    }
+  }
+  
+  @Test
+  public void testCorrupted() throws Exception {
+    StandaloneDirectoryClient directory = new StandaloneDirectoryClient(null, this.keystore);
+    StandaloneMemoryStore store = store(directory);
+    
+    populate(store, directory, 10);
+    
+    String path = new File(this.dir, "snapshot").getAbsolutePath();
+    
+    store.dump(path);
+    
+    //
+    // Flip the last byte of the largest shard, the checksum mismatch is detected before anything is loaded
+    //
+    
+    File largest = null;
+    
+    for (String name: files()) {
+      File file = new File(this.dir, name);
+      if (!"snapshot".equals(name) && (null == largest || file.length() > largest.length())) {
+        largest = file;
+      }
+    }
+    
+    RandomAccessFile raf = new RandomAccessFile(largest, "rw");
+    
+    try {
+      raf.seek(raf.length() - 1);
+      int b = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(b ^ 0xff);
+    } finally {
+      raf.close();
+    }
+    
+    StandaloneMemoryStore loaded = store(new StandaloneDirectoryClient(null, this.keystore));
+    
+    try {
+      loaded.load(path);
+      Assert.fail();
+    } catch (IOException ioe) {
+      Assert.assertTrue(ioe.getMessage().startsWith("Checksum mismatch"));
+    }
+  }
+}
@@ -0,0 +1,377 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.thrift.data.GTSWrapper;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+import io.warp10.sensision.Sensision;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class StandalonePlasmaHandlerTest {
+  
+  private static final int MAXFRAMES = 2;
+  
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    if (null == WarpConfig.getProperties()) {
+      WarpConfig.setProperties((String) null);
+    }
+  }
+  
+  /**
+   * Session recording the messages sent to it. When 'stalled' is true, no send ever completes.
+   */
+  private static class FakeSession implements InvocationHandler {
+    
+    private final List<Object> messages = new ArrayList<Object>();
+    
+    private final boolean stalled;
+    
+    private final Session session;
+    
+    private FakeSession(boolean stalled) {
+      this.stalled = stalled;
+      this.session = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[] { Session.class }, this);
+    }
+    
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if ("getRemote".equals(method.getName())) {
+        final FakeSession self = this;
+        
+        return Proxy.newProxyInstance(RemoteEndpoint.class.getClassLoader(), new Class[] { RemoteEndpoint.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object remote, Method send, Object[] params) throws Throwable {
+            synchronized (self.messages) {
+              self.messages.add(params[0]);
+            }
+            
+            FutureTask<Void> future = new FutureTask<Void>(new Callable<Void>() {
+              @Override
+              public Void call() throws Exception {
+                return null;
+              }
+            });
+            
+            if (!self.stalled) {
+              future.run();
+            }
+            
+            return future;
+          }
+        });
+      } else if ("isOpen".equals(method.getName())) {
+        return true;
+      } else if ("hashCode".equals(method.getName())) {
+        return System.identityHashCode(proxy);
+      } else if ("equals".equals(method.getName())) {
+        return proxy == args[0];
+      } else if ("toString".equals(method.getName())) {
+        return "FakeSession@" + System.identityHashCode(proxy);
+      }
+      
+      throw new UnsupportedOperationException(method.getName());
+    }
+    
+    private List<Object> getMessages() {
+      synchronized (this.messages) {
+        return new ArrayList<Object>(this.messages);
+      }
+    }
+  }
+  
+  private static StandalonePlasmaHandler handler(long maxMessageSize) {
+    KeyStore keystore = new UnsecureKeyStore();
+    keystore.setKey(KeyStore.AES_KAFKA_METADATA, new byte[32]);
+    
+    Properties properties = new Properties();
+    // Keep the flushing thread out of the way, flushes are triggered explicitly
+    properties.setProperty(Configuration.PLASMA_FRONTEND_FLUSH_INTERVAL, "3600000");
+    properties.setProperty(Configuration.PLASMA_FRONTEND_SESSION_MAXFRAMES, Integer.toString(MAXFRAMES));
+    properties.setProperty(Configuration.PLASMA_FRONTEND_WEBSOCKET_MAXMESSAGESIZE, Long.toString(maxMessageSize));
+    
+    // Do not start the dispatching thread, encoders are dispatched explicitly
+    return new StandalonePlasmaHandler(keystore, properties, null, false);
+  }
+  
+  private static Metadata metadata(String name, long classId) {
+    Metadata metadata = new Metadata();
+    metadata.setName(name);
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.getLabels().put("label", "value");
+    metadata.setClassId(classId);
+    metadata.setLabelsId(42L);
+    return metadata;
+  }
+  
+  private static GTSEncoder encoder(Metadata metadata, long from, long to) throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setMetadata(metadata);
+    
+    for (long ts = from; ts <= to; ts++) {
+      encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, ts);
+    }
+    
+    return encoder;
+  }
+  
+  private static long counter(String cls) {
+    Object value = Sensision.getValue(cls, Sensision.EMPTY_LABELS);
+    return null == value ? 0L : ((Number) value).longValue();
+  }
+  
+  @Test
+  public void testReverseIndex() throws Exception {
+    StandalonePlasmaHandler handler = handler(65536L);
+    
+    Metadata a = metadata("a", 1L);
+    Metadata b = metadata("b", 2L);
+    
+    FakeSession sa = new FakeSession(false);
+    FakeSession sb = new FakeSession(false);
+    FakeSession sab = new FakeSession(false);
+    
+    handler.subscribe(sa.session, Arrays.asList(a));
+    handler.subscribe(sb.session, Arrays.asList(b));
+    handler.subscribe(sab.session, Arrays.asList(a, b));
+    
+    handler.dispatch(encoder(a, 1L, 1L));
+    
+    Assert.assertEquals(1, sa.getMessages().size());
+    Assert.assertEquals(0, sb.getMessages().size());
+    Assert.assertEquals(1, sab.getMessages().size());
+    Assert.assertTrue(((String) sa.getMessages().get(0)).contains(" a{"));
+    
+    //
+    // Unsubscribed sessions are removed from the index
+    //
+    
+    handler.unsubscribe(sab.session, Arrays.asList(a));
+    
+    handler.dispatch(encoder(a, 2L, 2L));
+    handler.dispatch(encoder(b, 2L, 2L));
+    
+    Assert.assertEquals(2, sa.getMessages().size());
+    Assert.assertEquals(1, sb.getMessages().size());
+    Assert.assertEquals(2, sab.getMessages().size());
+    Assert.assertTrue(((String) sab.getMessages().get(1)).contains(" b{"));
+    
+    //
+    // GTS nobody subscribed to are not dispatched
+    //
+    
+    handler.dispatch(encoder(metadata("c", 3L), 1L, 1L));
+    
+    Assert.assertEquals(2, sa.getMessages().size());
+    Assert.assertEquals(1, sb.getMessages().size());
+    Assert.assertEquals(2, sab.getMessages().size());
+  }
+  
+  @Test
+  public void testOneEncoderPerMessage() throws Exception {
+    StandalonePlasmaHandler handler = handler(65536L);
+    
+    Metadata metadata = metadata("a", 1L);
+    
+    for (StandalonePlasmaHandler.OUTPUT_FORMAT format: StandalonePlasmaHandler.OUTPUT_FORMAT.values()) {
+      FakeSession session = new FakeSession(false);
+      handler.subscribe(session.session, Arrays.asList(metadata));
+      handler.setOutputFormat(session.session, format);
+      
+      handler.dispatch(encoder(metadata, 1L, 1L));
+      handler.dispatch(encoder(metadata, 2L, 2L));
+      
+      List<Object> messages = session.getMessages();
+      
+      Assert.assertEquals(format.name(), 2, messages.size());
+      
+      if (StandalonePlasmaHandler.OUTPUT_FORMAT.WRAPPER != format) {
+        Assert.assertFalse(format.name(), ((String) messages.get(0)).contains("\n"));
+      }
+      
+      handler.unsubscribe(session.session, Arrays.asList(metadata));
+    }
+  }
+  
+  @Test
+  public void testBatch() throws Exception {
+    StandalonePlasmaHandler handler = handler(1000L);
+    
+    Metadata metadata = metadata("a", 1L);
+    
+    FakeSession session = new FakeSession(false);
+    handler.subscribe(session.session, Arrays.asList(metadata));
+    handler.setOutputFormat(session.session, StandalonePlasmaHandler.OUTPUT_FORMAT.FULLTEXT);
+    handler.setBatch(session.session, true);
+    
+    for (long ts = 1L; ts <= 100L; ts++) {
+      handler.dispatch(encoder(metadata, ts, ts));
+    }
+    
+    handler.flush(0L);
+    
+    //
+    // Frames are sealed before they would exceed 90% of the maximum message size
+    //
+    
+    List<Object> messages = session.getMessages();
+    
+    Assert.assertTrue(messages.size() > 1);
+    
+    int lines = 0;
+    
+    for (Object message: messages) {
+      Assert.assertTrue(((String) message).length() <= 900);
+      lines += ((String) message).split("\n").length;
+    }
+    
+    Assert.assertEquals(100, lines);
+    
+    //
+    // Records which cannot fit in a message are dropped
+    //
+    
+    long dropped = counter(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DROPPED);
+    
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setMetadata(metadata);
+    char[] chars = new char[1000];
+    Arrays.fill(chars, 'x');
+    encoder.addValue(1000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, new String(chars));
+    
+    handler.dispatch(encoder);
+    handler.flush(0L);
+    
+    Assert.assertEquals(messages.size(), session.getMessages().size());
+    Assert.assertEquals(dropped + 1L, counter(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DROPPED));
+  }
+  
+  @Test
+  public void testWrapperFraming() throws Exception {
+    StandalonePlasmaHandler handler = handler(65536L);
+    
+    Metadata metadata = metadata("a", 1L);
+    metadata.getLabels().put(Constants.PRODUCER_LABEL, "producer");
+    
+    FakeSession session = new FakeSession(false);
+    handler.subscribe(session.session, Arrays.asList(metadata));
+    handler.setOutputFormat(session.session, StandalonePlasmaHandler.OUTPUT_FORMAT.WRAPPER);
+    handler.setBatch(session.session, true);
+    
+    handler.dispatch(encoder(metadata, 1L, 3L));
+    handler.dispatch(encoder(metadata, 4L, 5L));
+    handler.flush(0L);
+    
+    List<Object> messages = session.getMessages();
+    
+    Assert.assertEquals(1, messages.size());
+    
+    ByteBuffer frame = (ByteBuffer) messages.get(0);
+    
+    TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
+    
+    List<Long> counts = new ArrayList<Long>();
+    
+    while (frame.hasRemaining()) {
+      int len = frame.getInt();
+      
+      Assert.assertTrue(len <= frame.remaining());
+      
+      byte[] record = new byte[len];
+      frame.get(record);
+      
+      GTSWrapper wrapper = new GTSWrapper();
+      deserializer.deserialize(wrapper, record);
+      
+      Assert.assertEquals("a", wrapper.getMetadata().getName());
+      Assert.assertFalse(wrapper.getMetadata().getLabels().containsKey(Constants.PRODUCER_LABEL));
+      
+      counts.add(wrapper.getCount());
+    }
+    
+    Assert.assertEquals(Arrays.asList(3L, 2L), counts);
+  }
+  
+  @Test
+  public void testDroppedFrames() throws Exception {
+    StandalonePlasmaHandler handler = handler(65536L);
+    
+    Metadata metadata = metadata("a", 1L);
+    
+    FakeSession session = new FakeSession(true);
+    handler.subscribe(session.session, Arrays.asList(metadata));
+    
+    long dropped = counter(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DROPPED);
+    
+    //
+    // The first frame is never sent, MAXFRAMES frames are queued and the others are dropped
+    //
+    
+    for (long ts = 1L; ts <= 10L; ts++) {
+      handler.dispatch(encoder(metadata, ts, ts));
+    }
+    
+    Assert.assertEquals(1, session.getMessages().size());
+    Assert.assertEquals(dropped + 10L - 1L - MAXFRAMES, counter(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DROPPED));
+  }
+  
+  @Test
+  public void testDroppedEncoders() throws Exception {
+    StandalonePlasmaHandler handler = handler(65536L);
+    
+    Metadata metadata = metadata("a", 1L);
+    
+    long dropped = counter(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DROPPED_ENCODERS);
+    
+    //
+    // Without a dispatching thread the queue of encoders fills up, publishing never waits
+    //
+    
+    for (int i = 0; i < 300; i++) {
+      handler.publish(encoder(metadata, i, i));
+    }
+    
+    Assert.assertEquals(dropped + 300L - 256L, counter(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DROPPED_ENCODERS));
+  }
+}
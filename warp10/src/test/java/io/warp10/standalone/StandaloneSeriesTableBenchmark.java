@@ -0,0 +1,187 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Compare the contention of StandaloneSeriesTable with that of the former StandaloneMemoryStore
+ * scheme (a single map of encoders guarded by a global lock, then by a lock on each encoder).
+ * 
+ * Writer threads store single datapoint encoders into random series while reader threads
+ * read random series.
+ *
+ * Usage: StandaloneSeriesTableBenchmark [number of series] [writer threads] [reader threads] [duration in ms]
+ */
+public class StandaloneSeriesTableBenchmark {
+  
+  private interface Store {
+    void store(long classId, long labelsId, GTSEncoder encoder) throws Exception;
+    GTSEncoder read(long classId, long labelsId) throws Exception;
+  }
+  
+  /**
+   * Scheme used by StandaloneMemoryStore before StandaloneSeriesTable
+   */
+  private static class LegacyStore implements Store {
+    private final Map<BigInteger,GTSEncoder> series = new MapMaker().concurrencyLevel(64).makeMap();
+    
+    private static BigInteger key(long classId, long labelsId) {
+      return BigInteger.valueOf(classId).shiftLeft(64).or(BigInteger.valueOf(labelsId));
+    }
+    
+    @Override
+    public void store(long classId, long labelsId, GTSEncoder encoder) throws Exception {
+      BigInteger clslbls = key(classId, labelsId);
+      
+      GTSEncoder memencoder;
+      
+      synchronized (this.series) {
+        memencoder = this.series.get(clslbls);
+        if (null == memencoder) {
+          memencoder = new GTSEncoder(0L);
+          this.series.put(clslbls, memencoder);
+        }
+      }
+      
+      synchronized (memencoder) {
+        memencoder.merge(encoder);
+      }
+    }
+    
+    @Override
+    public GTSEncoder read(long classId, long labelsId) throws Exception {
+      GTSEncoder encoder = this.series.get(key(classId, labelsId));
+      
+      if (null == encoder) {
+        return null;
+      }
+      
+      synchronized (encoder) {
+        return new GTSEncoder(0L, null, encoder.getBytes());
+      }
+    }
+  }
+  
+  private static class TableStore implements Store {
+    private final StandaloneSeriesTable table = new StandaloneSeriesTable(64, 8 * 1024 * 1024, 3600L * Constants.TIME_UNITS_PER_S);
+    
+    @Override
+    public void store(long classId, long labelsId, GTSEncoder encoder) throws Exception {
+      this.table.append(classId, labelsId, encoder, false);
+    }
+    
+    @Override
+    public GTSEncoder read(long classId, long labelsId) throws Exception {
+      StandaloneSeriesTable.Series series = this.table.get(classId, labelsId);
+      
+      if (null == series) {
+        return null;
+      }
+      
+      return this.table.getEncoder(series);
+    }
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int nseries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int writers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int readers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+    long duration = args.length > 3 ? Long.parseLong(args[3]) : 10000L;
+    
+    run("legacy", new LegacyStore(), nseries, writers, readers, duration);
+    run("table", new TableStore(), nseries, writers, readers, duration);
+  }
+  
+  private static void run(String name, final Store store, final int nseries, int writers, int readers, long duration) throws Exception {
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicLong writes = new AtomicLong(0L);
+    final AtomicLong reads = new AtomicLong(0L);
+    
+    ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+    
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    
+    long nano = System.nanoTime();
+    
+    for (int i = 0; i < writers; i++) {
+      final long seed = i;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          long ts = 0L;
+          long rnd = seed * 0x9E3779B97F4A7C15L + 1;
+          while (!done.get()) {
+            rnd ^= rnd << 13; rnd ^= rnd >>> 7; rnd ^= rnd << 17;
+            long id = (rnd >>> 1) % nseries;
+            GTSEncoder encoder = new GTSEncoder(0L);
+            encoder.addValue(ts++, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (double) ts);
+            store.store(id >>> 4, id, encoder);
+            writes.incrementAndGet();
+          }
+          return null;
+        }
+      }));
+    }
+    
+    for (int i = 0; i < readers; i++) {
+      final long seed = 1000 + i;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          long rnd = seed * 0x9E3779B97F4A7C15L + 1;
+          while (!done.get()) {
+            rnd ^= rnd << 13; rnd ^= rnd >>> 7; rnd ^= rnd << 17;
+            long id = (rnd >>> 1) % nseries;
+            store.read(id >>> 4, id);
+            reads.incrementAndGet();
+          }
+          return null;
+        }
+      }));
+    }
+    
+    Thread.sleep(duration);
+    done.set(true);
+    
+    for (Future<Void> future: futures) {
+      future.get();
+    }
+    
+    executor.shutdown();
+    
+    nano = System.nanoTime() - nano;
+    
+    System.out.println(name + " writes/s=" + (writes.get() * 1000000000L / nano) + " reads/s=" + (reads.get() * 1000000000L / nano)
+        + " heap=" + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()));
+  }
+}
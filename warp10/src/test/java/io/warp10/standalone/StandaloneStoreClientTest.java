@@ -0,0 +1,580 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.FetchRequest;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.Rollup;
+import io.warp10.continuum.store.Store;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandaloneStoreClientTest {
+  
+  private static final long SPAN = 100L;
+  
+  private File dir;
+  private DB db;
+  private KeyStore keystore;
+  
+  @Before
+  public void setUp() throws Exception {
+    this.dir = Files.createTempDirectory("leveldb").toFile();
+    this.db = Iq80DBFactory.factory.open(this.dir, new Options().createIfMissing(true));
+    
+    this.keystore = new UnsecureKeyStore();
+    this.keystore.setKey(KeyStore.SIPHASH_CLASS, new byte[16]);
+    this.keystore.setKey(KeyStore.SIPHASH_LABELS, new byte[16]);
+    this.keystore.setKey(KeyStore.AES_LEVELDB_DATA, new byte[32]);
+  }
+  
+  @After
+  public void tearDown() throws Exception {
+    this.db.close();
+    
+    for (File file: this.dir.listFiles()) {
+      file.delete();
+    }
+    
+    this.dir.delete();
+  }
+  
+  private StandaloneStoreClient client() {
+    return client(false);
+  }
+  
+  /**
+   * @param rollups Should rollups be maintained for 'series' at resolutions 50 and SPAN
+   */
+  private StandaloneStoreClient client(boolean rollups) {
+    Properties properties = new Properties();
+    properties.setProperty(Configuration.LEVELDB_BLOCK_SPAN, Long.toString(SPAN));
+    // Keep the client's own merger out of the way, merges are triggered explicitly
+    properties.setProperty(Configuration.LEVELDB_BLOCK_MERGE_PERIOD, "3600000");
+    if (rollups) {
+      properties.setProperty(Configuration.LEVELDB_ROLLUP_SELECTORS, "series{}");
+      properties.setProperty(Configuration.LEVELDB_ROLLUP_RESOLUTIONS, "50," + SPAN);
+    }
+    return new StandaloneStoreClient(this.db, this.keystore, properties);
+  }
+  
+  private StandaloneBlockMerger merger() {
+    return new StandaloneBlockMerger(this.db, this.keystore.getKey(KeyStore.AES_LEVELDB_DATA), SPAN, 3600000L, new ReentrantReadWriteLock());
+  }
+  
+  private Metadata metadata() {
+    Metadata metadata = new Metadata();
+    metadata.setName("series");
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.getLabels().put("label", "value");
+    metadata.setClassId(GTSHelper.classId(this.keystore.getKey(KeyStore.SIPHASH_CLASS), metadata.getName()));
+    metadata.setLabelsId(GTSHelper.labelsId(this.keystore.getKey(KeyStore.SIPHASH_LABELS), metadata.getLabels()));
+    return metadata;
+  }
+  
+  /**
+   * Store value 'ts * factor' at each timestamp in [from,to]
+   */
+  private void store(StandaloneStoreClient client, Metadata metadata, long from, long to, long factor) throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setMetadata(metadata);
+    
+    for (long ts = from; ts <= to; ts++) {
+      encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, ts * factor);
+    }
+    
+    client.store(encoder);
+    // Flush the per thread batch
+    client.store((GTSEncoder) null);
+  }
+  
+  private Map<Long,Object> fetch(StandaloneStoreClient client, Metadata metadata, FetchRequest request) throws Exception {
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+    metadatas.add(metadata);
+    
+    Map<Long,Object> values = new TreeMap<Long,Object>();
+    
+    GTSDecoderIterator iter = client.fetch(null, metadatas, request);
+    
+    try {
+      while (iter.hasNext()) {
+        GTSDecoder decoder = iter.next();
+        while (decoder.next()) {
+          Assert.assertNull(values.put(decoder.getTimestamp(), decoder.getValue()));
+        }
+      }
+    } finally {
+      iter.close();
+    }
+    
+    return values;
+  }
+  
+  /**
+   * Fetch the per bucket aggregates of span SPAN of the datapoints in [start,end]
+   */
+  private Map<Long,Object> rollup(StandaloneStoreClient client, Metadata metadata, long start, long end, Rollup.Aggregate aggregate) throws Exception {
+    return fetch(client, metadata, new FetchRequest().setStart(start).setEnd(end).setRollup(SPAN, aggregate));
+  }
+  
+  /**
+   * Compute the per bucket aggregates of span SPAN of the datapoints in [start,end] from a raw fetch
+   */
+  private Map<Long,Object> expected(StandaloneStoreClient client, Metadata metadata, long start, long end, Rollup.Aggregate aggregate) throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    
+    for (Entry<Long,Object> entry: fetch(client, metadata, new FetchRequest().setStart(start).setEnd(end)).entrySet()) {
+      encoder.addValue(entry.getKey(), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, entry.getValue());
+    }
+    
+    GTSDecoder decoder = Rollup.aggregate(encoder.getDecoder(), SPAN, aggregate);
+    
+    Map<Long,Object> values = new TreeMap<Long,Object>();
+    
+    while (decoder.next()) {
+      values.put(decoder.getTimestamp(), decoder.getValue());
+    }
+    
+    return values;
+  }
+  
+  /**
+   * Write the mutations returned by an indexer
+   */
+  private void write(List<byte[][]> kvs) {
+    for (byte[][] kv: kvs) {
+      this.db.put(kv[0], kv[1]);
+    }
+  }
+  
+  private int count(byte[] prefix) throws Exception {
+    DBIterator iterator = this.db.iterator();
+    
+    int count = 0;
+    
+    try {
+      iterator.seek(prefix);
+      
+      while (iterator.hasNext()) {
+        Entry<byte[],byte[]> kv = iterator.next();
+        
+        if (0 != Bytes.compareTo(kv.getKey(), 0, prefix.length, prefix, 0, prefix.length)) {
+          break;
+        }
+        
+        count++;
+      }
+    } finally {
+      iterator.close();
+    }
+    
+    return count;
+  }
+  
+  @Test
+  public void testBlockLayout() {
+    Assert.assertEquals(100L, StandaloneStoreClient.blockStart(100L, SPAN));
+    Assert.assertEquals(100L, StandaloneStoreClient.blockStart(199L, SPAN));
+    Assert.assertEquals(-100L, StandaloneStoreClient.blockStart(-1L, SPAN));
+    Assert.assertEquals(-100L, StandaloneStoreClient.blockStart(-100L, SPAN));
+    Assert.assertEquals(Long.MIN_VALUE, StandaloneStoreClient.blockStart(Long.MIN_VALUE + 5L, SPAN));
+    
+    //
+    // Most recent blocks sort first, as the individual datapoints do
+    //
+    
+    Assert.assertTrue(Bytes.compareTo(StandaloneStoreClient.blockKey(1L, 2L, 200L), StandaloneStoreClient.blockKey(1L, 2L, 100L)) < 0);
+    Assert.assertTrue(Bytes.compareTo(StandaloneStoreClient.blockKey(1L, 2L, 100L), StandaloneStoreClient.blockKey(1L, 2L, -100L)) < 0);
+    Assert.assertTrue(Bytes.compareTo(StandaloneStoreClient.rawKey(1L, 2L, 200L), StandaloneStoreClient.rawKey(1L, 2L, 100L)) < 0);
+  }
+  
+  @Test
+  public void testMerge() throws Exception {
+    StandaloneStoreClient client = client();
+    Metadata metadata = metadata();
+    
+    store(client, metadata, 0L, 299L, 1L);
+    
+    Assert.assertEquals(300, count(Store.HBASE_RAW_DATA_KEY_PREFIX));
+    
+    //
+    // Only the blocks which ended before 'now' are merged
+    //
+    
+    merger().merge(250L);
+    
+    Assert.assertEquals(100, count(Store.HBASE_RAW_DATA_KEY_PREFIX));
+    Assert.assertEquals(2, count(StandaloneStoreClient.BLOCK_DATA_KEY_PREFIX));
+    
+    merger().merge(300L);
+    
+    Assert.assertEquals(0, count(Store.HBASE_RAW_DATA_KEY_PREFIX));
+    Assert.assertEquals(3, count(StandaloneStoreClient.BLOCK_DATA_KEY_PREFIX));
+    
+    Map<Long,Object> values = fetch(client, metadata, new FetchRequest());
+    
+    Assert.assertEquals(300, values.size());
+    
+    for (Entry<Long,Object> entry: values.entrySet()) {
+      Assert.assertEquals(entry.getKey(), entry.getValue());
+    }
+  }
+  
+  @Test
+  public void testFetch() throws Exception {
+    StandaloneStoreClient client = client();
+    Metadata metadata = metadata();
+    
+    store(client, metadata, 0L, 299L, 1L);
+    merger().merge(250L);
+    
+    //
+    // Overwrite datapoints in both a merged and the current block, the individual
+    // datapoints take precedence over those in the blocks
+    //
+    
+    store(client, metadata, 190L, 209L, -1L);
+    store(client, metadata, 290L, 299L, -1L);
+    
+    Map<Long,Object> values = fetch(client, metadata, new FetchRequest());
+    
+    Assert.assertEquals(300, values.size());
+    
+    for (Entry<Long,Object> entry: values.entrySet()) {
+      long ts = entry.getKey();
+      boolean overwritten = (ts >= 190L && ts <= 209L) || ts >= 290L;
+      Assert.assertEquals(overwritten ? -ts : ts, entry.getValue());
+    }
+    
+    //
+    // Time range spanning both layouts
+    //
+    
+    values = fetch(client, metadata, new FetchRequest().setStart(150L).setEnd(249L));
+    
+    Assert.assertEquals(100, values.size());
+    Assert.assertEquals(150L, (long) ((TreeMap<Long,Object>) values).firstKey());
+    Assert.assertEquals(249L, (long) ((TreeMap<Long,Object>) values).lastKey());
+    
+    //
+    // Count and skip select the most recent datapoints across layouts
+    //
+    
+    values = fetch(client, metadata, new FetchRequest().setEnd(249L).setSkip(10L).setCount(100L));
+    
+    Assert.assertEquals(100, values.size());
+    Assert.assertEquals(140L, (long) ((TreeMap<Long,Object>) values).firstKey());
+    Assert.assertEquals(239L, (long) ((TreeMap<Long,Object>) values).lastKey());
+    Assert.assertEquals(-190L, values.get(190L));
+    Assert.assertEquals(-200L, values.get(200L));
+    
+    //
+    // Merging again keeps the overwritten values
+    //
+    
+    merger().merge(300L);
+    
+    Assert.assertEquals(0, count(Store.HBASE_RAW_DATA_KEY_PREFIX));
+    Assert.assertEquals(values, fetch(client, metadata, new FetchRequest().setEnd(249L).setSkip(10L).setCount(100L)));
+  }
+  
+  @Test
+  public void testDelete() throws Exception {
+    StandaloneStoreClient client = client();
+    Metadata metadata = metadata();
+    
+    store(client, metadata, 0L, 299L, 1L);
+    merger().merge(250L);
+    
+    //
+    // Delete a range which partially covers two merged blocks and the individual datapoints
+    //
+    
+    Assert.assertEquals(200L, client.delete(null, metadata(), 50L, 249L));
+    
+    Map<Long,Object> values = fetch(client, metadata, new FetchRequest());
+    
+    Assert.assertEquals(100, values.size());
+    
+    for (long ts: values.keySet()) {
+      Assert.assertTrue(ts < 50L || ts > 249L);
+    }
+    
+    //
+    // Blocks left empty are removed
+    //
+    
+    Assert.assertEquals(1, count(StandaloneStoreClient.BLOCK_DATA_KEY_PREFIX));
+    
+    Assert.assertEquals(100L, client.delete(null, metadata(), Long.MIN_VALUE, Long.MAX_VALUE));
+    Assert.assertEquals(0, count(StandaloneStoreClient.BLOCK_DATA_KEY_PREFIX));
+    Assert.assertEquals(0, count(Store.HBASE_RAW_DATA_KEY_PREFIX));
+    Assert.assertTrue(fetch(client, metadata, new FetchRequest()).isEmpty());
+  }
+  
+  @Test
+  public void testIndexer() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(Configuration.LEVELDB_ROLLUP_SELECTORS, "series{}");
+    properties.setProperty(Configuration.LEVELDB_ROLLUP_RESOLUTIONS, SPAN + ",50");
+    
+    StandaloneIndexer indexer = new StandaloneIndexer(this.db, this.keystore.getKey(KeyStore.AES_LEVELDB_DATA), properties);
+    
+    Metadata metadata = metadata();
+    Metadata other = metadata();
+    other.setName("other");
+    
+    Assert.assertEquals(SPAN, indexer.getResolution(metadata, 3 * SPAN));
+    Assert.assertEquals(50L, indexer.getResolution(metadata, 150L));
+    Assert.assertEquals(0L, indexer.getResolution(metadata, 30L));
+    Assert.assertEquals(0L, indexer.getResolution(other, SPAN));
+    
+    Assert.assertTrue(indexer.matches(metadata));
+    Assert.assertFalse(indexer.matches(other));
+    
+    //
+    // The coverage is recorded once per resolution
+    //
+    
+    Assert.assertNull(indexer.getCoverage(metadata, SPAN));
+    
+    List<byte[][]> kvs = new ArrayList<byte[][]>();
+    indexer.cover(metadata.getClassId(), metadata.getLabelsId(), 99L, kvs);
+    Assert.assertEquals(2, kvs.size());
+    
+    // Nothing is written until the store writes the mutations
+    Assert.assertNull(indexer.getCoverage(metadata, SPAN));
+    
+    write(kvs);
+    
+    Assert.assertEquals(100L, (long) indexer.getCoverage(metadata, SPAN));
+    Assert.assertEquals(100L, (long) indexer.getCoverage(metadata, 50L));
+    
+    kvs.clear();
+    indexer.cover(metadata.getClassId(), metadata.getLabelsId(), 500L, kvs);
+    Assert.assertTrue(kvs.isEmpty());
+    
+    //
+    // Merged rollups accumulate, replacing ones do not
+    //
+    
+    for (int i = 0; i < 2; i++) {
+      Map<Long,Rollup> buckets = new TreeMap<Long,Rollup>();
+      
+      for (long ts = 1L; ts <= 300L; ts++) {
+        Rollup rollup = buckets.get(Rollup.bucketEnd(ts, SPAN));
+        
+        if (null == rollup) {
+          rollup = new Rollup();
+          buckets.put(Rollup.bucketEnd(ts, SPAN), rollup);
+        }
+        
+        rollup.add(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1L);
+      }
+      
+      kvs.clear();
+      indexer.update(metadata.getClassId(), metadata.getLabelsId(), SPAN, buckets, false, kvs);
+      write(kvs);
+      
+      kvs.clear();
+      indexer.update(metadata.getClassId(), metadata.getLabelsId(), 50L, buckets, true, kvs);
+      write(kvs);
+    }
+    
+    Map<Long,Rollup> buckets = new TreeMap<Long,Rollup>();
+    
+    DBIterator iterator = this.db.iterator();
+    
+    try {
+      indexer.read(iterator, metadata, SPAN, 200L, 300L, buckets);
+    } finally {
+      iterator.close();
+    }
+    
+    Assert.assertEquals(2, buckets.size());
+    Assert.assertEquals(200L, buckets.get(200L).getValue(Rollup.Aggregate.COUNT));
+    Assert.assertEquals(200L, buckets.get(300L).getValue(Rollup.Aggregate.SUM));
+    
+    buckets.clear();
+    
+    iterator = this.db.iterator();
+    
+    try {
+      indexer.read(iterator, metadata, 50L, 200L, 300L, buckets);
+    } finally {
+      iterator.close();
+    }
+    
+    Assert.assertEquals(100L, buckets.get(200L).getValue(Rollup.Aggregate.COUNT));
+    
+    //
+    // Deletes remove the overlapping buckets and report those partially covered
+    //
+    
+    List<long[]> partial = indexer.delete(metadata, 150L, 200L);
+    
+    Assert.assertEquals(2, partial.size());
+    Assert.assertArrayEquals(new long[] { 50L, 150L }, partial.get(0));
+    Assert.assertArrayEquals(new long[] { SPAN, 200L }, partial.get(1));
+    
+    buckets.clear();
+    
+    iterator = this.db.iterator();
+    
+    try {
+      indexer.read(iterator, metadata, 50L, Long.MIN_VALUE, Long.MAX_VALUE, buckets);
+    } finally {
+      iterator.close();
+    }
+    
+    Assert.assertEquals(new TreeSet<Long>(Arrays.asList(50L, 100L, 250L, 300L)), buckets.keySet());
+  }
+  
+  @Test
+  public void testFetchRollup() throws Exception {
+    StandaloneStoreClient client = client(true);
+    Metadata metadata = metadata();
+    
+    store(client, metadata, 1L, 400L, 1L);
+    merger().merge(250L);
+    
+    for (Rollup.Aggregate aggregate: Rollup.Aggregate.values()) {
+      for (long[] range: new long[][] { { 1L, 400L }, { 30L, 370L }, { 120L, 180L }, { Long.MIN_VALUE, Long.MAX_VALUE } }) {
+        Map<Long,Object> values = rollup(client, metadata, range[0], range[1], aggregate);
+        Assert.assertFalse(values.isEmpty());
+        Assert.assertEquals(expected(client, metadata, range[0], range[1], aggregate), values);
+      }
+    }
+  }
+  
+  @Test
+  public void testRollupCoverage() throws Exception {
+    Metadata metadata = metadata();
+    
+    //
+    // Datapoints stored before the rollups were maintained are aggregated from the datapoints
+    //
+    
+    store(client(), metadata, 1L, 250L, 1L);
+    
+    StandaloneStoreClient client = client(true);
+    
+    store(client, metadata, 251L, 400L, 1L);
+    
+    Map<Long,Object> values = rollup(client, metadata, Long.MIN_VALUE, Long.MAX_VALUE, Rollup.Aggregate.COUNT);
+    
+    Assert.assertEquals(4, values.size());
+    
+    for (Object count: values.values()) {
+      Assert.assertEquals(SPAN, count);
+    }
+    
+    Assert.assertEquals(expected(client, metadata, 1L, 400L, Rollup.Aggregate.SUM), rollup(client, metadata, 1L, 400L, Rollup.Aggregate.SUM));
+  }
+  
+  @Test
+  public void testRollupOverwrite() throws Exception {
+    StandaloneStoreClient client = client(true);
+    Metadata metadata = metadata();
+    
+    store(client, metadata, 1L, 300L, 1L);
+    merger().merge(250L);
+    
+    //
+    // The buckets with overwritten datapoints, stored individually or in blocks, are recomputed
+    //
+    
+    store(client, metadata, 51L, 60L, 2L);
+    store(client, metadata, 151L, 160L, 3L);
+    
+    //
+    // Datapoints stored several times by the same encoder are only accounted for once
+    //
+    
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setMetadata(metadata);
+    encoder.addValue(280L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 4L);
+    encoder.addValue(320L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 4L);
+    encoder.addValue(320L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 5L);
+    client.store(encoder);
+    
+    //
+    // Datapoints stored out of order without overwriting any datapoint are merged
+    //
+    
+    client.delete(null, metadata, 201L, 210L);
+    store(client, metadata, 201L, 205L, 6L);
+    
+    Assert.assertEquals(100L, rollup(client, metadata, 1L, 100L, Rollup.Aggregate.COUNT).get(100L));
+    Assert.assertEquals(1L, rollup(client, metadata, 301L, 400L, Rollup.Aggregate.COUNT).get(400L));
+    
+    for (Rollup.Aggregate aggregate: Rollup.Aggregate.values()) {
+      Assert.assertEquals(expected(client, metadata, 1L, 400L, aggregate), rollup(client, metadata, 1L, 400L, aggregate));
+    }
+  }
+  
+  @Test
+  public void testDeleteRollup() throws Exception {
+    StandaloneStoreClient client = client(true);
+    Metadata metadata = metadata();
+    
+    store(client, metadata, 1L, 400L, 1L);
+    merger().merge(250L);
+    
+    Assert.assertEquals(100L, client.delete(null, metadata(), 150L, 249L));
+    
+    //
+    // The partially covered buckets were recomputed from the remaining datapoints
+    //
+    
+    for (Rollup.Aggregate aggregate: Rollup.Aggregate.values()) {
+      Assert.assertEquals(expected(client, metadata, 1L, 400L, aggregate), rollup(client, metadata, 1L, 400L, aggregate));
+    }
+    
+    Assert.assertEquals(49L, rollup(client, metadata, 1L, 400L, Rollup.Aggregate.COUNT).get(200L));
+    Assert.assertEquals(51L, rollup(client, metadata, 1L, 400L, Rollup.Aggregate.COUNT).get(300L));
+  }
+}